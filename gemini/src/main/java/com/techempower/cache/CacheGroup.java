@@ -27,13 +27,23 @@
 
 package com.techempower.cache;
 
+import gnu.trove.iterator.*;
+import gnu.trove.list.*;
+import gnu.trove.list.array.*;
 import gnu.trove.map.*;
 import gnu.trove.map.hash.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
 
+import java.io.*;
 import java.lang.reflect.*;
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.techempower.data.*;
 import com.techempower.helper.*;
 import com.techempower.util.*;
@@ -51,9 +61,11 @@ import com.techempower.util.*;
  * operations (adding, removing objects for example) are synchronized.
  * <p>
  * Read operations are made threadsafe without synchronization through the use
- * of CopyOnWriteArrayList (from the Java concurrency package) and
- * ConcurrentLongMap, which is a simple re-working of ConcurrentHashMap also
- * from the Java concurrency package.
+ * of an {@link OrderedIndex}, which maintains the sorted list of objects in
+ * a persistent tree, and a {@link CacheStorage}, which by default is backed
+ * by a ConcurrentHashMap.
+ * The storage backend may be selected per group; see
+ * {@link Builder#storage(CacheStorage.Factory)}.
  * <p>
  * Testing so far indicates read performance that is greatly improved over
  * previous versions that used synchronization for both reads and writes.
@@ -67,10 +79,19 @@ public class CacheGroup<T extends Identifiable>
   // Member variables.
   //
 
-  private ConcurrentMap<Long, T>  objects             = new ConcurrentHashMap<>();
-  private List<T>                 objectsInOrder      = new CopyOnWriteArrayList<>();
+  private final CacheStorage.Factory storageFactory;
+  private volatile CacheStorage<T> objects;
+  private volatile OrderedIndex<T> objectsInOrder;
   private volatile boolean        initialized         = false;
   private boolean                 errorOnInitialize   = false;
+  private int                     generation          = 0;
+  private volatile boolean        backgroundReset     = false;
+  private volatile TLongSet       rebuildChanges      = null;
+  private CompletableFuture<CacheLoadStatistics> rebuilding = null;
+  private volatile String         deltaColumn         = null;
+  private Object                  deltaHighWater      = null;
+  private TLongSet                deltaBoundary       = new TLongHashSet();
+  private final Logger            log                 = LoggerFactory.getLogger(getClass());
   private long                    lowestIdentity      = Long.MAX_VALUE;
   private long                    highestIdentity     = 0;
 
@@ -91,9 +112,33 @@ public class CacheGroup<T extends Identifiable>
       String[] whereArguments,
       boolean readOnly,
       boolean distribute)
+  {
+    this(controller, type, table, id, maker, comparator, where, 
+        whereArguments, readOnly, distribute, CacheStorage.Type.CONCURRENT_MAP);
+  }
+
+  /**
+   * Constructor.
+   */
+  protected CacheGroup(EntityStore controller,
+      Class<T> type, 
+      String table, 
+      String id, 
+      EntityMaker<T> maker, 
+      Comparator<? super T> comparator,
+      String where, 
+      String[] whereArguments,
+      boolean readOnly,
+      boolean distribute,
+      CacheStorage.Factory storageFactory)
   {
     super(controller, type, table, id, maker, comparator,
         where, whereArguments, readOnly, distribute);
+    this.storageFactory = (storageFactory != null 
+        ? storageFactory 
+        : CacheStorage.Type.CONCURRENT_MAP);
+    this.objects = newStorage(0);
+    this.objectsInOrder = new OrderedIndex<>(comparator());
   }
 
   /**
@@ -142,18 +187,17 @@ public class CacheGroup<T extends Identifiable>
     {
       if (objects == null)
       {
-        this.objects = new ConcurrentHashMap<>();
-        this.objectsInOrder = new CopyOnWriteArrayList<>();
+        this.objects = newStorage(0);
+        this.objectsInOrder = new OrderedIndex<>(comparator());
       }
       else
       {
-        final ConcurrentMap<Long, T> workMap = new ConcurrentHashMap<>(
-            objects.size());
+        final CacheStorage<T> workMap = newStorage(objects.size());
         final List<T> workList = new ArrayList<>(objects.size());
         
         for (T object : objects)
         {
-          workMap.put(object.getId(), object);
+          workMap.put(object);
           workList.add(object);
         }
 
@@ -162,7 +206,7 @@ public class CacheGroup<T extends Identifiable>
         // Avoid maintaining the sorted list if not needed.
         if (comparator() != EntityGroup.NO_COMPARATOR)
         {
-          this.objectsInOrder = new CopyOnWriteArrayList<>(workList);
+          this.objectsInOrder = new OrderedIndex<>(comparator(), workList);
         }
 
         // If we're setting objects from somewhere else, we should assume
@@ -188,10 +232,15 @@ public class CacheGroup<T extends Identifiable>
   {
     synchronized (this)
     {
+      this.generation++;
       setInitialized(false);
       setErrorOnInitialize(false);
       resetHighLowIdentities();
     }
+    if (versions() != null)
+    {
+      versions().clear();
+    }
   }
 
   /**
@@ -228,6 +277,11 @@ public class CacheGroup<T extends Identifiable>
     return this.objects.get(id);
   }
 
+  /**
+   * Gets the objects in this group.  If the group is sorted, the returned
+   * list is an immutable snapshot of the sorted objects, which is cheap to 
+   * obtain and is unaffected by later changes to the group.
+   */
   @Override
   public List<T> list()
   {
@@ -237,27 +291,20 @@ public class CacheGroup<T extends Identifiable>
     {
       return new ArrayList<>(this.objects.values());
     }
-    return new ArrayList<>(this.objectsInOrder);
+    return this.objectsInOrder.list();
   }
   
+  /**
+   * Gets the objects in this group as a map of identity to object.  The map
+   * must not be modified; depending on the group's storage backend, it is
+   * either a copy or a read-only view.
+   */
   @Override
   public TLongObjectMap<T> map()
   {
     initializeIfNecessary();
     
-    // Grab a reference.
-    final ConcurrentMap<Long, T> map = this.objects;
-
-    final TLongObjectMap<T> toReturn = new TLongObjectHashMap<>(map.size());
-    final Iterator<T> values = map.values().iterator();
-    T object;
-    while (values.hasNext())
-    {
-      object = values.next();
-      toReturn.put(object.getId(), object);
-    }
-    
-    return toReturn;
+    return this.objects.map();
   }
 
   /**
@@ -406,7 +453,7 @@ public class CacheGroup<T extends Identifiable>
   public final void addToCache(T... objectsToAdd)
   {
     // Grab references.
-    final ConcurrentMap<Long, T> map = this.objects;
+    final CacheStorage<T> map = this.objects;
     final Comparator<? super T> comparator = comparator();
     
     // Avoid maintaining the sorted list if not needed.
@@ -414,7 +461,8 @@ public class CacheGroup<T extends Identifiable>
     {
       for (T object : objectsToAdd)
       {
-        map.put(object.getId(), object);
+        map.put(object);
+        noteChange(object.getId(), map);
 
         if (areHighLowIdentitiesInitialized())
         {
@@ -431,31 +479,19 @@ public class CacheGroup<T extends Identifiable>
     }
     else
     {
-      final List<T> orderedList = this.objectsInOrder;
+      final OrderedIndex<T> orderedList = this.objectsInOrder;
       synchronized (this)
       {
         for (T object : objectsToAdd)
         {
           // Only proceed if we don't already have this reference in the cache.
-          if (!map.containsValue(object))
+          if (map.get(object.getId()) != object)
           {
-            // If we already have a reference with the same ID, let's remove it.
-            if (map.containsKey(object.getId()))
-            {
-              // Remove the existing reference from the ordered list.
-              orderedList.remove(map.get(object.getId()));
-            }
-
-            map.put(object.getId(), object);
-            int search = Collections.binarySearch(orderedList, object, comparator);
-            if (search < 0)
-            {
-              orderedList.add(-search - 1, object);
-            }
-            else
-            {
-              orderedList.add(object);
-            }
+            // The ordered index replaces any existing reference with the 
+            // same ID.
+            map.put(object);
+            orderedList.add(object);
+            noteChange(object.getId(), map);
 
             if (areHighLowIdentitiesInitialized())
             {
@@ -488,7 +524,7 @@ public class CacheGroup<T extends Identifiable>
   public boolean removeFromCache(long... ids)
   {
     // Grab references.
-    final ConcurrentMap<Long, T> map = this.objects;
+    final CacheStorage<T> map = this.objects;
 
     // Skip updating objectsInOrder if not using sorting.
     if (comparator() == EntityGroup.NO_COMPARATOR)
@@ -496,17 +532,20 @@ public class CacheGroup<T extends Identifiable>
       for (long id : ids)
       {
         map.remove(id);
+        noteChange(id, map);
       }
       return true;
     }
 
     // Using sorting, so maintain objectsInOrder.
-    final List<T> orderedList = this.objectsInOrder;
+    final OrderedIndex<T> orderedList = this.objectsInOrder;
     synchronized (this)
     {
       for (long id : ids)
       {
-        orderedList.remove(map.remove(id));
+        map.remove(id);
+        orderedList.remove(id);
+        noteChange(id, map);
       }
 
       // Recalculate high/low identities if needed.
@@ -604,13 +643,15 @@ public class CacheGroup<T extends Identifiable>
   {
     synchronized (this)
     {
+      final Object highWater = deltaMark();
       List<T> allObjects = fetchAllPersistedObjects();
       // Avoid maintaining the sorted list if not needed.
       if (comparator() != EntityGroup.NO_COMPARATOR)
       {
-        this.objectsInOrder = new CopyOnWriteArrayList<>(allObjects);
+        this.objectsInOrder = new OrderedIndex<>(comparator(), allObjects);
       }
       copyListToObjectMap(allObjects);
+      setDeltaHighWater(highWater);
       
       // Reset the high and low identities.
       resetHighLowIdentities();
@@ -622,6 +663,311 @@ public class CacheGroup<T extends Identifiable>
     }
   }
   
+  /**
+   * Resets this group without making readers wait for the reload.  The
+   * current contents remain readable while a replacement is fetched on the
+   * provided Executor, and the replacement is swapped in atomically once it
+   * is complete.  Changes made to the group while the replacement is being
+   * fetched are carried over into it.  If further resets arrive during the
+   * rebuild, the rebuild is repeated once it finishes so that the installed
+   * contents are at least as current as the latest reset.
+   *   <p>
+   * If the group is not initialized there is nothing to serve in the
+   * meantime, so this behaves like {@link #reset()} and the returned future
+   * completes immediately with null.  If the rebuild fails, the group falls
+   * back to a plain reset and will be reloaded on next use.
+   *
+   * @return a future that completes with the rebuild statistics once the
+   *         replacement has been installed.
+   */
+  public CompletableFuture<CacheLoadStatistics> rebuild(Executor executor)
+  {
+    synchronized (this)
+    {
+      if (!this.initialized)
+      {
+        reset();
+        return CompletableFuture.completedFuture(null);
+      }
+      this.generation++;
+      if (this.rebuilding == null)
+      {
+        this.rebuildChanges = new TLongHashSet();
+        this.rebuilding = CompletableFuture.supplyAsync(this::rebuildContents,
+            executor);
+      }
+      return this.rebuilding;
+    }
+  }
+
+  /**
+   * Sets whether EntityStore resets of this group should use
+   * {@link #rebuild(Executor)} rather than {@link #reset()}.
+   */
+  public void setBackgroundReset(boolean backgroundReset)
+  {
+    this.backgroundReset = backgroundReset;
+  }
+
+  /**
+   * Whether EntityStore resets of this group rebuild it in the background.
+   */
+  public boolean isBackgroundReset()
+  {
+    return this.backgroundReset;
+  }
+
+  /**
+   * Fetches replacement contents for a background rebuild and installs
+   * them, repeating the fetch if another reset arrived in the meantime.
+   */
+  private CacheLoadStatistics rebuildContents()
+  {
+    final long start = System.nanoTime();
+    try
+    {
+      while (true)
+      {
+        final int startingGeneration;
+        synchronized (this)
+        {
+          startingGeneration = this.generation;
+        }
+
+        final Object highWater = deltaMark();
+        final List<T> allObjects = fetchAllPersistedObjects();
+        final CacheStorage<T> work = newStorage(allObjects.size());
+        for (T object : allObjects)
+        {
+          work.put(object);
+        }
+
+        synchronized (this)
+        {
+          if (!this.initialized)
+          {
+            // A plain reset intervened; the group will be loaded on next use.
+            finishRebuild();
+            return null;
+          }
+          if (this.generation == startingGeneration)
+          {
+            // Carry over changes made to the current contents during the 
+            // fetch.
+            final CacheStorage<T> current = this.objects;
+            this.rebuildChanges.forEach(id -> {
+              final T object = current.get(id);
+              if (object != null)
+              {
+                work.put(object);
+              }
+              else
+              {
+                work.remove(id);
+              }
+              return true;
+            });
+            if (comparator() != EntityGroup.NO_COMPARATOR)
+            {
+              this.objectsInOrder = new OrderedIndex<>(comparator(), work.values());
+            }
+            this.objects = work;
+            setDeltaHighWater(highWater);
+            finishRebuild();
+
+            // Recalculate high and low identities if they have been used.
+            calculateHighLowIdentitiesRecalc();
+            
+            // Execute custom post-initialization processing.
+            customPostInitialization();
+            
+            return new CacheLoadStatistics(name(), work.size(), 
+                System.nanoTime() - start, 1, true);
+          }
+        }
+        // Another reset arrived during the fetch, so fetch again.
+      }
+    }
+    catch (RuntimeException exc)
+    {
+      synchronized (this)
+      {
+        finishRebuild();
+        reset();
+      }
+      throw exc;
+    }
+  }
+
+  /**
+   * Clears the state of a background rebuild.  Called while synchronized.
+   */
+  private void finishRebuild()
+  {
+    this.rebuilding = null;
+    this.rebuildChanges = null;
+  }
+
+  /**
+   * Called after an identity is changed in the given storage.  If a 
+   * background rebuild is in progress, the identity is recorded so the
+   * change is carried into the replacement.  If the storage has already
+   * been replaced, the change is copied into the current contents.
+   */
+  private void noteChange(long id, CacheStorage<T> changed)
+  {
+    if (this.rebuildChanges == null && this.objects == changed)
+    {
+      return;
+    }
+    synchronized (this)
+    {
+      if (this.rebuildChanges != null)
+      {
+        this.rebuildChanges.add(id);
+      }
+      else if (this.objects != changed)
+      {
+        final T object = changed.get(id);
+        if (object != null)
+        {
+          this.objects.put(object);
+          if (comparator() != EntityGroup.NO_COMPARATOR)
+          {
+            this.objectsInOrder.add(object);
+          }
+        }
+        else
+        {
+          this.objects.remove(id);
+          if (comparator() != EntityGroup.NO_COMPARATOR)
+          {
+            this.objectsInOrder.remove(id);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Refreshes the entities whose rows have changed since the last load or
+   * delta refresh, as indicated by the group's delta column (see 
+   * {@link Builder#deltaColumn(String)}).  Only rows whose delta column
+   * value is at least the recorded high-water mark are queried, and those
+   * are applied through {@link #refresh(long...)}.  Rows already applied at
+   * the high-water mark itself are not refreshed again.  The query runs
+   * without holding the group's lock.
+   *   <p>
+   * Deleted rows cannot be detected this way; removals must still be
+   * communicated through the usual cache paths.  Does nothing if the group
+   * has no delta column, is not initialized, or does not load directly
+   * from its table.
+   *
+   * @return the identities that were refreshed.
+   */
+  public long[] refreshChanged()
+  {
+    final String column = this.deltaColumn;
+    if (column == null || !isStreamable() || !this.initialized)
+    {
+      return new long[0];
+    }
+
+    final Object since;
+    final TLongSet applied;
+    final int startingGeneration;
+    synchronized (this)
+    {
+      if (!this.initialized)
+      {
+        return new long[0];
+      }
+      since = this.deltaHighWater;
+      applied = this.deltaBoundary;
+      startingGeneration = this.generation;
+    }
+
+    // Query for changed rows without holding the lock, so that writes to
+    // the group are not held up by the database.
+    final TLongList changed = new TLongArrayList();
+    final TLongSet boundary = new TLongHashSet();
+    final Object[] highWater = { since };
+    changedSince(column, since, (value, id) -> {
+      if (value != null && !value.equals(highWater[0]))
+      {
+        highWater[0] = value;
+        boundary.clear();
+      }
+      boundary.add(id);
+      if (value == null || !value.equals(since) || !applied.contains(id))
+      {
+        changed.add(id);
+      }
+    });
+
+    final long[] ids = changed.toArray();
+    if (ids.length > 0)
+    {
+      refresh(ids);
+    }
+
+    synchronized (this)
+    {
+      // Advance the high-water mark only if no reset, reload or concurrent
+      // delta refresh has replaced the one this refresh started from.
+      // Otherwise, the next delta refresh re-reads from the current mark.
+      if (highWater[0] != null
+          && this.generation == startingGeneration
+          && this.deltaHighWater == since)
+      {
+        this.deltaHighWater = highWater[0];
+        this.deltaBoundary = boundary;
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Sets the column, such as a last-modified timestamp or a version number,
+   * used by {@link #refreshChanged()} to find rows changed since the group
+   * was loaded.  Set to null to disable delta refreshes.
+   */
+  public void setDeltaColumn(String column)
+  {
+    this.deltaColumn = column;
+  }
+
+  /**
+   * Gets the column used to find changed rows, or null if none.
+   */
+  public String getDeltaColumn()
+  {
+    return this.deltaColumn;
+  }
+
+  /**
+   * Reads the current high-water mark of the delta column, before the
+   * group's contents are fetched, so that rows changed during the fetch are
+   * picked up by the next delta refresh.  Returns null if delta refreshes
+   * are not in use.
+   */
+  private Object deltaMark()
+  {
+    return (this.deltaColumn != null && isStreamable())
+        ? columnMaximum(this.deltaColumn)
+        : null;
+  }
+
+  /**
+   * Records the high-water mark for contents that have just been loaded.
+   * Called while synchronized.
+   */
+  private void setDeltaHighWater(Object highWater)
+  {
+    this.deltaHighWater = highWater;
+    this.deltaBoundary = new TLongHashSet();
+  }
+
   /**
    * Called by initialize to fetch a list of persistent entities using the
    * EntityGroup.list method.
@@ -630,6 +976,319 @@ public class CacheGroup<T extends Identifiable>
   {
     return super.list();
   }
+
+  /**
+   * Asynchronously loads this group on the provided Executor, intended for
+   * warming caches at application start.  Rather than collecting the whole
+   * table into a List, rows are streamed from the ResultSet straight into
+   * fresh storage using the given JDBC fetch size.  Tables with more than
+   * splitRows rows are divided into up to maxRanges contiguous id ranges
+   * that are read concurrently, each on its own connection.
+   *   <p>
+   * The loaded contents are installed only if the group has not been
+   * initialized or reset in the meantime; otherwise they are discarded and
+   * the existing state is left alone.  Groups that do not load directly
+   * from their table (see {@link #isStreamable()}) are simply initialized.
+   *   <p>
+   * The Executor should not be one whose threads are blocked waiting on the
+   * returned future, since the range reads are submitted to it as well.
+   *
+   * @return a future that completes with the load statistics.
+   */
+  public CompletableFuture<CacheLoadStatistics> warmUp(Executor executor,
+      long splitRows, int maxRanges, int fetchSize)
+  {
+    final long start = System.nanoTime();
+    if (!isStreamable())
+    {
+      return CompletableFuture.supplyAsync(() -> {
+        initializeIfNecessary();
+        return new CacheLoadStatistics(name(), size(), 
+            System.nanoTime() - start, 1);
+      }, executor);
+    }
+
+    final int startingGeneration;
+    synchronized (this)
+    {
+      startingGeneration = this.generation;
+    }
+    final Object[] highWater = new Object[1];
+    return CompletableFuture.supplyAsync(() -> {
+          highWater[0] = deltaMark();
+          return identityStatistics();
+        }, executor)
+        .thenCompose(statistics -> {
+          final long[][] ranges = splitIdentities(statistics, splitRows, 
+              maxRanges);
+          final CacheStorage<T> work = newStorage(
+              (int)Math.min(statistics[0], Integer.MAX_VALUE));
+          final CompletableFuture<?>[] reads = 
+              new CompletableFuture<?>[ranges.length];
+          for (int i = 0; i < ranges.length; i++)
+          {
+            final long[] range = ranges[i];
+            reads[i] = CompletableFuture.runAsync(
+                () -> streamRange(range[0], range[1], fetchSize, work::put), 
+                executor);
+          }
+          return CompletableFuture.allOf(reads).thenApply(done -> {
+            install(work, startingGeneration, highWater[0]);
+            return new CacheLoadStatistics(name(), work.size(),
+                System.nanoTime() - start, ranges.length);
+          });
+        });
+  }
+
+  /**
+   * Whether this group's contents are exactly the rows of its table, such
+   * that {@link #warmUp} may read them directly in id ranges.  Subclasses
+   * that fetch their entities some other way should return false.
+   */
+  protected boolean isStreamable()
+  {
+    return true;
+  }
+
+  /**
+   * Divides the identity space described by the count, lowest and highest
+   * values from identityStatistics into contiguous inclusive ranges.  The
+   * outermost ranges are open-ended so that rows added after the
+   * statistics were gathered are not missed.
+   */
+  private static long[][] splitIdentities(long[] statistics, long splitRows,
+      int maxRanges)
+  {
+    final long count = statistics[0];
+    final long lowest = statistics[1];
+    final long highest = statistics[2];
+    int rangeCount = 1;
+    if (splitRows > 0 && count > splitRows && highest > lowest)
+    {
+      rangeCount = (int)Math.min(Math.max(maxRanges, 1),
+          Math.min((count + splitRows - 1) / splitRows, highest - lowest + 1));
+    }
+    final long[][] ranges = new long[rangeCount][];
+    final long width = (highest - lowest + 1) / rangeCount;
+    long from = Long.MIN_VALUE;
+    for (int i = 0; i < rangeCount; i++)
+    {
+      final long to = (i == rangeCount - 1)
+          ? Long.MAX_VALUE
+          : lowest + width * (i + 1) - 1;
+      ranges[i] = new long[] { from, to };
+      from = to + 1;
+    }
+    return ranges;
+  }
+
+  /**
+   * Installs storage populated by warmUp as this group's contents, unless
+   * the group has been initialized or reset since the load began.
+   */
+  private boolean install(CacheStorage<T> work, int startingGeneration,
+      Object highWater)
+  {
+    synchronized (this)
+    {
+      if (this.initialized || this.generation != startingGeneration)
+      {
+        return false;
+      }
+      // Avoid maintaining the sorted list if not needed.
+      if (comparator() != EntityGroup.NO_COMPARATOR)
+      {
+        this.objectsInOrder = new OrderedIndex<>(comparator(), work.values());
+      }
+      this.objects = work;
+      setDeltaHighWater(highWater);
+
+      // Reset the high and low identities.
+      resetHighLowIdentities();
+      
+      setInitialized(true);
+      
+      // Execute custom post-initialization processing.
+      customPostInitialization();
+      return true;
+    }
+  }
+
+  /**
+   * Writes this group's contents to a snapshot (see {@link CacheSnapshot}):
+   * the signature of its record codec, its delta high-water mark and the
+   * rows already applied at that mark, and a record for each entity.  Only
+   * groups that can be reconciled with their table when restored are
+   * written, which is to say initialized groups that have a delta column
+   * and load directly from their table.
+   *   <p>
+   * Entities changed while the snapshot is being written may be captured
+   * in either state; either way, their rows are newer than the recorded
+   * high-water mark and will be refreshed when the snapshot is restored.
+   *
+   * @return false if the group was not written.
+   */
+  protected boolean writeSnapshot(DataOutputStream out) throws IOException
+  {
+    if (this.deltaColumn == null || !isStreamable())
+    {
+      return false;
+    }
+    final CacheStorage<T> contents;
+    final Object highWater;
+    final long[] boundary;
+    synchronized (this)
+    {
+      if (!this.initialized)
+      {
+        return false;
+      }
+      contents = this.objects;
+      highWater = this.deltaHighWater;
+      boundary = this.deltaBoundary.toArray();
+    }
+
+    final EntityRecordCodec<T> codec = newRecordCodec();
+    CacheSnapshot.writeString(out, codec.signature());
+    CacheSnapshot.writeObject(out, highWater);
+    out.writeInt(boundary.length);
+    for (long id : boundary)
+    {
+      out.writeLong(id);
+    }
+    out.writeInt(contents.size());
+    ByteBuffer record = ByteBuffer.allocate(4096);
+    try
+    {
+      for (T object : contents.values())
+      {
+        while (true)
+        {
+          try
+          {
+            record.clear();
+            codec.write(object, record);
+            break;
+          }
+          catch (BufferOverflowException e)
+          {
+            record = ByteBuffer.allocate(record.capacity() * 2);
+          }
+        }
+        out.writeInt(record.position());
+        out.write(record.array(), 0, record.position());
+      }
+    }
+    catch (EntityException e)
+    {
+      log.warn("{} cannot be written to a snapshot.", name(), e);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Restores this group from a snapshot section written by 
+   * {@link #writeSnapshot} and reconciles it with the table.  The table's
+   * identities are read to remove entities whose rows have since been
+   * deleted and to fetch rows that have since been added, and then rows
+   * changed since the snapshot's high-water mark are refreshed through
+   * {@link #refreshChanged()}.  Only identities and changed rows are read
+   * from the database, rather than the full table.
+   *   <p>
+   * Nothing is restored if the group is already initialized, has no delta
+   * column, or if the snapshot was written by a codec with a different 
+   * signature, such as before a change to the entity class.
+   *
+   * @return the load statistics, or null if nothing was restored.
+   */
+  protected CacheLoadStatistics restoreSnapshot(ByteBuffer in)
+  {
+    final long start = System.nanoTime();
+    if (this.deltaColumn == null || !isStreamable())
+    {
+      return null;
+    }
+    final int startingGeneration;
+    synchronized (this)
+    {
+      if (this.initialized)
+      {
+        return null;
+      }
+      startingGeneration = this.generation;
+    }
+
+    final EntityRecordCodec<T> codec = newRecordCodec();
+    if (!codec.signature().equals(CacheSnapshot.readString(in)))
+    {
+      log.info("{} snapshot was written with a different layout; ignoring.",
+          name());
+      return null;
+    }
+    final Object highWater = CacheSnapshot.readObject(in);
+    final TLongSet boundary = new TLongHashSet();
+    for (int i = in.getInt(); i > 0; i--)
+    {
+      boundary.add(in.getLong());
+    }
+    final CacheStorage<T> work = newStorage(in.getInt());
+    while (in.hasRemaining())
+    {
+      final int length = in.getInt();
+      final int next = in.position() + length;
+      work.put(codec.read(in));
+      in.position(next);
+    }
+
+    // Reconcile the restored identities with the table's.
+    final TLongSet persisted = new TLongHashSet(identities());
+    final TLongList deleted = new TLongArrayList();
+    for (T object : work.values())
+    {
+      if (!persisted.remove(object.getId()))
+      {
+        deleted.add(object.getId());
+      }
+    }
+    for (TLongIterator iter = deleted.iterator(); iter.hasNext(); )
+    {
+      work.remove(iter.next());
+    }
+
+    synchronized (this)
+    {
+      if (!install(work, startingGeneration, highWater))
+      {
+        return null;
+      }
+      this.deltaBoundary = boundary;
+    }
+    try
+    {
+      if (!persisted.isEmpty())
+      {
+        refresh(persisted.toArray());
+      }
+      refreshChanged();
+    }
+    catch (RuntimeException e)
+    {
+      // Don't serve contents that could not be reconciled.
+      reset();
+      throw e;
+    }
+    return new CacheLoadStatistics(name(), size(), System.nanoTime() - start, 1);
+  }
+
+  /**
+   * Creates a codec for this group's entities, which binds to the group's
+   * column mappings.  Used by off-heap storage and snapshots.
+   */
+  protected EntityRecordCodec<T> newRecordCodec()
+  {
+    return new EntityRecordCodec<>(this, getFieldGetters(), getFieldSetters());
+  }
   
   /**
    * Executes custom post-initialization processing for the group.  Note that
@@ -650,13 +1309,10 @@ public class CacheGroup<T extends Identifiable>
     final Iterator<T> iter = l.iterator();
     
     // Create a new map, work, to populate.
-    final ConcurrentMap<Long, T> work = new ConcurrentHashMap<>(
-        l.size());
-    T co;
+    final CacheStorage<T> work = newStorage(l.size());
     while (iter.hasNext())
     {
-      co = iter.next();
-      work.put(co.getId(), co);
+      work.put(iter.next());
     }
     
     // Replace the member variable.
@@ -726,14 +1382,12 @@ public class CacheGroup<T extends Identifiable>
   {
     // Use objects instead of objectsInOrder in case NO_COMPARATOR is specified and
     // objectsInOrder is not maintained.
-    final Iterator<?> iter = this.objects.values().iterator();
+    final Iterator<T> iter = this.objects.values().iterator();
     
-    Identifiable co;
     long id;
     while (iter.hasNext())
     {
-      co = (Identifiable)iter.next();
-      id = co.getId();
+      id = iter.next().getId();
       if (id < this.lowestIdentity)
       {
         this.lowestIdentity = id;
@@ -800,8 +1454,8 @@ public class CacheGroup<T extends Identifiable>
     }
 
     // Grab references.
-    final ConcurrentMap<Long, T> map = this.objects;
-    final List<T> orderedList = this.objectsInOrder;
+    final CacheStorage<T> map = this.objects;
+    final OrderedIndex<T> orderedList = this.objectsInOrder;
     final Comparator<? super T> comparator = comparator();
 
     synchronized (this)
@@ -812,36 +1466,26 @@ public class CacheGroup<T extends Identifiable>
       for (long id : ids)
       {
         // Remove the object with this id from the cache, if it's there.
-        if (comparator == EntityGroup.NO_COMPARATOR)
-        {
-          map.remove(id);
-        }
-        else
+        map.remove(id);
+        if (comparator != EntityGroup.NO_COMPARATOR)
         {
           // Only update orderedList if sorting is desired.
-          orderedList.remove(map.remove(id));
+          orderedList.remove(id);
         }
         final T object = objectsMap.get(id);
         
         // Put the newly loaded object into the cache.
         if (object != null)
         {
-          map.put(id, object);
+          map.put(object);
           // Only update orderedList if sorting is desired.
           if (comparator != EntityGroup.NO_COMPARATOR)
           {
-            // Use the comparator to insert it at the appropriate position.
-            int search = Collections.binarySearch(orderedList, object, comparator);
-            if (search < 0)
-            {
-              orderedList.add(-search - 1, object);
-            }
-            else
-            {
-              orderedList.add(object);
-            }
+            // Insert it at the appropriate position.
+            orderedList.add(object);
           }
         }
+        noteChange(id, map);
       }
     }
   }
@@ -862,8 +1506,7 @@ public class CacheGroup<T extends Identifiable>
     }
 
     // Grab references.
-    final ConcurrentMap<Long, T> map = this.objects;
-    final List<T> orderedList = this.objectsInOrder;
+    final OrderedIndex<T> orderedList = this.objectsInOrder;
 
     synchronized (this)
     {
@@ -875,41 +1518,20 @@ public class CacheGroup<T extends Identifiable>
       
       for (long id : ids)
       {
-        final T object = map.get(id);
-        if (object != null)
-        {
-          // Since writes to the list are expensive, let's see if it's already
-          // in the correct order before modifying anything.
-          final int index = orderedList.indexOf(object);
-          final T previous = (index == 0)
-              ? null
-              : orderedList.get(index - 1);
-          final T next = (index == this.objectsInOrder.size() - 1)
-              ? null
-              : orderedList.get(index + 1);
-          if ((previous == null || comparator().compare(object, previous) >= 0)
-              && (next == null || comparator().compare(object, next) <= 0))
-          {
-            return;
-          }
-          // Boo, it's out of order.  We need to do two write operations now,
-          // which causes the list to copy itself twice.
-          orderedList.remove(object);
-          final int search = Collections.binarySearch(orderedList, object, 
-              comparator());
-          if (search < 0)
-          {
-            orderedList.add(-search - 1, object);
-          }
-          else
-          {
-            orderedList.add(object);
-          }
-        }
+        // The index only moves the object if it is now out of order.
+        orderedList.reorder(id);
       }
     }
   }
 
+  /**
+   * Creates a new, empty instance of this group's storage backend.
+   */
+  protected CacheStorage<T> newStorage(int expectedSize)
+  {
+    return this.storageFactory.create(expectedSize);
+  }
+
   @Override
   public String toString()
   {
@@ -991,6 +1613,10 @@ public class CacheGroup<T extends Identifiable>
   public static class Builder<T extends Identifiable>
       extends EntityGroup.Builder<T>
   {
+    protected CacheStorage.Factory storage = CacheStorage.Type.CONCURRENT_MAP;
+    protected boolean backgroundReset = false;
+    protected String deltaColumn = null;
+
     protected Builder(Class<T> type)
     {
       super(type);
@@ -1001,6 +1627,46 @@ public class CacheGroup<T extends Identifiable>
       // this could be set to false to reduce noise on the message queue.
       this.distribute = true;
     }
+
+    /**
+     * Sets the storage backend used to hold the group's entities in memory.
+     * The default is {@link CacheStorage.Type#CONCURRENT_MAP}.
+     */
+    public Builder<T> storage(CacheStorage.Factory storageFactory)
+    {
+      if (storageFactory == null)
+      {
+        throw new NullPointerException();
+      }
+      this.storage = storageFactory;
+      return this;
+    }
+
+    /**
+     * Sets whether resets of the group through the EntityStore should
+     * rebuild it in the background while continuing to serve the current
+     * contents, rather than clearing it.  The default is false.
+     *
+     * @see CacheGroup#rebuild(Executor)
+     */
+    public Builder<T> backgroundReset(boolean background)
+    {
+      this.backgroundReset = background;
+      return this;
+    }
+
+    /**
+     * Sets a column whose value increases whenever a row changes, such as
+     * an "updated_at" timestamp or a version number, enabling delta
+     * refreshes of the group.  A database-maintained value is safest.
+     *
+     * @see CacheGroup#refreshChanged()
+     */
+    public Builder<T> deltaColumn(String column)
+    {
+      this.deltaColumn = column;
+      return this;
+    }
     
     @Override
     public CacheGroup<T> build(EntityStore controller)
@@ -1010,7 +1676,7 @@ public class CacheGroup<T extends Identifiable>
         throw new NullPointerException();
       }
       
-      return new CacheGroup<>(
+      final CacheGroup<T> group = new CacheGroup<>(
           controller,
           this.type,
           this.table,
@@ -1020,7 +1686,12 @@ public class CacheGroup<T extends Identifiable>
           this.where,
           this.whereArguments,
           this.readOnly,
-          this.distribute);
+          this.distribute,
+          this.storage);
+      group.setBackgroundReset(this.backgroundReset);
+      group.setDeltaColumn(this.deltaColumn);
+      group.setVersioned(this.versioned);
+      return group;
     }
 
     @Override
@@ -1051,6 +1722,13 @@ public class CacheGroup<T extends Identifiable>
       return this;
     }
 
+    @Override
+    public Builder<T> versioned(boolean versioned)
+    {
+      super.versioned(versioned);
+      return this;
+    }
+
     @Override
     public Builder<T> maker(EntityMaker<T> entityMaker)
     {
@@ -59,6 +59,17 @@ public interface CacheListener
    */
   <T extends Identifiable> void cacheObjectExpired(Class<T> type, long identifier);
 
+  /**
+   * A single object has been updated, changing only the named fields.  A
+   * null array means any of its fields may have changed.  By default, this
+   * is treated the same as an expiration of the whole object.
+   */
+  default <T extends Identifiable> void cacheObjectExpired(Class<T> type, 
+      long identifier, String[] changedFields)
+  {
+    cacheObjectExpired(type, identifier);
+  }
+
   /**
    * A single object has been removed.
    */
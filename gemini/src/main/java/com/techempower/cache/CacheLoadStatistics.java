@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+/**
+ * Describes one load of a CacheGroup from the database: how many rows were
+ * read, how long it took, and how many id ranges the table was split into.
+ * Produced by {@link CacheGroup#warmUp} and {@link CacheGroup#rebuild} and 
+ * reported to the application's monitor by the EntityStore.
+ */
+public class CacheLoadStatistics
+{
+
+  //
+  // Member variables.
+  //
+
+  private final String name;
+  private final long   rows;
+  private final long   durationNanos;
+  private final int    ranges;
+  private final long   completed;
+  private final boolean rebuild;
+
+  /**
+   * Constructor.
+   */
+  public CacheLoadStatistics(String name, long rows, long durationNanos,
+      int ranges)
+  {
+    this(name, rows, durationNanos, ranges, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param rebuild whether this was a background rebuild of a group that
+   *        continued serving its previous contents in the meantime.
+   */
+  public CacheLoadStatistics(String name, long rows, long durationNanos,
+      int ranges, boolean rebuild)
+  {
+    this.name = name;
+    this.rows = rows;
+    this.durationNanos = durationNanos;
+    this.ranges = ranges;
+    this.completed = System.currentTimeMillis();
+    this.rebuild = rebuild;
+  }
+
+  /**
+   * Gets the name of the group that was loaded.
+   */
+  public String getName()
+  {
+    return this.name;
+  }
+
+  /**
+   * Gets the number of rows read.
+   */
+  public long getRows()
+  {
+    return this.rows;
+  }
+
+  /**
+   * Gets the elapsed load time in milliseconds.
+   */
+  public long getDurationMillis()
+  {
+    return this.durationNanos / 1_000_000L;
+  }
+
+  /**
+   * Gets the number of id ranges read, which is 1 if the table was not
+   * split.
+   */
+  public int getRanges()
+  {
+    return this.ranges;
+  }
+
+  /**
+   * Gets the time at which the load completed, in epoch milliseconds.
+   */
+  public long getCompleted()
+  {
+    return this.completed;
+  }
+
+  /**
+   * Whether this was a background rebuild rather than an initial load.
+   */
+  public boolean isRebuild()
+  {
+    return this.rebuild;
+  }
+
+  /**
+   * Gets the load rate in rows per second.
+   */
+  public long getRowsPerSecond()
+  {
+    return this.durationNanos > 0
+        ? (long)(this.rows * 1_000_000_000.0 / this.durationNanos)
+        : this.rows;
+  }
+
+  @Override
+  public String toString()
+  {
+    return this.name + (this.rebuild ? " rebuilt with " : " loaded ") + this.rows + " rows in "
+        + getDurationMillis() + "ms (" + getRowsPerSecond() + " rows/s, "
+        + this.ranges + (this.ranges == 1 ? " range)" : " ranges)");
+  }
+
+}   // End CacheLoadStatistics.
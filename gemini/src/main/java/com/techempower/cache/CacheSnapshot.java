@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import com.techempower.data.*;
+
+/**
+ * A binary snapshot of the contents of CacheGroups, written to local disk
+ * so that an application can be restarted without reading every cached
+ * table in full.  See 
+ * {@link EntityStore#writeSnapshot()} and 
+ * {@link EntityStore#restoreSnapshot()}.
+ *   <p>
+ * The file is a header followed by one section per group.  Each section is
+ * tagged with its kind, its key (the group's entity class name) and its 
+ * length, so that sections can be located without being read.  Group 
+ * sections hold the signature of the group's {@link EntityRecordCodec},
+ * the group's delta high-water mark and the encoded records.  Sections of
+ * other kinds are skipped.
+ *   <p>
+ * CachedRelations are not included.  Their tables have no change tracking,
+ * and verifying a relation's pairs against its table would cost as much as
+ * loading them.
+ *   <p>
+ * Snapshots are written to a temporary file that replaces the previous
+ * snapshot only once complete.  When opened, each section is memory-mapped
+ * read-only rather than read onto the heap.
+ */
+public class CacheSnapshot
+{
+
+  //
+  // Constants.
+  //
+
+  private static final long MAGIC            = 0x47454D534E415031L; // GEMSNAP1
+  private static final int  VERSION          = 1;
+  private static final byte SECTION_END      = 0;
+  private static final byte SECTION_GROUP    = 1;
+
+  /**
+   * The largest section that can be mapped into memory as one buffer.
+   * Larger sections are omitted when writing.
+   */
+  public static final long  MAXIMUM_SECTION_LENGTH = Integer.MAX_VALUE;
+
+  //
+  // Member variables.
+  //
+
+  private final long                    created;
+  private final Map<String, ByteBuffer> groups    = new HashMap<>();
+
+  //
+  // Static methods.
+  //
+
+  /**
+   * Writes a snapshot of the given groups, replacing any existing snapshot
+   * at the path once the new one is complete.  Groups that are not 
+   * initialized are omitted, as is any group whose contents cannot be 
+   * written.
+   *
+   * @return the number of groups written.
+   */
+  public static int write(Path file, Collection<CacheGroup<?>> groups)
+    throws IOException
+  {
+    final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    int written = 0;
+    try (FileChannel channel = FileChannel.open(temporary,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE))
+    {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+      out.writeLong(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(System.currentTimeMillis());
+
+      for (CacheGroup<?> group : groups)
+      {
+        if (group.isInitialized() && writeSection(out, channel, SECTION_GROUP,
+            group.type().getName(), group::writeSnapshot))
+        {
+          written++;
+        }
+      }
+
+      out.writeByte(SECTION_END);
+      out.flush();
+      channel.force(true);
+    }
+    catch (IOException | RuntimeException e)
+    {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return written;
+  }
+
+  /**
+   * Opens a snapshot written by {@link #write}, mapping each of its 
+   * sections into memory.
+   *
+   * @throws IOException if the file cannot be read or is not a snapshot.
+   */
+  public static CacheSnapshot open(Path file) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+    {
+      final ByteBuffer header = read(channel, 0L, 20);
+      if (header.getLong() != MAGIC || header.getInt() != VERSION)
+      {
+        throw new IOException(file + " is not a cache snapshot.");
+      }
+      final CacheSnapshot snapshot = new CacheSnapshot(header.getLong());
+      long position = 20L;
+      while (true)
+      {
+        final ByteBuffer tag = read(channel, position, 1);
+        final byte kind = tag.get();
+        if (kind == SECTION_END)
+        {
+          return snapshot;
+        }
+        final int keyLength = read(channel, position + 1, 4).getInt();
+        final String key = new String(
+            read(channel, position + 5, keyLength).array(), 
+            StandardCharsets.UTF_8);
+        final long length = read(channel, position + 5 + keyLength, 8).getLong();
+        final long start = position + 13 + keyLength;
+        if (  (length < 0L)
+           || (length > MAXIMUM_SECTION_LENGTH)
+           || (start + length > channel.size())
+           )
+        {
+          throw new IOException(file + " has an invalid section length " 
+              + length + " for " + key + ".");
+        }
+        if (kind == SECTION_GROUP)
+        {
+          snapshot.groups.put(key, channel.map(
+              FileChannel.MapMode.READ_ONLY, start, length));
+        }
+        position = start + length;
+      }
+    }
+    catch (BufferUnderflowException e)
+    {
+      throw new IOException(file + " is truncated.", e);
+    }
+  }
+
+  /**
+   * Writes a section: a header with a placeholder for the length, then the
+   * contents, then the length itself.  If the writer declines to write the
+   * section, or the section is too large to map, whatever it wrote is 
+   * discarded along with the header.
+   */
+  private static boolean writeSection(DataOutputStream out, 
+      FileChannel channel, byte kind, String key, SectionWriter writer)
+    throws IOException
+  {
+    out.flush();
+    final long header = channel.position();
+    final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    out.writeByte(kind);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    out.writeLong(0L);
+    out.flush();
+    final long start = channel.position();
+
+    final boolean written = writer.write(out);
+    out.flush();
+    final long length = channel.position() - start;
+    final boolean complete = written && length <= MAXIMUM_SECTION_LENGTH;
+    if (complete)
+    {
+      final ByteBuffer lengthBytes = ByteBuffer.allocate(8);
+      lengthBytes.putLong(0, length);
+      channel.write(lengthBytes, start - 8);
+    }
+    else
+    {
+      channel.truncate(header);
+      channel.position(header);
+    }
+    return complete;
+  }
+
+  /**
+   * Reads bytes from a channel at a position.
+   */
+  private static ByteBuffer read(FileChannel channel, long position, int length)
+    throws IOException
+  {
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining())
+    {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+      {
+        throw new BufferUnderflowException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Writes a String with a length prefix.
+   */
+  static void writeString(DataOutput out, String value) throws IOException
+  {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a String written by writeString.
+   */
+  static String readString(ByteBuffer in)
+  {
+    final byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a possibly-null Serializable value, such as a delta high-water
+   * mark, with a length prefix.
+   */
+  static void writeObject(DataOutputStream out, Object value) throws IOException
+  {
+    if (value == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes))
+    {
+      objectOut.writeObject(value);
+    }
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+  }
+
+  /**
+   * Reads a value written by writeObject.
+   */
+  static Object readObject(ByteBuffer in)
+  {
+    final int length = in.getInt();
+    if (length < 0)
+    {
+      return null;
+    }
+    final byte[] bytes = new byte[length];
+    in.get(bytes);
+    try (ObjectInputStream objectIn = new ObjectInputStream(
+        new ByteArrayInputStream(bytes)))
+    {
+      return objectIn.readObject();
+    }
+    catch (IOException | ClassNotFoundException e)
+    {
+      throw new EntityException("Cannot read a value from a cache snapshot.", e);
+    }
+  }
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.
+   */
+  private CacheSnapshot(long created)
+  {
+    this.created = created;
+  }
+
+  /**
+   * Gets the time at which the snapshot was written, in milliseconds since
+   * the epoch.
+   */
+  public long getCreated()
+  {
+    return this.created;
+  }
+
+  /**
+   * Gets the contents of a group's section, or null if the snapshot does
+   * not include the group.
+   */
+  ByteBuffer group(CacheGroup<?> group)
+  {
+    final ByteBuffer contents = this.groups.get(group.type().getName());
+    return contents == null ? null : contents.duplicate();
+  }
+
+  /**
+   * Gets the number of groups in the snapshot.
+   */
+  public int size()
+  {
+    return this.groups.size();
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * Writes the contents of one section, returning false to omit it.
+   */
+  @FunctionalInterface
+  interface SectionWriter
+  {
+    boolean write(DataOutputStream out) throws IOException;
+  }
+
+}   // End CacheSnapshot.
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import gnu.trove.map.*;
+
+import java.util.*;
+
+import com.techempower.util.*;
+
+/**
+ * The storage backend used by a CacheGroup to hold its entities, keyed by
+ * their long identities.  Implementations must permit reads to proceed
+ * concurrently with writes; the CacheGroup itself serializes structural
+ * changes (such as initialization) where necessary.
+ *   <p>
+ * A storage backend is selected per group through
+ * {@link CacheGroup.Builder#storage(CacheStorage.Factory)} or the
+ * {@code storage} attribute of the CachedEntity annotation.
+ */
+public interface CacheStorage<T extends Identifiable>
+{
+
+  /**
+   * Gets the entity with the given identity, or null if not present.
+   */
+  T get(long id);
+
+  /**
+   * Stores an entity under its identity, returning the entity previously
+   * stored under that identity (if any).
+   */
+  T put(T object);
+
+  /**
+   * Removes the entity with the given identity, returning it if present.
+   */
+  T remove(long id);
+
+  /**
+   * Determines whether an entity with the given identity is present.
+   */
+  boolean containsKey(long id);
+
+  /**
+   * Determines whether the given entity is present in this storage.
+   */
+  boolean containsValue(Identifiable object);
+
+  /**
+   * Gets the number of entities in this storage.
+   */
+  int size();
+
+  /**
+   * Gets a weakly-consistent, unmodifiable view of the stored entities.
+   */
+  Collection<T> values();
+
+  /**
+   * Gets the stored entities as a map of identity to entity.  Depending on
+   * the implementation, this is either a copy or a read-only view; in
+   * neither case may the caller modify the returned map.
+   */
+  TLongObjectMap<T> map();
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * Creates new, empty storage instances for a CacheGroup.
+   */
+  interface Factory
+  {
+    /**
+     * Creates a new, empty storage instance sized for the expected number
+     * of entities.
+     */
+    <T extends Identifiable> CacheStorage<T> create(int expectedSize);
+  }
+
+  /**
+   * The storage backends provided by Gemini.
+   */
+  enum Type implements Factory
+  {
+    /**
+     * Entities are stored in a ConcurrentHashMap keyed by boxed Long
+     * identities.  This is the default and the historical behavior; map()
+     * returns a copy.
+     */
+    CONCURRENT_MAP
+    {
+      @Override
+      public <T extends Identifiable> CacheStorage<T> create(int expectedSize)
+      {
+        return new ConcurrentMapCacheStorage<>(expectedSize);
+      }
+    },
+
+    /**
+     * Entities are stored in a striped, open-addressing table keyed by
+     * primitive long identities.  Reads are lock-free and do not box; map()
+     * returns a read-only view rather than a copy.
+     */
+    LONG_OBJECT
+    {
+      @Override
+      public <T extends Identifiable> CacheStorage<T> create(int expectedSize)
+      {
+        return new LongObjectCacheStorage<>(expectedSize);
+      }
+    }
+  }
+
+}   // End CacheStorage.
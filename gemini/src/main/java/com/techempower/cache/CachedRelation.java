@@ -27,11 +27,15 @@
 
 package com.techempower.cache;
 
+import gnu.trove.*;
+import gnu.trove.list.array.*;
+import gnu.trove.procedure.*;
 import gnu.trove.set.*;
 import gnu.trove.set.hash.*;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 
 import com.techempower.collection.relation.*;
@@ -73,6 +77,14 @@ import org.slf4j.LoggerFactory;
  * }
  * </pre>
  *
+ * <p>Large, read-mostly relations can be stored compactly by calling
+ * {@link Builder#compact()}, in which case reads take no locks.
+ *
+ * <p>Changes are written to the database while the relation is locked
+ * unless {@link Builder#writeBehind()} is called, in which case they are
+ * queued and written in the background; call {@link #flush()} to wait for
+ * them.
+ *
  * @param <L> the type of the left values in this relation
  * @param <R> the type of the right values in this relation
  *
@@ -151,8 +163,10 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
   private final String quotedRightColumn;
   private final LongRelation relation;
   private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Lock readLock;
+  private final CachedRelationWriter writer;
   private final Collection<CachedRelationListener> listeners
-      = new ArrayList<>();
+      = new CopyOnWriteArrayList<>();
   private final Logger log = LoggerFactory.getLogger(getClass());
   private volatile boolean loaded = false;
 
@@ -188,6 +202,27 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       Class<L> leftType, Class<R> rightType,
       String tableName, String leftColumn, String rightColumn,
       LongRelation relation)
+  {
+    this(store, leftType, rightType, tableName, leftColumn, rightColumn, 
+        relation, false, null);
+  }
+
+  /**
+   * Constructs a new relation with the specified parameters, optionally
+   * writing changes to the database in the background.
+   * 
+   * @param writeBehind whether to queue changes and write them in the
+   *    background rather than while the relation is locked
+   * @param failureHandler called when queued changes cannot be written; may
+   *    be null for the default behavior
+   * @see #CachedRelation(EntityStore, Class, Class, String, String, String, LongRelation)
+   * @see CachedRelationWriter
+   */
+  protected CachedRelation(EntityStore store,
+      Class<L> leftType, Class<R> rightType,
+      String tableName, String leftColumn, String rightColumn,
+      LongRelation relation, boolean writeBehind,
+      CachedRelationWriter.FailureHandler failureHandler)
   {
     this.store = store;
     this.cf = store.getConnectorFactory();
@@ -206,12 +241,20 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     this.relation = (relation == null)
         ? new ManyToManyLongRelation(true)
         : (LongRelation)relation.clone(); // Defensive copy.
+    // Compact relations publish immutable snapshots, so reads need no lock.
+    this.readLock = (this.relation instanceof CompactLongRelation)
+        ? new NoLock()
+        : this.lock.readLock();
     this.quotedTable = DatabaseHelper.quoteTableOrColumn(
         this.cf, this.table);
     this.quotedLeftColumn = DatabaseHelper.quoteTableOrColumn(
         this.cf, this.leftColumn);
     this.quotedRightColumn = DatabaseHelper.quoteTableOrColumn(
         this.cf, this.rightColumn);
+    this.writer = writeBehind
+        ? new CachedRelationWriter(this, store, this.quotedTable,
+            this.quotedLeftColumn, this.quotedRightColumn, failureHandler)
+        : null;
   }
 
   //
@@ -239,7 +282,11 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         return false;
       }
       
-      if (updateDatabase)
+      if (updateDatabase && this.writer != null)
+      {
+        this.writer.add(leftID, rightID);
+      }
+      else if (updateDatabase)
       {
         try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
         {
@@ -328,19 +375,28 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       long[] newLefts = new long[relationToAdd.size()];
       long[] newRights = new long[relationToAdd.size()];
       int insertCount = 0; 
+      final boolean compact = (this.relation instanceof CompactLongRelation);
       
       for (LongRelationIterator iter = relationToAdd.iterator(); iter.hasNext();)
       {
         iter.next();
         long leftID = iter.left();
         long rightID = iter.right();
-        if (this.relation.add(leftID, rightID))
+        // Compact relations are updated below in a single write.
+        if (compact 
+            ? !this.relation.contains(leftID, rightID)
+            : this.relation.add(leftID, rightID))
         {
           newLefts[insertCount] = leftID;
           newRights[insertCount] = rightID;
           insertCount++;
         }
       }
+      if (compact)
+      {
+        ((CompactLongRelation)this.relation).addAll(newLefts, newRights, 
+            insertCount);
+      }
       
       if (insertCount == 0)
       {
@@ -348,7 +404,11 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         return false;
       }
       
-      if (updateDatabase)
+      if (updateDatabase && this.writer != null)
+      {
+        this.writer.addAll(newLefts, newRights, insertCount);
+      }
+      else if (updateDatabase)
       {
         // Release the write lock because all that's left is updating the DB.
         this.lock.writeLock().unlock();
@@ -461,6 +521,12 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     this.listeners.add(listener);
   }
 
+  @Override
+  public void removeListener(CachedRelationListener listener)
+  {
+    this.listeners.remove(listener);
+  }
+
   @Override
   public void clear()
   {
@@ -474,9 +540,15 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     try
     {
       this.relation.clear();
+      if (updateDatabase && this.writer != null)
+      {
+        // Queued while still locked so that the deletion is ordered with 
+        // other writes to the relation.
+        this.writer.clear();
+      }
       this.lock.writeLock().unlock();
       
-      if (updateDatabase)
+      if (updateDatabase && this.writer == null)
       {
         try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
         {
@@ -527,14 +599,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.contains(leftID, rightID);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -568,14 +640,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.containsLeftValue(leftID);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -594,14 +666,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.containsRightValue(rightID);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -628,14 +700,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.leftValues(rightID);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -647,7 +719,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       Set<Long> leftIDs = new HashSet<>();
@@ -659,7 +731,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -679,14 +751,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.leftSize(rightID);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -712,7 +784,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.store.list(this.leftType,
@@ -720,7 +792,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -740,7 +812,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return new HashSet<>(this.store.list(this.leftType,
@@ -748,7 +820,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -779,7 +851,25 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         return;
       }
       
-      this.relation.clear();
+      // Queued writes must reach the table before it is read.
+      if (this.writer != null)
+      {
+        this.writer.flush();
+      }
+      
+      // A compact relation is replaced in one step once all of its pairs
+      // have been read, so that lock-free readers never see it partially
+      // loaded.
+      final CompactLongRelation compact = 
+          (this.relation instanceof CompactLongRelation) 
+              ? (CompactLongRelation)this.relation
+              : null;
+      final TLongArrayList lefts = new TLongArrayList();
+      final TLongArrayList rights = new TLongArrayList();
+      if (compact == null)
+      {
+        this.relation.clear();
+      }
       
       try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
       {
@@ -794,11 +884,23 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
             {
               long leftID = resultSet.getLong(this.leftColumn);
               long rightID = resultSet.getLong(this.rightColumn);
-              this.relation.add(leftID, rightID);
+              if (compact != null)
+              {
+                lefts.add(leftID);
+                rights.add(rightID);
+              }
+              else
+              {
+                this.relation.add(leftID, rightID);
+              }
             }
           }
         }
       }
+      if (compact != null)
+      {
+        compact.replaceWith(lefts.toArray(), rights.toArray(), lefts.size());
+      }
       
       this.loaded = true;
     }
@@ -820,14 +922,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return (LongRelation)this.relation.clone();
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -876,7 +978,11 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         return false;
       }
 
-      if (updateDatabase)
+      if (updateDatabase && this.writer != null)
+      {
+        this.writer.remove(leftID, rightID);
+      }
+      else if (updateDatabase)
       {
         try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
         {
@@ -966,18 +1072,27 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       long[] removedRights = new long[relationToRemove.size()];
       int deleteCount = 0; 
       
+      final boolean compact = (this.relation instanceof CompactLongRelation);
+      
       for (LongRelationIterator iter = relationToRemove.iterator(); iter.hasNext();)
       {
         iter.next();
         long leftID = iter.left();
         long rightID = iter.right();
-        if (this.relation.remove(leftID, rightID))
+        // Compact relations are updated below in a single write.
+        if (compact 
+            ? this.relation.contains(leftID, rightID)
+            : this.relation.remove(leftID, rightID))
         {
           removedLefts[deleteCount] = leftID;
           removedRights[deleteCount] = rightID;
           deleteCount++;
         }
       }
+      if (compact && deleteCount > 0)
+      {
+        this.relation.removeAll(relationToRemove);
+      }
       
       if (deleteCount == 0)
       {
@@ -985,7 +1100,11 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         return false;
       }
       
-      if (updateDatabase)
+      if (updateDatabase && this.writer != null)
+      {
+        this.writer.removeAll(removedLefts, removedRights, deleteCount);
+      }
+      else if (updateDatabase)
       {
         // Release the write lock because all that's left is updating the DB.
         this.lock.writeLock().unlock();
@@ -1114,7 +1233,11 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         return false;
       }
 
-      if (updateDatabase)
+      if (updateDatabase && this.writer != null)
+      {
+        this.writer.removeLeftValue(leftID);
+      }
+      else if (updateDatabase)
       {
         try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
         {
@@ -1182,7 +1305,11 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         return false;
       }
 
-      if (updateDatabase)
+      if (updateDatabase && this.writer != null)
+      {
+        this.writer.removeRightValue(rightID);
+      }
+      else if (updateDatabase)
       {
         try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
         {
@@ -1264,7 +1391,11 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         return false;
       }
       
-      this.relation.clear();
+      final boolean compact = (this.relation instanceof CompactLongRelation);
+      if (!compact)
+      {
+        this.relation.clear();
+      }
       long[] newLefts = new long[relationToReplace.size()];
       long[] newRights = new long[relationToReplace.size()];
       int insertCount = 0; 
@@ -1274,15 +1405,25 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
         iter.next();
         long leftID = iter.left();
         long rightID = iter.right();
-        if (this.relation.add(leftID, rightID))
+        // Compact relations are replaced below in a single write.
+        if (compact || this.relation.add(leftID, rightID))
         {
           newLefts[insertCount] = leftID;
           newRights[insertCount] = rightID;
           insertCount++;
         }
       }
+      if (compact)
+      {
+        ((CompactLongRelation)this.relation).replaceWith(newLefts, newRights,
+            insertCount);
+      }
       
-      if (updateDatabase)
+      if (updateDatabase && this.writer != null)
+      {
+        this.writer.replaceAll(newLefts, newRights, insertCount);
+      }
+      else if (updateDatabase)
       {
         // Release the write lock because all that's left is updating the DB.
         this.lock.writeLock().unlock();
@@ -1471,14 +1612,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.rightValues(leftID);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -1490,14 +1631,208 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.rightValuesLongSet(leftID);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
+    }
+  }
+
+  /**
+   * Calls the procedure with each left ID while holding the read lock, so
+   * the procedure must not modify this relation.
+   */
+  @Override
+  public boolean forEachLeftID(long rightID, TLongProcedure procedure)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+
+    this.readLock.lock();
+    try
+    {
+      return this.relation.forEachLeftValue(rightID, procedure);
+    }
+    finally
+    {
+      this.readLock.unlock();
+    }
+  }
+
+  /**
+   * Calls the procedure with each right ID while holding the read lock, so
+   * the procedure must not modify this relation.
+   */
+  @Override
+  public boolean forEachRightID(long leftID, TLongProcedure procedure)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+
+    this.readLock.lock();
+    try
+    {
+      return this.relation.forEachRightValue(leftID, procedure);
+    }
+    finally
+    {
+      this.readLock.unlock();
+    }
+  }
+
+  @Override
+  public int leftIDs(long rightID, long[] buffer)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+
+    this.readLock.lock();
+    try
+    {
+      return this.relation.leftValues(rightID, buffer);
+    }
+    finally
+    {
+      this.readLock.unlock();
+    }
+  }
+
+  @Override
+  public int rightIDs(long leftID, long[] buffer)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+
+    this.readLock.lock();
+    try
+    {
+      return this.relation.rightValues(leftID, buffer);
+    }
+    finally
+    {
+      this.readLock.unlock();
+    }
+  }
+
+  /**
+   * Returns a read-only set of the left IDs.  For a compact relation this
+   * is a view of the relation's storage at the time of the call; otherwise
+   * it is a copy.
+   */
+  @Override
+  public TLongSet leftIDsView(long rightID)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+
+    this.readLock.lock();
+    try
+    {
+      return (this.relation instanceof CompactLongRelation)
+          ? ((CompactLongRelation)this.relation).leftValuesView(rightID)
+          : TCollections.unmodifiableSet(
+              new TLongHashSet(this.relation.leftValues(rightID)));
+    }
+    finally
+    {
+      this.readLock.unlock();
+    }
+  }
+
+  /**
+   * Returns a read-only set of the right IDs.  For a compact relation this
+   * is a view of the relation's storage at the time of the call; otherwise
+   * it is a copy.
+   */
+  @Override
+  public TLongSet rightIDsView(long leftID)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+
+    this.readLock.lock();
+    try
+    {
+      return (this.relation instanceof CompactLongRelation)
+          ? ((CompactLongRelation)this.relation).rightValuesView(leftID)
+          : TCollections.unmodifiableSet(
+              this.relation.rightValuesLongSet(leftID));
+    }
+    finally
+    {
+      this.readLock.unlock();
+    }
+  }
+
+  @Override
+  public TLongSet leftIDsUnion(long[] rightIDs)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+
+    final TLongSet union = new TLongHashSet();
+    final TLongProcedure collect = leftID -> {
+      union.add(leftID);
+      return true;
+    };
+    this.readLock.lock();
+    try
+    {
+      for (long rightID : rightIDs)
+      {
+        this.relation.forEachLeftValue(rightID, collect);
+      }
+      return union;
+    }
+    finally
+    {
+      this.readLock.unlock();
+    }
+  }
+
+  @Override
+  public TLongSet rightIDsUnion(long[] leftIDs)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+
+    final TLongSet union = new TLongHashSet();
+    final TLongProcedure collect = rightID -> {
+      union.add(rightID);
+      return true;
+    };
+    this.readLock.lock();
+    try
+    {
+      for (long leftID : leftIDs)
+      {
+        this.relation.forEachRightValue(leftID, collect);
+      }
+      return union;
+    }
+    finally
+    {
+      this.readLock.unlock();
     }
   }
 
@@ -1509,7 +1844,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       Set<Long> rightIDs = new HashSet<>();
@@ -1521,7 +1856,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -1549,14 +1884,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.rightSize(leftID);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -1592,14 +1927,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.rightSize(leftID, filterRightIds);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -1611,14 +1946,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.rightSize(leftID, filterRightIds);
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -1636,7 +1971,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.store.list(this.rightType,
@@ -1644,7 +1979,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -1664,7 +1999,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return new HashSet<>(this.store.list(this.rightType,
@@ -1672,7 +2007,7 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -1692,14 +2027,14 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       load();
     }
 
-    this.lock.readLock().lock();
+    this.readLock.lock();
     try
     {
       return this.relation.size();
     }
     finally
     {
-      this.lock.readLock().unlock();
+      this.readLock.unlock();
     }
   }
 
@@ -1720,7 +2055,22 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
   {
     return this.table;
   }
-  
+
+  /**
+   * Writes any changes queued by a write-behind relation and waits for them
+   * to complete.  Does nothing for other relations, whose changes are
+   * written as they are made.
+   *
+   * @see Builder#writeBehind()
+   */
+  public void flush()
+  {
+    if (this.writer != null)
+    {
+      this.writer.flush();
+    }
+  }
+
   @Override
   public String toString()
   {
@@ -1734,6 +2084,49 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
   // Inner classes
   //
 
+  /**
+   * A lock that does nothing, used in place of the read lock for relations
+   * that may be read while they are being written.
+   */
+  private static final class NoLock implements Lock
+  {
+    @Override
+    public void lock()
+    {
+      // Does nothing.
+    }
+
+    @Override
+    public void lockInterruptibly()
+    {
+      // Does nothing.
+    }
+
+    @Override
+    public boolean tryLock()
+    {
+      return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit)
+    {
+      return true;
+    }
+
+    @Override
+    public void unlock()
+    {
+      // Does nothing.
+    }
+
+    @Override
+    public Condition newCondition()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   /**
    * Creates new instances of {@link CachedRelation}.
    *
@@ -1749,6 +2142,8 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
     private String leftColumn;
     private String rightColumn;
     private LongRelation relation;
+    private boolean writeBehind;
+    private CachedRelationWriter.FailureHandler failureHandler;
 
     /**
      * Returns a new builder of {@link CachedRelation} instances.
@@ -1775,7 +2170,9 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
           this.table, 
           this.leftColumn, 
           this.rightColumn, 
-          this.relation);
+          this.relation,
+          this.writeBehind,
+          this.failureHandler);
     }
 
     /**
@@ -1824,5 +2221,43 @@ public class CachedRelation<L extends Identifiable, R extends Identifiable>
       this.relation = longRelation;
       return this;
     }
+
+    /**
+     * Stores the relation as a {@link CompactLongRelation}, which uses far
+     * less memory than the default and which is read without locking.
+     * Writes to a compact relation are more expensive, so this suits large,
+     * read-mostly relations.  Compact relations are many-to-many.
+     */
+    public Builder<L, R> compact()
+    {
+      this.relation = new CompactLongRelation();
+      return this;
+    }
+
+    /**
+     * Writes changes to the database in the background rather than while
+     * the relation is locked.  Changes are visible in memory immediately
+     * and are written, coalesced and batched, shortly afterward; see
+     * {@link CachedRelationWriter}.
+     */
+    public Builder<L, R> writeBehind()
+    {
+      this.writeBehind = true;
+      return this;
+    }
+
+    /**
+     * Writes changes to the database in the background, calling the given
+     * handler when they cannot be written.
+     * 
+     * @see #writeBehind()
+     */
+    public Builder<L, R> writeBehind(CachedRelationWriter.FailureHandler handler)
+    {
+      Objects.requireNonNull(handler);
+      this.writeBehind = true;
+      this.failureHandler = handler;
+      return this;
+    }
   }
 }
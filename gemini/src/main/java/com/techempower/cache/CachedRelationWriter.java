@@ -0,0 +1,480 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.techempower.data.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the changes made to a {@link CachedRelation} to its table in the
+ * background, so that callers, and readers waiting on the relation's lock,
+ * do not wait on the database.  See 
+ * {@link CachedRelation.Builder#writeBehind()}.
+ *   <p>
+ * Changes are queued in the order they were made to the relation and 
+ * written in that order by a single writer at a time.  Consecutive changes
+ * to individual pairs are coalesced: adding and then removing the same pair
+ * (or the reverse) cancels out, and the remainder are executed as JDBC
+ * batches.  Clearing or replacing the relation discards any changes still
+ * queued, since they would be deleted anyway.  A write is scheduled after
+ * a short delay to gather changes, or immediately once enough are queued.
+ *   <p>
+ * If a write fails, the changes not yet written are discarded and the
+ * failure handler is called; by default, the failure is logged and the
+ * relation is reset, here and on any peers, so that it is reloaded from
+ * the database.
+ */
+public class CachedRelationWriter
+{
+
+  //
+  // Constants.
+  //
+
+  private static final int               WRITE_NONE      = 0;
+  private static final int               WRITE_DELAYED   = 1;
+  private static final int               WRITE_IMMEDIATE = 2;
+
+  //
+  // Member variables.
+  //
+
+  private final CachedRelation<?, ?>     relation;
+  private final ConnectorFactory         cf;
+  private final EntityStore              store;
+  private final String                   insertSql;
+  private final String                   deletePairSql;
+  private final String                   deleteLeftSql;
+  private final String                   deleteRightSql;
+  private final String                   deleteAllSql;
+  private final FailureHandler           failureHandler;
+  private final Object                   writeLock = new Object();
+  private final Logger                   log       = LoggerFactory.getLogger(getClass());
+
+  // Guarded by this.
+  private final List<Operation>          pending   = new ArrayList<>();
+  private int                            pendingPairs;
+  private int                            scheduledWrite = WRITE_NONE;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.
+   *
+   * @param failureHandler called when a write fails; may be null for the
+   *        default behavior of logging the failure and resetting the 
+   *        relation.
+   */
+  CachedRelationWriter(CachedRelation<?, ?> relation, EntityStore store,
+      String quotedTable, String quotedLeftColumn, String quotedRightColumn,
+      FailureHandler failureHandler)
+  {
+    this.relation = relation;
+    this.store = store;
+    this.cf = store.getConnectorFactory();
+    this.insertSql = "INSERT INTO " + quotedTable + " (" + quotedLeftColumn
+        + ", " + quotedRightColumn + ") VALUES (?, ?);";
+    this.deletePairSql = "DELETE FROM " + quotedTable + " WHERE "
+        + quotedLeftColumn + " = ? AND " + quotedRightColumn + " = ?;";
+    this.deleteLeftSql = "DELETE FROM " + quotedTable + " WHERE "
+        + quotedLeftColumn + " = ?;";
+    this.deleteRightSql = "DELETE FROM " + quotedTable + " WHERE "
+        + quotedRightColumn + " = ?;";
+    this.deleteAllSql = "DELETE FROM " + quotedTable + ";";
+    this.failureHandler = (failureHandler != null)
+        ? failureHandler
+        : (failed, cause) -> {
+            this.log.error("Write to {} failed; resetting the relation.",
+                failed.tableName(), cause);
+            failed.reset();
+          };
+  }
+
+  /**
+   * Queues the insertion of a pair.
+   */
+  public void add(long leftID, long rightID)
+  {
+    change(leftID, rightID, true);
+  }
+
+  /**
+   * Queues the insertion of pairs.
+   */
+  public void addAll(long[] leftIDs, long[] rightIDs, int count)
+  {
+    synchronized (this)
+    {
+      for (int i = 0; i < count; i++)
+      {
+        changeQueued(leftIDs[i], rightIDs[i], true);
+      }
+      schedule();
+    }
+  }
+
+  /**
+   * Queues the deletion of a pair.
+   */
+  public void remove(long leftID, long rightID)
+  {
+    change(leftID, rightID, false);
+  }
+
+  /**
+   * Queues the deletion of pairs.
+   */
+  public void removeAll(long[] leftIDs, long[] rightIDs, int count)
+  {
+    synchronized (this)
+    {
+      for (int i = 0; i < count; i++)
+      {
+        changeQueued(leftIDs[i], rightIDs[i], false);
+      }
+      schedule();
+    }
+  }
+
+  /**
+   * Queues the deletion of all pairs with the given left value.
+   */
+  public synchronized void removeLeftValue(long leftID)
+  {
+    this.pending.add(new Delete(this.deleteLeftSql, leftID));
+    schedule();
+  }
+
+  /**
+   * Queues the deletion of all pairs with the given right value.
+   */
+  public synchronized void removeRightValue(long rightID)
+  {
+    this.pending.add(new Delete(this.deleteRightSql, rightID));
+    schedule();
+  }
+
+  /**
+   * Queues the deletion of all pairs, discarding any changes still queued.
+   */
+  public synchronized void clear()
+  {
+    this.pending.clear();
+    this.pendingPairs = 0;
+    this.pending.add(new Delete(this.deleteAllSql));
+    schedule();
+  }
+
+  /**
+   * Queues the replacement of all pairs, discarding any changes still
+   * queued.
+   */
+  public synchronized void replaceAll(long[] leftIDs, long[] rightIDs, int count)
+  {
+    clear();
+    addAll(leftIDs, rightIDs, count);
+  }
+
+  /**
+   * Writes all queued changes on the calling thread, waiting first for any
+   * write already in progress.  When this returns, every change queued 
+   * before it was called has been written or has failed.
+   */
+  public void flush()
+  {
+    write();
+  }
+
+  /**
+   * Gets the number of queued changes, counting each pair change and each
+   * bulk deletion as one.
+   */
+  public synchronized int pendingCount()
+  {
+    int count = this.pendingPairs;
+    for (Operation operation : this.pending)
+    {
+      if (operation instanceof Delete)
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Queues a change to a pair and schedules a write.
+   */
+  private synchronized void change(long leftID, long rightID, boolean add)
+  {
+    changeQueued(leftID, rightID, add);
+    schedule();
+  }
+
+  /**
+   * Queues a change to a pair, cancelling a queued opposite change to the
+   * same pair.  Called while synchronized.
+   */
+  private void changeQueued(long leftID, long rightID, boolean add)
+  {
+    final Operation last = this.pending.isEmpty() 
+        ? null 
+        : this.pending.get(this.pending.size() - 1);
+    final PairChanges changes;
+    if (last instanceof PairChanges)
+    {
+      changes = (PairChanges)last;
+    }
+    else
+    {
+      changes = new PairChanges();
+      this.pending.add(changes);
+    }
+    final Pair pair = new Pair(leftID, rightID);
+    final Boolean queued = changes.changes.get(pair);
+    if (queued == null)
+    {
+      changes.changes.put(pair, add);
+      this.pendingPairs++;
+    }
+    else if (queued != add)
+    {
+      changes.changes.remove(pair);
+      this.pendingPairs--;
+    }
+  }
+
+  /**
+   * Schedules a write if one is not already scheduled, or immediately if
+   * enough changes are queued.  At most one delayed and one immediate write
+   * are outstanding until a write takes the queued changes.  Called while
+   * synchronized.
+   */
+  private void schedule()
+  {
+    if (this.scheduledWrite == WRITE_IMMEDIATE)
+    {
+      return;
+    }
+    final ScheduledExecutorService executor = this.store.getRelationWriteExecutor();
+    if (this.pendingPairs >= this.store.getRelationWriteBatchSize())
+    {
+      this.scheduledWrite = WRITE_IMMEDIATE;
+      executor.execute(this::write);
+    }
+    else if (this.scheduledWrite == WRITE_NONE)
+    {
+      this.scheduledWrite = WRITE_DELAYED;
+      executor.schedule(this::write, this.store.getRelationWriteDelay(),
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Takes the queued changes and writes them.
+   */
+  private void write()
+  {
+    Exception failure = null;
+    synchronized (this.writeLock)
+    {
+      final List<Operation> work;
+      synchronized (this)
+      {
+        this.scheduledWrite = WRITE_NONE;
+        if (this.pending.isEmpty())
+        {
+          return;
+        }
+        work = new ArrayList<>(this.pending);
+        this.pending.clear();
+        this.pendingPairs = 0;
+      }
+
+      try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
+      {
+        final Connection connection = monitor.getConnection();
+        for (Operation operation : work)
+        {
+          operation.execute(this, connection);
+        }
+      }
+      catch (SQLException | RuntimeException e)
+      {
+        // The executor would swallow a RuntimeException, losing the
+        // changes without notice.
+        failure = e;
+      }
+    }
+
+    // Called outside of the write lock so that the handler may flush or
+    // reset the relation.
+    if (failure != null)
+    {
+      this.failureHandler.writeFailed(this.relation, failure);
+    }
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * Called when queued changes cannot be written.
+   */
+  @FunctionalInterface
+  public interface FailureHandler
+  {
+    /**
+     * Called on the writing thread after a write fails.  The changes that
+     * had not been written have been discarded.
+     */
+    void writeFailed(CachedRelation<?, ?> relation, Exception cause);
+  }
+
+  /**
+   * A queued write.
+   */
+  private abstract static class Operation
+  {
+    abstract void execute(CachedRelationWriter writer, Connection connection)
+      throws SQLException;
+  }
+
+  /**
+   * Coalesced insertions and deletions of individual pairs, in the order
+   * first queued.
+   */
+  private static final class PairChanges extends Operation
+  {
+    private final Map<Pair, Boolean> changes = new LinkedHashMap<>();
+
+    @Override
+    void execute(CachedRelationWriter writer, Connection connection)
+      throws SQLException
+    {
+      final int batchSize = Math.max(1, writer.store.getRelationWriteBatchSize());
+      try (PreparedStatement insert = connection.prepareStatement(writer.insertSql);
+           PreparedStatement delete = connection.prepareStatement(writer.deletePairSql))
+      {
+        int inserts = 0;
+        int deletes = 0;
+        for (Map.Entry<Pair, Boolean> change : this.changes.entrySet())
+        {
+          final PreparedStatement statement = change.getValue() ? insert : delete;
+          statement.setLong(1, change.getKey().left);
+          statement.setLong(2, change.getKey().right);
+          statement.addBatch();
+          if (change.getValue() && ++inserts % batchSize == 0)
+          {
+            insert.executeBatch();
+          }
+          else if (!change.getValue() && ++deletes % batchSize == 0)
+          {
+            delete.executeBatch();
+          }
+        }
+        if (inserts % batchSize != 0)
+        {
+          insert.executeBatch();
+        }
+        if (deletes % batchSize != 0)
+        {
+          delete.executeBatch();
+        }
+      }
+    }
+  }
+
+  /**
+   * A deletion by left value, right value or of everything.
+   */
+  private static final class Delete extends Operation
+  {
+    private final String sql;
+    private final long[] arguments;
+
+    Delete(String sql, long... arguments)
+    {
+      this.sql = sql;
+      this.arguments = arguments;
+    }
+
+    @Override
+    void execute(CachedRelationWriter writer, Connection connection)
+      throws SQLException
+    {
+      try (PreparedStatement statement = connection.prepareStatement(this.sql))
+      {
+        for (int i = 0; i < this.arguments.length; i++)
+        {
+          statement.setLong(i + 1, this.arguments[i]);
+        }
+        statement.executeUpdate();
+      }
+    }
+  }
+
+  /**
+   * A pair of identities.
+   */
+  private static final class Pair
+  {
+    private final long left;
+    private final long right;
+
+    Pair(long left, long right)
+    {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+      return other instanceof Pair
+          && ((Pair)other).left == this.left
+          && ((Pair)other).right == this.right;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Long.hashCode(this.left) * 31 + Long.hashCode(this.right);
+    }
+  }
+
+}   // End CachedRelationWriter.
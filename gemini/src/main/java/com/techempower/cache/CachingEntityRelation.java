@@ -26,6 +26,15 @@ public interface CachingEntityRelation<L extends Identifiable, R extends Identif
     // By default ignores messages.
   }
 
+  /**
+   * Removes the given listener from the relation, if it was added.
+   *
+   * @param listener the listener to be removed
+   */
+  default void removeListener(CachedRelationListener listener) {
+    // By default does not maintain a list of listeners.
+  }
+
   /**
    * Returns a copy of the list of listeners to this relation.
    *
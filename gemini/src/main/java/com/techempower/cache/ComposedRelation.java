@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import gnu.trove.list.array.*;
+import gnu.trove.procedure.*;
+import gnu.trove.set.*;
+
+import java.util.*;
+
+import com.techempower.data.*;
+import com.techempower.util.*;
+
+/**
+ * A read-only relation from L to R formed by composing a relation from L to
+ * M with a relation from M to R: a left and a right are related if some 
+ * middle value is related to both.  For example, composing users-to-groups
+ * with groups-to-permissions relates users to the permissions they hold 
+ * through any of their groups.  Obtain instances from 
+ * {@link EntityStore#compose(EntityRelation, EntityRelation)}.
+ *   <p>
+ * Nothing is stored; each query walks the two relations through their
+ * primitive queries, so no boxed identities or intermediate entity 
+ * collections are created.  The middle values are gathered before the 
+ * second relation is read, so no two relations' locks are held at once.
+ * A composition queried often can instead be kept up to date in memory by
+ * calling {@link #materialize()}.
+ *
+ * @param <L> the type of the left values
+ * @param <M> the type of the middle values
+ * @param <R> the type of the right values
+ */
+public class ComposedRelation<L extends Identifiable, M extends Identifiable, R extends Identifiable>
+{
+
+  //
+  // Member variables.
+  //
+
+  private final EntityStore           store;
+  private final EntityRelation<L, M>  first;
+  private final EntityRelation<M, R>  second;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.
+   */
+  protected ComposedRelation(EntityStore store, EntityRelation<L, M> first,
+      EntityRelation<M, R> second)
+  {
+    this.store = store;
+    this.first = first;
+    this.second = second;
+  }
+
+  /**
+   * Gets the relation from left to middle values.
+   */
+  public EntityRelation<L, M> first()
+  {
+    return this.first;
+  }
+
+  /**
+   * Gets the relation from middle to right values.
+   */
+  public EntityRelation<M, R> second()
+  {
+    return this.second;
+  }
+
+  /**
+   * Returns whether the left and right values are related through any 
+   * middle value.
+   */
+  public boolean contains(long leftID, long rightID)
+  {
+    final TLongArrayList middleIDs = middleIDsOfLeft(leftID);
+    for (int i = 0; i < middleIDs.size(); i++)
+    {
+      if (this.second.contains(middleIDs.getQuick(i), rightID))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the IDs of the right values reachable from the left value.
+   */
+  public TLongSet rightIDs(long leftID)
+  {
+    return this.second.rightIDsUnion(middleIDsOfLeft(leftID).toArray());
+  }
+
+  /**
+   * Returns the IDs of the right values reachable from any of the left
+   * values.
+   */
+  public TLongSet rightIDsUnion(long[] leftIDs)
+  {
+    final TLongSet middleIDs = this.first.rightIDsUnion(leftIDs);
+    return this.second.rightIDsUnion(middleIDs.toArray());
+  }
+
+  /**
+   * Returns the IDs of the left values from which the right value is
+   * reachable.
+   */
+  public TLongSet leftIDs(long rightID)
+  {
+    final TLongArrayList middleIDs = new TLongArrayList();
+    this.second.forEachLeftID(rightID, collect(middleIDs));
+    return this.first.leftIDsUnion(middleIDs.toArray());
+  }
+
+  /**
+   * Returns the number of distinct right values reachable from the left
+   * value.
+   */
+  public int rightSize(long leftID)
+  {
+    return rightIDs(leftID).size();
+  }
+
+  /**
+   * Returns the number of distinct left values from which the right value
+   * is reachable.
+   */
+  public int leftSize(long rightID)
+  {
+    return leftIDs(rightID).size();
+  }
+
+  /**
+   * Returns the right values reachable from the left value.
+   */
+  public List<R> rightValueList(long leftID)
+  {
+    return this.store.list(this.second.rightType(), rightIDs(leftID).toArray());
+  }
+
+  /**
+   * Returns the left values from which the right value is reachable.
+   */
+  public List<L> leftValueList(long rightID)
+  {
+    return this.store.list(this.first.leftType(), leftIDs(rightID).toArray());
+  }
+
+  /**
+   * Returns a relation holding the result of this composition in memory,
+   * kept up to date as the two relations change.  Both relations must be 
+   * caching relations registered with the store, since the result is 
+   * maintained by listening to them.  Call 
+   * {@link MaterializedRelation#close()} once the result is no longer
+   * needed, so that it stops listening.
+   *
+   * @see MaterializedRelation
+   */
+  public MaterializedRelation<L, R> materialize()
+  {
+    if (!(this.first instanceof CachingEntityRelation)
+        || !(this.second instanceof CachingEntityRelation))
+    {
+      throw new IllegalArgumentException(
+          "Only compositions of caching relations can be materialized.");
+    }
+    final MaterializedRelation<L, R> materialized = new MaterializedRelation<>(this);
+    ((CachingEntityRelation<L, M>)this.first).addListener(materialized);
+    if (this.second != this.first)
+    {
+      ((CachingEntityRelation<M, R>)this.second).addListener(materialized);
+    }
+    return materialized;
+  }
+
+  /**
+   * Gets the IDs of the middle values related to a left value.
+   */
+  protected TLongArrayList middleIDsOfLeft(long leftID)
+  {
+    final TLongArrayList middleIDs = new TLongArrayList();
+    this.first.forEachRightID(leftID, collect(middleIDs));
+    return middleIDs;
+  }
+
+  /**
+   * Returns a procedure that adds each value to the list.
+   */
+  protected static TLongProcedure collect(TLongArrayList list)
+  {
+    return value -> {
+      list.add(value);
+      return true;
+    };
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ComposedRelation [" + this.first + "," + this.second + "]";
+  }
+
+}   // End ComposedRelation.
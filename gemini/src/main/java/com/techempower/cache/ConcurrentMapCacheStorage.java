@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.techempower.util.*;
+
+/**
+ * A CacheStorage backed by a ConcurrentHashMap.  This is the storage that
+ * CacheGroups have historically used and remains the default.
+ */
+public class ConcurrentMapCacheStorage<T extends Identifiable>
+  implements CacheStorage<T>
+{
+
+  //
+  // Member variables.
+  //
+
+  private final ConcurrentMap<Long, T> objects;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.
+   */
+  public ConcurrentMapCacheStorage(int expectedSize)
+  {
+    this.objects = new ConcurrentHashMap<>(Math.max(expectedSize, 16));
+  }
+
+  @Override
+  public T get(long id)
+  {
+    return this.objects.get(id);
+  }
+
+  @Override
+  public T put(T object)
+  {
+    return this.objects.put(object.getId(), object);
+  }
+
+  @Override
+  public T remove(long id)
+  {
+    return this.objects.remove(id);
+  }
+
+  @Override
+  public boolean containsKey(long id)
+  {
+    return this.objects.containsKey(id);
+  }
+
+  @Override
+  public boolean containsValue(Identifiable object)
+  {
+    return this.objects.containsValue(object);
+  }
+
+  @Override
+  public int size()
+  {
+    return this.objects.size();
+  }
+
+  @Override
+  public Collection<T> values()
+  {
+    return Collections.unmodifiableCollection(this.objects.values());
+  }
+
+  /**
+   * Returns a copy of the stored entities.
+   */
+  @Override
+  public TLongObjectMap<T> map()
+  {
+    final TLongObjectMap<T> toReturn = new TLongObjectHashMap<>(
+        this.objects.size());
+    for (T object : this.objects.values())
+    {
+      toReturn.put(object.getId(), object);
+    }
+    return toReturn;
+  }
+
+}   // End ConcurrentMapCacheStorage.
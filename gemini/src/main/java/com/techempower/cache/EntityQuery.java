@@ -0,0 +1,485 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import gnu.trove.iterator.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import com.techempower.util.*;
+
+/**
+ * A query over the entities of one type held by an EntityStore, created by
+ * {@link EntityStore#query(Class)}.  Criteria are equality tests against 
+ * the return values of public, no-argument methods, combined with AND.  For
+ * example:
+ * <pre>
+ * store.query(User.class)
+ *     .where("getCompanyId", 5)
+ *     .and("isEnabled", true)
+ *     .orderBy("getName")
+ *     .limit(20)
+ *     .list();
+ * </pre>
+ * When the query is executed, a simple planner resolves every criterion on
+ * an indexed method to a set of ids using the method value cache, and 
+ * intersects those sets starting with the smallest.  Only then are entities
+ * fetched and any remaining criteria evaluated.  Ordering uses an ordered
+ * index (see {@link com.techempower.cache.annotation.Indexed#ordered()}) 
+ * when the ordering method has one and most of the group is in play; 
+ * otherwise the matching entities are sorted.
+ *   <p>
+ * Results are produced lazily by {@link #stream()} and {@link #iterator()},
+ * so that offset and limit stop the work as soon as the page is complete.
+ * Results are weakly consistent with concurrent changes to the group.
+ * Queries are not threadsafe while being built but may be executed any
+ * number of times.
+ */
+public class EntityQuery<T extends Identifiable>
+  implements Iterable<T>
+{
+
+  //
+  // Constants.
+  //
+
+  /**
+   * An ordered index is walked rather than sorting the candidates when the
+   * candidates are at least this fraction (1/n) of the group.
+   */
+  private static final int INDEX_WALK_FRACTION = 8;
+
+  //
+  // Member variables.
+  //
+
+  private final EntityStore  store;
+  private final Class<T>     type;
+  private final List<String> methodNames = new ArrayList<>();
+  private final List<Object> values      = new ArrayList<>();
+  private String             orderBy;
+  private boolean            descending;
+  private int                offset      = 0;
+  private int                limit       = Integer.MAX_VALUE;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.  Use {@link EntityStore#query(Class)}.
+   */
+  protected EntityQuery(EntityStore store, Class<T> type)
+  {
+    this.store = store;
+    this.type = type;
+  }
+
+  /**
+   * Requires that the given method return a value equal to the given value.
+   */
+  public EntityQuery<T> where(String methodName, Object value)
+  {
+    this.methodNames.add(methodName);
+    this.values.add(value);
+    return this;
+  }
+
+  /**
+   * Requires that the given method return a value equal to the given value.
+   * Equivalent to {@link #where(String, Object)}.
+   */
+  public EntityQuery<T> and(String methodName, Object value)
+  {
+    return where(methodName, value);
+  }
+
+  /**
+   * Orders the results by the value of the given method, ascending.  The
+   * method's values must be mutually Comparable; null values come first.
+   * Entities with equal values are ordered by id.
+   */
+  public EntityQuery<T> orderBy(String methodName)
+  {
+    return orderBy(methodName, false);
+  }
+
+  /**
+   * Orders the results by the value of the given method.  The method's 
+   * values must be mutually Comparable; null values come first when 
+   * ascending.  Entities with equal values are ordered by id.
+   */
+  public EntityQuery<T> orderBy(String methodName, boolean descendingOrder)
+  {
+    this.orderBy = methodName;
+    this.descending = descendingOrder;
+    return this;
+  }
+
+  /**
+   * Skips the given number of results.
+   */
+  public EntityQuery<T> offset(int results)
+  {
+    if (results < 0)
+    {
+      throw new IllegalArgumentException("Offset may not be negative.");
+    }
+    this.offset = results;
+    return this;
+  }
+
+  /**
+   * Returns at most the given number of results.
+   */
+  public EntityQuery<T> limit(int results)
+  {
+    if (results < 0)
+    {
+      throw new IllegalArgumentException("Limit may not be negative.");
+    }
+    this.limit = results;
+    return this;
+  }
+
+  /**
+   * Selects a page of results, numbered from 1.  Equivalent to setting the
+   * offset and limit.
+   */
+  public EntityQuery<T> page(int pageNumber, int pageSize)
+  {
+    if (pageNumber < 1)
+    {
+      throw new IllegalArgumentException("Pages are numbered from 1.");
+    }
+    offset((pageNumber - 1) * pageSize);
+    return limit(pageSize);
+  }
+
+  /**
+   * Executes the query, returning the results as a List.
+   */
+  public List<T> list()
+  {
+    return stream().collect(Collectors.toList());
+  }
+
+  /**
+   * Executes the query, returning the first result or null if there are
+   * none.
+   */
+  public T first()
+  {
+    return stream().findFirst().orElse(null);
+  }
+
+  /**
+   * Counts the entities that match the criteria, disregarding offset and
+   * limit.  If all criteria are on indexed methods, no entities are 
+   * examined.
+   */
+  public int count()
+  {
+    final Plan plan = plan();
+    if (plan.filter == null && plan.candidates != null)
+    {
+      return plan.candidates.size();
+    }
+    return (int)source(plan).count();
+  }
+
+  /**
+   * Executes the query, returning a lazy Stream of the results.
+   */
+  public Stream<T> stream()
+  {
+    Stream<T> results = source(plan());
+    if (this.offset > 0)
+    {
+      results = results.skip(this.offset);
+    }
+    if (this.limit < Integer.MAX_VALUE)
+    {
+      results = results.limit(this.limit);
+    }
+    return results;
+  }
+
+  /**
+   * Executes the query, returning a lazy Iterator over the results.
+   */
+  @Override
+  public Iterator<T> iterator()
+  {
+    return stream().iterator();
+  }
+
+  @Override
+  public String toString()
+  {
+    final StringBuilder sb = new StringBuilder("EntityQuery [")
+        .append(this.type.getSimpleName());
+    for (int i = 0; i < this.methodNames.size(); i++)
+    {
+      sb.append(i == 0 ? " where " : " and ")
+        .append(this.methodNames.get(i))
+        .append(" = ")
+        .append(this.values.get(i));
+    }
+    if (this.orderBy != null)
+    {
+      sb.append(" order by ").append(this.orderBy)
+        .append(this.descending ? " desc" : "");
+    }
+    return sb.append(']').toString();
+  }
+
+  /**
+   * Resolves indexed criteria to a set of candidate ids, and compiles the
+   * remaining criteria into a filter.
+   */
+  private Plan plan()
+  {
+    final MethodValueCache<T> methodValueCache = 
+        this.store.getMethodValueCache(this.type);
+    final List<TLongSet> indexed = new ArrayList<>();
+    Predicate<T> filter = null;
+
+    for (int i = 0; i < this.methodNames.size(); i++)
+    {
+      final String methodName = this.methodNames.get(i);
+      final Object value = this.values.get(i);
+      if (methodValueCache != null 
+          && this.store.isIndexed(this.type, methodName))
+      {
+        indexed.add(methodValueCache.getIds(methodName, value));
+      }
+      else
+      {
+        // Match as an index would, so that adding @Indexed does not change
+        // the results.
+        final Function<T, Object> accessor = accessor(methodValueCache, methodName);
+        final Predicate<Object> matches = MethodIndex.equalTo(value, 
+            method(methodName).getReturnType());
+        final Predicate<T> test = object -> matches.test(accessor.apply(object));
+        filter = (filter == null) ? test : filter.and(test);
+      }
+    }
+
+    return new Plan(intersect(indexed), filter);
+  }
+
+  /**
+   * Produces the matching entities, in order, for a plan.
+   */
+  private Stream<T> source(Plan plan)
+  {
+    final MethodValueCache<T> methodValueCache = 
+        this.store.getMethodValueCache(this.type);
+    Stream<T> results;
+
+    if (this.orderBy != null
+        && methodValueCache != null
+        && this.store.isOrderedIndexed(this.type, this.orderBy)
+        && (plan.candidates == null 
+            || plan.candidates.size() * INDEX_WALK_FRACTION >= this.store.size(this.type)))
+    {
+      // Walk the ordered index, skipping ids that are not candidates.
+      final TLongSet candidates = plan.candidates;
+      final PrimitiveIterator.OfLong ids = methodValueCache
+          .getIndex(this.orderBy).iterator(this.descending);
+      LongStream idStream = StreamSupport.longStream(
+          Spliterators.spliteratorUnknownSize(ids, Spliterator.ORDERED), false);
+      if (candidates != null)
+      {
+        idStream = idStream.filter(candidates::contains);
+      }
+      return filter(resolve(idStream), plan.filter);
+    }
+
+    if (plan.candidates != null)
+    {
+      final TLongIterator ids = plan.candidates.iterator();
+      results = resolve(StreamSupport.longStream(Spliterators.spliteratorUnknownSize(
+          new PrimitiveIterator.OfLong() {
+            @Override
+            public boolean hasNext()
+            {
+              return ids.hasNext();
+            }
+
+            @Override
+            public long nextLong()
+            {
+              return ids.next();
+            }
+          }, 0), false));
+    }
+    else
+    {
+      results = this.store.list(this.type).stream();
+    }
+    results = filter(results, plan.filter);
+
+    if (this.orderBy != null)
+    {
+      final Function<T, Object> accessor = accessor(methodValueCache, this.orderBy);
+      Comparator<T> order = (first, second) -> {
+        final int result = compare(accessor.apply(first), accessor.apply(second));
+        return (result != 0) 
+            ? result 
+            : Long.compare(first.getId(), second.getId());
+      };
+      results = results.sorted(this.descending ? order.reversed() : order);
+    }
+    return results;
+  }
+
+  /**
+   * Resolves a stream of ids to the entities that still exist.
+   */
+  private Stream<T> resolve(LongStream ids)
+  {
+    return ids.mapToObj(id -> this.store.get(this.type, id))
+        .filter(Objects::nonNull);
+  }
+
+  private static <T> Stream<T> filter(Stream<T> results, Predicate<T> filter)
+  {
+    return (filter == null) 
+        ? results 
+        : results.filter(filter);
+  }
+
+  /**
+   * Gets a compiled accessor for a method.
+   */
+  private Function<T, Object> accessor(MethodValueCache<T> methodValueCache, 
+      String methodName)
+  {
+    if (methodValueCache != null)
+    {
+      return methodValueCache.accessor(methodName);
+    }
+    return MethodIndex.compile(method(methodName));
+  }
+
+  /**
+   * Gets a public, no-argument method of the entity type.
+   */
+  private Method method(String methodName)
+  {
+    try
+    {
+      return this.type.getMethod(methodName);
+    }
+    catch (NoSuchMethodException e)
+    {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Intersects sets of ids, starting with the smallest.  Returns null if
+   * there are no sets.
+   */
+  private static TLongSet intersect(List<TLongSet> sets)
+  {
+    if (sets.isEmpty())
+    {
+      return null;
+    }
+    sets.sort(Comparator.comparingInt(TLongSet::size));
+    final TLongSet smallest = sets.get(0);
+    if (sets.size() == 1 || smallest.isEmpty())
+    {
+      return smallest;
+    }
+    final TLongSet result = new TLongHashSet(smallest.size());
+    smallest.forEach(id -> {
+      for (int i = 1; i < sets.size(); i++)
+      {
+        if (!sets.get(i).contains(id))
+        {
+          return true;
+        }
+      }
+      result.add(id);
+      return true;
+    });
+    return result;
+  }
+
+  /**
+   * Compares two method values, placing nulls first.
+   */
+  @SuppressWarnings("unchecked")
+  private static int compare(Object first, Object second)
+  {
+    if (first == second)
+    {
+      return 0;
+    }
+    if (first == null)
+    {
+      return -1;
+    }
+    if (second == null)
+    {
+      return 1;
+    }
+    return ((Comparable<Object>)first).compareTo(second);
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * The outcome of planning: the ids satisfying the indexed criteria (null
+   * if there are none) and a filter for the remaining criteria (null if 
+   * there are none).
+   */
+  private final class Plan
+  {
+    private final TLongSet     candidates;
+    private final Predicate<T> filter;
+
+    private Plan(TLongSet candidates, Predicate<T> filter)
+    {
+      this.candidates = candidates;
+      this.filter = filter;
+    }
+  }
+
+}   // End EntityQuery.
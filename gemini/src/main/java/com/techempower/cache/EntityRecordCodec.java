@@ -0,0 +1,507 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+
+import com.techempower.data.*;
+import com.techempower.data.mapping.*;
+import com.techempower.util.*;
+
+/**
+ * Encodes entities into compact binary records and decodes them back, using
+ * the column-to-method mappings that an EntityGroup binds from its table.
+ * Only the identity and the mapped fields are captured, which is exactly
+ * the state an entity has when it is made from a row of its table.
+ *   <p>
+ * Each field is written according to its mapped Java type: primitives as
+ * fixed-width values, nullable types behind a one-byte presence flag,
+ * Strings as UTF-8 with a variable-length prefix, enums by ordinal and the
+ * date and time types by their epoch components.  Types without a compact
+ * form fall back to Java serialization.
+ *   <p>
+ * Used by {@link OffHeapCacheStorage} and {@link CacheSnapshot}.  Enum
+ * ordinals and field order are not stable across versions of the entity
+ * class, so records kept beyond the running process must be checked
+ * against the {@link #signature()} of the codec that wrote them.
+ */
+public class EntityRecordCodec<T extends Identifiable>
+{
+
+  //
+  // Member variables.
+  //
+
+  private final Supplier<T> factory;
+  private final Field<T>[]  fields;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.  Fields are captured for each setter mapping that has a
+   * getter mapping for the same column.
+   *
+   * @param factory creates empty entity instances to be populated.
+   * @param getters the group's column-to-getter mappings.
+   * @param setters the group's column-to-setter mappings.
+   */
+  @SuppressWarnings("unchecked")
+  public EntityRecordCodec(Supplier<T> factory, 
+      DataFieldToMethodMap[] getters, DataFieldToMethodMap[] setters)
+  {
+    this.factory = factory;
+    final Map<String, DataFieldToMethodMap> gettersByColumn = new HashMap<>();
+    for (DataFieldToMethodMap getter : getters)
+    {
+      gettersByColumn.put(getter.getFieldName().toLowerCase(), getter);
+    }
+    final List<Field<T>> paired = new ArrayList<>(setters.length);
+    for (DataFieldToMethodMap setter : setters)
+    {
+      final DataFieldToMethodMap getter = gettersByColumn.get(
+          setter.getFieldName().toLowerCase());
+      if (getter != null)
+      {
+        paired.add(new Field<>(setter, getter.getMethod()));
+      }
+    }
+    this.fields = (Field<T>[])paired.toArray(new Field<?>[0]);
+  }
+
+  /**
+   * Constructor for a group; binds to the group's mappings, which may 
+   * require a query of the table's metadata.
+   */
+  public EntityRecordCodec(EntityGroup<T> group, 
+      DataFieldToMethodMap[] getters, DataFieldToMethodMap[] setters)
+  {
+    this(() -> group.maker().make(), getters, setters);
+  }
+
+  /**
+   * Writes an entity's record to the buffer at its current position.
+   * 
+   * @throws BufferOverflowException if the buffer is too small, in which
+   *         case the caller should retry with a larger buffer.
+   */
+  public void write(T object, ByteBuffer out)
+  {
+    out.putLong(object.getId());
+    for (Field<T> field : this.fields)
+    {
+      field.write(object, out);
+    }
+  }
+
+  /**
+   * Reads an entity from a record starting at the buffer's current 
+   * position.
+   */
+  public T read(ByteBuffer in)
+  {
+    final T object = this.factory.get();
+    object.setId(in.getLong());
+    for (Field<T> field : this.fields)
+    {
+      field.read(object, in);
+    }
+    return object;
+  }
+
+  /**
+   * Gets the number of fields captured in each record, not counting the
+   * identity.
+   */
+  public int fieldCount()
+  {
+    return this.fields.length;
+  }
+
+  /**
+   * Gets a description of the record layout: each field's column, mapped
+   * type and, for enums, constant names.  Records written by a codec may
+   * be read by another only if their signatures are equal.
+   */
+  public String signature()
+  {
+    final StringBuilder signature = new StringBuilder();
+    for (Field<T> field : this.fields)
+    {
+      signature.append(field.column)
+          .append(':')
+          .append(field.type);
+      if (field.enumConstants != null)
+      {
+        signature.append(Arrays.toString(field.enumConstants));
+      }
+      signature.append(';');
+    }
+    return signature.toString();
+  }
+
+  /**
+   * Writes an unsigned variable-length int.
+   */
+  static void putVarInt(ByteBuffer out, int value)
+  {
+    while ((value & ~0x7F) != 0)
+    {
+      out.put((byte)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte)value);
+  }
+
+  /**
+   * Reads an unsigned variable-length int.
+   */
+  static int getVarInt(ByteBuffer in)
+  {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do
+    {
+      b = in.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    }
+    while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * Reads a length-prefixed byte array.
+   */
+  private static byte[] getBytes(ByteBuffer in)
+  {
+    final byte[] bytes = new byte[getVarInt(in)];
+    in.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Writes a length-prefixed byte array.
+   */
+  private static void putBytes(ByteBuffer out, byte[] bytes)
+  {
+    putVarInt(out, bytes.length);
+    out.put(bytes);
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * A single mapped field: how to read it from and write it to an entity,
+   * and how to encode its value.
+   */
+  private static class Field<T>
+  {
+    private final String                    column;
+    private final DataFieldToMethodMap.Type type;
+    private final Class<?>                  javaType;
+    private final Function<T, Object>       getter;
+    private final BiConsumer<T, Object>     setter;
+    private final Object[]                  enumConstants;
+
+    Field(DataFieldToMethodMap setter, Method getter)
+    {
+      this.column = setter.getFieldName().toLowerCase();
+      this.type = setter.getType();
+      this.javaType = setter.getJavaFieldType();
+      this.getter = MethodIndex.compile(getter);
+      this.setter = compileSetter(setter.getMethod());
+      this.enumConstants = this.javaType.isEnum() 
+          ? this.javaType.getEnumConstants()
+          : null;
+    }
+
+    void write(T object, ByteBuffer out)
+    {
+      final Object value = this.getter.apply(object);
+      switch (this.type)
+      {
+        case BooleanPrimitive:
+          out.put((byte)((Boolean)value ? 1 : 0));
+          return;
+        case BytePrimitive:
+          out.put((Byte)value);
+          return;
+        case CharPrimitive:
+          out.putChar((Character)value);
+          return;
+        case DoublePrimitive:
+          out.putDouble((Double)value);
+          return;
+        case FloatPrimitive:
+          out.putFloat((Float)value);
+          return;
+        case IntPrimitive:
+          out.putInt((Integer)value);
+          return;
+        case LongPrimitive:
+          out.putLong((Long)value);
+          return;
+        case ShortPrimitive:
+          out.putShort((Short)value);
+          return;
+        default:
+          break;
+      }
+
+      // The remaining types are nullable.
+      if (value == null)
+      {
+        out.put((byte)0);
+        return;
+      }
+      out.put((byte)1);
+      switch (this.type)
+      {
+        case String:
+          putBytes(out, ((String)value).getBytes(StandardCharsets.UTF_8));
+          break;
+        case BooleanObject:
+          out.put((byte)((Boolean)value ? 1 : 0));
+          break;
+        case ByteObject:
+          out.put((Byte)value);
+          break;
+        case CharacterObject:
+          out.putChar((Character)value);
+          break;
+        case DoubleObject:
+          out.putDouble((Double)value);
+          break;
+        case FloatObject:
+          out.putFloat((Float)value);
+          break;
+        case IntegerObject:
+          out.putInt((Integer)value);
+          break;
+        case LongObject:
+          out.putLong((Long)value);
+          break;
+        case ShortObject:
+          out.putShort((Short)value);
+          break;
+        case Enum:
+          putVarInt(out, ((Enum<?>)value).ordinal());
+          break;
+        case Date:
+          out.putLong(((Date)value).getTime());
+          break;
+        case Calendar:
+          out.putLong(((Calendar)value).getTimeInMillis());
+          break;
+        case LocalDate:
+          out.putLong(((LocalDate)value).toEpochDay());
+          break;
+        case LocalTime:
+          out.putLong(((LocalTime)value).toNanoOfDay());
+          break;
+        case LocalDateTime:
+          out.putLong(((LocalDateTime)value).toLocalDate().toEpochDay());
+          out.putLong(((LocalDateTime)value).toLocalTime().toNanoOfDay());
+          break;
+        case OffsetDateTime:
+          final OffsetDateTime offsetDateTime = (OffsetDateTime)value;
+          out.putLong(offsetDateTime.toEpochSecond());
+          out.putInt(offsetDateTime.getNano());
+          out.putInt(offsetDateTime.getOffset().getTotalSeconds());
+          break;
+        default:
+          putBytes(out, serialize(value));
+          break;
+      }
+    }
+
+    void read(T object, ByteBuffer in)
+    {
+      final Object value;
+      switch (this.type)
+      {
+        case BooleanPrimitive:
+          value = in.get() != 0;
+          break;
+        case BytePrimitive:
+          value = in.get();
+          break;
+        case CharPrimitive:
+          value = in.getChar();
+          break;
+        case DoublePrimitive:
+          value = in.getDouble();
+          break;
+        case FloatPrimitive:
+          value = in.getFloat();
+          break;
+        case IntPrimitive:
+          value = in.getInt();
+          break;
+        case LongPrimitive:
+          value = in.getLong();
+          break;
+        case ShortPrimitive:
+          value = in.getShort();
+          break;
+        default:
+          value = in.get() == 0 ? null : readNullable(in);
+          break;
+      }
+      this.setter.accept(object, value);
+    }
+
+    private Object readNullable(ByteBuffer in)
+    {
+      switch (this.type)
+      {
+        case String:
+          return new String(getBytes(in), StandardCharsets.UTF_8);
+        case BooleanObject:
+          return in.get() != 0;
+        case ByteObject:
+          return in.get();
+        case CharacterObject:
+          return in.getChar();
+        case DoubleObject:
+          return in.getDouble();
+        case FloatObject:
+          return in.getFloat();
+        case IntegerObject:
+          return in.getInt();
+        case LongObject:
+          return in.getLong();
+        case ShortObject:
+          return in.getShort();
+        case Enum:
+          return this.enumConstants[getVarInt(in)];
+        case Date:
+          return new Date(in.getLong());
+        case Calendar:
+          final Calendar calendar = Calendar.getInstance();
+          calendar.setTimeInMillis(in.getLong());
+          return calendar;
+        case LocalDate:
+          return LocalDate.ofEpochDay(in.getLong());
+        case LocalTime:
+          return LocalTime.ofNanoOfDay(in.getLong());
+        case LocalDateTime:
+          final LocalDate date = LocalDate.ofEpochDay(in.getLong());
+          return LocalDateTime.of(date, LocalTime.ofNanoOfDay(in.getLong()));
+        case OffsetDateTime:
+          final long seconds = in.getLong();
+          final int nanos = in.getInt();
+          return OffsetDateTime.ofInstant(Instant.ofEpochSecond(seconds, nanos),
+              ZoneOffset.ofTotalSeconds(in.getInt()));
+        default:
+          return deserialize(getBytes(in));
+      }
+    }
+
+    private byte[] serialize(Object value)
+    {
+      if (!(value instanceof Serializable))
+      {
+        throw new EntityException("Cannot encode a value of "
+            + value.getClass().getName() + " in an entity record.");
+      }
+      try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+           ObjectOutputStream out = new ObjectOutputStream(bytes))
+      {
+        out.writeObject(value);
+        out.flush();
+        return bytes.toByteArray();
+      }
+      catch (IOException e)
+      {
+        throw new EntityException("Cannot encode a value of "
+            + value.getClass().getName() + " in an entity record.", e);
+      }
+    }
+
+    private Object deserialize(byte[] bytes)
+    {
+      try (ObjectInputStream in = new ObjectInputStream(
+          new ByteArrayInputStream(bytes)))
+      {
+        return in.readObject();
+      }
+      catch (IOException | ClassNotFoundException e)
+      {
+        throw new EntityException("Cannot decode an entity record.", e);
+      }
+    }
+
+    /**
+     * Compiles a setter into a BiConsumer, falling back to reflection if
+     * the setter cannot be compiled.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> BiConsumer<T, Object> compileSetter(Method method)
+    {
+      try
+      {
+        final MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(
+            method.getDeclaringClass(), MethodHandles.lookup());
+        final MethodHandle handle = lookup.unreflect(method);
+        final CallSite site = LambdaMetafactory.metafactory(lookup, "accept",
+            MethodType.methodType(BiConsumer.class),
+            MethodType.methodType(void.class, Object.class, Object.class),
+            handle, handle.type().wrap().changeReturnType(void.class));
+        return (BiConsumer<T, Object>)site.getTarget().invoke();
+      }
+      catch (Throwable t)
+      {
+        return (object, value) -> {
+          try
+          {
+            method.invoke(object, value);
+          }
+          catch (IllegalAccessException | InvocationTargetException e)
+          {
+            throw new EntityException("Cannot invoke " + method.getName(), e);
+          }
+        };
+      }
+    }
+  }
+
+}   // End EntityRecordCodec.
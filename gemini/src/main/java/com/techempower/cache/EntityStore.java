@@ -27,9 +27,14 @@
 
 package com.techempower.cache;
 
+import java.io.*;
 import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import org.reflections.*;
 import org.slf4j.*;
 import com.google.common.primitives.*;
@@ -40,13 +45,17 @@ import com.techempower.collection.*;
 import com.techempower.data.*;
 import com.techempower.data.EntityGroup.*;
 import com.techempower.data.annotation.*;
+import com.techempower.gemini.*;
 import com.techempower.gemini.cluster.*;
 import com.techempower.gemini.configuration.*;
+import com.techempower.gemini.monitor.*;
 import com.techempower.helper.*;
 import com.techempower.reflect.*;
 import com.techempower.util.*;
 import gnu.trove.map.*;
 import gnu.trove.map.hash.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
 
 /**
  * This class serves as a storage manager for several entity groups and the
@@ -68,6 +77,40 @@ import gnu.trove.map.hash.*;
  * <li>EntityStore.CacheMethodValues - Cache the values of objects 
  * queried by reflection (in getObjectByMethod, etc.), which can improve the 
  * performance of future lookups at the cost of memory?  Default is no.</li>
+ * <li>EntityStore.SnapshotFile - A local file to which cached contents are
+ * written by {@link #writeSnapshot()} and from which they are restored when
+ * the store is initialized.  Default is none.</li>
+ * <li>EntityStore.SnapshotOnShutdown - Write a snapshot when the 
+ * application shuts down, if a snapshot file is configured?  Default is 
+ * yes.</li>
+ * <li>EntityStore.RelationWriteDelay - Milliseconds for which write-behind
+ * relations gather changes before writing them.  Default is 100.</li>
+ * <li>EntityStore.RelationWriteBatchSize - The number of queued changes
+ * that are written immediately, and the JDBC batch size.  Default is 
+ * 500.</li>
+ * <li>EntityStore.RelationWriteThreads - Threads that write changes for 
+ * write-behind relations.  Default is 1.</li>
+ * <li>EntityStore.InsertBatchRows - The most rows written by a single
+ * multi-row INSERT when new MySQL or PostgreSQL entities are put together.
+ * 1 or less inserts them a row at a time.  Default is 500.</li>
+ * <li>EntityStore.InsertBatchBytes - The approximate size, in bytes, of 
+ * the values above which a multi-row INSERT is split, to stay within the
+ * database's packet limit.  Default is 1048576.</li>
+ * <li>EntityStore.GenerateRowMappers - Generate code that sets the fields
+ * of entities read from the database, rather than setting each field 
+ * reflectively?  Default is yes.</li>
+ * <li>EntityStore.StreamFetchSize - The number of rows fetched at a time
+ * by the Streams returned from EntityGroup.stream.  Default is 1000.</li>
+ * <li>EntityStore.BulkFetchChunkSize - The most ids fetched by a single
+ * query when entities are fetched by a list of ids.  Default is 1024.</li>
+ * <li>EntityStore.BulkFetchThreads - Threads that fetch the chunks of a 
+ * long list of ids in parallel, each on its own connection.  Note that the
+ * chunks are then read outside of any transaction held by the calling 
+ * thread.  Default is 1, meaning chunks are fetched in sequence by the 
+ * calling thread.</li>
+ * <li>EntityStore.BulkFetchTemporaryTableThreshold - The number of ids at
+ * which MySQL and SQL Server are given the ids in a temporary table rather
+ * than in IN lists.  Default is 0, meaning never.</li>
  * </ul>
  */
 public class EntityStore
@@ -83,6 +126,17 @@ public class EntityStore
   private static final int        INITIAL_GROUPS_SIZE = 20;
   private static final String     ERROR_METHOD_ACCESS = "Method cannot be accessed: ";
   private static final String     ERROR_FIELD_ACCESS = "Field cannot be accessed: ";
+  private static final int        DEFAULT_WARM_UP_THREADS    = 4;
+  private static final long       DEFAULT_WARM_UP_SPLIT_ROWS = 250_000L;
+  private static final int        DEFAULT_WARM_UP_FETCH_SIZE = 1_000;
+  private static final int        DEFAULT_REBUILD_THREADS    = 2;
+  private static final long       DEFAULT_RELATION_WRITE_DELAY = 100L;
+  private static final int        DEFAULT_RELATION_WRITE_THREADS = 1;
+  private static final int        DEFAULT_RELATION_WRITE_BATCH_SIZE = 500;
+  private static final int        DEFAULT_BULK_FETCH_CHUNK_SIZE = 1024;
+  private static final int        DEFAULT_STREAM_FETCH_SIZE = 1000;
+  private static final int        DEFAULT_INSERT_BATCH_ROWS = 500;
+  private static final long       DEFAULT_INSERT_BATCH_BYTES = 1024L * 1024L;
 
   //
   // Member variables.
@@ -109,6 +163,79 @@ public class EntityStore
    */
   private boolean         useAffectedRows   = false;
 
+  /**
+   * Whether to load all CacheGroups in parallel when the EntityStore is
+   * initialized, rather than lazily on first use, and the parameters of
+   * that warm-up.  See {@link #warmUp()}.
+   */
+  private boolean         warmUp              = false;
+  private int             warmUpThreads       = DEFAULT_WARM_UP_THREADS;
+  private long            warmUpSplitRows     = DEFAULT_WARM_UP_SPLIT_ROWS;
+  private int             warmUpFetchSize     = DEFAULT_WARM_UP_FETCH_SIZE;
+
+  /**
+   * The number of threads used to rebuild groups reset in the background,
+   * and the executor that provides them, created on first use.
+   */
+  private int             rebuildThreads      = DEFAULT_REBUILD_THREADS;
+  private ExecutorService rebuildExecutor     = null;
+
+  /**
+   * How long write-behind relations gather changes before writing them, 
+   * the number of changes that triggers an immediate write and the size of
+   * each JDBC batch, and the threads that write them, created on first 
+   * use.  See {@link CachedRelationWriter}.
+   */
+  private long            relationWriteDelay     = DEFAULT_RELATION_WRITE_DELAY;
+  private int             relationWriteThreads   = DEFAULT_RELATION_WRITE_THREADS;
+  private int             relationWriteBatchSize = DEFAULT_RELATION_WRITE_BATCH_SIZE;
+  private ScheduledExecutorService relationWriteExecutor = null;
+
+  /**
+   * The most ids fetched by one query, the threads that fetch chunks of ids 
+   * in parallel, created on first use, and the number of ids at which a 
+   * temporary table is used instead.  See {@link EntityGroup#map(Collection)}.
+   */
+  private int             bulkFetchChunkSize  = DEFAULT_BULK_FETCH_CHUNK_SIZE;
+  private int             bulkFetchThreads    = 1;
+  private int             bulkFetchTemporaryTableThreshold = 0;
+  private ExecutorService bulkFetchExecutor   = null;
+
+  /**
+   * The fetch size of the cursors behind EntityGroup streams.  See
+   * {@link EntityGroup#stream(String, Object...)}.
+   */
+  private int             streamFetchSize     = DEFAULT_STREAM_FETCH_SIZE;
+
+  /**
+   * Whether EntityGroups generate code to make entities from result sets.
+   * See {@link com.techempower.data.mapping.RowMapperGenerator}.
+   */
+  private boolean         generateRowMappers  = true;
+
+  /**
+   * This instance's cluster node id, which distinguishes its version stamps
+   * from those of other instances, or -1 until the cache message transport
+   * assigns one.  See {@link EntityVersions}.
+   */
+  private volatile int    versionNode         = -1;
+
+  /**
+   * The most rows, and approximate bytes of values, written by a single
+   * multi-row INSERT.  See {@link EntityGroup#putAll(Collection)}.
+   */
+  private int             insertBatchRows     = DEFAULT_INSERT_BATCH_ROWS;
+  private long            insertBatchBytes    = DEFAULT_INSERT_BATCH_BYTES;
+
+  /**
+   * The file to which snapshots of cached contents are written and from 
+   * which they are restored, or null if snapshots are not in use, and 
+   * whether a snapshot is written at shutdown.  See {@link #writeSnapshot()}.
+   */
+  private Path            snapshotFile        = null;
+  private boolean         snapshotOnShutdown  = true;
+  private boolean         shutdown            = false;
+
   /**
    * The registered method value caches.  These allow you to quickly find 
    * entities by the value of a given field.
@@ -151,6 +278,12 @@ public class EntityStore
    */
   private final Map<Class<? extends Identifiable>, Boolean> indexedAnnotatedClasses = new HashMap<>();
 
+  /**
+   * Keeps track of the methods that are annotated with 
+   * @Indexed(ordered = true).
+   */
+  private final Map<Class<? extends Identifiable>, Set<String>> orderedIndexedMethods = new HashMap<>();
+
   /**
    * The type adapters used by entity groups in this cache.  These allow
    * non-standard data entity field types to be stored in the database.
@@ -214,6 +347,33 @@ public class EntityStore
       log.warn("EntityStore.UseAffectedRows is enabled, which REQUIRES that the database connection be configured so update statements return the count of affected rows. If unsure, disable this.");
     }
 
+    // Optionally load CacheGroups in parallel during initialization.
+    warmUp            = props.getBoolean("EntityStore.WarmUp", warmUp);
+    warmUpThreads     = props.getInt("EntityStore.WarmUpThreads", warmUpThreads);
+    warmUpSplitRows   = props.getLong("EntityStore.WarmUpSplitRows", warmUpSplitRows);
+    warmUpFetchSize   = props.getInt("EntityStore.WarmUpFetchSize", warmUpFetchSize);
+    rebuildThreads    = props.getInt("EntityStore.RebuildThreads", rebuildThreads);
+
+    // Write-behind relations.
+    relationWriteDelay     = props.getLong("EntityStore.RelationWriteDelay", relationWriteDelay);
+    relationWriteThreads   = props.getInt("EntityStore.RelationWriteThreads", relationWriteThreads);
+    relationWriteBatchSize = props.getInt("EntityStore.RelationWriteBatchSize", relationWriteBatchSize);
+
+    // Fetching entities by lists of ids.
+    bulkFetchChunkSize = props.getInt("EntityStore.BulkFetchChunkSize", bulkFetchChunkSize);
+    bulkFetchThreads   = props.getInt("EntityStore.BulkFetchThreads", bulkFetchThreads);
+    bulkFetchTemporaryTableThreshold = props.getInt(
+        "EntityStore.BulkFetchTemporaryTableThreshold", bulkFetchTemporaryTableThreshold);
+    streamFetchSize    = props.getInt("EntityStore.StreamFetchSize", streamFetchSize);
+    generateRowMappers = props.getBoolean("EntityStore.GenerateRowMappers", generateRowMappers);
+    insertBatchRows    = props.getInt("EntityStore.InsertBatchRows", insertBatchRows);
+    insertBatchBytes   = props.getLong("EntityStore.InsertBatchBytes", insertBatchBytes);
+
+    // Optionally snapshot cached contents to local disk.
+    final String snapshot = props.get("EntityStore.SnapshotFile", "");
+    snapshotFile      = StringHelper.isNonEmpty(snapshot) ? Paths.get(snapshot) : null;
+    snapshotOnShutdown = props.getBoolean("EntityStore.SnapshotOnShutdown", snapshotOnShutdown);
+
     methodValueCaches = new HashMap<>();
     
     // This should only happen when the application is reconfigured.
@@ -276,6 +436,28 @@ public class EntityStore
     }
   }
 
+  /**
+   * Are we caching this method's values in order?  This is true if the 
+   * method is annotated with {@code @Indexed(ordered = true)}.
+   */
+  protected <T extends Identifiable> boolean isOrderedIndexed(Class<T> type, String methodName)
+  {
+    final Set<String> ordered = orderedIndexedMethods.get(type);
+    return ordered != null 
+        && ordered.contains(methodName)
+        && isIndexed(type, methodName);
+  }
+
+  /**
+   * Gets the method value cache for the provided class, or null if there is
+   * none.
+   */
+  @SuppressWarnings("unchecked")
+  protected <T extends Identifiable> MethodValueCache<T> getMethodValueCache(Class<T> type)
+  {
+    return (MethodValueCache<T>)methodValueCaches.get(type);
+  }
+
   /**
    * Whether the provided class uses the @Indexed annotation and therefore uses
    * the method value cache.
@@ -335,10 +517,10 @@ public class EntityStore
   {
     log.debug("Full reset.");
 
-    // Reset entity groups.
+    // Reset entity groups and their method value caches.
     for (EntityGroup<?> group : groups.values())
     {
-      group.reset();
+      resetGroup(group, isBackgroundReset(group));
     }
 
     // Reset relations.
@@ -346,12 +528,6 @@ public class EntityStore
     {
       relation.reset(notifyListeners, notifyDistributionListeners);
     }
-    
-    // Reset method value cache.
-    for (MethodValueCache<?> methodValueCache : methodValueCaches.values())
-    {
-      methodValueCache.reset();
-    }
 
     // Notify the listeners of the full reset only.  We do not call
     // cacheTypeReset for each entity type.
@@ -374,7 +550,9 @@ public class EntityStore
   }
 
   /**
-   * Reset the entity group specified by the type id.
+   * Reset the entity group specified by the type id.  The group is rebuilt
+   * in the background if it was configured to be; see 
+   * {@link CacheGroup.Builder#backgroundReset(boolean)}.
    *
    * @param type the object type of the entity group to be reset.
    * @param notifyListeners Should CacheListeners be notified of this reset?
@@ -384,22 +562,37 @@ public class EntityStore
   public <T extends Identifiable> void reset(Class<T> type, 
       boolean notifyListeners, 
       boolean notifyDistributionListeners)
+  {
+    reset(type, notifyListeners, notifyDistributionListeners, 
+        isBackgroundReset(groups.get(type)));
+  }
+
+  /**
+   * Reset the entity group specified by the type id.
+   *
+   * @param type the object type of the entity group to be reset.
+   * @param notifyListeners Should CacheListeners be notified of this reset?
+   * @param notifyDistributionListeners Whether to notify any
+   *        DistributionListeners; only used When notifyListeners is true.
+   * @param background Whether to keep serving the group's current contents
+   *        while a replacement is loaded on a background thread, rather 
+   *        than clearing the group and loading it on next use.  Only
+   *        applies to CacheGroups.  See {@link CacheGroup#rebuild}.
+   */
+  public <T extends Identifiable> void reset(Class<T> type, 
+      boolean notifyListeners, 
+      boolean notifyDistributionListeners,
+      boolean background)
   {
     for (CachingEntityRelation<?,?> relation : cachedRelations)
     {
       relation.reset(type, notifyListeners, notifyListeners);
     }
     
-    final MethodValueCache<?> methodValueCache = methodValueCaches.get(type);
-    if (methodValueCache != null)
-    {
-      methodValueCache.reset();
-    }
-
     final EntityGroup<?> group = groups.get(type);
     if (group != null)
     {
-      group.reset();
+      resetGroup(group, background);
 
       if (notifyListeners)
       {
@@ -417,6 +610,211 @@ public class EntityStore
     }
   }
 
+  /**
+   * Resets a group along with its method value cache.  A background reset
+   * rebuilds a CacheGroup on the rebuild executor and resets the method
+   * value cache once the replacement contents have been installed.
+   */
+  private void resetGroup(EntityGroup<?> group, boolean background)
+  {
+    final MethodValueCache<?> methodValueCache = methodValueCaches.get(group.type());
+    if (background && group instanceof CacheGroup)
+    {
+      ((CacheGroup<?>)group).rebuild(getRebuildExecutor()).whenComplete(
+          (statistics, exc) -> {
+            if (methodValueCache != null)
+            {
+              methodValueCache.reset();
+            }
+            if (exc != null)
+            {
+              log.error("Background rebuild of {} failed.", group.name(), exc);
+            }
+            else if (statistics != null)
+            {
+              log.info("{}", statistics);
+              reportCacheLoad(statistics);
+            }
+          });
+    }
+    else
+    {
+      if (methodValueCache != null)
+      {
+        methodValueCache.reset();
+      }
+      group.reset();
+    }
+  }
+
+  /**
+   * Whether a group is configured to be rebuilt in the background when
+   * reset.
+   */
+  private boolean isBackgroundReset(EntityGroup<?> group)
+  {
+    return (group instanceof CacheGroup) 
+        && ((CacheGroup<?>)group).isBackgroundReset();
+  }
+
+  /**
+   * Gets the executor used for background rebuilds, creating it if 
+   * necessary.
+   */
+  private synchronized ExecutorService getRebuildExecutor()
+  {
+    if (rebuildExecutor == null)
+    {
+      rebuildExecutor = Executors.newFixedThreadPool(Math.max(1, rebuildThreads),
+          daemonThreadFactory("EntityStore rebuild"));
+    }
+    return rebuildExecutor;
+  }
+
+  /**
+   * Gets the executor on which write-behind relations write their changes,
+   * creating it on first use.
+   */
+  protected synchronized ScheduledExecutorService getRelationWriteExecutor()
+  {
+    if (relationWriteExecutor == null)
+    {
+      relationWriteExecutor = Executors.newScheduledThreadPool(
+          Math.max(1, relationWriteThreads),
+          daemonThreadFactory("EntityStore relation writer"));
+    }
+    return relationWriteExecutor;
+  }
+
+  /**
+   * Gets how long, in milliseconds, write-behind relations gather changes
+   * before writing them.
+   */
+  protected long getRelationWriteDelay()
+  {
+    return relationWriteDelay;
+  }
+
+  /**
+   * Gets the number of queued changes at which a write-behind relation 
+   * writes immediately, which is also the size of its JDBC batches.
+   */
+  protected int getRelationWriteBatchSize()
+  {
+    return relationWriteBatchSize;
+  }
+
+  /**
+   * Gets the most ids that an EntityGroup fetches with a single query.
+   */
+  public int getBulkFetchChunkSize()
+  {
+    return bulkFetchChunkSize;
+  }
+
+  /**
+   * Gets the most rows that an EntityGroup writes with a single multi-row
+   * INSERT.  A value of 1 or less means rows are inserted one at a time.
+   */
+  public int getInsertBatchRows()
+  {
+    return insertBatchRows;
+  }
+
+  /**
+   * Gets the approximate size, in bytes, of the values above which an 
+   * EntityGroup splits a multi-row INSERT.
+   */
+  public long getInsertBatchBytes()
+  {
+    return insertBatchBytes;
+  }
+
+  /**
+   * Gets this instance's cluster node id, or -1 if none has been assigned.
+   */
+  public int getVersionNode()
+  {
+    return versionNode;
+  }
+
+  /**
+   * Sets this instance's cluster node id, which must differ from that of
+   * every other instance.  Called by the cache message transport as it
+   * starts, from the cluster identity it is configured with.
+   */
+  public void setVersionNode(int versionNode)
+  {
+    if (versionNode < 0 || versionNode >= EntityVersions.NODE_COUNT)
+    {
+      throw new IllegalArgumentException("Cluster node id must be between 0 and "
+          + (EntityVersions.NODE_COUNT - 1) + ", not " + versionNode);
+    }
+    this.versionNode = versionNode;
+  }
+
+  /**
+   * Do EntityGroups generate code to set the fields of entities read from
+   * the database?
+   */
+  public boolean isGeneratingRowMappers()
+  {
+    return generateRowMappers;
+  }
+
+  /**
+   * Gets the number of rows fetched at a time by the cursors behind 
+   * EntityGroup streams.
+   */
+  public int getStreamFetchSize()
+  {
+    return streamFetchSize;
+  }
+
+  /**
+   * Gets the number of ids at which an EntityGroup fetches entities by 
+   * way of a temporary table of the ids, where the database 
+   * supports it, or 0 if temporary tables are not to be used.
+   */
+  public int getBulkFetchTemporaryTableThreshold()
+  {
+    return bulkFetchTemporaryTableThreshold;
+  }
+
+  /**
+   * Gets the executor on which an EntityGroup fetches the chunks of a long
+   * list of ids in parallel, creating it on first use, or null if chunks 
+   * are to be fetched in sequence.
+   */
+  public synchronized ExecutorService getBulkFetchExecutor()
+  {
+    if (bulkFetchThreads <= 1)
+    {
+      return null;
+    }
+    if (bulkFetchExecutor == null)
+    {
+      bulkFetchExecutor = Executors.newFixedThreadPool(bulkFetchThreads,
+          daemonThreadFactory("EntityStore bulk fetch"));
+    }
+    return bulkFetchExecutor;
+  }
+
+  /**
+   * Writes the changes queued by all write-behind relations and waits for
+   * them to complete.
+   */
+  public void flushRelations()
+  {
+    for (CachingEntityRelation<?, ?> relation : getCachedRelations())
+    {
+      if (relation instanceof CachedRelation)
+      {
+        ((CachedRelation<?, ?>)relation).flush();
+      }
+    }
+  }
+
   /**
    * Adds a CacheListener to be notified of cache events.
    */
@@ -523,12 +921,17 @@ public class EntityStore
   protected <T extends Identifiable> void collectIndexedMethodAnnotations(EntityGroup<T> group)
   {
     indexedAnnotatedMethods.put(group.type(), new HashMap<String, Boolean>());
+    orderedIndexedMethods.put(group.type(), new HashSet<String>());
     
     for (Method method : group.type().getMethods())
     {
       if (method.isAnnotationPresent(Indexed.class))
       {
         indexedAnnotatedMethods.get(group.type()).put(method.getName(), true);
+        if (method.getAnnotation(Indexed.class).ordered())
+        {
+          orderedIndexedMethods.get(group.type()).add(method.getName());
+        }
       }
       else if (method.getAnnotation(NotIndexed.class) != null)
       {
@@ -623,21 +1026,277 @@ public class EntityStore
     }
     catch (InterruptedException iexc)
     {
-      log.error("Preinitialization interrupted.", iexc);
+      log.error("Preinitialization interrupted.", iexc);
+    }
+    
+    // Throw an exception if Reflections is not ready.
+    if (reflections == null)
+    {
+      throw new ConfigurationError("Reflections not ready; application cannot start.");
+    }
+    
+    // The default behavior is to search com.techempower and the package of 
+    // the main application for any cache annotations and auto register any 
+    // entity types found.
+    register();
+    
+    if (snapshotFile != null)
+    {
+      restoreSnapshot();
+    }
+    if (warmUp)
+    {
+      warmUp();
+    }
+
+    initialized = true;
+  }
+
+  /**
+   * Loads every registered CacheGroup that has not yet been initialized,
+   * in parallel, using the configured number of threads (and therefore at
+   * most that many database connections at once).  Each group's rows are
+   * streamed into its storage; tables larger than 
+   * EntityStore.WarmUpSplitRows are split into id ranges read concurrently.
+   * Blocks until all loads complete.  Load time and row rate for each
+   * group are logged and reported to the application's GeminiMonitor when
+   * one is present.  A group that fails to load is logged and left to
+   * initialize lazily on first use.
+   *
+   * @return the statistics for each group that was loaded.
+   */
+  public List<CacheLoadStatistics> warmUp()
+  {
+    final List<CacheGroup<?>> toLoad = new ArrayList<>();
+    for (EntityGroup<?> group : groups.values())
+    {
+      if (group instanceof CacheGroup && !((CacheGroup<?>)group).isInitialized())
+      {
+        toLoad.add((CacheGroup<?>)group);
+      }
+    }
+    final List<CacheLoadStatistics> result = new ArrayList<>(toLoad.size());
+    if (toLoad.isEmpty())
+    {
+      return result;
+    }
+
+    final int threads = Math.max(1, warmUpThreads);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads,
+        daemonThreadFactory("EntityStore warm-up"));
+    log.info("Warming {} cache groups using {} threads.", toLoad.size(), threads);
+    final long start = System.nanoTime();
+    try
+    {
+      final List<CompletableFuture<CacheLoadStatistics>> loads = new ArrayList<>(toLoad.size());
+      for (CacheGroup<?> group : toLoad)
+      {
+        loads.add(group.warmUp(executor, warmUpSplitRows, threads, warmUpFetchSize));
+      }
+      for (int i = 0; i < loads.size(); i++)
+      {
+        try
+        {
+          final CacheLoadStatistics statistics = loads.get(i).get();
+          log.info("{}", statistics);
+          reportCacheLoad(statistics);
+          result.add(statistics);
+        }
+        catch (ExecutionException exc)
+        {
+          log.error("Warm-up of {} failed; it will be loaded on first use.",
+              toLoad.get(i).name(), exc.getCause());
+        }
+      }
+    }
+    catch (InterruptedException iexc)
+    {
+      log.error("Warm-up interrupted.", iexc);
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+    log.info("Warm-up complete in {}ms.", 
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return result;
+  }
+
+  /**
+   * Writes a snapshot of every initialized CacheGroup that has a delta 
+   * column to the file configured as EntityStore.SnapshotFile, replacing
+   * the previous snapshot.  See {@link CacheSnapshot}.  Does nothing if no
+   * snapshot file is configured.
+   *
+   * @return the number of groups written.
+   */
+  public int writeSnapshot()
+  {
+    final Path file = snapshotFile;
+    if (file == null)
+    {
+      return 0;
+    }
+    final List<CacheGroup<?>> toWrite = new ArrayList<>();
+    for (EntityGroup<?> group : groups.values())
+    {
+      if (group instanceof CacheGroup)
+      {
+        toWrite.add((CacheGroup<?>)group);
+      }
+    }
+
+    final long start = System.nanoTime();
+    try
+    {
+      final int written = CacheSnapshot.write(file, toWrite);
+      log.info("Wrote {} groups to snapshot {} in {}ms.", 
+          written, file, 
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return written;
+    }
+    catch (IOException exc)
+    {
+      log.error("Unable to write snapshot {}.", file, exc);
+      return 0;
+    }
+  }
+
+  /**
+   * Restores CacheGroups that are not yet initialized from the snapshot 
+   * file configured as EntityStore.SnapshotFile, if one exists, reconciling
+   * each with the database as it is restored (see 
+   * {@link CacheGroup#restoreSnapshot}).  Anything that cannot be restored
+   * is left to load from the database as usual, as are all 
+   * CachedRelations.  Called when the store is initialized.
+   *
+   * @return the number of groups restored.
+   */
+  public int restoreSnapshot()
+  {
+    final Path file = snapshotFile;
+    if (file == null || !Files.isReadable(file))
+    {
+      return 0;
+    }
+    final CacheSnapshot snapshot;
+    try
+    {
+      snapshot = CacheSnapshot.open(file);
+    }
+    catch (IOException | RuntimeException exc)
+    {
+      log.warn("Unable to open snapshot {}; ignoring it.", file, exc);
+      return 0;
+    }
+
+    log.info("Restoring {} groups from snapshot {}.", 
+        snapshot.size(), file);
+    int restored = 0;
+    for (EntityGroup<?> group : groups.values())
+    {
+      if (group instanceof CacheGroup && !((CacheGroup<?>)group).isInitialized())
+      {
+        final ByteBuffer contents = snapshot.group((CacheGroup<?>)group);
+        if (contents != null)
+        {
+          try
+          {
+            final CacheLoadStatistics statistics = 
+                ((CacheGroup<?>)group).restoreSnapshot(contents);
+            if (statistics != null)
+            {
+              log.info("{} (from snapshot)", statistics);
+              reportCacheLoad(statistics);
+              restored++;
+            }
+          }
+          catch (RuntimeException exc)
+          {
+            log.warn("Unable to restore {} from snapshot; it will be loaded from the database.",
+                group.name(), exc);
+          }
+        }
+      }
+    }
+    return restored;
+  }
+
+  /**
+   * Called when the application shuts down.  Writes the changes queued by
+   * write-behind relations, then writes a snapshot if a snapshot file is 
+   * configured and EntityStore.SnapshotOnShutdown is 
+   * enabled, and finally stops the threads that rebuild groups, write
+   * relations and fetch in bulk.  Shutdown tasks may run more than once, so only the first call
+   * has any effect.
+   */
+  public void shutdown()
+  {
+    synchronized (this)
+    {
+      if (shutdown)
+      {
+        return;
+      }
+      shutdown = true;
+    }
+    flushRelations();
+    if (snapshotOnShutdown)
+    {
+      writeSnapshot();
+    }
+    shutdownExecutors();
+  }
+
+  /**
+   * Shuts down the executors created on first use, so that their threads
+   * do not outlive the application.
+   */
+  private synchronized void shutdownExecutors()
+  {
+    for (ExecutorService executor : new ExecutorService[] { 
+        rebuildExecutor, relationWriteExecutor, bulkFetchExecutor })
+    {
+      if (executor != null)
+      {
+        executor.shutdownNow();
+      }
     }
-    
-    // Throw an exception if Reflections is not ready.
-    if (reflections == null)
+    rebuildExecutor = null;
+    relationWriteExecutor = null;
+    bulkFetchExecutor = null;
+  }
+
+  /**
+   * Creates a ThreadFactory for daemon threads named with the given prefix
+   * and a count.
+   */
+  private static ThreadFactory daemonThreadFactory(String prefix)
+  {
+    final AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      final Thread thread = new Thread(runnable, 
+          prefix + " " + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Reports cache load statistics to the application's GeminiMonitor, if
+   * the application is a Gemini application with a monitor.
+   */
+  protected void reportCacheLoad(CacheLoadStatistics statistics)
+  {
+    if (application instanceof GeminiApplication)
     {
-      throw new ConfigurationError("Reflections not ready; application cannot start.");
+      final GeminiMonitor monitor = ((GeminiApplication)application).getMonitor();
+      if (monitor != null)
+      {
+        monitor.cacheLoaded(statistics);
+      }
     }
-    
-    // The default behavior is to search com.techempower and the package of 
-    // the main application for any cache annotations and auto register any 
-    // entity types found.
-    register();
-    
-    initialized = true;
   }
 
   /**
@@ -1025,6 +1684,7 @@ public class EntityStore
     }
     
     Method method = null;
+    Predicate<Object> matches = null;
     final List<T> list = list(type);
 
     try
@@ -1035,12 +1695,13 @@ public class EntityStore
         if (method == null)
         {
           method = object.getClass().getMethod(methodName, NO_PARAMETERS);
+          matches = MethodIndex.equalTo(value, method.getReturnType());
         }
 
         // Check the value of the field within this object.
         final Object objValue = method.invoke(object, NO_VALUES);
         
-        if (Objects.equals(value, objValue))
+        if (matches.test(objValue))
         {
           return object;
         }
@@ -1055,6 +1716,327 @@ public class EntityStore
     return null;
   }
 
+  /**
+   * Creates a query over the entities of the given type.  For example:
+   * <pre>
+   * store.query(User.class)
+   *     .where("getCompanyId", 5)
+   *     .and("isEnabled", true)
+   *     .orderBy("getName")
+   *     .limit(20)
+   *     .list();
+   * </pre>
+   * Criteria on indexed methods are resolved from the method value cache 
+   * before any entities are examined.  See {@link EntityQuery}.
+   */
+  public <T extends Identifiable> EntityQuery<T> query(Class<T> type)
+  {
+    // Fail fast if the type is not registered.
+    getGroupSafe(type);
+    return new EntityQuery<>(this, type);
+  }
+
+  /**
+   * Return the objects contained in the entity group for which the given
+   * method returns a value between from and to, inclusive, in the order of
+   * those values.  If the method has an ordered index (see 
+   * {@link Indexed#ordered()}), this runs in O(log n + k); otherwise the 
+   * entity group is scanned and sorted.
+   *
+   * @param methodName the no-argument method to call
+   * @param from the lower bound, or null for no lower bound
+   * @param to the upper bound, or null for no upper bound
+   */
+  public <T extends Identifiable> List<T> listRange(Class<T> type, 
+      String methodName, Object from, Object to)
+  {
+    return listRange(type, methodName, from, true, to, true, false, 
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * Return the objects contained in the entity group for which the given
+   * method returns a value within a range, in the order of those values.
+   * Entities with equal values are ordered by id.  Entities for which the
+   * method returns null are never included.  If the method has an ordered
+   * index (see {@link Indexed#ordered()}), this runs in O(log n + k); 
+   * otherwise the entity group is scanned and sorted.
+   *
+   * @param methodName the no-argument method to call
+   * @param from the lower bound, or null for no lower bound
+   * @param fromInclusive whether the lower bound is inclusive
+   * @param to the upper bound, or null for no upper bound
+   * @param toInclusive whether the upper bound is inclusive
+   * @param descending whether to return the highest values first
+   * @param limit the maximum number of objects to return
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Identifiable> List<T> listRange(Class<T> type, 
+      String methodName, Object from, boolean fromInclusive, Object to, 
+      boolean toInclusive, boolean descending, int limit)
+  {
+    if (isOrderedIndexed(type, methodName))
+    {
+      MethodValueCache<T> methodValueCache = (MethodValueCache<T>)methodValueCaches.get(type);
+      if (methodValueCache != null)
+      {
+        return methodValueCache.getRange(methodName, from, fromInclusive, 
+            to, toInclusive, descending, limit);
+      }
+    }
+
+    // Convert the bounds as an index would, e.g. an Integer bound for a
+    // long-returning method.
+    final Object lower;
+    final Object upper;
+    try
+    {
+      final Class<?> valueType = type.getMethod(methodName, NO_PARAMETERS).getReturnType();
+      lower = MethodIndex.bound(from, valueType);
+      upper = MethodIndex.bound(to, valueType);
+    }
+    catch (NoSuchMethodException | SecurityException e)
+    {
+      throw new ControllerError(ERROR_METHOD_ACCESS + methodName, e);
+    }
+    return scanOrdered(type, methodName, value -> 
+        (lower == null || compare(value, lower) > (fromInclusive ? -1 : 0))
+            && (upper == null || compare(value, upper) < (toInclusive ? 1 : 0)),
+        descending, limit);
+  }
+
+  /**
+   * Return the objects contained in the entity group for which the given
+   * String-returning method returns a value starting with the given prefix,
+   * in the order of those values.  If the method has an ordered index (see
+   * {@link Indexed#ordered()}), this runs in O(log n + k); otherwise the 
+   * entity group is scanned and sorted.
+   *
+   * @param methodName the no-argument method to call
+   * @param prefix the prefix on which to search
+   * @param limit the maximum number of objects to return
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Identifiable> List<T> listPrefix(Class<T> type, 
+      String methodName, String prefix, int limit)
+  {
+    if (isOrderedIndexed(type, methodName))
+    {
+      MethodValueCache<T> methodValueCache = (MethodValueCache<T>)methodValueCaches.get(type);
+      if (methodValueCache != null)
+      {
+        return methodValueCache.getPrefix(methodName, prefix, limit);
+      }
+    }
+
+    // Refuse methods that cannot return Strings, as an index would.
+    final Class<?> valueType;
+    try
+    {
+      valueType = type.getMethod(methodName, NO_PARAMETERS).getReturnType();
+    }
+    catch (NoSuchMethodException | SecurityException e)
+    {
+      throw new ControllerError(ERROR_METHOD_ACCESS + methodName, e);
+    }
+    if (!valueType.isAssignableFrom(String.class))
+    {
+      throw new UnsupportedOperationException("Method " + methodName
+          + " does not return String values.");
+    }
+    return scanOrdered(type, methodName, 
+        value -> value instanceof String && ((String)value).startsWith(prefix), 
+        false, limit);
+  }
+
+  /**
+   * Return the objects contained in the entity group with the highest 
+   * values for the given method, highest first.  If the method has an 
+   * ordered index (see {@link Indexed#ordered()}), this runs in 
+   * O(log n + k); otherwise the entity group is scanned and sorted.
+   *
+   * @param methodName the no-argument method to call
+   * @param count the number of objects to return
+   */
+  public <T extends Identifiable> List<T> listTop(Class<T> type, 
+      String methodName, int count)
+  {
+    return listRange(type, methodName, null, true, null, true, true, count);
+  }
+
+  /**
+   * Compares two values of an ordered method.
+   */
+  @SuppressWarnings("unchecked")
+  private static int compare(Object value, Object bound)
+  {
+    return ((Comparable<Object>)value).compareTo(bound);
+  }
+
+  /**
+   * Scans an entity group for objects whose non-null values for a method 
+   * satisfy a filter, and returns them in the order of those values.
+   */
+  private <T extends Identifiable> List<T> scanOrdered(Class<T> type, 
+      String methodName, Predicate<Object> filter, 
+      boolean descending, int limit)
+  {
+    final List<Object[]> matches = new ArrayList<>();
+    try
+    {
+      final Method method = type.getMethod(methodName, NO_PARAMETERS);
+      for (T object : list(type))
+      {
+        final Object value = method.invoke(object, NO_VALUES);
+        if (value != null && filter.test(value))
+        {
+          matches.add(new Object[] { value, object });
+        }
+      }
+    }
+    catch (NoSuchMethodException | SecurityException | IllegalAccessException | InvocationTargetException e)
+    {
+      throw new ControllerError(ERROR_METHOD_ACCESS + methodName, e);
+    }
+
+    Comparator<Object[]> order = (first, second) -> {
+      final int result = compare(first[0], second[0]);
+      return (result != 0) 
+          ? result 
+          : Long.compare(((Identifiable)first[1]).getId(), ((Identifiable)second[1]).getId());
+    };
+    matches.sort(descending ? order.reversed() : order);
+
+    final List<T> toReturn = new ArrayList<>(Math.min(limit, matches.size()));
+    for (Object[] match : matches)
+    {
+      if (toReturn.size() >= limit)
+      {
+        break;
+      }
+      @SuppressWarnings("unchecked")
+      final T object = (T)match[1];
+      toReturn.add(object);
+    }
+    return toReturn;
+  }
+
+  /**
+   * Return a collection of objects contained in the entity group whose
+   * methods return the given values.  For example, if methodNames are
+   * "getCompanyId" and "isEnabled" and values are 5 and true, the objects
+   * returned are those for which getCompanyId() returns 5 and isEnabled()
+   * returns true.  If all of the methods are indexed, a composite index of
+   * the methods is used; otherwise the entity group is scanned.
+   *
+   * @param methodNames the no-argument methods to call
+   * @param values the values on which to search, in the same order
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Identifiable> List<T> list(Class<T> type, 
+      String[] methodNames, Object[] values)
+  {
+    if (isIndexed(type, methodNames, values))
+    {
+      MethodValueCache<T> methodValueCache = (MethodValueCache<T>)methodValueCaches.get(type);
+      if (methodValueCache != null)
+      {
+        return methodValueCache.getObjects(methodNames, values);
+      }
+    }
+
+    return scan(type, methodNames, values, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Return a particular object contained in the entity group whose methods
+   * return the given values.  Returns null if no such object is found.  If 
+   * all of the methods are indexed, a composite index of the methods is 
+   * used; otherwise the entity group is scanned.
+   *
+   * @param methodNames the no-argument methods to call
+   * @param values the values on which to search, in the same order
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Identifiable> T get(Class<T> type, String[] methodNames, 
+      Object[] values)
+  {
+    if (isIndexed(type, methodNames, values))
+    {
+      MethodValueCache<T> methodValueCache = (MethodValueCache<T>)methodValueCaches.get(type);
+      if (methodValueCache != null)
+      {
+        return methodValueCache.getObject(methodNames, values);
+      }
+    }
+
+    final List<T> found = scan(type, methodNames, values, 1);
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  /**
+   * Are we caching the values of all of these methods?  Also validates that
+   * a value is provided for each method.
+   */
+  private <T extends Identifiable> boolean isIndexed(Class<T> type, 
+      String[] methodNames, Object[] values)
+  {
+    if (methodNames.length == 0 || methodNames.length != values.length)
+    {
+      throw new IllegalArgumentException(
+          "A value must be provided for each of one or more methods.");
+    }
+    for (String methodName : methodNames)
+    {
+      if (!isIndexed(type, methodName))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Scans an entity group for objects whose methods return the given values,
+   * stopping after the given number of matches.
+   */
+  private <T extends Identifiable> List<T> scan(Class<T> type, 
+      String[] methodNames, Object[] values, int limit)
+  {
+    final List<T> toReturn = new ArrayList<>();
+    final Method[] methods = new Method[methodNames.length];
+    final List<Predicate<Object>> tests = new ArrayList<>(methodNames.length);
+    try
+    {
+      for (int i = 0; i < methodNames.length; i++)
+      {
+        methods[i] = type.getMethod(methodNames[i], NO_PARAMETERS);
+        tests.add(MethodIndex.equalTo(values[i], methods[i].getReturnType()));
+      }
+      for (T object : list(type))
+      {
+        boolean matches = true;
+        for (int i = 0; i < methods.length && matches; i++)
+        {
+          matches = tests.get(i).test(methods[i].invoke(object, NO_VALUES));
+        }
+        if (matches)
+        {
+          toReturn.add(object);
+          if (toReturn.size() >= limit)
+          {
+            break;
+          }
+        }
+      }
+    }
+    catch (NoSuchMethodException | SecurityException | IllegalAccessException | InvocationTargetException e)
+    {
+      throw new ControllerError(ERROR_METHOD_ACCESS + Arrays.toString(methodNames), e);
+    }
+    return toReturn;
+  }
+
   /**
    * Refreshes a single object in the cache.
    *
@@ -1071,6 +2053,36 @@ public class EntityStore
     notifyListenersCacheObjectExpired(true, type, ids);
   }
 
+  /**
+   * Refreshes the entities that have changed in the database since they
+   * were loaded, for every CacheGroup configured with a delta column.  See
+   * {@link CacheGroup#refreshChanged()}.  Method value caches are updated
+   * and local listeners notified, but DistributionListeners are not, since
+   * each peer is expected to perform its own delta refreshes.
+   *
+   * @return the number of entities refreshed.
+   */
+  public int refreshChanged()
+  {
+    int refreshed = 0;
+    for (EntityGroup<?> group : groups.values())
+    {
+      if (group instanceof CacheGroup 
+          && ((CacheGroup<?>)group).getDeltaColumn() != null)
+      {
+        final long[] ids = ((CacheGroup<?>)group).refreshChanged();
+        if (ids.length > 0)
+        {
+          methodValueCacheUpdate(group.type(), ids);
+          notifyListenersCacheObjectExpired(false, group.type(), ids);
+          refreshed += ids.length;
+          log.debug("Delta refresh of {}: {} entities.", group.name(), ids.length);
+        }
+      }
+    }
+    return refreshed;
+  }
+
   /**
    * CacheMessageManager needs this in order to notify listeners about specific
    * objects expiring.
@@ -1108,7 +2120,17 @@ public class EntityStore
       throw new ControllerError("Cannot put null entity.");
     }
     
-    int rowsUpdated = getGroupSafe((Class<T>)entity.getClass()).put(entity);
+    final EntityGroup<T> group = getGroupSafe((Class<T>)entity.getClass());
+    
+    // A ChangeTracked entity knows which of its fields have changed.  If none
+    // have, there is nothing to persist and nobody to tell.
+    final String[] changedFields = group.changedFields(entity);
+    if (changedFields != null && changedFields.length == 0)
+    {
+      return;
+    }
+    
+    int rowsUpdated = group.put(entity);
 
     // If useAffectedRows is enabled, then only update the methodValueCache and
     // notify the listeners if an actual change was persisted.
@@ -1121,7 +2143,8 @@ public class EntityStore
       final CacheListener[] toNotify = listeners;
       for (CacheListener listener : toNotify)
       {
-        listener.cacheObjectExpired(entity.getClass(), entity.getId());
+        listener.cacheObjectExpired(entity.getClass(), entity.getId(), 
+            changedFields);
       }
     }
   }
@@ -1300,9 +2323,22 @@ public class EntityStore
               lruBuilder.maximumSize(annotation.lruSize());
               builder = lruBuilder;
             }
+            else if (annotation.offHeap())
+            {
+              builder = OffHeapCacheGroup.of((Class<? extends Identifiable>)clazz)
+                  .backgroundReset(annotation.backgroundReset())
+                  .deltaColumn(annotation.deltaColumn().isEmpty() 
+                      ? null 
+                      : annotation.deltaColumn());
+            }
             else
             {
-              builder = CacheGroup.of((Class<? extends Identifiable>)clazz);
+              builder = CacheGroup.of((Class<? extends Identifiable>)clazz)
+                  .storage(annotation.storage())
+                  .backgroundReset(annotation.backgroundReset())
+                  .deltaColumn(annotation.deltaColumn().isEmpty() 
+                      ? null 
+                      : annotation.deltaColumn());
             }
             
             if (!annotation.table().isEmpty())
@@ -1400,6 +2436,14 @@ public class EntityStore
                 {
                   builder.rightColumn(rightAnnotation.column());
                 }
+                if (annotation.compact())
+                {
+                  builder.compact();
+                }
+                if (annotation.writeBehind())
+                {
+                  builder.writeBehind();
+                }
 
                 // Finally register the Relation
                 register(builder, clazz);
@@ -1505,6 +2549,101 @@ public class EntityStore
   {
     return new ArrayList<>(cachedRelations);
   }
+
+  /**
+   * Composes two relations into a read-only relation from the left values
+   * of the first to the right values of the second, for walking from one 
+   * relation to the next without building intermediate collections.
+   *
+   * @see ComposedRelation
+   */
+  public <L extends Identifiable, M extends Identifiable, R extends Identifiable>
+    ComposedRelation<L, M, R> compose(EntityRelation<L, M> first, 
+        EntityRelation<M, R> second)
+  {
+    Objects.requireNonNull(first);
+    Objects.requireNonNull(second);
+    return new ComposedRelation<>(this, first, second);
+  }
+
+  /**
+   * Returns the IDs of the right values related to every one of the given 
+   * left values in a relation; for example, the groups shared by several
+   * users.  Returns an empty set if no left values are given.
+   */
+  public TLongSet rightIDsIntersection(EntityRelation<?, ?> relation, 
+      long[] leftIDs)
+  {
+    final TLongSet[] sets = new TLongSet[leftIDs.length];
+    for (int i = 0; i < leftIDs.length; i++)
+    {
+      sets[i] = relation.rightIDsView(leftIDs[i]);
+    }
+    return intersection(sets);
+  }
+
+  /**
+   * Returns the IDs of the left values related to every one of the given 
+   * right values in a relation.  Returns an empty set if no right values 
+   * are given.
+   */
+  public TLongSet leftIDsIntersection(EntityRelation<?, ?> relation, 
+      long[] rightIDs)
+  {
+    final TLongSet[] sets = new TLongSet[rightIDs.length];
+    for (int i = 0; i < rightIDs.length; i++)
+    {
+      sets[i] = relation.leftIDsView(rightIDs[i]);
+    }
+    return intersection(sets);
+  }
+
+  /**
+   * Returns the IDs of the right values related to any of the given left
+   * values in a relation.
+   */
+  public TLongSet rightIDsUnion(EntityRelation<?, ?> relation, long[] leftIDs)
+  {
+    return relation.rightIDsUnion(leftIDs);
+  }
+
+  /**
+   * Returns the IDs of the left values related to any of the given right
+   * values in a relation.
+   */
+  public TLongSet leftIDsUnion(EntityRelation<?, ?> relation, long[] rightIDs)
+  {
+    return relation.leftIDsUnion(rightIDs);
+  }
+
+  /**
+   * Intersects read-only sets of IDs, starting from the smallest so that 
+   * the fewest values are tested against the others.
+   */
+  private static TLongSet intersection(TLongSet[] sets)
+  {
+    if (sets.length == 0)
+    {
+      return new TLongHashSet(0);
+    }
+    int smallest = 0;
+    for (int i = 1; i < sets.length; i++)
+    {
+      if (sets[i].size() < sets[smallest].size())
+      {
+        smallest = i;
+      }
+    }
+    final TLongSet result = new TLongHashSet(sets[smallest]);
+    for (int i = 0; i < sets.length && !result.isEmpty(); i++)
+    {
+      if (i != smallest)
+      {
+        result.retainAll(sets[i]);
+      }
+    }
+    return result;
+  }
   
   /**
    * Returns the cached response text associated with the given parameter keys.
@@ -1674,10 +2813,28 @@ public class EntityStore
     for (Map.Entry<Class<T>, Collection<T>> entry : map.entrySet())
     {
       Class<T> type = entry.getKey();
-      Collection<T> collection = entry.getValue();
+      EntityGroup<T> group = getGroupSafe(type);
+      
+      // Leave out ChangeTracked entities that have not changed, keeping the
+      // changed fields of the rest to pass along to the listeners.
+      List<T> collection = new ArrayList<>(entry.getValue().size());
+      List<String[]> changes = new ArrayList<>(entry.getValue().size());
+      for (T object : entry.getValue())
+      {
+        String[] changedFields = group.changedFields(object);
+        if (changedFields == null || changedFields.length > 0)
+        {
+          collection.add(object);
+          changes.add(changedFields);
+        }
+      }
+      if (collection.isEmpty())
+      {
+        continue;
+      }
 
       // Update the group.
-      int rowsUpdated = getGroupSafe(type).putAll(collection);
+      int rowsUpdated = group.putAll(collection);
 
       // If useAffectedRows is enabled, then only update the methodValueCache and
       // notify the listeners if an actual change was persisted.
@@ -1698,9 +2855,11 @@ public class EntityStore
         final CacheListener[] toNotify = listeners;
         for (CacheListener listener : toNotify)
         {
-          for (T object : collection)
+          for (int i = 0; i < collection.size(); i++)
           {
-            listener.cacheObjectExpired(object.getClass(), object.getId());
+            T object = collection.get(i);
+            listener.cacheObjectExpired(object.getClass(), object.getId(), 
+                changes.get(i));
           }
         }
       }
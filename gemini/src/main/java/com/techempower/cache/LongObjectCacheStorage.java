@@ -0,0 +1,738 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import gnu.trove.*;
+import gnu.trove.function.*;
+import gnu.trove.iterator.*;
+import gnu.trove.list.array.*;
+import gnu.trove.map.*;
+import gnu.trove.procedure.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+import com.techempower.util.*;
+
+/**
+ * A CacheStorage that keeps entities in open-addressing hash tables keyed
+ * by primitive long identities, avoiding the boxing of identities and the
+ * per-entry node objects of a ConcurrentHashMap.
+ *   <p>
+ * The identity space is divided into a fixed number of stripes.  Each stripe
+ * owns a table with linear probing; writes to a stripe are serialized by
+ * that stripe's monitor while reads are lock-free.  Slots are published with
+ * release/acquire semantics so that a reader that observes a key also
+ * observes its value.  A key, once written to a slot, never changes within
+ * that table: removals leave a tombstone that is discarded the next time
+ * the stripe's table is rebuilt, and rebuilt tables are published in a
+ * single volatile write.
+ *   <p>
+ * The identity 0 is used to mark free slots, so an entity with that
+ * identity is held separately.
+ *   <p>
+ * map() returns a read-only view of this storage rather than a copy.
+ */
+public class LongObjectCacheStorage<T extends Identifiable>
+  implements CacheStorage<T>
+{
+
+  //
+  // Constants.
+  //
+
+  private static final int       STRIPES          = 16;
+  private static final int       STRIPE_SHIFT     = 32 - Integer.numberOfTrailingZeros(STRIPES);
+  private static final int       MINIMUM_CAPACITY = 8;
+  private static final long      FREE             = 0L;
+  private static final Object    REMOVED          = new Object();
+  private static final VarHandle KEYS             = MethodHandles.arrayElementVarHandle(long[].class);
+  private static final VarHandle VALUES           = MethodHandles.arrayElementVarHandle(Object[].class);
+
+  //
+  // Member variables.
+  //
+
+  private final Stripe[]          stripes = new Stripe[STRIPES];
+  private final TLongObjectMap<T> view    = new ReadOnlyView();
+  private volatile T              zero;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.
+   */
+  public LongObjectCacheStorage(int expectedSize)
+  {
+    final int perStripe = Math.max(expectedSize, 0) / STRIPES + 1;
+    for (int i = 0; i < STRIPES; i++)
+    {
+      this.stripes[i] = new Stripe(capacityFor(perStripe));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public T get(long id)
+  {
+    if (id == FREE)
+    {
+      return this.zero;
+    }
+    final int hash = hash(id);
+    return (T)stripeFor(hash).get(id, hash);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public T put(T object)
+  {
+    final long id = object.getId();
+    if (id == FREE)
+    {
+      synchronized (this)
+      {
+        final T previous = this.zero;
+        this.zero = object;
+        return previous;
+      }
+    }
+    final int hash = hash(id);
+    return (T)stripeFor(hash).put(id, hash, object);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public T remove(long id)
+  {
+    if (id == FREE)
+    {
+      synchronized (this)
+      {
+        final T previous = this.zero;
+        this.zero = null;
+        return previous;
+      }
+    }
+    final int hash = hash(id);
+    return (T)stripeFor(hash).remove(id, hash);
+  }
+
+  @Override
+  public boolean containsKey(long id)
+  {
+    return get(id) != null;
+  }
+
+  /**
+   * Determines whether an entity equal to the given entity is stored under
+   * the given entity's identity.
+   */
+  @Override
+  public boolean containsValue(Identifiable object)
+  {
+    return object != null && object.equals(get(object.getId()));
+  }
+
+  @Override
+  public int size()
+  {
+    int size = (this.zero != null ? 1 : 0);
+    for (Stripe stripe : this.stripes)
+    {
+      size += stripe.size;
+    }
+    return size;
+  }
+
+  @Override
+  public Collection<T> values()
+  {
+    return new AbstractCollection<T>() {
+      @Override
+      public Iterator<T> iterator()
+      {
+        return new ValueIterator();
+      }
+
+      @Override
+      public int size()
+      {
+        return LongObjectCacheStorage.this.size();
+      }
+    };
+  }
+
+  /**
+   * Returns a read-only view of this storage.  The view is weakly
+   * consistent: iteration reflects some state of each stripe at or after
+   * the iterator's creation.
+   */
+  @Override
+  public TLongObjectMap<T> map()
+  {
+    return this.view;
+  }
+
+  /**
+   * Spreads an identity across the hash space.
+   */
+  private static int hash(long id)
+  {
+    final long h = id * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  /**
+   * Gets the stripe for a hash.  The stripe is chosen from the high bits of
+   * the hash while slots are chosen from the low bits.
+   */
+  private Stripe stripeFor(int hash)
+  {
+    return this.stripes[hash >>> STRIPE_SHIFT];
+  }
+
+  /**
+   * Gets a power-of-two table capacity that keeps the given number of
+   * entries at or below a quarter of the table.
+   */
+  private static int capacityFor(int entries)
+  {
+    final int wanted = Math.max(MINIMUM_CAPACITY, entries * 4);
+    return Integer.highestOneBit(wanted - 1) << 1;
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * An open-addressing table.  Writes happen only while holding the owning
+   * stripe's monitor.
+   */
+  private static final class Table
+  {
+    private final long[]   keys;
+    private final Object[] values;
+    private final int      mask;
+    private final int      threshold;
+    private int            used;
+
+    private Table(int capacity)
+    {
+      this.keys = new long[capacity];
+      this.values = new Object[capacity];
+      this.mask = capacity - 1;
+      // Count tombstones against the load factor so that probes always
+      // terminate at a free slot.
+      this.threshold = capacity / 2;
+    }
+
+    /**
+     * Finds the slot holding the given key, or the free slot that ends its
+     * probe sequence.  Only called by writers.
+     */
+    private int slotFor(long id, int hash)
+    {
+      int index = hash & this.mask;
+      long key;
+      while ((key = this.keys[index]) != FREE && key != id)
+      {
+        index = (index + 1) & this.mask;
+      }
+      return index;
+    }
+  }
+
+  /**
+   * One stripe of the identity space.
+   */
+  private static final class Stripe
+  {
+    private volatile Table table;
+    private volatile int   size;
+
+    private Stripe(int capacity)
+    {
+      this.table = new Table(capacity);
+    }
+
+    private Object get(long id, int hash)
+    {
+      final Table t = this.table;
+      final long[] keys = t.keys;
+      int index = hash & t.mask;
+      long key;
+      while ((key = (long)KEYS.getAcquire(keys, index)) != FREE)
+      {
+        if (key == id)
+        {
+          final Object value = VALUES.getAcquire(t.values, index);
+          return (value == REMOVED ? null : value);
+        }
+        index = (index + 1) & t.mask;
+      }
+      return null;
+    }
+
+    private synchronized Object put(long id, int hash, Object value)
+    {
+      Table t = this.table;
+      int index = t.slotFor(id, hash);
+      if (t.keys[index] == id)
+      {
+        final Object previous = t.values[index];
+        VALUES.setRelease(t.values, index, value);
+        if (previous == REMOVED)
+        {
+          this.size++;
+          return null;
+        }
+        return previous;
+      }
+
+      if (t.used >= t.threshold)
+      {
+        t = rebuild(t, this.size + 1);
+        index = t.slotFor(id, hash);
+      }
+
+      // Publish the value before the key; readers match on the key.
+      VALUES.setRelease(t.values, index, value);
+      KEYS.setRelease(t.keys, index, id);
+      t.used++;
+      this.size++;
+      return null;
+    }
+
+    private synchronized Object remove(long id, int hash)
+    {
+      final Table t = this.table;
+      final int index = t.slotFor(id, hash);
+      if (t.keys[index] == id)
+      {
+        final Object previous = t.values[index];
+        if (previous != REMOVED)
+        {
+          VALUES.setRelease(t.values, index, REMOVED);
+          this.size--;
+          return previous;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Copies the live entries of a table into a new table sized for the
+     * given number of entries, then publishes the new table.
+     */
+    private Table rebuild(Table old, int entries)
+    {
+      final Table t = new Table(capacityFor(entries));
+      for (int i = 0; i < old.keys.length; i++)
+      {
+        final long key = old.keys[i];
+        final Object value = old.values[i];
+        if (key != FREE && value != REMOVED)
+        {
+          final int index = t.slotFor(key, hash(key));
+          t.keys[index] = key;
+          t.values[index] = value;
+          t.used++;
+        }
+      }
+      this.table = t;
+      return t;
+    }
+  }
+
+  /**
+   * Walks the live entries of the storage, one stripe table at a time.
+   */
+  private class Cursor
+  {
+    private int    stripe = -1;
+    private Table  table;
+    private int    slot;
+    private long   key;
+    private Object value;
+
+    /**
+     * Moves to the next live entry, returning false if there are none.
+     */
+    protected boolean step()
+    {
+      if (this.stripe < 0)
+      {
+        this.stripe = 0;
+        final T z = LongObjectCacheStorage.this.zero;
+        if (z != null)
+        {
+          this.key = FREE;
+          this.value = z;
+          return true;
+        }
+      }
+      while (this.stripe < STRIPES)
+      {
+        if (this.table == null)
+        {
+          this.table = LongObjectCacheStorage.this.stripes[this.stripe].table;
+          this.slot = 0;
+        }
+        while (this.slot < this.table.keys.length)
+        {
+          final int index = this.slot++;
+          final long k = (long)KEYS.getAcquire(this.table.keys, index);
+          if (k != FREE)
+          {
+            final Object v = VALUES.getAcquire(this.table.values, index);
+            if (v != REMOVED)
+            {
+              this.key = k;
+              this.value = v;
+              return true;
+            }
+          }
+        }
+        this.table = null;
+        this.stripe++;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Iterates the stored entities.
+   */
+  private class ValueIterator
+       extends Cursor
+    implements Iterator<T>
+  {
+    private boolean stepped;
+    private boolean available;
+
+    @Override
+    public boolean hasNext()
+    {
+      if (!this.stepped)
+      {
+        this.available = step();
+        this.stepped = true;
+      }
+      return this.available;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T next()
+    {
+      if (!hasNext())
+      {
+        throw new NoSuchElementException();
+      }
+      this.stepped = false;
+      return (T)super.value;
+    }
+  }
+
+  /**
+   * Iterates the stored entries in the style of a Trove iterator.
+   */
+  private class EntryIterator
+       extends ValueIterator
+    implements TLongObjectIterator<T>
+  {
+    private long currentKey;
+    private T    currentValue;
+
+    @Override
+    public void advance()
+    {
+      this.currentValue = next();
+      this.currentKey = this.currentValue.getId();
+    }
+
+    @Override
+    public long key()
+    {
+      return this.currentKey;
+    }
+
+    @Override
+    public T value()
+    {
+      return this.currentValue;
+    }
+
+    @Override
+    public T setValue(T val)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * A read-only TLongObjectMap view of the storage.
+   */
+  private class ReadOnlyView
+    implements TLongObjectMap<T>
+  {
+    @Override
+    public long getNoEntryKey()
+    {
+      return FREE;
+    }
+
+    @Override
+    public int size()
+    {
+      return LongObjectCacheStorage.this.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+      return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(long key)
+    {
+      return LongObjectCacheStorage.this.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value)
+    {
+      return (value instanceof Identifiable)
+          && LongObjectCacheStorage.this.containsValue((Identifiable)value);
+    }
+
+    @Override
+    public T get(long key)
+    {
+      return LongObjectCacheStorage.this.get(key);
+    }
+
+    @Override
+    public T put(long key, T value)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public T putIfAbsent(long key, T value)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public T remove(long key)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void putAll(Map<? extends Long, ? extends T> map)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void putAll(TLongObjectMap<? extends T> map)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TLongSet keySet()
+    {
+      return TCollections.unmodifiableSet(new TLongHashSet(keys()));
+    }
+
+    @Override
+    public long[] keys()
+    {
+      final TLongArrayList keys = new TLongArrayList(size());
+      forEachKey(keys::add);
+      return keys.toArray();
+    }
+
+    @Override
+    public long[] keys(long[] array)
+    {
+      final long[] keys = keys();
+      if (array.length < keys.length)
+      {
+        return keys;
+      }
+      System.arraycopy(keys, 0, array, 0, keys.length);
+      return array;
+    }
+
+    @Override
+    public Collection<T> valueCollection()
+    {
+      return LongObjectCacheStorage.this.values();
+    }
+
+    @Override
+    public Object[] values()
+    {
+      return LongObjectCacheStorage.this.values().toArray();
+    }
+
+    @Override
+    public T[] values(T[] array)
+    {
+      return LongObjectCacheStorage.this.values().toArray(array);
+    }
+
+    @Override
+    public TLongObjectIterator<T> iterator()
+    {
+      return new EntryIterator();
+    }
+
+    @Override
+    public boolean forEachKey(TLongProcedure procedure)
+    {
+      final Cursor cursor = new Cursor();
+      while (cursor.step())
+      {
+        if (!procedure.execute(cursor.key))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean forEachValue(TObjectProcedure<? super T> procedure)
+    {
+      final Cursor cursor = new Cursor();
+      while (cursor.step())
+      {
+        if (!procedure.execute((T)cursor.value))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean forEachEntry(TLongObjectProcedure<? super T> procedure)
+    {
+      final Cursor cursor = new Cursor();
+      while (cursor.step())
+      {
+        if (!procedure.execute(cursor.key, (T)cursor.value))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void transformValues(TObjectFunction<T, T> function)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainEntries(TLongObjectProcedure<? super T> procedure)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+      if (other == this)
+      {
+        return true;
+      }
+      if (!(other instanceof TLongObjectMap))
+      {
+        return false;
+      }
+      final TLongObjectMap<?> that = (TLongObjectMap<?>)other;
+      return that.size() == size()
+          && forEachEntry((key, value) -> value.equals(that.get(key)));
+    }
+
+    @Override
+    public int hashCode()
+    {
+      final int[] hashCode = new int[1];
+      forEachEntry((key, value) -> {
+        hashCode[0] += Long.hashCode(key) ^ value.hashCode();
+        return true;
+      });
+      return hashCode[0];
+    }
+
+    @Override
+    public String toString()
+    {
+      final StringBuilder sb = new StringBuilder("{");
+      forEachEntry((key, value) -> {
+        if (sb.length() > 1)
+        {
+          sb.append(", ");
+        }
+        sb.append(key).append('=').append(value);
+        return true;
+      });
+      return sb.append('}').toString();
+    }
+  }
+
+}   // End LongObjectCacheStorage.
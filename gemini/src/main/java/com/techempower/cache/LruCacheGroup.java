@@ -132,6 +132,10 @@ public class LruCacheGroup<T extends Identifiable>
   public void reset()
   {
     objects.invalidateAll();
+    if (versions() != null)
+    {
+      versions().clear();
+    }
   }
 
   /**
@@ -295,7 +299,7 @@ public class LruCacheGroup<T extends Identifiable>
         throw new NullPointerException();
       }
       
-      return new LruCacheGroup<>(
+      final LruCacheGroup<T> group = new LruCacheGroup<>(
           controller,
           this.type,
           this.table,
@@ -307,6 +311,8 @@ public class LruCacheGroup<T extends Identifiable>
           this.size,
           this.readOnly,
           this.distribute);
+      group.setVersioned(this.versioned);
+      return group;
     }
 
     @Override
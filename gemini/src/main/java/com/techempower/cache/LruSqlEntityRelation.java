@@ -1,6 +1,17 @@
 package com.techempower.cache;
 
+import gnu.trove.*;
+import gnu.trove.iterator.*;
+import gnu.trove.list.array.*;
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+import gnu.trove.procedure.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
+
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import com.google.common.cache.*;
 import com.techempower.collection.relation.*;
 import com.techempower.data.*;
@@ -10,6 +21,13 @@ import com.techempower.util.*;
 /**
  * A least-recently-used style caching EntityRelation based on the Guava library's Cache. The guts
  * are provided by Cache but the usage semantics are similar to CachedRelation.
+ *
+ * <p>The cache holds a set of IDs for each left and right value looked up. It is bounded by the
+ * number of sets by default, or by their total size if {@link Builder#lruCacheWeight(long)} is
+ * used. Lookups of many values at once, through {@link #rightIDsMap(long[])}, {@link
+ * #leftIDsMap(long[])} and the union methods, query the database once for all of the values that
+ * are not cached. Hit, miss and load statistics are available from {@link #statistics()} and are
+ * listed by the GeminiMonitor.
  */
 public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable>
     extends SqlEntityRelation<L, R> implements CachingEntityRelation<L, R> {
@@ -23,6 +41,11 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
     return new LruSqlEntityRelation.Builder<>(leftType, rightType);
   }
 
+  /**
+   * The set of IDs for keys related to nothing.
+   */
+  private static final TLongSet EMPTY = TCollections.unmodifiableSet(new TLongHashSet(0));
+
   /**
    * A unique identifier for this relation to be assigned by the entity store as the relation is
    * registered.
@@ -30,37 +53,133 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
   private long id;
 
   /**
-   * Our LRU cache supports Many-to-Many.
+   * Our LRU cache supports Many-to-Many.  The cached sets are never modified
+   * once cached, so they may be handed out as read-only views.
    */
-  private final Cache<Long, Set<Long>> leftMap;
-  private final Cache<Long, Set<Long>> rightMap;
-  private final Collection<CachedRelationListener> listeners = new ArrayList<>();
+  private final Cache<Long, TLongSet> leftMap;
+  private final Cache<Long, TLongSet> rightMap;
+  private final Collection<CachedRelationListener> listeners = new CopyOnWriteArrayList<>();
+  private final LongAdder loads = new LongAdder();
+  private final LongAdder loadNanos = new LongAdder();
 
   /**
    * Constructor.
    */
   protected LruSqlEntityRelation(EntityStore store, Class<L> leftType, Class<R> rightType,
       String tableName, String leftColumn, String rightColumn, int lruCacheSize) {
+    this(store, leftType, rightType, tableName, leftColumn, rightColumn, lruCacheSize, 0L);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param lruCacheWeight if positive, the cache in each direction is bounded by the total number
+   *     of IDs it holds rather than by lruCacheSize.
+   */
+  protected LruSqlEntityRelation(EntityStore store, Class<L> leftType, Class<R> rightType,
+      String tableName, String leftColumn, String rightColumn, int lruCacheSize,
+      long lruCacheWeight) {
     super(store, leftType, rightType, tableName, leftColumn, rightColumn);
-    this.leftMap = CacheBuilder.newBuilder().maximumSize(lruCacheSize).build();
-    this.rightMap = CacheBuilder.newBuilder().maximumSize(lruCacheSize).build();
+    this.leftMap = newCache(lruCacheSize, lruCacheWeight);
+    this.rightMap = newCache(lruCacheSize, lruCacheWeight);
   }
 
   /**
-   * Tries to satisfy first from the LRU cache, only querying the database if required.
+   * Creates a cache bounded by entry count, or by total set size if a weight is given. Each entry
+   * weighs one more than its size so that small sets are not free.
    */
-  @Override
-  public Set<Long> rightIDs(long leftID) {
-    Set<Long> rightSet = leftMap.getIfPresent(leftID);
-    if (rightSet != null) {
-      return rightSet;
-    } else {
-      rightSet = super.rightIDs(leftID);
+  private static Cache<Long, TLongSet> newCache(int size, long weight) {
+    if (weight > 0) {
+      return CacheBuilder.newBuilder()
+          .maximumWeight(weight)
+          .weigher((Long key, TLongSet ids) -> 1 + ids.size())
+          .recordStats()
+          .build();
+    }
+    return CacheBuilder.newBuilder().maximumSize(size).recordStats().build();
+  }
+
+  /**
+   * Returns statistics for both directions of the cache since it was created.
+   */
+  public RelationCacheStatistics statistics() {
+    CacheStats stats = this.leftMap.stats().plus(this.rightMap.stats());
+    return new RelationCacheStatistics(tableName(), stats.hitCount(), stats.missCount(),
+        this.loads.sum(), this.loadNanos.sum(), stats.evictionCount(),
+        this.leftMap.size() + this.rightMap.size());
+  }
+
+  /**
+   * Records a query made to satisfy misses.
+   */
+  private void loaded(long start) {
+    this.loads.increment();
+    this.loadNanos.add(System.nanoTime() - start);
+  }
+
+  /**
+   * Gets the right IDs for a left ID, first from the LRU cache, only querying the database if
+   * required.
+   */
+  private TLongSet cachedRightIDs(long leftID) {
+    TLongSet rightSet = leftMap.getIfPresent(leftID);
+    if (rightSet == null) {
+      long start = System.nanoTime();
+      rightSet = super.rightIDsLongSet(leftID);
+      loaded(start);
       if (!rightSet.isEmpty()) {
         leftMap.put(leftID, rightSet);
       }
-      return rightSet;
     }
+    return rightSet;
+  }
+
+  /**
+   * Gets the left IDs for a right ID, first from the LRU cache, only querying the database if
+   * required.
+   */
+  private TLongSet cachedLeftIDs(long rightID) {
+    TLongSet leftSet = rightMap.getIfPresent(rightID);
+    if (leftSet == null) {
+      long start = System.nanoTime();
+      leftSet = new TLongHashSet(super.leftIDArray(rightID));
+      loaded(start);
+      if (!leftSet.isEmpty()) {
+        rightMap.put(rightID, leftSet);
+      }
+    }
+    return leftSet;
+  }
+
+  /**
+   * Copies a set of IDs into a set of Longs for the boxed API.
+   */
+  private static Set<Long> boxed(TLongSet ids) {
+    Set<Long> boxed = new HashSet<>(ids.size() * 4 / 3 + 1);
+    for (TLongIterator iter = ids.iterator(); iter.hasNext();) {
+      boxed.add(iter.next());
+    }
+    return boxed;
+  }
+
+  /**
+   * Copies as many IDs as fit into the buffer and returns the number of IDs.
+   */
+  private static int copy(TLongSet ids, long[] buffer) {
+    int count = Math.min(ids.size(), buffer.length);
+    TLongIterator iter = ids.iterator();
+    for (int i = 0; i < count; i++) {
+      buffer[i] = iter.next();
+    }
+    return ids.size();
+  }
+
+  /**
+   * Tries to satisfy first from the LRU cache, only querying the database if required.
+   */
+  @Override
+  public Set<Long> rightIDs(long leftID) {
+    return boxed(cachedRightIDs(leftID));
   }
 
   /**
@@ -68,16 +187,130 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
    */
   @Override
   public Set<Long> leftIDs(long rightID) {
-    Set<Long> leftSet = rightMap.getIfPresent(rightID);
-    if (leftSet != null) {
-      return leftSet;
-    } else {
-      leftSet = super.leftIDs(rightID);
-      if (!leftSet.isEmpty()) {
-        rightMap.put(rightID, leftSet);
+    return boxed(cachedLeftIDs(rightID));
+  }
+
+  @Override
+  public long[] rightIDArray(long leftID) {
+    return cachedRightIDs(leftID).toArray();
+  }
+
+  @Override
+  public long[] leftIDArray(long rightID) {
+    return cachedLeftIDs(rightID).toArray();
+  }
+
+  @Override
+  public TLongSet rightIDsLongSet(long leftID) {
+    return new TLongHashSet(cachedRightIDs(leftID));
+  }
+
+  @Override
+  public boolean forEachRightID(long leftID, TLongProcedure procedure) {
+    return cachedRightIDs(leftID).forEach(procedure);
+  }
+
+  @Override
+  public boolean forEachLeftID(long rightID, TLongProcedure procedure) {
+    return cachedLeftIDs(rightID).forEach(procedure);
+  }
+
+  @Override
+  public int rightIDs(long leftID, long[] buffer) {
+    return copy(cachedRightIDs(leftID), buffer);
+  }
+
+  @Override
+  public int leftIDs(long rightID, long[] buffer) {
+    return copy(cachedLeftIDs(rightID), buffer);
+  }
+
+  /**
+   * Returns the cached set itself, read-only. It is not affected by later changes, which replace
+   * rather than modify cached sets.
+   */
+  @Override
+  public TLongSet rightIDsView(long leftID) {
+    return TCollections.unmodifiableSet(cachedRightIDs(leftID));
+  }
+
+  /**
+   * Returns the cached set itself, read-only. It is not affected by later changes, which replace
+   * rather than modify cached sets.
+   */
+  @Override
+  public TLongSet leftIDsView(long rightID) {
+    return TCollections.unmodifiableSet(cachedLeftIDs(rightID));
+  }
+
+  /**
+   * Returns the right IDs related to each of the given left IDs, as read-only sets. Left IDs that
+   * are not cached are read from the database with a single query (per thousand IDs) and cached.
+   */
+  public TLongObjectMap<TLongSet> rightIDsMap(long[] leftIDs) {
+    return cachedMap(leftIDs, this.leftMap, true);
+  }
+
+  /**
+   * Returns the left IDs related to each of the given right IDs, as read-only sets. Right IDs that
+   * are not cached are read from the database with a single query (per thousand IDs) and cached.
+   */
+  public TLongObjectMap<TLongSet> leftIDsMap(long[] rightIDs) {
+    return cachedMap(rightIDs, this.rightMap, false);
+  }
+
+  /**
+   * Looks up many keys in one direction of the cache, fetching all of the missing keys at once.
+   */
+  private TLongObjectMap<TLongSet> cachedMap(long[] keys, Cache<Long, TLongSet> cache,
+      boolean byLeft) {
+    TLongObjectMap<TLongSet> result = new TLongObjectHashMap<>(keys.length);
+    TLongArrayList missing = new TLongArrayList();
+    for (long key : keys) {
+      TLongSet ids = cache.getIfPresent(key);
+      if (ids != null) {
+        result.put(key, TCollections.unmodifiableSet(ids));
+      } else if (!result.containsKey(key)) {
+        missing.add(key);
+        // Claims the key so that duplicates are fetched once.
+        result.put(key, EMPTY);
       }
-      return leftSet;
     }
+    if (!missing.isEmpty()) {
+      long start = System.nanoTime();
+      TLongObjectMap<TLongSet> fetched = byLeft
+          ? fetchRightIDs(missing.toArray())
+          : fetchLeftIDs(missing.toArray());
+      loaded(start);
+      for (TLongObjectIterator<TLongSet> it = fetched.iterator(); it.hasNext();) {
+        it.advance();
+        cache.put(it.key(), it.value());
+        result.put(it.key(), TCollections.unmodifiableSet(it.value()));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public TLongSet rightIDsUnion(long[] leftIDs) {
+    return union(rightIDsMap(leftIDs));
+  }
+
+  @Override
+  public TLongSet leftIDsUnion(long[] rightIDs) {
+    return union(leftIDsMap(rightIDs));
+  }
+
+  /**
+   * Combines the sets of IDs in a map.
+   */
+  private static TLongSet union(TLongObjectMap<TLongSet> related) {
+    TLongSet union = new TLongHashSet();
+    for (TLongObjectIterator<TLongSet> it = related.iterator(); it.hasNext();) {
+      it.advance();
+      union.addAll(it.value());
+    }
+    return union;
   }
 
   /**
@@ -116,14 +349,11 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
       boolean notifyDistributionListeners) {
     boolean toReturn = false; // Not important for this to be strictly accurate.
     // Invalidate relevant values in our LRU cache.
-    Set<Long> rightValues = this.leftMap.getIfPresent(leftID);
+    TLongSet rightValues = this.leftMap.getIfPresent(leftID);
     if (rightValues != null && !rightValues.isEmpty()) {
-      for (Long rightId : rightValues) {
-        Set<Long> leftValues = this.rightMap.getIfPresent(rightId);
-        leftValues.remove(leftID);
-        if (leftValues.isEmpty()) {
-          this.rightMap.invalidate(rightId);
-        }
+      // Cached sets may be in use as views, so invalidate rather than modify them.
+      for (TLongIterator iter = rightValues.iterator(); iter.hasNext();) {
+        this.rightMap.invalidate(iter.next());
       }
       this.leftMap.invalidate(leftID);
       toReturn = true;
@@ -155,14 +385,11 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
       boolean notifyDistributionListeners) {
     boolean toReturn = false; // Not important for this to be strictly accurate.
     // Invalidate relevant values in our LRU cache.
-    Set<Long> leftValues = this.rightMap.getIfPresent(rightID);
+    TLongSet leftValues = this.rightMap.getIfPresent(rightID);
     if (leftValues != null && !leftValues.isEmpty()) {
-      for (Long leftId : leftValues) {
-        Set<Long> rightValues = this.leftMap.getIfPresent(leftId);
-        rightValues.remove(rightID);
-        if (rightValues.isEmpty()) {
-          this.leftMap.invalidate(leftId);
-        }
+      // Cached sets may be in use as views, so invalidate rather than modify them.
+      for (TLongIterator iter = leftValues.iterator(); iter.hasNext();) {
+        this.leftMap.invalidate(iter.next());
       }
       this.rightMap.invalidate(rightID);
       toReturn = true;
@@ -246,6 +473,11 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
     this.listeners.add(listener);
   }
 
+  @Override
+  public void removeListener(CachedRelationListener listener) {
+    this.listeners.remove(listener);
+  }
+
   @Override
   public List<CachedRelationListener> listeners() {
     return new ArrayList<>(this.listeners);
@@ -415,6 +647,7 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
      */
     public static final int DEFAULT_SIZE = 10000;
     protected int lruCacheSize = DEFAULT_SIZE;
+    protected long lruCacheWeight = 0L;
 
     /**
      * Returns a new builder of {@link LruSqlEntityRelation} instances.
@@ -430,7 +663,7 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
     public LruSqlEntityRelation<L, R> build(EntityStore store) {
       Objects.requireNonNull(store);
       return new LruSqlEntityRelation<>(store, this.leftType, this.rightType, this.table,
-          this.leftColumn, this.rightColumn, this.lruCacheSize);
+          this.leftColumn, this.rightColumn, this.lruCacheSize, this.lruCacheWeight);
     }
 
     /**
@@ -440,6 +673,16 @@ public class LruSqlEntityRelation<L extends Identifiable, R extends Identifiable
       this.lruCacheSize = size;
       return this;
     }
+
+    /**
+     * Bounds the LRU cache in each direction by the total number of IDs in its sets, rather than
+     * by the number of sets, so that memory use is bounded when some values are related to very
+     * many others. Overrides {@link #lruCacheSize(int)}.
+     */
+    public Builder<L, R> lruCacheWeight(long maximumIDs) {
+      this.lruCacheWeight = maximumIDs;
+      return this;
+    }
   }
 
 }
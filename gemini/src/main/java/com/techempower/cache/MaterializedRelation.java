@@ -0,0 +1,435 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import gnu.trove.iterator.*;
+import gnu.trove.list.array.*;
+import gnu.trove.procedure.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import com.techempower.collection.relation.*;
+import com.techempower.util.*;
+
+/**
+ * The result of a {@link ComposedRelation} held in memory and kept up to 
+ * date as its two relations change.  Obtain instances from
+ * {@link ComposedRelation#materialize()}.
+ *   <p>
+ * The materialized relation listens to both relations.  Each change marks
+ * the rows (left values) it may affect as dirty, and those rows alone are
+ * recomputed from the two relations the next time the materialized 
+ * relation is queried.  Changes whose affected rows cannot be determined
+ * afterward, such as clearing or replacing either relation, or removing a
+ * middle value from the first, cause the whole relation to be recomputed
+ * instead.  Listening only records which rows are dirty, so changes to the
+ * two relations are not slowed or made to wait on one another.  Call
+ * {@link #close()} to stop listening once the relation is no longer needed.
+ *
+ * @param <L> the type of the left values
+ * @param <R> the type of the right values
+ */
+public class MaterializedRelation<L extends Identifiable, R extends Identifiable>
+  implements CachedRelationListener
+{
+
+  //
+  // Member variables.
+  //
+
+  private final ComposedRelation<L, ?, R> composition;
+  private final CachingEntityRelation<?, ?> first;
+  private final CachingEntityRelation<?, ?> second;
+  private final ManyToManyLongRelation    relation = new ManyToManyLongRelation(true);
+  private final ReadWriteLock             lock = new ReentrantReadWriteLock();
+
+  // Guarded by this.
+  private TLongSet                        dirtyLefts = new TLongHashSet();
+  private TLongSet                        dirtyMiddles = new TLongHashSet();
+  private TLongSet                        dirtyRights = new TLongHashSet();
+  private boolean                         stale = true;
+  private volatile boolean                dirty = true;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.
+   */
+  protected MaterializedRelation(ComposedRelation<L, ?, R> composition)
+  {
+    this.composition = composition;
+    this.first = (CachingEntityRelation<?, ?>)composition.first();
+    this.second = (CachingEntityRelation<?, ?>)composition.second();
+  }
+
+  /**
+   * Gets the composition that this relation materializes.
+   */
+  public ComposedRelation<L, ?, R> composition()
+  {
+    return this.composition;
+  }
+
+  /**
+   * Stops listening to the two relations, so that this relation can be
+   * discarded.  Once closed, this relation is no longer kept up to date.
+   */
+  public void close()
+  {
+    this.first.removeListener(this);
+    this.second.removeListener(this);
+  }
+
+  /**
+   * Returns whether the left and right values are related.
+   */
+  public boolean contains(long leftID, long rightID)
+  {
+    refresh();
+    this.lock.readLock().lock();
+    try
+    {
+      return this.relation.contains(leftID, rightID);
+    }
+    finally
+    {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Calls the procedure with the ID of each right value reachable from the
+   * left value, stopping if the procedure returns {@code false}.  The 
+   * procedure is called while a lock is held, so it should be brief.
+   *
+   * @return {@code false} if the procedure stopped the iteration
+   */
+  public boolean forEachRightID(long leftID, TLongProcedure procedure)
+  {
+    refresh();
+    this.lock.readLock().lock();
+    try
+    {
+      return this.relation.forEachRightValue(leftID, procedure);
+    }
+    finally
+    {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the IDs of the right values reachable from the left value.
+   */
+  public TLongSet rightIDs(long leftID)
+  {
+    refresh();
+    this.lock.readLock().lock();
+    try
+    {
+      return this.relation.rightValuesLongSet(leftID);
+    }
+    finally
+    {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the IDs of the left values from which the right value is 
+   * reachable.
+   */
+  public TLongSet leftIDs(long rightID)
+  {
+    refresh();
+    this.lock.readLock().lock();
+    try
+    {
+      return new TLongHashSet(this.relation.leftValues(rightID));
+    }
+    finally
+    {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of distinct right values reachable from the left
+   * value.
+   */
+  public int rightSize(long leftID)
+  {
+    refresh();
+    this.lock.readLock().lock();
+    try
+    {
+      return this.relation.rightSize(leftID);
+    }
+    finally
+    {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of distinct left values from which the right value
+   * is reachable.
+   */
+  public int leftSize(long rightID)
+  {
+    refresh();
+    this.lock.readLock().lock();
+    try
+    {
+      return this.relation.leftSize(rightID);
+    }
+    finally
+    {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of related pairs.
+   */
+  public int size()
+  {
+    refresh();
+    this.lock.readLock().lock();
+    try
+    {
+      return this.relation.size();
+    }
+    finally
+    {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Recomputes the dirty rows, or everything if necessary.
+   */
+  protected void refresh()
+  {
+    if (!this.dirty)
+    {
+      return;
+    }
+
+    this.lock.writeLock().lock();
+    try
+    {
+      final TLongSet lefts;
+      final TLongSet middles;
+      final TLongSet rights;
+      final boolean rebuild;
+      synchronized (this)
+      {
+        lefts = this.dirtyLefts;
+        middles = this.dirtyMiddles;
+        rights = this.dirtyRights;
+        rebuild = this.stale;
+        this.dirtyLefts = new TLongHashSet();
+        this.dirtyMiddles = new TLongHashSet();
+        this.dirtyRights = new TLongHashSet();
+        this.stale = false;
+        this.dirty = false;
+      }
+
+      if (rebuild)
+      {
+        this.relation.clear();
+        for (LongRelationIterator iter = this.first.relation().iterator(); iter.hasNext();)
+        {
+          iter.next();
+          final long leftID = iter.left();
+          this.second.forEachRightID(iter.right(), rightID -> {
+            this.relation.add(leftID, rightID);
+            return true;
+          });
+        }
+        return;
+      }
+
+      // Find every row that may be affected.
+      final TLongProcedure addLeft = leftID -> {
+        lefts.add(leftID);
+        return true;
+      };
+      for (TLongIterator iter = middles.iterator(); iter.hasNext();)
+      {
+        this.first.forEachLeftID(iter.next(), addLeft);
+      }
+      for (TLongIterator iter = rights.iterator(); iter.hasNext();)
+      {
+        this.relation.forEachLeftValue(iter.next(), addLeft);
+      }
+
+      for (TLongIterator iter = lefts.iterator(); iter.hasNext();)
+      {
+        final long leftID = iter.next();
+        this.relation.removeLeftValue(leftID);
+        final TLongArrayList middleIDs = new TLongArrayList();
+        this.first.forEachRightID(leftID, ComposedRelation.collect(middleIDs));
+        for (int i = 0; i < middleIDs.size(); i++)
+        {
+          this.second.forEachRightID(middleIDs.getQuick(i), rightID -> {
+            this.relation.add(leftID, rightID);
+            return true;
+          });
+        }
+      }
+    }
+    finally
+    {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Marks the rows affected by a change to the left values of a relation:
+   * rows themselves for the first relation, and rows through the middle
+   * values for the second.
+   */
+  private synchronized void leftChanged(long relationID, long leftID)
+  {
+    if (relationID == this.first.getId())
+    {
+      this.dirtyLefts.add(leftID);
+      this.dirty = true;
+    }
+    if (relationID == this.second.getId())
+    {
+      this.dirtyMiddles.add(leftID);
+      this.dirty = true;
+    }
+  }
+
+  /**
+   * Marks the rows affected by changes to many pairs of a relation.
+   */
+  private synchronized void pairsChanged(long relationID, LongRelation pairs)
+  {
+    for (LongRelationIterator iter = pairs.iterator(); iter.hasNext();)
+    {
+      iter.next();
+      leftChanged(relationID, iter.left());
+    }
+  }
+
+  /**
+   * Marks everything as needing to be recomputed if the change was to one
+   * of the two relations.
+   */
+  private synchronized void relationChanged(long relationID)
+  {
+    if (relationID == this.first.getId()
+        || relationID == this.second.getId())
+    {
+      this.stale = true;
+      this.dirty = true;
+    }
+  }
+
+  @Override
+  public void add(long relationID, long leftID, long rightID)
+  {
+    leftChanged(relationID, leftID);
+  }
+
+  @Override
+  public void addAll(long relationID, LongRelation pairs)
+  {
+    pairsChanged(relationID, pairs);
+  }
+
+  @Override
+  public void clear(long relationID)
+  {
+    relationChanged(relationID);
+  }
+
+  @Override
+  public void remove(long relationID, long leftID, long rightID)
+  {
+    leftChanged(relationID, leftID);
+  }
+
+  @Override
+  public void removeAll(long relationID, LongRelation pairs)
+  {
+    pairsChanged(relationID, pairs);
+  }
+
+  @Override
+  public void removeLeftValue(long relationID, long leftID)
+  {
+    leftChanged(relationID, leftID);
+  }
+
+  @Override
+  public synchronized void removeRightValue(long relationID, long rightID)
+  {
+    // The rows that reached a removed middle value are no longer known.
+    if (relationID == this.first.getId())
+    {
+      this.stale = true;
+      this.dirty = true;
+    }
+    if (relationID == this.second.getId())
+    {
+      this.dirtyRights.add(rightID);
+      this.dirty = true;
+    }
+  }
+
+  @Override
+  public void replaceAll(long relationID, LongRelation pairs)
+  {
+    relationChanged(relationID);
+  }
+
+  @Override
+  public void reset(long relationID)
+  {
+    relationChanged(relationID);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "MaterializedRelation [" + this.composition + "]";
+  }
+
+}   // End MaterializedRelation.
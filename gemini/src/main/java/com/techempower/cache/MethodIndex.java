@@ -0,0 +1,788 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import gnu.trove.*;
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+import gnu.trove.procedure.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import com.google.common.primitives.*;
+import com.techempower.util.*;
+
+/**
+ * A secondary index over the return values of one or more no-argument
+ * methods of a cached entity type, mapping each value to the identities of
+ * the entities that return it.  When more than one method is indexed, the
+ * index key is the List of the methods' values, in order.
+ *   <p>
+ * Methods are invoked through accessors compiled with LambdaMetafactory
+ * rather than through reflection.  Lookups return an immutable snapshot of
+ * the identities with a value; the snapshot is taken on the first lookup
+ * after the value's identities change, so updates cost O(1) however many
+ * entities share the value.  Updates and rebuilds are serialized per index,
+ * so indexes on different methods do not contend with each other.
+ *   <p>
+ * An index on a single method may be ordered, in which case its values are
+ * kept in a ConcurrentSkipListMap and can be traversed in order, within a
+ * range, or by String prefix in O(log n + k).  The method's values must be
+ * mutually Comparable; null values sort before all others and are excluded
+ * from traversals.
+ *   <p>
+ * Values looked up are first converted to the type the method returns, so
+ * that an Integer finds the entities whose long value is equal.  A value
+ * that cannot equal any value of that type finds no entities, and cannot
+ * be used as a bound of a range.
+ *   <p>
+ * The index is built lazily on first use and rebuilt lazily after reset.
+ */
+public class MethodIndex<T extends Identifiable>
+{
+
+  //
+  // Constants.
+  //
+
+  private static final Object   NULL_KEY  = new Object();
+  private static final Object   MISMATCH  = new Object();
+  private static final TLongSet EMPTY_IDS = TCollections.unmodifiableSet(
+      new TLongHashSet(0));
+  @SuppressWarnings("unchecked")
+  private static final Comparator<Object> KEY_ORDER = (first, second) -> {
+    if (first == second)
+    {
+      return 0;
+    }
+    if (first == NULL_KEY)
+    {
+      return -1;
+    }
+    if (second == NULL_KEY)
+    {
+      return 1;
+    }
+    return ((Comparable<Object>)first).compareTo(second);
+  };
+
+  //
+  // Member variables.
+  //
+
+  private final EntityStore                    store;
+  private final Class<T>                       type;
+  private final String[]                       methodNames;
+  private final List<Function<T, Object>>      accessors;
+  private final Class<?>[]                     keyTypes;
+  private final boolean                        ordered;
+  private volatile ConcurrentMap<Object, Bucket> idsByKey;
+  private TLongObjectMap<Object>               keysById = new TLongObjectHashMap<>();
+  private volatile boolean                     loaded    = false;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Creates a new index.
+   *
+   * @param store The EntityStore that holds the entities.
+   * @param type The type of entities being indexed.
+   * @param methodNames The names of the public, no-argument methods whose
+   *        values are indexed.
+   */
+  public MethodIndex(EntityStore store, Class<T> type, String... methodNames)
+  {
+    this(store, type, false, methodNames);
+  }
+
+  /**
+   * Creates a new index.
+   *
+   * @param store The EntityStore that holds the entities.
+   * @param type The type of entities being indexed.
+   * @param ordered Whether the index's values are kept in order.  Only an
+   *        index on a single method may be ordered.
+   * @param methodNames The names of the public, no-argument methods whose
+   *        values are indexed.
+   */
+  public MethodIndex(EntityStore store, Class<T> type, boolean ordered, 
+      String... methodNames)
+  {
+    if (methodNames.length == 0)
+    {
+      throw new IllegalArgumentException("At least one method is required.");
+    }
+    if (ordered && methodNames.length > 1)
+    {
+      throw new IllegalArgumentException(
+          "Only an index on a single method may be ordered.");
+    }
+    this.ordered = ordered;
+    this.idsByKey = newKeyMap(16);
+    this.store = store;
+    this.type = type;
+    this.methodNames = methodNames.clone();
+    final List<Function<T, Object>> compiled = new ArrayList<>(methodNames.length);
+    this.keyTypes = new Class<?>[methodNames.length];
+    for (int i = 0; i < methodNames.length; i++)
+    {
+      try
+      {
+        final Method method = type.getMethod(methodNames[i]);
+        compiled.add(compile(method));
+        this.keyTypes[i] = Primitives.wrap(method.getReturnType());
+      }
+      catch (NoSuchMethodException e)
+      {
+        throw new IllegalArgumentException(e);
+      }
+    }
+    this.accessors = Collections.unmodifiableList(compiled);
+  }
+
+  /**
+   * Gets the name of this index, which is the names of the indexed methods
+   * separated by commas.
+   */
+  public String name()
+  {
+    return name(this.methodNames);
+  }
+
+  /**
+   * Gets the name of the index for the given methods.
+   */
+  public static String name(String... methodNames)
+  {
+    return String.join(",", methodNames);
+  }
+
+  /**
+   * Gets the names of the indexed methods.
+   */
+  public String[] methodNames()
+  {
+    return this.methodNames.clone();
+  }
+
+  /**
+   * Gets the index key for the given entity: the value of the indexed method
+   * or, for a composite index, the List of the indexed methods' values.  If
+   * a method throws an exception, its value is taken to be null.
+   */
+  public Object keyOf(T object)
+  {
+    if (this.accessors.size() == 1)
+    {
+      return invoke(this.accessors.get(0), object);
+    }
+    final Object[] values = new Object[this.accessors.size()];
+    for (int i = 0; i < values.length; i++)
+    {
+      values[i] = invoke(this.accessors.get(i), object);
+    }
+    return Arrays.asList(values);
+  }
+
+  /**
+   * Gets the index key for the given method values, which must be provided
+   * in the same order as the index's methods.
+   */
+  public Object key(Object... values)
+  {
+    if (values.length != this.accessors.size())
+    {
+      throw new IllegalArgumentException("Expected " + this.accessors.size() 
+          + " values but received " + values.length + ".");
+    }
+    return (values.length == 1) 
+        ? values[0] 
+        : Arrays.asList(values);
+  }
+
+  /**
+   * Gets the identities of the entities with the given index key.  The
+   * returned set is immutable and is not affected by later changes to the
+   * index.
+   */
+  public TLongSet ids(Object key)
+  {
+    if (!this.loaded)
+    {
+      load();
+    }
+    final Object normalized = normalize(key);
+    if (normalized == MISMATCH)
+    {
+      return EMPTY_IDS;
+    }
+    final Bucket ids;
+    try
+    {
+      ids = this.idsByKey.get(nullSafe(normalized));
+    }
+    catch (ClassCastException e)
+    {
+      // An ordered index of a method declared to return a supertype, such
+      // as Object, given a value that its values cannot be compared to.
+      return EMPTY_IDS;
+    }
+    return (ids == null) 
+        ? EMPTY_IDS 
+        : ids.snapshot();
+  }
+
+  /**
+   * Determines whether the index's values are kept in order.
+   */
+  public boolean isOrdered()
+  {
+    return this.ordered;
+  }
+
+  /**
+   * Passes the identities of the entities whose values fall within a range
+   * to the given procedure, in the order of their values (and by identity
+   * for equal values), until the procedure returns false.  Null bounds are
+   * unbounded.  Only permitted for an ordered index.
+   *
+   * @return false if the procedure stopped the traversal.
+   */
+  public boolean forEachInRange(Object from, boolean fromInclusive, 
+      Object to, boolean toInclusive, boolean descending, 
+      TLongProcedure procedure)
+  {
+    NavigableMap<Object, Bucket> range = navigable().tailMap(NULL_KEY, false);
+    if (from != null)
+    {
+      range = range.tailMap(bound(from), fromInclusive);
+    }
+    if (to != null)
+    {
+      range = range.headMap(bound(to), toInclusive);
+    }
+    if (descending)
+    {
+      range = range.descendingMap();
+    }
+    for (Bucket ids : range.values())
+    {
+      if (!forEachSorted(ids.snapshot(), descending, procedure))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Passes the identities of the entities whose String values start with
+   * the given prefix to the given procedure, in the order of their values,
+   * until the procedure returns false.  Only permitted for an ordered index
+   * of a method returning String.
+   *
+   * @return false if the procedure stopped the traversal.
+   */
+  public boolean forEachWithPrefix(String prefix, TLongProcedure procedure)
+  {
+    final NavigableMap<Object, Bucket> map = navigable();
+    if (!this.keyTypes[0].isAssignableFrom(String.class))
+    {
+      throw new UnsupportedOperationException("Index " + name()
+          + " is not of String values.");
+    }
+    for (Map.Entry<Object, Bucket> entry 
+        : map.tailMap(prefix, true).entrySet())
+    {
+      if (!((String)entry.getKey()).startsWith(prefix))
+      {
+        break;
+      }
+      if (!forEachSorted(entry.getValue().snapshot(), false, procedure))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Iterates the identities of all indexed entities in the order of their
+   * values, including entities whose values are null, which come first in
+   * ascending order.  Entities with equal values are iterated by identity.
+   * The iteration is lazy and weakly consistent.  Only permitted for an 
+   * ordered index.
+   */
+  public PrimitiveIterator.OfLong iterator(boolean descending)
+  {
+    final NavigableMap<Object, Bucket> map = descending 
+        ? navigable().descendingMap() 
+        : navigable();
+    final Iterator<Bucket> buckets = map.values().iterator();
+    return new PrimitiveIterator.OfLong() {
+      private long[] bucket = new long[0];
+      private int position = 0;
+
+      @Override
+      public boolean hasNext()
+      {
+        while (this.position >= this.bucket.length)
+        {
+          if (!buckets.hasNext())
+          {
+            return false;
+          }
+          this.bucket = buckets.next().snapshot().toArray();
+          Arrays.sort(this.bucket);
+          this.position = 0;
+        }
+        return true;
+      }
+
+      @Override
+      public long nextLong()
+      {
+        if (!hasNext())
+        {
+          throw new NoSuchElementException();
+        }
+        final int index = this.position++;
+        return this.bucket[descending ? this.bucket.length - 1 - index : index];
+      }
+    };
+  }
+
+  /**
+   * Gets the built, ordered map of values to identities.
+   */
+  private NavigableMap<Object, Bucket> navigable()
+  {
+    if (!this.ordered)
+    {
+      throw new UnsupportedOperationException("Index " + name() 
+          + " is not ordered.");
+    }
+    if (!this.loaded)
+    {
+      load();
+    }
+    return (NavigableMap<Object, Bucket>)this.idsByKey;
+  }
+
+  /**
+   * Converts a lookup key to the types of the indexed methods' values.
+   * Returns MISMATCH if the key cannot equal any key in the index.
+   */
+  private Object normalize(Object key)
+  {
+    if (this.keyTypes.length == 1)
+    {
+      return normalize(key, this.keyTypes[0]);
+    }
+    if (!(key instanceof List) || ((List<?>)key).size() != this.keyTypes.length)
+    {
+      return MISMATCH;
+    }
+    final List<?> values = (List<?>)key;
+    Object[] normalized = null;
+    for (int i = 0; i < this.keyTypes.length; i++)
+    {
+      final Object value = normalize(values.get(i), this.keyTypes[i]);
+      if (value == MISMATCH)
+      {
+        return MISMATCH;
+      }
+      if (value != values.get(i) && normalized == null)
+      {
+        normalized = values.toArray();
+      }
+      if (normalized != null)
+      {
+        normalized[i] = value;
+      }
+    }
+    return (normalized == null)
+        ? key
+        : Arrays.asList(normalized);
+  }
+
+  /**
+   * Converts a bound of a range to the type of the indexed method's values.
+   */
+  private Object bound(Object value)
+  {
+    final Object normalized = normalize(value, this.keyTypes[0]);
+    if (normalized == MISMATCH)
+    {
+      throw new IllegalArgumentException(value + " is not comparable to the"
+          + " values of index " + name() + ".");
+    }
+    return normalized;
+  }
+
+  /**
+   * Converts a value to the given type, if it is not already of that type.
+   * Numbers are converted to other numeric types when the conversion is
+   * exact.  Returns MISMATCH if the value cannot equal any value of the
+   * type.
+   */
+  private static Object normalize(Object value, Class<?> type)
+  {
+    if (value == null || type.isInstance(value))
+    {
+      return value;
+    }
+    if (!(value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte
+        || value instanceof Double || value instanceof Float))
+    {
+      return MISMATCH;
+    }
+    final Number number = (Number)value;
+    if (type == Double.class)
+    {
+      return number.doubleValue();
+    }
+    if (type == Float.class)
+    {
+      return number.floatValue();
+    }
+    final long whole = number.longValue();
+    if ((value instanceof Double || value instanceof Float)
+        && whole != number.doubleValue())
+    {
+      return MISMATCH;
+    }
+    if (type == Long.class)
+    {
+      return whole;
+    }
+    if (type == Integer.class && (int)whole == whole)
+    {
+      return (int)whole;
+    }
+    if (type == Short.class && (short)whole == whole)
+    {
+      return (short)whole;
+    }
+    if (type == Byte.class && (byte)whole == whole)
+    {
+      return (byte)whole;
+    }
+    return MISMATCH;
+  }
+
+  /**
+   * Passes a set of identities to a procedure in sorted order.
+   */
+  private static boolean forEachSorted(TLongSet ids, boolean descending, 
+      TLongProcedure procedure)
+  {
+    final long[] sorted = ids.toArray();
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++)
+    {
+      if (!procedure.execute(sorted[descending ? sorted.length - 1 - i : i]))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Determines whether the index is currently built.
+   */
+  public boolean isLoaded()
+  {
+    return this.loaded;
+  }
+
+  /**
+   * Updates the index for an entity.  If the entity is null, the identity is
+   * removed from the index.  Does nothing if the index is not built.
+   */
+  public synchronized void update(long id, T object)
+  {
+    if (!this.loaded)
+    {
+      return;
+    }
+    final Object key = (object == null) 
+        ? null 
+        : nullSafe(keyOf(object));
+    if (this.keysById.containsKey(id))
+    {
+      final Object previous = this.keysById.get(id);
+      if (previous.equals(key))
+      {
+        return;
+      }
+      this.keysById.remove(id);
+      removeId(previous, id);
+    }
+    if (key != null)
+    {
+      this.keysById.put(id, key);
+      addId(key, id);
+    }
+  }
+
+  /**
+   * Removes an identity from the index.
+   */
+  public void delete(long id)
+  {
+    update(id, null);
+  }
+
+  /**
+   * Marks the index to be rebuilt on next use.
+   */
+  public synchronized void reset()
+  {
+    this.loaded = false;
+  }
+
+  /**
+   * Builds the index from the entities currently in the EntityStore, if it
+   * is not already built.
+   */
+  public synchronized void load()
+  {
+    if (this.loaded)
+    {
+      return;
+    }
+
+    final List<T> objects = this.store.list(this.type);
+    final TLongObjectMap<Object> keys = new TLongObjectHashMap<>(objects.size());
+    final Map<Object, Bucket> work = new HashMap<>();
+    for (T object : objects)
+    {
+      final Object key = nullSafe(keyOf(object));
+      keys.put(object.getId(), key);
+      work.computeIfAbsent(key, k -> new Bucket()).add(object.getId());
+    }
+    final ConcurrentMap<Object, Bucket> built = newKeyMap(work.size());
+    built.putAll(work);
+
+    this.keysById = keys;
+    this.idsByKey = built;
+    this.loaded = true;
+  }
+
+  /**
+   * Adds an identity to the set for a key.
+   */
+  private void addId(Object key, long id)
+  {
+    this.idsByKey.computeIfAbsent(key, k -> new Bucket()).add(id);
+  }
+
+  /**
+   * Removes an identity from the set for a key, and the key itself once it
+   * has no identities.
+   */
+  private void removeId(Object key, long id)
+  {
+    final Bucket current = this.idsByKey.get(key);
+    if (current != null && current.remove(id))
+    {
+      this.idsByKey.remove(key);
+    }
+  }
+
+  /**
+   * Creates an empty map of values to identities.
+   */
+  private ConcurrentMap<Object, Bucket> newKeyMap(int expectedSize)
+  {
+    return this.ordered
+        ? new ConcurrentSkipListMap<>(KEY_ORDER)
+        : new ConcurrentHashMap<>(Math.max(16, expectedSize * 2));
+  }
+
+  /**
+   * Substitutes a placeholder for null keys, which ConcurrentHashMap does
+   * not permit.
+   */
+  private static Object nullSafe(Object key)
+  {
+    return (key == null) 
+        ? NULL_KEY 
+        : key;
+  }
+
+  private static <T> Object invoke(Function<T, Object> accessor, T object)
+  {
+    try
+    {
+      return accessor.apply(object);
+    }
+    catch (RuntimeException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Compiles an accessor for a public, no-argument method.  Falls back to
+   * reflection if the method cannot be linked directly, for example because
+   * of class loader or module restrictions.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> Function<T, Object> compile(Method method)
+  {
+    try
+    {
+      final MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(
+          method.getDeclaringClass(), MethodHandles.lookup());
+      final MethodHandle handle = lookup.unreflect(method);
+      final CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+          MethodType.methodType(Function.class),
+          MethodType.methodType(Object.class, Object.class),
+          handle, handle.type().wrap());
+      return (Function<T, Object>)site.getTarget().invoke();
+    }
+    catch (Throwable t)
+    {
+      return object -> {
+        try
+        {
+          return method.invoke(object);
+        }
+        catch (IllegalAccessException | InvocationTargetException e)
+        {
+          return null;
+        }
+      };
+    }
+  }
+
+  /**
+   * Gets a test for the values of a method that matches what an index on
+   * the method would return when looked up with the given value, so that
+   * scans of unindexed methods agree with indexed lookups.  For example,
+   * the Integer 5 matches a long-returning method's value 5L.
+   *
+   * @param value the value on which to search.
+   * @param type the method's return type.
+   */
+  public static Predicate<Object> equalTo(Object value, Class<?> type)
+  {
+    final Object normalized = normalize(value, Primitives.wrap(type));
+    if (normalized == MISMATCH)
+    {
+      return methodValue -> false;
+    }
+    return methodValue -> Objects.equals(normalized, methodValue);
+  }
+
+  /**
+   * Converts a bound of a range to the type of a method's values, as an
+   * ordered index on the method would.
+   *
+   * @param value the bound, or null for none.
+   * @param type the method's return type.
+   * @throws IllegalArgumentException if the bound is not comparable to the
+   *         method's values.
+   */
+  public static Object bound(Object value, Class<?> type)
+  {
+    final Object normalized = normalize(value, Primitives.wrap(type));
+    if (normalized == MISMATCH)
+    {
+      throw new IllegalArgumentException(value + " is not comparable to the"
+          + " values of " + type.getSimpleName() + ".");
+    }
+    return normalized;
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * The identities of the entities with one index key.  The set is modified
+   * in place, and lookups share an immutable snapshot of it that is taken
+   * on the first lookup after a change.
+   */
+  private static final class Bucket
+  {
+    private final TLongSet    ids = new TLongHashSet(4);
+    private volatile TLongSet snapshot;
+
+    private synchronized void add(long id)
+    {
+      if (this.ids.add(id))
+      {
+        this.snapshot = null;
+      }
+    }
+
+    /**
+     * Removes an identity, returning true if the set is now empty.
+     */
+    private synchronized boolean remove(long id)
+    {
+      if (this.ids.remove(id))
+      {
+        this.snapshot = null;
+      }
+      return this.ids.isEmpty();
+    }
+
+    private TLongSet snapshot()
+    {
+      TLongSet current = this.snapshot;
+      if (current == null)
+      {
+        synchronized (this)
+        {
+          current = this.snapshot;
+          if (current == null)
+          {
+            current = TCollections.unmodifiableSet(new TLongHashSet(this.ids));
+            this.snapshot = current;
+          }
+        }
+      }
+      return current;
+    }
+  }
+
+}   // End MethodIndex.
@@ -27,14 +27,15 @@
 
 package com.techempower.cache;
 
+import gnu.trove.list.*;
+import gnu.trove.list.array.*;
 import gnu.trove.map.*;
-import gnu.trove.map.hash.*;
+import gnu.trove.procedure.*;
 import gnu.trove.set.*;
-import gnu.trove.set.hash.*;
 
-import java.lang.reflect.*;
 import java.util.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 import com.techempower.util.*;
 
@@ -52,20 +53,20 @@ import com.techempower.util.*;
  * for only {@code getFoo} gets populated.  If {@code getObjects} is never
  * called on method {@code getBar}, the cache for {@code getBar} is never
  * populated.
+ * <p>
+ * Each method (or combination of methods, for composite lookups) is held in
+ * its own {@link MethodIndex}.  Lookups do not lock, and updates to one
+ * method's index do not block reads or updates of another's.
  * 
  * @param <T> The type of objects whose values are being cached.
  */
 public class MethodValueCache<T extends Identifiable>
 {
   // Utility objects.
-  private final ReadWriteLock lock = new ReentrantReadWriteLock();
-  private final Map<String, Map<Object, TLongSet>> mapMethodNameToValueToIds
-      = new HashMap<>();
-  private final Map<String, TLongObjectMap<Object>> mapMethodNameToIdToValue
-      = new HashMap<>();
-  private final Map<String, Method> mapMethodNameToMethod 
-      = new HashMap<>();
-  private boolean loaded = false;
+  private final ConcurrentMap<String, MethodIndex<T>> indexes
+      = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Function<T, Object>> accessors
+      = new ConcurrentHashMap<>();
   
   // Assigned in the constructor.
   private final EntityStore cache;
@@ -90,37 +91,9 @@ public class MethodValueCache<T extends Identifiable>
    */
   public void delete(long id)
   {
-    // If the cache hasn't been loaded, there is nothing to delete.
-    if (!this.loaded)
-    {
-      return;
-    }
-
-    this.lock.writeLock().lock();
-    try
-    {
-      for (String methodName : this.mapMethodNameToMethod.keySet())
-      {
-        TLongObjectMap<Object> mapIdToValue = this.mapMethodNameToIdToValue.get(methodName);
-        Map<Object, TLongSet> mapValueToIds = this.mapMethodNameToValueToIds.get(methodName);
-        
-        Object value = mapIdToValue.get(id);
-
-        TLongSet ids = mapValueToIds.get(value);
-        if (ids != null)
-        {
-          ids.remove(id);
-          if (ids.isEmpty())
-          {
-            mapValueToIds.remove(value);
-          }
-        }
-        mapIdToValue.remove(id);
-      }
-    }
-    finally
+    for (MethodIndex<T> index : this.indexes.values())
     {
-      this.lock.writeLock().unlock();
+      index.delete(id);
     }
   }
   
@@ -137,47 +110,21 @@ public class MethodValueCache<T extends Identifiable>
    */
   public T getObject(String methodName, Object value)
   {
-    if (!this.loaded)
-    {
-      load();
-    }
-
-    this.lock.readLock().lock();
-    try
-    {
-      Map<Object, TLongSet> mapValueToIds = this.mapMethodNameToValueToIds.get(methodName);
-      
-      if (mapValueToIds != null)
-      {
-        // If we're here, then this method has been called before.
-        TLongSet ids = mapValueToIds.get(value);
-        
-        if (ids == null || ids.isEmpty())
-        {
-          return null;
-        }
-        
-        long id = ids.iterator().next();
-        return this.cache.get(this.type, id);
-      }
-    }
-    finally
-    {
-      this.lock.readLock().unlock();
-    }
-    
-    // If we're here, then this is the first time this method has been called.
-    this.lock.writeLock().lock();
-    try
-    {
-      addMethod(methodName);
-    }
-    finally
-    {
-      this.lock.writeLock().unlock();
-    }
-    
-    return getObject(methodName, value);
+    return first(getIds(methodName, value));
+  }
+  
+  /**
+   * Returns the entity who have the given values for the given methods.  If 
+   * no entities have those values, {@code null} is returned.  If more than 
+   * one entity has those values, the first one encountered is returned.
+   * 
+   * @param methodNames The names of the methods to call.
+   * @param values The desired values of the methods, in the same order.
+   * @return The first entity that has the given values.
+   */
+  public T getObject(String[] methodNames, Object[] values)
+  {
+    return first(getIds(methodNames, values));
   }
   
   /**
@@ -191,48 +138,122 @@ public class MethodValueCache<T extends Identifiable>
    */
   public List<T> getObjects(String methodName, Object value)
   {
-    if (!this.loaded)
-    {
-      load();
-    }
-
-    this.lock.readLock().lock();
-    try
-    {
-      Map<Object, TLongSet> mapValueToIds = this.mapMethodNameToValueToIds.get(methodName);
-      
-      if (mapValueToIds != null)
+    return all(getIds(methodName, value));
+  }
+  
+  /**
+   * Returns the entities who have the given values for the given methods.
+   * For example, if methodNames are "getCompanyId" and "isEnabled" and values
+   * are 5 and true, then each returned entity's getCompanyId() returns 5 and
+   * its isEnabled() returns true.
+   * 
+   * @param methodNames The names of the methods to call.
+   * @param values The desired values of the methods, in the same order.
+   * @return The entities that have the given values.
+   */
+  public List<T> getObjects(String[] methodNames, Object[] values)
+  {
+    return all(getIds(methodNames, values));
+  }
+  
+  /**
+   * Returns the ids of the entities who have the given value for the given
+   * method.  The returned set is read-only.
+   * 
+   * @param methodName The name of the method to call.
+   * @param value The desired value of the method.
+   * @return The ids of the entities that have the given value.
+   */
+  public TLongSet getIds(String methodName, Object value)
+  {
+    final MethodIndex<T> index = index(methodName);
+    return index.ids(index.key(value));
+  }
+  
+  /**
+   * Returns the ids of the entities who have the given values for the given
+   * methods.  The returned set is read-only.
+   * 
+   * @param methodNames The names of the methods to call.
+   * @param values The desired values of the methods, in the same order.
+   * @return The ids of the entities that have the given values.
+   */
+  public TLongSet getIds(String[] methodNames, Object[] values)
+  {
+    final MethodIndex<T> index = index(methodNames);
+    return index.ids(index.key(values));
+  }
+  
+  /**
+   * Returns the entities whose values for the given method fall within a
+   * range, in the order of those values.  The method must have an ordered
+   * index; see {@link com.techempower.cache.annotation.Indexed#ordered()}.
+   * 
+   * @param methodName The name of the method to call.
+   * @param from The lower bound, or null for no lower bound.
+   * @param fromInclusive Whether the lower bound is inclusive.
+   * @param to The upper bound, or null for no upper bound.
+   * @param toInclusive Whether the upper bound is inclusive.
+   * @param descending Whether to return the highest values first.
+   * @param limit The maximum number of entities to return.
+   * @return The entities whose values fall within the range.
+   */
+  public List<T> getRange(String methodName, Object from, 
+      boolean fromInclusive, Object to, boolean toInclusive, 
+      boolean descending, int limit)
+  {
+    final TLongList ids = new TLongArrayList();
+    index(methodName).forEachInRange(from, fromInclusive, to, 
+        toInclusive, descending, limited(ids, limit));
+    return inOrder(ids);
+  }
+  
+  /**
+   * Returns the entities whose String values for the given method start
+   * with the given prefix, in the order of those values.  The method must
+   * have an ordered index.
+   * 
+   * @param methodName The name of the method to call.
+   * @param prefix The desired prefix of the method's value.
+   * @param limit The maximum number of entities to return.
+   * @return The entities whose values start with the prefix.
+   */
+  public List<T> getPrefix(String methodName, String prefix, int limit)
+  {
+    final TLongList ids = new TLongArrayList();
+    index(methodName).forEachWithPrefix(prefix, limited(ids, limit));
+    return inOrder(ids);
+  }
+  
+  /**
+   * Gets the index for the given method.  The index is populated on first
+   * lookup.
+   * 
+   * @param methodName The name of the method.
+   */
+  public MethodIndex<T> getIndex(String methodName)
+  {
+    return index(methodName);
+  }
+  
+  /**
+   * Gets a compiled accessor for the given public, no-argument method, 
+   * whether or not the method is indexed.
+   * 
+   * @param methodName The name of the method.
+   */
+  public Function<T, Object> accessor(String methodName)
+  {
+    return this.accessors.computeIfAbsent(methodName, name -> {
+      try
       {
-        // If we're here, then this method has been called before.
-        TLongSet ids = mapValueToIds.get(value);
-        
-        if (ids == null || ids.isEmpty())
-        {
-          return new ArrayList<>(0);
-        }
-
-        // Provide the list of desired IDs to map() so that, if this is an EntityGroup, we can
-        // efficiently build all of them from a single query.
-        return new ArrayList<>(this.cache.map(this.type, ids.toArray()).valueCollection());
+        return MethodIndex.compile(this.type.getMethod(name));
       }
-    }
-    finally
-    {
-      this.lock.readLock().unlock();
-    }
-    
-    // If we're here, then this is the first time this method has been called.
-    this.lock.writeLock().lock();
-    try
-    {
-      addMethod(methodName);
-    }
-    finally
-    {
-      this.lock.writeLock().unlock();
-    }
-    
-    return getObjects(methodName, value);
+      catch (NoSuchMethodException e)
+      {
+        throw new IllegalArgumentException(e);
+      }
+    });
   }
   
   /**
@@ -240,20 +261,9 @@ public class MethodValueCache<T extends Identifiable>
    */
   public void reset()
   {
-    // If the cache hasn't been loaded, there is nothing to reset.
-    if (!this.loaded)
-    {
-      return;
-    }
-
-    this.lock.writeLock().lock();
-    try
+    for (MethodIndex<T> index : this.indexes.values())
     {
-      this.loaded = false;
-    }
-    finally
-    {
-      this.lock.writeLock().unlock();
+      index.reset();
     }
   }
   
@@ -264,53 +274,16 @@ public class MethodValueCache<T extends Identifiable>
    */
   public void update(long id)
   {
-    // If the cache hasn't been loaded, there is nothing to update.
-    if (!this.loaded)
+    // If no methods are indexed, there is nothing to update.
+    if (this.indexes.isEmpty())
     {
       return;
     }
 
-    this.lock.writeLock().lock();
-    try
+    final T object = this.cache.get(this.type, id);
+    for (MethodIndex<T> index : this.indexes.values())
     {
-      T object = this.cache.get(this.type, id);
-      
-      // Clear out the previous id/value mappings.
-      for (String methodName : this.mapMethodNameToMethod.keySet())
-      {
-        TLongObjectMap<Object> mapIdToValue = this.mapMethodNameToIdToValue.get(methodName);
-        Map<Object, TLongSet> mapValueToIds = this.mapMethodNameToValueToIds.get(methodName);
-        
-        Object oldValue = mapIdToValue.get(id);
-        TLongSet oldIds = mapValueToIds.get(oldValue);
-        if (oldIds != null)
-        {
-          oldIds.remove(id);
-          if (oldIds.isEmpty())
-          {
-            mapValueToIds.remove(oldValue);
-          }
-        }
-        mapIdToValue.remove(id);
-        
-        if (object != null)
-        {
-          // Add in the new id/value mapping.
-          Object newValue = invokeMethod(object, methodName);
-          mapIdToValue.put(id, newValue);
-          TLongSet ids = mapValueToIds.get(newValue);
-          if (ids == null)
-          {
-            ids = new TLongHashSet();
-            mapValueToIds.put(newValue, ids);
-          }
-          ids.add(id);
-        }
-      } 
-    }
-    finally
-    {
-      this.lock.writeLock().unlock();
+      index.update(id, object);
     }
   }
   
@@ -322,19 +295,36 @@ public class MethodValueCache<T extends Identifiable>
    */
   protected void addMethod(String methodName)
   {
-    try
-    {
-      Method method = this.type.getMethod(methodName);
-      this.mapMethodNameToMethod.put(methodName, method);
-      this.mapMethodNameToValueToIds.put(methodName, new HashMap<Object, TLongSet>());
-      this.mapMethodNameToIdToValue.put(methodName, new TLongObjectHashMap<>());
-      
-      indexMethod(methodName);
-    }
-    catch (NoSuchMethodException e)
-    {
-      throw new IllegalArgumentException(e);
-    }
+    index(methodName).load();
+  }
+  
+  /**
+   * Gets the index for the given method, creating it if this is the first
+   * time the method has been used.  The index is populated on first lookup.
+   * 
+   * @param methodName The name of the method to be stored.
+   */
+  MethodIndex<T> index(String methodName)
+  {
+    final MethodIndex<T> index = this.indexes.get(methodName);
+    return (index != null) 
+        ? index 
+        : index(new String[] { methodName });
+  }
+  
+  /**
+   * Gets the composite index for the given methods, creating it if this is 
+   * the first time the combination of methods has been used.
+   * 
+   * @param methodNames The names of the methods to be stored.
+   */
+  MethodIndex<T> index(String[] methodNames)
+  {
+    return this.indexes.computeIfAbsent(MethodIndex.name(methodNames), 
+        name -> new MethodIndex<>(this.cache, this.type, 
+            methodNames.length == 1 
+                && this.cache.isOrderedIndexed(this.type, methodNames[0]),
+            methodNames));
   }
 
   /**
@@ -344,43 +334,9 @@ public class MethodValueCache<T extends Identifiable>
    */
   protected void indexMethod(String methodName)
   {
-    TLongObjectMap<Object> mapIdToValue = this.mapMethodNameToIdToValue.get(methodName);
-    Map<Object, TLongSet> mapValueToIds = this.mapMethodNameToValueToIds.get(methodName);
-    
-    if (mapIdToValue == null)
-    {
-      mapIdToValue = new TLongObjectHashMap<>();
-      this.mapMethodNameToIdToValue.put(methodName, mapIdToValue);
-    }
-    else
-    {
-      mapIdToValue.clear();
-    }
-    
-    if (mapValueToIds == null)
-    {
-      mapValueToIds = new HashMap<>();
-      this.mapMethodNameToValueToIds.put(methodName, mapValueToIds);
-    }
-    else
-    {
-      mapValueToIds.clear();
-    }
-    
-    for (T object : this.cache.list(this.type))
-    {
-      Object value = invokeMethod(object, methodName);
-      long id = object.getId();
-      mapIdToValue.put(id, value);
-
-      TLongSet ids = mapValueToIds.get(value);
-      if (ids == null)
-      {
-        ids = new TLongHashSet();
-        mapValueToIds.put(value, ids);
-      }
-      ids.add(id);
-    }
+    final MethodIndex<T> index = index(methodName);
+    index.reset();
+    index.load();
   }
   
   /**
@@ -392,44 +348,82 @@ public class MethodValueCache<T extends Identifiable>
    */
   protected Object invokeMethod(T object, String methodName)
   {
-    try
-    {
-      return this.mapMethodNameToMethod.get(methodName).invoke(object);
-    }
-    catch (IllegalAccessException e)
+    return index(methodName).keyOf(object);
+  }
+  
+  /**
+   * Initializes this cache.  Queries all entities on each method that is 
+   * currently known by this cache.
+   */
+  protected void load()
+  {
+    for (MethodIndex<T> index : this.indexes.values())
     {
-      return null;
+      index.load();
     }
-    catch (InvocationTargetException e)
+  }
+  
+  /**
+   * Gets the entity for the first of the given ids.
+   */
+  private T first(TLongSet ids)
+  {
+    if (ids.isEmpty())
     {
       return null;
     }
+    return this.cache.get(this.type, ids.iterator().next());
   }
   
   /**
-   * Initializes this cache.  Queries all entities on each method that is 
-   * currently known by this cache.
+   * Gets a procedure that adds ids to a list until the list reaches the 
+   * given size.
    */
-  protected void load()
+  private static TLongProcedure limited(TLongList ids, int limit)
   {
-    this.lock.writeLock().lock();
-    try
-    {
-      if (this.loaded)
+    return id -> {
+      if (ids.size() >= limit)
       {
-        return;
+        return false;
       }
-      
-      for (String methodName : this.mapMethodNameToMethod.keySet())
+      ids.add(id);
+      return true;
+    };
+  }
+  
+  /**
+   * Gets the entities for the given ids, in the order of the ids.
+   */
+  private List<T> inOrder(TLongList ids)
+  {
+    final List<T> toReturn = new ArrayList<>(ids.size());
+    if (!ids.isEmpty())
+    {
+      final TLongObjectMap<T> objects = this.cache.map(this.type, ids.toArray());
+      for (int i = 0; i < ids.size(); i++)
       {
-        indexMethod(methodName);
+        final T object = objects.get(ids.get(i));
+        if (object != null)
+        {
+          toReturn.add(object);
+        }
       }
-      
-      this.loaded = true;
     }
-    finally
+    return toReturn;
+  }
+  
+  /**
+   * Gets the entities for the given ids.
+   */
+  private List<T> all(TLongSet ids)
+  {
+    if (ids.isEmpty())
     {
-      this.lock.writeLock().unlock();
+      return new ArrayList<>(0);
     }
+
+    // Provide the list of desired IDs to map() so that, if this is an EntityGroup, we can
+    // efficiently build all of them from a single query.
+    return new ArrayList<>(this.cache.map(this.type, ids.toArray()).valueCollection());
   }
 }
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import java.util.*;
+
+import com.techempower.data.*;
+import com.techempower.util.*;
+
+/**
+ * A CacheGroup that holds its entities off of the Java heap, in an 
+ * {@link OffHeapCacheStorage}.  Each row is encoded into a compact binary
+ * record using the group's column-to-method mappings, and entities are 
+ * materialized from their records when read.  Suited to very large, 
+ * read-mostly groups of small entities (postal codes, SKUs, geographic
+ * tables and the like) whose on-heap representation would otherwise
+ * dominate the old generation and lengthen garbage collection pauses.
+ *   <p>
+ * The usual EntityGroup API is retained, with these differences:
+ * <ul>
+ *   <li>Every get() returns a newly materialized instance, so entities must
+ *       not be compared by identity, and changes to an entity are not
+ *       visible to the cache until it is put.</li>
+ *   <li>Only the identity and the fields mapped to columns of the table are
+ *       retained, exactly as when an entity is made from a row.</li>
+ *   <li>No sorted list is kept on the heap.  list() materializes and sorts
+ *       the entities on each call, so it is comparatively expensive.</li>
+ * </ul>
+ */
+public class OffHeapCacheGroup<T extends Identifiable>
+     extends CacheGroup<T>
+{
+
+  //
+  // Member variables.
+  //
+
+  private final Comparator<? super T> listComparator;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.
+   */
+  protected OffHeapCacheGroup(EntityStore entityStore,
+      Class<T> type, 
+      String table, 
+      String id, 
+      EntityMaker<T> maker, 
+      Comparator<? super T> comparator,
+      String where, 
+      String[] whereArguments,
+      boolean readOnly,
+      boolean distribute)
+  {
+    // The sorted list is disabled in the superclass and the comparator is
+    // applied by list() instead.
+    super(entityStore, type, table, id, maker, EntityGroup.NO_COMPARATOR,
+        where, whereArguments, readOnly, distribute);
+    this.listComparator = (comparator == null)
+        ? EntityGroup.defaultComparator(type)
+        : comparator;
+  }
+
+  /**
+   * Creates a new {@link Builder}, which is used to construct an
+   * {@link OffHeapCacheGroup}.  Example usage:
+   * 
+   * <pre>
+   * register(OffHeapCacheGroup.of(PostalCode.class)
+   *     .readOnly()
+   * ); 
+   * </pre>
+   * 
+   * @param type The type of the entities.
+   * @return A new {@link Builder}.
+   */
+  public static <T extends Identifiable> Builder<T> of(Class<T> type)
+  {
+    return new Builder<>(type);
+  }
+
+  /**
+   * Materializes the entities and sorts them using the group's 
+   * comparator.
+   */
+  @Override
+  public List<T> list()
+  {
+    final List<T> result = super.list();
+    if (this.listComparator != EntityGroup.NO_COMPARATOR)
+    {
+      result.sort(this.listComparator);
+    }
+    return result;
+  }
+
+  /**
+   * Creates off-heap storage.  The record codec is bound to the table when
+   * the first entity is stored.
+   */
+  @Override
+  protected CacheStorage<T> newStorage(int expectedSize)
+  {
+    return new OffHeapCacheStorage<>(this::newRecordCodec, expectedSize);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "OffHeapCacheGroup [" + name() + "; ro: " + this.readOnly() + "; distribute: " + this.distribute() + "]";
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * Creates new instances of {@code OffHeapCacheGroup}.  The storage 
+   * option does not apply and is ignored.
+   */
+  public static class Builder<T extends Identifiable>
+      extends CacheGroup.Builder<T>
+  {
+    protected Builder(Class<T> type)
+    {
+      super(type);
+    }
+
+    @Override
+    public OffHeapCacheGroup<T> build(EntityStore entityStore)
+    {
+      if (entityStore == null)
+      {
+        throw new NullPointerException();
+      }
+
+      final OffHeapCacheGroup<T> group = new OffHeapCacheGroup<>(
+          entityStore,
+          this.type,
+          this.table,
+          this.id,
+          this.maker,
+          this.comparator,
+          this.where,
+          this.whereArguments,
+          this.readOnly,
+          this.distribute);
+      group.setBackgroundReset(this.backgroundReset);
+      group.setDeltaColumn(this.deltaColumn);
+      group.setVersioned(this.versioned);
+      return group;
+    }
+
+    @Override
+    public Builder<T> table(String tableName)
+    {
+      super.table(tableName);
+      return this;
+    }
+
+    @Override
+    public Builder<T> id(String idFieldName)
+    {
+      super.id(idFieldName);
+      return this;
+    }
+    
+    @Override
+    public Builder<T> readOnly()
+    {
+      super.readOnly();
+      return this;
+    }
+
+    @Override
+    public Builder<T> distribute(boolean distribute)
+    {
+      super.distribute(distribute);
+      return this;
+    }
+
+    @Override
+    public Builder<T> versioned(boolean versioned)
+    {
+      super.versioned(versioned);
+      return this;
+    }
+
+    @Override
+    public Builder<T> maker(EntityMaker<T> entityMaker)
+    {
+      super.maker(entityMaker);
+      return this;
+    }
+
+    @Override
+    public Builder<T> comparator(Comparator<? super T> entityComparator)
+    {
+      super.comparator(entityComparator);
+      return this;
+    }
+
+    @Override
+    public Builder<T> comparator(String methodName)
+    {
+      super.comparator(methodName); 
+      return this;
+    }
+
+    @Override
+    public Builder<T> where(String whereClause, String... arguments)
+    {
+      super.where(whereClause, arguments);
+      return this;
+    }
+
+    @Override
+    public Builder<T> constructorArgs(Object... arguments)
+    {
+      super.constructorArgs(arguments);
+      return this;
+    }
+
+    @Override
+    public Builder<T> backgroundReset(boolean background)
+    {
+      super.backgroundReset(background);
+      return this;
+    }
+
+    @Override
+    public Builder<T> deltaColumn(String column)
+    {
+      super.deltaColumn(column);
+      return this;
+    }
+
+  } // End Builder.
+
+}   // End OffHeapCacheGroup.
@@ -0,0 +1,676 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+import com.techempower.util.*;
+
+/**
+ * A CacheStorage that keeps entities outside of the Java heap.  Each entity
+ * is encoded by an {@link EntityRecordCodec} into a record appended to one
+ * of a series of direct ByteBuffer segments, and the identity-to-record 
+ * index is itself an open-addressing table in a direct buffer.  The heap
+ * therefore holds only a handful of objects per storage regardless of the
+ * number of entities, which keeps very large groups out of the old
+ * generation and off the garbage collector's books.
+ *   <p>
+ * Entities are materialized on each read: get(id) decodes a new instance
+ * every time it is called, so callers must not rely on identity, and 
+ * changes made to a returned entity are not seen by the storage until the
+ * entity is put again.  This suits large, read-mostly groups such as 
+ * reference tables.
+ *   <p>
+ * Reads are lock-free in the common case, using optimistic reads of a
+ * StampedLock.  Records are never modified in place; replaced and removed
+ * records are reclaimed by compacting into fresh segments once they make up
+ * more than half of the used space.
+ */
+public class OffHeapCacheStorage<T extends Identifiable>
+  implements CacheStorage<T>
+{
+
+  //
+  // Constants.
+  //
+
+  private static final int  MINIMUM_SEGMENT_SIZE = 64 * 1024;
+  private static final int  MAXIMUM_SEGMENT_SIZE = 8 * 1024 * 1024;
+  private static final int  MINIMUM_CAPACITY     = 16;
+  private static final int  COMPACTION_THRESHOLD = 1024 * 1024;
+  private static final long NONE                 = -1L;
+  private static final long FREE                 = 0L;
+  private static final int  RECORD_HEADER        = 4;
+  private static final int  INITIAL_SCRATCH      = 256;
+
+  //
+  // Member variables.
+  //
+
+  private final StampedLock                    lock = new StampedLock();
+  private final Supplier<EntityRecordCodec<T>> codecSource;
+  private volatile EntityRecordCodec<T>        codec;
+  private ByteBuffer[]                         segments = new ByteBuffer[0];
+  private LongBuffer                           index;
+  private int                                  capacity;
+  private int                                  size;
+  private long                                 zeroLocator = NONE;
+  private long                                 usedBytes;
+  private long                                 liveBytes;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.
+   *
+   * @param codecSource provides the codec on first use.  The codec is
+   *        resolved lazily because binding it may require the database.
+   * @param expectedSize the expected number of entities.
+   */
+  public OffHeapCacheStorage(Supplier<EntityRecordCodec<T>> codecSource, 
+      int expectedSize)
+  {
+    this.codecSource = codecSource;
+    this.capacity = capacityFor(expectedSize);
+    this.index = allocateIndex(this.capacity);
+  }
+
+  @Override
+  public T get(long id)
+  {
+    long stamp = this.lock.tryOptimisticRead();
+    ByteBuffer[] currentSegments = this.segments;
+    long locator = locate(id);
+    if (!this.lock.validate(stamp))
+    {
+      stamp = this.lock.readLock();
+      try
+      {
+        currentSegments = this.segments;
+        locator = locate(id);
+      }
+      finally
+      {
+        this.lock.unlockRead(stamp);
+      }
+    }
+    return locator == NONE ? null : decode(currentSegments, locator);
+  }
+
+  @Override
+  public T put(T object)
+  {
+    final byte[] record = encode(object);
+    final long id = object.getId();
+    final long stamp = this.lock.writeLock();
+    try
+    {
+      final long previous = store(id, append(record));
+      final T toReturn = previous == NONE 
+          ? null 
+          : decode(this.segments, previous);
+      release(previous);
+      return toReturn;
+    }
+    finally
+    {
+      this.lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public T remove(long id)
+  {
+    final long stamp = this.lock.writeLock();
+    try
+    {
+      final long previous = delete(id);
+      final T toReturn = previous == NONE 
+          ? null 
+          : decode(this.segments, previous);
+      release(previous);
+      return toReturn;
+    }
+    finally
+    {
+      this.lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public boolean containsKey(long id)
+  {
+    long stamp = this.lock.tryOptimisticRead();
+    boolean found = locate(id) != NONE;
+    if (!this.lock.validate(stamp))
+    {
+      stamp = this.lock.readLock();
+      try
+      {
+        found = locate(id) != NONE;
+      }
+      finally
+      {
+        this.lock.unlockRead(stamp);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Entities are materialized on read and have no stable identity, so this
+   * checks only whether an entity with the same identity is present.
+   */
+  @Override
+  public boolean containsValue(Identifiable object)
+  {
+    return object != null && containsKey(object.getId());
+  }
+
+  @Override
+  public int size()
+  {
+    final long stamp = this.lock.readLock();
+    try
+    {
+      return this.size;
+    }
+    finally
+    {
+      this.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Returns a collection over the entities present when this method was
+   * called, which are materialized as they are iterated.  Entities removed
+   * in the meantime are skipped.
+   */
+  @Override
+  public Collection<T> values()
+  {
+    final long[] ids = ids();
+    return new AbstractCollection<T>() {
+      @Override
+      public Iterator<T> iterator()
+      {
+        return new Iterator<T>() {
+          private int position = 0;
+          private T next = advance();
+
+          private T advance()
+          {
+            while (this.position < ids.length)
+            {
+              final T object = get(ids[this.position++]);
+              if (object != null)
+              {
+                return object;
+              }
+            }
+            return null;
+          }
+
+          @Override
+          public boolean hasNext()
+          {
+            return this.next != null;
+          }
+
+          @Override
+          public T next()
+          {
+            if (this.next == null)
+            {
+              throw new NoSuchElementException();
+            }
+            final T toReturn = this.next;
+            this.next = advance();
+            return toReturn;
+          }
+        };
+      }
+
+      @Override
+      public int size()
+      {
+        return ids.length;
+      }
+    };
+  }
+
+  /**
+   * Returns a copy of the stored entities, all of which are materialized.
+   */
+  @Override
+  public TLongObjectMap<T> map()
+  {
+    final long[] ids = ids();
+    final TLongObjectMap<T> toReturn = new TLongObjectHashMap<>(ids.length);
+    for (long id : ids)
+    {
+      final T object = get(id);
+      if (object != null)
+      {
+        toReturn.put(id, object);
+      }
+    }
+    return toReturn;
+  }
+
+  /**
+   * Gets the number of bytes of direct memory allocated by this storage.
+   */
+  public long allocatedBytes()
+  {
+    final long stamp = this.lock.readLock();
+    try
+    {
+      long total = (long)this.capacity * 2 * Long.BYTES;
+      for (ByteBuffer segment : this.segments)
+      {
+        total += segment.capacity();
+      }
+      return total;
+    }
+    finally
+    {
+      this.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Gets the identities of the stored entities.
+   */
+  private long[] ids()
+  {
+    final long stamp = this.lock.readLock();
+    try
+    {
+      final long[] ids = new long[this.size];
+      int count = 0;
+      if (this.zeroLocator != NONE)
+      {
+        ids[count++] = FREE;
+      }
+      for (int slot = 0; slot < this.capacity; slot++)
+      {
+        final long key = this.index.get(slot * 2);
+        if (key != FREE)
+        {
+          ids[count++] = key;
+        }
+      }
+      return ids;
+    }
+    finally
+    {
+      this.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Gets the codec, resolving it on first use.
+   */
+  private EntityRecordCodec<T> codec()
+  {
+    EntityRecordCodec<T> result = this.codec;
+    if (result == null)
+    {
+      synchronized (this)
+      {
+        result = this.codec;
+        if (result == null)
+        {
+          result = this.codecSource.get();
+          this.codec = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Encodes an entity into a record, including its length header.
+   */
+  private byte[] encode(T object)
+  {
+    final EntityRecordCodec<T> recordCodec = codec();
+    int length = INITIAL_SCRATCH;
+    while (true)
+    {
+      final ByteBuffer scratch = ByteBuffer.allocate(length);
+      scratch.position(RECORD_HEADER);
+      try
+      {
+        recordCodec.write(object, scratch);
+        scratch.putInt(0, scratch.position() - RECORD_HEADER);
+        return Arrays.copyOf(scratch.array(), scratch.position());
+      }
+      catch (BufferOverflowException exc)
+      {
+        length *= 2;
+      }
+    }
+  }
+
+  /**
+   * Decodes the record at a locator.  Records are immutable once written,
+   * so this may be done outside of the lock.
+   */
+  private T decode(ByteBuffer[] currentSegments, long locator)
+  {
+    final ByteBuffer in = currentSegments[(int)(locator >>> 32)].duplicate();
+    final int offset = (int)locator;
+    final int length = in.getInt(offset);
+    in.limit(offset + RECORD_HEADER + length).position(offset + RECORD_HEADER);
+    return codec().read(in);
+  }
+
+  /**
+   * Appends a record to the last segment, adding a segment if necessary, 
+   * and returns its locator.  Called under the write lock.
+   */
+  private long append(byte[] record)
+  {
+    ByteBuffer segment = this.segments.length > 0
+        ? this.segments[this.segments.length - 1]
+        : null;
+    if (segment == null || segment.remaining() < record.length)
+    {
+      final int segmentSize = (int)Math.max(record.length, 
+          Math.min(MAXIMUM_SEGMENT_SIZE, 
+              Math.max(MINIMUM_SEGMENT_SIZE, this.usedBytes)));
+      segment = ByteBuffer.allocateDirect(segmentSize);
+      final ByteBuffer[] grown = Arrays.copyOf(this.segments, 
+          this.segments.length + 1);
+      grown[grown.length - 1] = segment;
+      this.segments = grown;
+    }
+    final long locator = ((long)(this.segments.length - 1) << 32) 
+        | segment.position();
+    segment.put(record);
+    this.usedBytes += record.length;
+    this.liveBytes += record.length;
+    return locator;
+  }
+
+  /**
+   * Accounts for a record that is no longer referenced, compacting the
+   * segments if enough space has been wasted.  Called under the write lock.
+   */
+  private void release(long locator)
+  {
+    if (locator == NONE)
+    {
+      return;
+    }
+    final ByteBuffer segment = this.segments[(int)(locator >>> 32)];
+    this.liveBytes -= RECORD_HEADER + segment.getInt((int)locator);
+    if (this.usedBytes > COMPACTION_THRESHOLD 
+        && this.liveBytes < this.usedBytes / 2)
+    {
+      compact();
+    }
+  }
+
+  /**
+   * Copies the live records into new segments.  Readers holding the old
+   * segments may continue to decode from them.  Called under the write 
+   * lock.
+   */
+  private void compact()
+  {
+    final ByteBuffer[] old = this.segments;
+    this.segments = new ByteBuffer[0];
+    this.usedBytes = 0;
+    this.liveBytes = 0;
+    if (this.zeroLocator != NONE)
+    {
+      this.zeroLocator = append(copy(old, this.zeroLocator));
+    }
+    for (int slot = 0; slot < this.capacity; slot++)
+    {
+      if (this.index.get(slot * 2) != FREE)
+      {
+        final long locator = this.index.get(slot * 2 + 1);
+        this.index.put(slot * 2 + 1, append(copy(old, locator)));
+      }
+    }
+  }
+
+  /**
+   * Copies a record, including its header, out of a segment.
+   */
+  private static byte[] copy(ByteBuffer[] from, long locator)
+  {
+    final ByteBuffer in = from[(int)(locator >>> 32)].duplicate();
+    final int offset = (int)locator;
+    final byte[] record = new byte[RECORD_HEADER + in.getInt(offset)];
+    in.position(offset);
+    in.get(record);
+    return record;
+  }
+
+  /**
+   * Finds the locator for an identity, or NONE.  May be called during an
+   * optimistic read, so the probe is bounded and must tolerate a table that
+   * is being modified.
+   */
+  private long locate(long id)
+  {
+    if (id == FREE)
+    {
+      return this.zeroLocator;
+    }
+    final LongBuffer table = this.index;
+    final int mask = (table.capacity() / 2) - 1;
+    int slot = hash(id) & mask;
+    for (int probes = 0; probes <= mask; probes++)
+    {
+      final long key = table.get(slot * 2);
+      if (key == id)
+      {
+        return table.get(slot * 2 + 1);
+      }
+      if (key == FREE)
+      {
+        return NONE;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NONE;
+  }
+
+  /**
+   * Stores a locator for an identity, returning the previous locator or
+   * NONE.  Called under the write lock.
+   */
+  private long store(long id, long locator)
+  {
+    if (id == FREE)
+    {
+      final long previous = this.zeroLocator;
+      this.zeroLocator = locator;
+      if (previous == NONE)
+      {
+        this.size++;
+      }
+      return previous;
+    }
+    if ((this.size + 1) * 2 > this.capacity)
+    {
+      resize(this.capacity * 2);
+    }
+    final int mask = this.capacity - 1;
+    int slot = hash(id) & mask;
+    while (true)
+    {
+      final long key = this.index.get(slot * 2);
+      if (key == id)
+      {
+        final long previous = this.index.get(slot * 2 + 1);
+        this.index.put(slot * 2 + 1, locator);
+        return previous;
+      }
+      if (key == FREE)
+      {
+        this.index.put(slot * 2 + 1, locator);
+        this.index.put(slot * 2, id);
+        this.size++;
+        return NONE;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Removes an identity, returning its locator or NONE.  Uses backward-
+   * shift deletion so that no tombstones are needed.  Called under the
+   * write lock.
+   */
+  private long delete(long id)
+  {
+    if (id == FREE)
+    {
+      final long previous = this.zeroLocator;
+      this.zeroLocator = NONE;
+      if (previous != NONE)
+      {
+        this.size--;
+      }
+      return previous;
+    }
+    final int mask = this.capacity - 1;
+    int slot = hash(id) & mask;
+    while (true)
+    {
+      final long key = this.index.get(slot * 2);
+      if (key == FREE)
+      {
+        return NONE;
+      }
+      if (key == id)
+      {
+        break;
+      }
+      slot = (slot + 1) & mask;
+    }
+    final long previous = this.index.get(slot * 2 + 1);
+
+    // Shift subsequent entries of the probe run back into the gap.
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (true)
+    {
+      final long key = this.index.get(next * 2);
+      if (key == FREE)
+      {
+        break;
+      }
+      final int home = hash(key) & mask;
+      if (((next - home) & mask) >= ((next - gap) & mask))
+      {
+        this.index.put(gap * 2, key);
+        this.index.put(gap * 2 + 1, this.index.get(next * 2 + 1));
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    this.index.put(gap * 2, FREE);
+    this.index.put(gap * 2 + 1, FREE);
+    this.size--;
+    return previous;
+  }
+
+  /**
+   * Rehashes the index into a larger table.  Called under the write lock.
+   */
+  private void resize(int newCapacity)
+  {
+    final LongBuffer old = this.index;
+    final int oldCapacity = this.capacity;
+    final LongBuffer table = allocateIndex(newCapacity);
+    final int mask = newCapacity - 1;
+    for (int i = 0; i < oldCapacity; i++)
+    {
+      final long key = old.get(i * 2);
+      if (key != FREE)
+      {
+        int slot = hash(key) & mask;
+        while (table.get(slot * 2) != FREE)
+        {
+          slot = (slot + 1) & mask;
+        }
+        table.put(slot * 2, key);
+        table.put(slot * 2 + 1, old.get(i * 2 + 1));
+      }
+    }
+    this.index = table;
+    this.capacity = newCapacity;
+  }
+
+  /**
+   * Allocates an empty index of key and locator pairs.
+   */
+  private static LongBuffer allocateIndex(int capacity)
+  {
+    return ByteBuffer.allocateDirect(capacity * 2 * Long.BYTES)
+        .order(ByteOrder.nativeOrder())
+        .asLongBuffer();
+  }
+
+  /**
+   * Computes an index capacity, a power of two, that holds the expected
+   * number of entities at no more than half load.
+   */
+  private static int capacityFor(int expectedSize)
+  {
+    final int minimum = Math.max(MINIMUM_CAPACITY, Math.max(expectedSize, 0) * 2);
+    return Integer.highestOneBit(minimum - 1) << 1;
+  }
+
+  /**
+   * Spreads the bits of an identity.
+   */
+  private static int hash(long id)
+  {
+    long h = id * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+}   // End OffHeapCacheStorage.
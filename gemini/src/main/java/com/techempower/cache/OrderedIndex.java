@@ -0,0 +1,545 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+
+import java.util.*;
+
+import com.techempower.util.*;
+
+/**
+ * Maintains entities in the order defined by a Comparator, as used by
+ * CacheGroups to provide their sorted lists.  Ties in the Comparator are
+ * broken by identity so that the order is total.
+ *   <p>
+ * The entities are held in a persistent (path-copying) AVL tree whose root
+ * is published through a volatile field.  Reads never block: list() captures
+ * the current root and returns an immutable List over it in constant time.
+ * Writes are serialized and cost O(log n) each.
+ *   <p>
+ * Because entities are commonly modified in place before being reordered,
+ * the tree is not searched with the Comparator when locating an existing
+ * entity.  Instead, each entity is assigned a numeric label when inserted,
+ * with labels increasing in sorted order, and the tree is keyed by label.
+ * A new entity's label is chosen between those of its neighbors; in the
+ * rare case that no label remains between them, all entities are relabeled
+ * in a single O(n) pass.
+ */
+public class OrderedIndex<T extends Identifiable>
+{
+
+  //
+  // Constants.
+  //
+
+  private static final long LABEL_GAP = 1L << 32;
+
+  //
+  // Member variables.
+  //
+
+  private final Comparator<? super T> comparator;
+  private final TLongLongMap          labels = new TLongLongHashMap();
+  private volatile Node<T>            root;
+
+  //
+  // Member methods.
+  //
+
+  /**
+   * Constructor.  Creates an empty index.
+   */
+  public OrderedIndex(Comparator<? super T> comparator)
+  {
+    this.comparator = comparator;
+  }
+
+  /**
+   * Constructor.  Creates an index holding the provided entities.
+   */
+  public OrderedIndex(Comparator<? super T> comparator, Collection<T> objects)
+  {
+    this(comparator);
+
+    // Retain only the last entity provided for each identity.
+    final TLongObjectMap<T> unique = new TLongObjectHashMap<>(objects.size());
+    for (T object : objects)
+    {
+      unique.put(object.getId(), object);
+    }
+    final List<T> sorted = new ArrayList<>(unique.size() == objects.size() 
+        ? objects 
+        : unique.valueCollection());
+    sorted.sort(this::compare);
+    build(sorted);
+  }
+
+  /**
+   * Gets an immutable snapshot of the entities, in order.  The snapshot is
+   * not affected by subsequent changes to the index.
+   */
+  public List<T> list()
+  {
+    return new Snapshot<>(this.root);
+  }
+
+  /**
+   * Gets the number of entities in the index.
+   */
+  public int size()
+  {
+    return size(this.root);
+  }
+
+  /**
+   * Adds an entity at its sorted position, replacing any entity with the
+   * same identity.
+   */
+  public synchronized void add(T object)
+  {
+    remove(object.getId());
+    if (!insert(object))
+    {
+      relabel();
+      insert(object);
+    }
+  }
+
+  /**
+   * Removes the entity with the given identity, returning it if present.
+   */
+  public synchronized T remove(long id)
+  {
+    if (!this.labels.containsKey(id))
+    {
+      return null;
+    }
+    final long label = this.labels.remove(id);
+    final Node<T> current = this.root;
+    final T removed = nodeAt(current, rankOf(current, label)).value;
+    this.root = delete(current, label);
+    return removed;
+  }
+
+  /**
+   * Moves the entity with the given identity to its correct position if
+   * changes to the entity have left it out of order.  Returns true if the
+   * entity was moved.
+   */
+  public synchronized boolean reorder(long id)
+  {
+    if (!this.labels.containsKey(id))
+    {
+      return false;
+    }
+    final Node<T> current = this.root;
+    final int rank = rankOf(current, this.labels.get(id));
+    final T object = nodeAt(current, rank).value;
+    final T previous = (rank == 0) 
+        ? null 
+        : nodeAt(current, rank - 1).value;
+    final T next = (rank == size(current) - 1) 
+        ? null 
+        : nodeAt(current, rank + 1).value;
+    if ((previous == null || compare(previous, object) < 0)
+        && (next == null || compare(object, next) < 0))
+    {
+      return false;
+    }
+    add(object);
+    return true;
+  }
+
+  /**
+   * Compares two entities, breaking ties by identity.
+   */
+  private int compare(T first, T second)
+  {
+    final int result = this.comparator.compare(first, second);
+    return (result != 0) 
+        ? result 
+        : Long.compare(first.getId(), second.getId());
+  }
+
+  /**
+   * Inserts an entity that is not in the index, returning false if no label
+   * is available at its position.
+   */
+  private boolean insert(T object)
+  {
+    final Node<T> current = this.root;
+
+    // Find the number of entities that sort before this one.
+    int rank = 0;
+    Node<T> node = current;
+    while (node != null)
+    {
+      if (compare(object, node.value) < 0)
+      {
+        node = node.left;
+      }
+      else
+      {
+        rank += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+
+    final Node<T> previous = (rank == 0) 
+        ? null 
+        : nodeAt(current, rank - 1);
+    final Node<T> next = (rank == size(current)) 
+        ? null 
+        : nodeAt(current, rank);
+    final long label;
+    if (previous == null && next == null)
+    {
+      label = 0L;
+    }
+    else if (previous == null)
+    {
+      if (next.label < Long.MIN_VALUE + LABEL_GAP)
+      {
+        return false;
+      }
+      label = next.label - LABEL_GAP;
+    }
+    else if (next == null)
+    {
+      if (previous.label > Long.MAX_VALUE - LABEL_GAP)
+      {
+        return false;
+      }
+      label = previous.label + LABEL_GAP;
+    }
+    else
+    {
+      // Overflow-safe midpoint.
+      label = (previous.label >> 1) + (next.label >> 1) 
+          + (previous.label & next.label & 1);
+      if (label <= previous.label || label >= next.label)
+      {
+        return false;
+      }
+    }
+
+    this.labels.put(object.getId(), label);
+    this.root = insert(current, object, label);
+    return true;
+  }
+
+  /**
+   * Rebuilds the tree with evenly spaced labels.
+   */
+  private void relabel()
+  {
+    build(new Snapshot<>(this.root));
+  }
+
+  /**
+   * Replaces the contents of the index with the provided, sorted entities.
+   */
+  private void build(List<T> sorted)
+  {
+    final int count = sorted.size();
+    final long gap = Math.min(LABEL_GAP, Long.MAX_VALUE / (count + 1));
+    final Object[] values = sorted.toArray();
+    this.labels.clear();
+    for (int i = 0; i < count; i++)
+    {
+      this.labels.put(((Identifiable)values[i]).getId(), i * gap);
+    }
+    this.root = build(values, 0, count, gap);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Node<T> build(Object[] values, int from, int to, 
+      long gap)
+  {
+    if (from >= to)
+    {
+      return null;
+    }
+    final int middle = (from + to) >>> 1;
+    return node((T)values[middle], middle * gap,
+        build(values, from, middle, gap), 
+        build(values, middle + 1, to, gap));
+  }
+
+  private static int size(Node<?> node)
+  {
+    return (node == null) ? 0 : node.size;
+  }
+
+  private static int height(Node<?> node)
+  {
+    return (node == null) ? 0 : node.height;
+  }
+
+  private static <T> Node<T> node(T value, long label, Node<T> left, 
+      Node<T> right)
+  {
+    return new Node<>(value, label, left, right);
+  }
+
+  /**
+   * Gets the node at the given position in sorted order.
+   */
+  private static <T> Node<T> nodeAt(Node<T> root, int index)
+  {
+    Node<T> node = root;
+    int remaining = index;
+    while (true)
+    {
+      final int leftSize = size(node.left);
+      if (remaining < leftSize)
+      {
+        node = node.left;
+      }
+      else if (remaining > leftSize)
+      {
+        remaining -= leftSize + 1;
+        node = node.right;
+      }
+      else
+      {
+        return node;
+      }
+    }
+  }
+
+  /**
+   * Gets the position in sorted order of the node with the given label.
+   */
+  private static int rankOf(Node<?> root, long label)
+  {
+    Node<?> node = root;
+    int rank = 0;
+    while (node.label != label)
+    {
+      if (label < node.label)
+      {
+        node = node.left;
+      }
+      else
+      {
+        rank += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    return rank + size(node.left);
+  }
+
+  private static <T> Node<T> insert(Node<T> node, T value, long label)
+  {
+    if (node == null)
+    {
+      return node(value, label, null, null);
+    }
+    if (label < node.label)
+    {
+      return balance(node.value, node.label, 
+          insert(node.left, value, label), node.right);
+    }
+    return balance(node.value, node.label, 
+        node.left, insert(node.right, value, label));
+  }
+
+  private static <T> Node<T> delete(Node<T> node, long label)
+  {
+    if (label < node.label)
+    {
+      return balance(node.value, node.label, 
+          delete(node.left, label), node.right);
+    }
+    if (label > node.label)
+    {
+      return balance(node.value, node.label, 
+          node.left, delete(node.right, label));
+    }
+    if (node.left == null)
+    {
+      return node.right;
+    }
+    if (node.right == null)
+    {
+      return node.left;
+    }
+    Node<T> successor = node.right;
+    while (successor.left != null)
+    {
+      successor = successor.left;
+    }
+    return balance(successor.value, successor.label, 
+        node.left, deleteFirst(node.right));
+  }
+
+  private static <T> Node<T> deleteFirst(Node<T> node)
+  {
+    if (node.left == null)
+    {
+      return node.right;
+    }
+    return balance(node.value, node.label, deleteFirst(node.left), node.right);
+  }
+
+  /**
+   * Creates a node, applying AVL rotations if its subtrees' heights differ
+   * by more than one.
+   */
+  private static <T> Node<T> balance(T value, long label, Node<T> left, 
+      Node<T> right)
+  {
+    final int leftHeight = height(left);
+    final int rightHeight = height(right);
+    if (leftHeight > rightHeight + 1)
+    {
+      if (height(left.left) >= height(left.right))
+      {
+        return node(left.value, left.label, left.left, 
+            node(value, label, left.right, right));
+      }
+      final Node<T> pivot = left.right;
+      return node(pivot.value, pivot.label,
+          node(left.value, left.label, left.left, pivot.left),
+          node(value, label, pivot.right, right));
+    }
+    if (rightHeight > leftHeight + 1)
+    {
+      if (height(right.right) >= height(right.left))
+      {
+        return node(right.value, right.label, 
+            node(value, label, left, right.left), right.right);
+      }
+      final Node<T> pivot = right.left;
+      return node(pivot.value, pivot.label,
+          node(value, label, left, pivot.left),
+          node(right.value, right.label, pivot.right, right.right));
+    }
+    return node(value, label, left, right);
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * An immutable tree node.
+   */
+  private static final class Node<T>
+  {
+    private final T       value;
+    private final long    label;
+    private final Node<T> left;
+    private final Node<T> right;
+    private final int     size;
+    private final int     height;
+
+    private Node(T value, long label, Node<T> left, Node<T> right)
+    {
+      this.value = value;
+      this.label = label;
+      this.left = left;
+      this.right = right;
+      this.size = size(left) + size(right) + 1;
+      this.height = Math.max(height(left), height(right)) + 1;
+    }
+  }
+
+  /**
+   * An immutable List view of one version of the tree.  Positional access
+   * costs O(log n); iteration costs O(1) per element.
+   */
+  private static final class Snapshot<T>
+       extends AbstractList<T>
+  {
+    private final Node<T> root;
+
+    private Snapshot(Node<T> root)
+    {
+      this.root = root;
+    }
+
+    @Override
+    public T get(int index)
+    {
+      if (index < 0 || index >= size())
+      {
+        throw new IndexOutOfBoundsException("Index: " + index 
+            + ", Size: " + size());
+      }
+      return nodeAt(this.root, index).value;
+    }
+
+    @Override
+    public int size()
+    {
+      return OrderedIndex.size(this.root);
+    }
+
+    @Override
+    public Iterator<T> iterator()
+    {
+      return new Iterator<T>() {
+        private final Deque<Node<T>> path = new ArrayDeque<>();
+        {
+          descend(Snapshot.this.root);
+        }
+
+        private void descend(Node<T> from)
+        {
+          for (Node<T> node = from; node != null; node = node.left)
+          {
+            this.path.push(node);
+          }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+          return !this.path.isEmpty();
+        }
+
+        @Override
+        public T next()
+        {
+          if (this.path.isEmpty())
+          {
+            throw new NoSuchElementException();
+          }
+          final Node<T> node = this.path.pop();
+          descend(node.right);
+          return node.value;
+        }
+      };
+    }
+  }
+
+}   // End OrderedIndex.
@@ -65,9 +65,25 @@ public class PureMemoryGroup<T extends Identifiable>
       GroupInitializer<T> initializer,
       boolean readOnly,
       boolean distribute)
+  {
+    this(entityStore, type, maker, comparator, initializer, readOnly, 
+        distribute, CacheStorage.Type.CONCURRENT_MAP);
+  }
+  
+  /**
+   * Constructor accepting a storage backend.
+   */
+  protected PureMemoryGroup(EntityStore entityStore, 
+      Class<T> type,
+      EntityMaker<T> maker, 
+      Comparator<? super T> comparator, 
+      GroupInitializer<T> initializer,
+      boolean readOnly,
+      boolean distribute,
+      CacheStorage.Factory storageFactory)
   {
     super(entityStore, type, null, null, maker, comparator, null, null, 
-        readOnly, distribute);
+        readOnly, distribute, storageFactory);
     this.initializer = initializer;
   }
   
@@ -148,6 +164,15 @@ public class PureMemoryGroup<T extends Identifiable>
     // Does nothing.
   }
   
+  /**
+   * Pure memory groups have no table to stream from.
+   */
+  @Override
+  protected boolean isStreamable()
+  {
+    return false;
+  }
+
   /**
    * Fetches all persisted objects.  Call the provided Initializer or return
    * an empty list in the default case.
@@ -212,14 +237,18 @@ public class PureMemoryGroup<T extends Identifiable>
     @Override
     public PureMemoryGroup<T> build(EntityStore entityStore)
     {
-      return new PureMemoryGroup<>(
+      final PureMemoryGroup<T> group = new PureMemoryGroup<>(
           entityStore,
           this.type,
           this.maker,
           this.comparator,
           this.initializer,
           this.readOnly,
-          this.distribute);
+          this.distribute,
+          this.storage);
+      group.setBackgroundReset(this.backgroundReset);
+      group.setVersioned(this.versioned);
+      return group;
     }
 
     /**
@@ -265,5 +294,19 @@ public class PureMemoryGroup<T extends Identifiable>
       return this;
     }
 
+    @Override
+    public Builder<T> storage(CacheStorage.Factory storageFactory)
+    {
+      super.storage(storageFactory);
+      return this;
+    }
+
+    @Override
+    public Builder<T> backgroundReset(boolean background)
+    {
+      super.backgroundReset(background);
+      return this;
+    }
+
   } // End Builder.
 }
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+/**
+ * Describes the effectiveness of a relation's in-memory cache since it was
+ * created: how often lookups were answered from memory, and how often and
+ * for how long the database was queried for the rest.  Produced by
+ * {@link LruSqlEntityRelation#statistics()} and listed by the application's
+ * monitor.
+ */
+public class RelationCacheStatistics
+{
+
+  //
+  // Member variables.
+  //
+
+  private final String name;
+  private final long   hits;
+  private final long   misses;
+  private final long   loads;
+  private final long   loadNanos;
+  private final long   evictions;
+  private final long   entries;
+
+  /**
+   * Constructor.
+   *
+   * @param name the name of the relation, usually its table.
+   * @param hits the number of lookups answered from memory.
+   * @param misses the number of lookups that required the database.
+   * @param loads the number of database queries made for misses; a query
+   *        may answer many misses.
+   * @param loadNanos the total time spent in those queries.
+   * @param evictions the number of entries evicted to bound the cache.
+   * @param entries the number of entries currently cached.
+   */
+  public RelationCacheStatistics(String name, long hits, long misses, 
+      long loads, long loadNanos, long evictions, long entries)
+  {
+    this.name = name;
+    this.hits = hits;
+    this.misses = misses;
+    this.loads = loads;
+    this.loadNanos = loadNanos;
+    this.evictions = evictions;
+    this.entries = entries;
+  }
+
+  /**
+   * Gets the name of the relation.
+   */
+  public String getName()
+  {
+    return this.name;
+  }
+
+  /**
+   * Gets the number of lookups answered from memory.
+   */
+  public long getHits()
+  {
+    return this.hits;
+  }
+
+  /**
+   * Gets the number of lookups that required the database.
+   */
+  public long getMisses()
+  {
+    return this.misses;
+  }
+
+  /**
+   * Gets the proportion of lookups answered from memory, from 0 to 1.
+   */
+  public double getHitRate()
+  {
+    final long lookups = this.hits + this.misses;
+    return lookups == 0 ? 1.0 : (double)this.hits / lookups;
+  }
+
+  /**
+   * Gets the number of database queries made for misses.
+   */
+  public long getLoads()
+  {
+    return this.loads;
+  }
+
+  /**
+   * Gets the total time spent querying the database, in milliseconds.
+   */
+  public long getLoadMillis()
+  {
+    return this.loadNanos / 1_000_000L;
+  }
+
+  /**
+   * Gets the average time of a database query, in microseconds.
+   */
+  public long getAverageLoadMicros()
+  {
+    return this.loads == 0 ? 0 : this.loadNanos / this.loads / 1_000L;
+  }
+
+  /**
+   * Gets the number of entries evicted to bound the cache.
+   */
+  public long getEvictions()
+  {
+    return this.evictions;
+  }
+
+  /**
+   * Gets the number of entries currently cached.
+   */
+  public long getEntries()
+  {
+    return this.entries;
+  }
+
+  @Override
+  public String toString()
+  {
+    return this.name + ": " + this.hits + " hits, " + this.misses + " misses ("
+        + Math.round(getHitRate() * 100) + "% hit rate), " + this.loads 
+        + " loads averaging " + getAverageLoadMicros() + "us, " 
+        + this.evictions + " evictions, " + this.entries + " entries";
+  }
+
+}   // End RelationCacheStatistics.
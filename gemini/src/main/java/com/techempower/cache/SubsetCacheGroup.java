@@ -42,7 +42,19 @@ public class SubsetCacheGroup<T extends Identifiable> extends CacheGroup<T>
   protected SubsetCacheGroup(EntityStore controller, Class<T> type, String table, String id, EntityMaker<T> maker,
       Comparator<? super T> comparator, String where, String[] whereArguments, boolean readOnly, boolean distribute)
   {
-    super(controller, type, table, id, maker, comparator, where, whereArguments, readOnly, distribute);
+    this(controller, type, table, id, maker, comparator, where, whereArguments, readOnly, distribute,
+        CacheStorage.Type.CONCURRENT_MAP);
+  }
+
+  /**
+   * Constructor accepting a storage backend.
+   */
+  protected SubsetCacheGroup(EntityStore controller, Class<T> type, String table, String id, EntityMaker<T> maker,
+      Comparator<? super T> comparator, String where, String[] whereArguments, boolean readOnly, boolean distribute,
+      CacheStorage.Factory storageFactory)
+  {
+    super(controller, type, table, id, maker, comparator, where, whereArguments, readOnly, distribute,
+        storageFactory);
   }
 
   /**
@@ -75,6 +87,15 @@ public class SubsetCacheGroup<T extends Identifiable> extends CacheGroup<T>
     }
   }
 
+  /**
+   * Only streamable when no subset query has been provided.
+   */
+  @Override
+  protected boolean isStreamable()
+  {
+    return StringHelper.isEmptyTrimmed(queryInitializeCache);
+  }
+
   /**
    * Log statistics about how many entities are cached.
    */
@@ -238,8 +259,12 @@ public class SubsetCacheGroup<T extends Identifiable> extends CacheGroup<T>
       if (controller == null) {
         throw new NullPointerException();
       }
-      return new SubsetCacheGroup<>(controller, this.type, this.table, this.id, this.maker, this.comparator, this.where,
-          this.whereArguments, this.readOnly, this.distribute);
+      final SubsetCacheGroup<T> group = new SubsetCacheGroup<>(controller, this.type, this.table, this.id, this.maker, this.comparator, this.where,
+          this.whereArguments, this.readOnly, this.distribute, this.storage);
+      group.setBackgroundReset(this.backgroundReset);
+      group.setDeltaColumn(this.deltaColumn);
+      group.setVersioned(this.versioned);
+      return group;
     }
   }
 }
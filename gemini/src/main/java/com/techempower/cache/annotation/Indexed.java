@@ -43,4 +43,13 @@ import java.lang.annotation.*;
  */
 @Target({ ElementType.METHOD, ElementType.TYPE })
 @Retention(RetentionPolicy.RUNTIME)
-public @interface Indexed { }
+public @interface Indexed 
+{
+  /**
+   * If true, the method's values are indexed in order, permitting range,
+   * prefix and top-N queries through EntityStore's listRange, listPrefix
+   * and listTop methods.  The method's return values must be mutually
+   * Comparable.  Ignored when annotating a class.
+   */
+  boolean ordered() default false;
+}
@@ -0,0 +1,1162 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.collection.relation;
+
+import gnu.trove.*;
+import gnu.trove.iterator.*;
+import gnu.trove.procedure.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A many-to-many relation between longs, stored compactly as sorted 
+ * adjacency arrays and safe for concurrent reads.
+ * <p>
+ * Each direction of the relation (left to right and right to left) is
+ * divided into blocks by a hash of the key.  Within a block the keys are
+ * held in a sorted array, the values related to each key in a contiguous
+ * sorted run of a second array, and the start of each run in a third, in
+ * the manner of a compressed sparse row matrix.  This takes a fraction of
+ * the memory of a map of sets, and containment checks are binary searches.
+ * <p>
+ * Blocks are immutable.  Reads work from whichever snapshot of the blocks
+ * is current and take no locks.  Writes are synchronized with one another;
+ * each builds copies of only the blocks it affects and then publishes a new
+ * snapshot.  A write therefore costs time proportional to the size of the
+ * blocks it touches, so changes should be made in batches (with 
+ * <tt>addAll</tt>, <tt>removeAll</tt> or <tt>replaceWith</tt>) where 
+ * possible.  Cloning shares the current snapshot and is cheap.
+ * <p>
+ * The values returned by <tt>leftValues</tt> and <tt>rightValues</tt> are
+ * in ascending order.  <tt>leftValuesView</tt> and <tt>rightValuesView</tt>
+ * return read-only sets backed directly by a snapshot, without copying.
+ */
+public class CompactLongRelation extends AbstractLongRelation
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The average number of pairs per block beyond which the number of
+   * blocks is increased.
+   */
+  private static final int    BLOCK_PAIRS    = 4096;
+  private static final int    INITIAL_BLOCKS = 16;
+  private static final long[] NO_VALUES      = new long[0];
+
+  private volatile Snapshot snapshot;
+
+  /**
+   * Constructs a new, empty relation.
+   */
+  public CompactLongRelation()
+  {
+    this.snapshot = Snapshot.empty();
+  }
+
+  /**
+   * Constructs a new relation containing the values in the given relation.
+   *
+   * @param relation values to be added to this relation
+   */
+  public CompactLongRelation(LongRelation relation)
+  {
+    this();
+    addAll(relation);
+  }
+
+  /**
+   * Constructs a relation sharing an existing snapshot.
+   */
+  private CompactLongRelation(Snapshot snapshot)
+  {
+    this.snapshot = snapshot;
+  }
+
+  @Override
+  public boolean add(long left, long right)
+  {
+    return apply(new long[] { left }, new long[] { right }, 1, true);
+  }
+
+  @Override
+  public boolean addAll(LongRelation relation)
+  {
+    if (relation == null)
+    {
+      return false;
+    }
+    final long[][] pairs = pairs(relation);
+    return apply(pairs[0], pairs[1], pairs[0].length, true);
+  }
+
+  /**
+   * Relates each left value to the right value at the same index, as a
+   * single write.  Returns <tt>true</tt> unless all of the values were
+   * previously related.
+   */
+  public boolean addAll(long[] lefts, long[] rights, int count)
+  {
+    return apply(lefts, rights, count, true);
+  }
+
+  @Override
+  public synchronized void clear()
+  {
+    this.snapshot = Snapshot.empty();
+  }
+
+  @Override
+  public Object clone()
+  {
+    return new CompactLongRelation(this.snapshot);
+  }
+
+  @Override
+  public boolean contains(long left, long right)
+  {
+    return this.snapshot.left.contains(left, right);
+  }
+
+  @Override
+  public boolean containsLeftValue(long left)
+  {
+    return this.snapshot.left.count(left) > 0;
+  }
+
+  @Override
+  public boolean containsRightValue(long right)
+  {
+    return this.snapshot.right.count(right) > 0;
+  }
+
+  @Override
+  public int leftSize(long right)
+  {
+    return this.snapshot.right.count(right);
+  }
+
+  @Override
+  public long[] leftValues(long right)
+  {
+    return this.snapshot.right.values(right);
+  }
+
+  @Override
+  public int leftValues(long right, long[] buffer)
+  {
+    return this.snapshot.right.copy(right, buffer);
+  }
+
+  @Override
+  public boolean forEachLeftValue(long right, TLongProcedure procedure)
+  {
+    return this.snapshot.right.forEach(right, procedure);
+  }
+
+  /**
+   * Returns a read-only set of the left values related to the given value,
+   * as of now.  The set is not copied and does not reflect later changes.
+   */
+  public TLongSet leftValuesView(long right)
+  {
+    return this.snapshot.right.view(right);
+  }
+
+  @Override
+  public boolean remove(long left, long right)
+  {
+    return apply(new long[] { left }, new long[] { right }, 1, false);
+  }
+
+  @Override
+  public boolean removeAll(LongRelation relation)
+  {
+    if (relation == null)
+    {
+      return false;
+    }
+    final long[][] pairs = pairs(relation);
+    return apply(pairs[0], pairs[1], pairs[0].length, false);
+  }
+
+  @Override
+  public synchronized boolean removeLeftValue(long left)
+  {
+    final long[] rights = this.snapshot.left.values(left);
+    final long[] lefts = new long[rights.length];
+    Arrays.fill(lefts, left);
+    return apply(lefts, rights, rights.length, false);
+  }
+
+  @Override
+  public synchronized boolean removeRightValue(long right)
+  {
+    final long[] lefts = this.snapshot.right.values(right);
+    final long[] rights = new long[lefts.length];
+    Arrays.fill(rights, right);
+    return apply(lefts, rights, lefts.length, false);
+  }
+
+  /**
+   * Replaces the contents of this relation with the given pairs, as a 
+   * single write.  Readers see either the previous contents or the new 
+   * contents, never a mixture.
+   */
+  public synchronized void replaceWith(long[] lefts, long[] rights, int count)
+  {
+    final Snapshot empty = Snapshot.empty();
+    this.snapshot = empty.apply(lefts, rights, count, true);
+  }
+
+  @Override
+  public int rightSize(long left)
+  {
+    return this.snapshot.left.count(left);
+  }
+
+  @Override
+  public int rightSize(long left, Collection<Long> filterRightIds)
+  {
+    final Side side = this.snapshot.left;
+    if (filterRightIds == null || filterRightIds.isEmpty())
+    {
+      return side.count(left);
+    }
+    final Block block = side.block(left);
+    final int index = Arrays.binarySearch(block.keys, left);
+    if (index < 0)
+    {
+      return 0;
+    }
+    int count = 0;
+    for (int i = block.offsets[index]; i < block.offsets[index + 1]; i++)
+    {
+      if (filterRightIds.contains(block.values[i]))
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public int rightSize(long left, TLongSet filterRightIds)
+  {
+    final Side side = this.snapshot.left;
+    if (filterRightIds == null || filterRightIds.isEmpty())
+    {
+      return side.count(left);
+    }
+    final Block block = side.block(left);
+    final int index = Arrays.binarySearch(block.keys, left);
+    if (index < 0)
+    {
+      return 0;
+    }
+    final int from = block.offsets[index];
+    final int to = block.offsets[index + 1];
+    int count = 0;
+    if (filterRightIds.size() < to - from)
+    {
+      // Search the run for each of the fewer filter values.
+      for (TLongIterator iter = filterRightIds.iterator(); iter.hasNext(); )
+      {
+        if (Arrays.binarySearch(block.values, from, to, iter.next()) >= 0)
+        {
+          count++;
+        }
+      }
+    }
+    else
+    {
+      for (int i = from; i < to; i++)
+      {
+        if (filterRightIds.contains(block.values[i]))
+        {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public long[] rightValues(long left)
+  {
+    return this.snapshot.left.values(left);
+  }
+
+  @Override
+  public TLongSet rightValuesLongSet(long left)
+  {
+    return new TLongHashSet(this.snapshot.left.values(left));
+  }
+
+  @Override
+  public int rightValues(long left, long[] buffer)
+  {
+    return this.snapshot.left.copy(left, buffer);
+  }
+
+  @Override
+  public boolean forEachRightValue(long left, TLongProcedure procedure)
+  {
+    return this.snapshot.left.forEach(left, procedure);
+  }
+
+  /**
+   * Returns a read-only set of the right values related to the given 
+   * value, as of now.  The set is not copied and does not reflect later
+   * changes.
+   */
+  public TLongSet rightValuesView(long left)
+  {
+    return this.snapshot.left.view(left);
+  }
+
+  @Override
+  public LongRelationIterator iterator()
+  {
+    final Block[] blocks = this.snapshot.left.blocks;
+    return new LongRelationIterator() {
+
+      private int block = 0;
+      private int key = 0;
+      private int position = 0;
+      private boolean started = false;
+      private long left = 0;
+      private long right = 0;
+
+      {
+        skipExhaustedBlocks();
+      }
+
+      private void skipExhaustedBlocks()
+      {
+        while (this.block < blocks.length 
+            && this.position >= blocks[this.block].values.length)
+        {
+          this.block++;
+          this.key = 0;
+          this.position = 0;
+        }
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+        return this.block < blocks.length;
+      }
+
+      @Override
+      public long left()
+      {
+        if (!this.started)
+        {
+          throw new IllegalStateException("Attempt to get element from iterator that has no current element. Call next() first.");
+        }
+        return this.left;
+      }
+
+      @Override
+      public void next()
+      {
+        if (!hasNext())
+        {
+          throw new NoSuchElementException("Attempt to iterate past iterator's last element.");
+        }
+        final Block current = blocks[this.block];
+        while (current.offsets[this.key + 1] <= this.position)
+        {
+          this.key++;
+        }
+        this.left = current.keys[this.key];
+        this.right = current.values[this.position++];
+        this.started = true;
+        skipExhaustedBlocks();
+      }
+
+      @Override
+      public long right()
+      {
+        if (!this.started)
+        {
+          throw new IllegalStateException("Attempt to get element from iterator that has no current element. Call next() first.");
+        }
+        return this.right;
+      }
+
+    };
+  }
+
+  @Override
+  public int size()
+  {
+    return this.snapshot.size;
+  }
+
+  /**
+   * Applies additions or removals of pairs and publishes the new snapshot.
+   */
+  private synchronized boolean apply(long[] lefts, long[] rights, int count,
+      boolean add)
+  {
+    if (count == 0)
+    {
+      return false;
+    }
+    final Snapshot current = this.snapshot;
+    final Snapshot updated = current.apply(lefts, rights, count, add);
+    if (updated == current)
+    {
+      return false;
+    }
+    this.snapshot = updated;
+    return true;
+  }
+
+  /**
+   * Gets the pairs of a relation as an array of lefts and an array of
+   * rights.
+   */
+  private static long[][] pairs(LongRelation relation)
+  {
+    final long[] lefts = new long[relation.size()];
+    final long[] rights = new long[relation.size()];
+    int count = 0;
+    for (LongRelationIterator iter = relation.iterator(); iter.hasNext(); )
+    {
+      iter.next();
+      lefts[count] = iter.left();
+      rights[count] = iter.right();
+      count++;
+    }
+    return new long[][] { lefts, rights };
+  }
+
+  /**
+   * Selects the block for a key.
+   */
+  private static int slot(long key, int blocks)
+  {
+    return (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & (blocks - 1);
+  }
+
+  /**
+   * Compares two pairs by key and then by value.
+   */
+  private static int compare(long key1, long value1, long key2, long value2)
+  {
+    final int result = Long.compare(key1, key2);
+    return result != 0 ? result : Long.compare(value1, value2);
+  }
+
+  /**
+   * Sorts pairs, held in parallel arrays, by key and then by value.
+   */
+  private static void sort(long[] keys, long[] values, int from, int to)
+  {
+    while (to - from > 16)
+    {
+      // Partition around the median of three.
+      final int middle = (from + to) >>> 1;
+      if (compare(keys[middle], values[middle], keys[from], values[from]) < 0)
+      {
+        swap(keys, values, middle, from);
+      }
+      if (compare(keys[to - 1], values[to - 1], keys[from], values[from]) < 0)
+      {
+        swap(keys, values, to - 1, from);
+      }
+      if (compare(keys[to - 1], values[to - 1], keys[middle], values[middle]) < 0)
+      {
+        swap(keys, values, to - 1, middle);
+      }
+      final long pivotKey = keys[middle];
+      final long pivotValue = values[middle];
+      int i = from;
+      int j = to - 1;
+      while (i <= j)
+      {
+        while (compare(keys[i], values[i], pivotKey, pivotValue) < 0)
+        {
+          i++;
+        }
+        while (compare(keys[j], values[j], pivotKey, pivotValue) > 0)
+        {
+          j--;
+        }
+        if (i <= j)
+        {
+          swap(keys, values, i++, j--);
+        }
+      }
+      // Recurse into the smaller part and loop on the larger.
+      if (j + 1 - from < to - i)
+      {
+        sort(keys, values, from, j + 1);
+        from = i;
+      }
+      else
+      {
+        sort(keys, values, i, to);
+        to = j + 1;
+      }
+    }
+    for (int i = from + 1; i < to; i++)
+    {
+      for (int j = i; j > from 
+          && compare(keys[j], values[j], keys[j - 1], values[j - 1]) < 0; j--)
+      {
+        swap(keys, values, j, j - 1);
+      }
+    }
+  }
+
+  private static void swap(long[] keys, long[] values, int i, int j)
+  {
+    final long key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    final long value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * An immutable state of the relation: both directions and the number of
+   * pairs.
+   */
+  private static final class Snapshot implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Side left;
+    private final Side right;
+    private final int  size;
+
+    Snapshot(Side left, Side right, int size)
+    {
+      this.left = left;
+      this.right = right;
+      this.size = size;
+    }
+
+    static Snapshot empty()
+    {
+      return new Snapshot(new Side(INITIAL_BLOCKS), new Side(INITIAL_BLOCKS), 0);
+    }
+
+    /**
+     * Returns a snapshot with the pairs added or removed, or this snapshot
+     * if nothing changed.
+     */
+    Snapshot apply(long[] lefts, long[] rights, int count, boolean add)
+    {
+      final int[] changed = new int[1];
+      final int expected = add ? this.size + count : this.size;
+      final Side newLeft = this.left.apply(lefts, rights, count, add, 
+          expected, changed);
+      if (changed[0] == 0)
+      {
+        return this;
+      }
+      final Side newRight = this.right.apply(rights, lefts, count, add, 
+          expected, new int[1]);
+      return new Snapshot(newLeft, newRight, 
+          add ? this.size + changed[0] : this.size - changed[0]);
+    }
+  }
+
+  /**
+   * One direction of the relation, from keys to the values related to them.
+   */
+  private static final class Side implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Block[] blocks;
+
+    Side(int blockCount)
+    {
+      this.blocks = new Block[blockCount];
+      Arrays.fill(this.blocks, Block.EMPTY);
+    }
+
+    private Side(Block[] blocks)
+    {
+      this.blocks = blocks;
+    }
+
+    Block block(long key)
+    {
+      return this.blocks[slot(key, this.blocks.length)];
+    }
+
+    boolean contains(long key, long value)
+    {
+      final Block block = block(key);
+      final int index = Arrays.binarySearch(block.keys, key);
+      return index >= 0 && Arrays.binarySearch(block.values, 
+          block.offsets[index], block.offsets[index + 1], value) >= 0;
+    }
+
+    int count(long key)
+    {
+      final Block block = block(key);
+      final int index = Arrays.binarySearch(block.keys, key);
+      return index < 0 ? 0 : block.offsets[index + 1] - block.offsets[index];
+    }
+
+    long[] values(long key)
+    {
+      final Block block = block(key);
+      final int index = Arrays.binarySearch(block.keys, key);
+      return index < 0 
+          ? NO_VALUES 
+          : Arrays.copyOfRange(block.values, block.offsets[index], 
+              block.offsets[index + 1]);
+    }
+
+    int copy(long key, long[] buffer)
+    {
+      final Block block = block(key);
+      final int index = Arrays.binarySearch(block.keys, key);
+      if (index < 0)
+      {
+        return 0;
+      }
+      final int from = block.offsets[index];
+      final int count = block.offsets[index + 1] - from;
+      System.arraycopy(block.values, from, buffer, 0, 
+          Math.min(count, buffer.length));
+      return count;
+    }
+
+    boolean forEach(long key, TLongProcedure procedure)
+    {
+      final Block block = block(key);
+      final int index = Arrays.binarySearch(block.keys, key);
+      if (index >= 0)
+      {
+        for (int i = block.offsets[index]; i < block.offsets[index + 1]; i++)
+        {
+          if (!procedure.execute(block.values[i]))
+          {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    TLongSet view(long key)
+    {
+      final Block block = block(key);
+      final int index = Arrays.binarySearch(block.keys, key);
+      return index < 0 
+          ? RunView.EMPTY
+          : new RunView(block.values, block.offsets[index], 
+              block.offsets[index + 1]);
+    }
+
+    /**
+     * Returns a side with the pairs added or removed, copying only the
+     * affected blocks, unless the side must first be divided into more
+     * blocks to hold the expected number of pairs.  The number of pairs
+     * actually changed is stored in changed[0].
+     */
+    Side apply(long[] keys, long[] values, int count, boolean add, 
+        int expectedSize, int[] changed)
+    {
+      Block[] source = this.blocks;
+      int blockCount = source.length;
+      while ((long)blockCount * BLOCK_PAIRS < expectedSize)
+      {
+        blockCount <<= 1;
+      }
+      if (blockCount != source.length)
+      {
+        source = split(source, blockCount);
+      }
+
+      // Group the changes by block.
+      final int[] starts = new int[blockCount + 1];
+      for (int i = 0; i < count; i++)
+      {
+        starts[slot(keys[i], blockCount) + 1]++;
+      }
+      for (int i = 0; i < blockCount; i++)
+      {
+        starts[i + 1] += starts[i];
+      }
+      final int[] next = Arrays.copyOf(starts, blockCount);
+      final long[] sortedKeys = new long[count];
+      final long[] sortedValues = new long[count];
+      for (int i = 0; i < count; i++)
+      {
+        final int position = next[slot(keys[i], blockCount)]++;
+        sortedKeys[position] = keys[i];
+        sortedValues[position] = values[i];
+      }
+
+      final Block[] result = (source == this.blocks) ? source.clone() : source;
+      for (int i = 0; i < blockCount; i++)
+      {
+        if (starts[i] < starts[i + 1])
+        {
+          sort(sortedKeys, sortedValues, starts[i], starts[i + 1]);
+          result[i] = source[i].merge(sortedKeys, sortedValues, starts[i], 
+              starts[i + 1], add, changed);
+        }
+      }
+      return new Side(result);
+    }
+
+    /**
+     * Divides each block among the blocks that its keys select when there
+     * are more blocks in total.  Since the block count is a power of two,
+     * the keys of one block are spread only among blocks at the same
+     * position modulo the previous count.
+     */
+    private static Block[] split(Block[] blocks, int blockCount)
+    {
+      final Block[] result = new Block[blockCount];
+      Arrays.fill(result, Block.EMPTY);
+      final int ratio = blockCount / blocks.length;
+      for (int b = 0; b < blocks.length; b++)
+      {
+        final Block block = blocks[b];
+        if (block.keys.length == 0)
+        {
+          continue;
+        }
+        final int[] keyCounts = new int[ratio];
+        final int[] valueCounts = new int[ratio];
+        for (int i = 0; i < block.keys.length; i++)
+        {
+          final int child = slot(block.keys[i], blockCount) / blocks.length;
+          keyCounts[child]++;
+          valueCounts[child] += block.offsets[i + 1] - block.offsets[i];
+        }
+        final long[][] childKeys = new long[ratio][];
+        final int[][] childOffsets = new int[ratio][];
+        final long[][] childValues = new long[ratio][];
+        final int[] keyCursor = new int[ratio];
+        for (int c = 0; c < ratio; c++)
+        {
+          childKeys[c] = new long[keyCounts[c]];
+          childOffsets[c] = new int[keyCounts[c] + 1];
+          childValues[c] = new long[valueCounts[c]];
+        }
+        for (int i = 0; i < block.keys.length; i++)
+        {
+          final int child = slot(block.keys[i], blockCount) / blocks.length;
+          final int k = keyCursor[child]++;
+          final int from = block.offsets[i];
+          final int length = block.offsets[i + 1] - from;
+          final int start = childOffsets[child][k];
+          childKeys[child][k] = block.keys[i];
+          System.arraycopy(block.values, from, childValues[child], start, length);
+          childOffsets[child][k + 1] = start + length;
+        }
+        for (int c = 0; c < ratio; c++)
+        {
+          if (keyCounts[c] > 0)
+          {
+            result[b + c * blocks.length] = new Block(childKeys[c], 
+                childOffsets[c], childValues[c]);
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * An immutable block of keys and, for each key, its sorted run of values.
+   */
+  private static final class Block implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    static final Block EMPTY = new Block(NO_VALUES, new int[1], NO_VALUES);
+
+    private final long[] keys;
+    private final int[]  offsets;
+    private final long[] values;
+
+    Block(long[] keys, int[] offsets, long[] values)
+    {
+      this.keys = keys;
+      this.offsets = offsets;
+      this.values = values;
+    }
+
+    /**
+     * Merges sorted changes into this block's pairs, returning the new 
+     * block.  Duplicate changes are ignored.  The number of pairs added or
+     * removed is added to changed[0].
+     */
+    Block merge(long[] changeKeys, long[] changeValues, int from, int to,
+        boolean add, int[] changed)
+    {
+      final int capacity = add ? this.values.length + (to - from) : this.values.length;
+      final long[] newKeys = new long[Math.min(capacity, this.keys.length + (to - from))];
+      final int[] newOffsets = new int[newKeys.length + 1];
+      final long[] newValues = new long[capacity];
+      int keyCount = 0;
+      int valueCount = 0;
+      int key = 0;
+      int position = 0;
+      int change = from;
+      while (position < this.values.length || change < to)
+      {
+        if (change > from && change < to
+            && changeKeys[change] == changeKeys[change - 1]
+            && changeValues[change] == changeValues[change - 1])
+        {
+          change++;
+          continue;
+        }
+        while (position < this.values.length && this.offsets[key + 1] <= position)
+        {
+          key++;
+        }
+        final int comparison;
+        if (change >= to)
+        {
+          comparison = -1;
+        }
+        else if (position >= this.values.length)
+        {
+          comparison = 1;
+        }
+        else
+        {
+          comparison = compare(this.keys[key], this.values[position], 
+              changeKeys[change], changeValues[change]);
+        }
+
+        final long pairKey;
+        final long pairValue;
+        if (comparison < 0)
+        {
+          // An existing pair that is unaffected.
+          pairKey = this.keys[key];
+          pairValue = this.values[position++];
+        }
+        else if (comparison > 0)
+        {
+          // A pair that does not exist.
+          pairKey = changeKeys[change];
+          pairValue = changeValues[change++];
+          if (!add)
+          {
+            continue;
+          }
+          changed[0]++;
+        }
+        else
+        {
+          // An existing pair that is being added again or removed.
+          pairKey = this.keys[key];
+          pairValue = this.values[position++];
+          change++;
+          if (!add)
+          {
+            changed[0]++;
+            continue;
+          }
+        }
+
+        if (keyCount == 0 || newKeys[keyCount - 1] != pairKey)
+        {
+          newOffsets[keyCount] = valueCount;
+          newKeys[keyCount++] = pairKey;
+        }
+        newValues[valueCount++] = pairValue;
+      }
+      if (valueCount == 0)
+      {
+        return EMPTY;
+      }
+      newOffsets[keyCount] = valueCount;
+      return new Block(
+          keyCount == newKeys.length ? newKeys : Arrays.copyOf(newKeys, keyCount),
+          keyCount + 1 == newOffsets.length ? newOffsets : Arrays.copyOf(newOffsets, keyCount + 1),
+          valueCount == newValues.length ? newValues : Arrays.copyOf(newValues, valueCount));
+    }
+  }
+
+  /**
+   * A read-only set over one sorted run of values in a block.
+   */
+  private static final class RunView implements TLongSet
+  {
+    static final RunView EMPTY = new RunView(NO_VALUES, 0, 0);
+
+    private final long[] values;
+    private final int    from;
+    private final int    to;
+
+    RunView(long[] values, int from, int to)
+    {
+      this.values = values;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public long getNoEntryValue()
+    {
+      return 0L;
+    }
+
+    @Override
+    public int size()
+    {
+      return this.to - this.from;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+      return this.to == this.from;
+    }
+
+    @Override
+    public boolean contains(long value)
+    {
+      return Arrays.binarySearch(this.values, this.from, this.to, value) >= 0;
+    }
+
+    @Override
+    public TLongIterator iterator()
+    {
+      return new TLongIterator() {
+        private int position = RunView.this.from;
+
+        @Override
+        public boolean hasNext()
+        {
+          return this.position < RunView.this.to;
+        }
+
+        @Override
+        public long next()
+        {
+          if (this.position >= RunView.this.to)
+          {
+            throw new NoSuchElementException();
+          }
+          return RunView.this.values[this.position++];
+        }
+
+        @Override
+        public void remove()
+        {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public long[] toArray()
+    {
+      return Arrays.copyOfRange(this.values, this.from, this.to);
+    }
+
+    @Override
+    public long[] toArray(long[] dest)
+    {
+      final long[] result = (dest.length >= size()) ? dest : new long[size()];
+      System.arraycopy(this.values, this.from, result, 0, size());
+      return result;
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> collection)
+    {
+      for (Object value : collection)
+      {
+        if (!(value instanceof Long) || !contains((Long)value))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean containsAll(TLongCollection collection)
+    {
+      return collection.forEach(this::contains);
+    }
+
+    @Override
+    public boolean containsAll(long[] array)
+    {
+      for (long value : array)
+      {
+        if (!contains(value))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean forEach(TLongProcedure procedure)
+    {
+      for (int i = this.from; i < this.to; i++)
+      {
+        if (!procedure.execute(this.values[i]))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean add(long value)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean remove(long value)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Long> collection)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(TLongCollection collection)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(long[] array)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> collection)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(TLongCollection collection)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(long[] array)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> collection)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(TLongCollection collection)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(long[] array)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Equal to any TLongSet with the same values, as Trove's sets are.
+     */
+    @Override
+    public boolean equals(Object other)
+    {
+      if (!(other instanceof TLongSet))
+      {
+        return false;
+      }
+      final TLongSet set = (TLongSet)other;
+      return set.size() == size() && containsAll(set);
+    }
+
+    /**
+     * Consistent with Trove's sets.
+     */
+    @Override
+    public int hashCode()
+    {
+      int hash = 0;
+      for (int i = this.from; i < this.to; i++)
+      {
+        hash += (int)(this.values[i] ^ (this.values[i] >>> 32));
+      }
+      return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+      return Arrays.toString(toArray());
+    }
+  }
+}
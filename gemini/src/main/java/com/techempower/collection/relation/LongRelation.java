@@ -27,6 +27,7 @@
 
 package com.techempower.collection.relation;
 
+import gnu.trove.procedure.*;
 import gnu.trove.set.*;
 
 import java.io.*;
@@ -115,6 +116,36 @@ public interface LongRelation extends Serializable
    */
   long[] leftValues(long right);
 
+  /**
+   * Copies the left values related to the given value into the given
+   * buffer and returns how many there are.  If there are more than the
+   * buffer holds, only as many as fit are copied.
+   */
+  default int leftValues(long right, long[] buffer)
+  {
+    final long[] values = leftValues(right);
+    System.arraycopy(values, 0, buffer, 0, 
+        Math.min(values.length, buffer.length));
+    return values.length;
+  }
+
+  /**
+   * Calls the procedure with each left value related to the given value,
+   * stopping if it returns <tt>false</tt>.  Returns <tt>false</tt> if the
+   * procedure stopped the iteration.
+   */
+  default boolean forEachLeftValue(long right, TLongProcedure procedure)
+  {
+    for (long value : leftValues(right))
+    {
+      if (!procedure.execute(value))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Unrelates the two values.  Returns <tt>true</tt> unless the
    * values were already unrelated.
@@ -172,6 +203,36 @@ public interface LongRelation extends Serializable
    */
   TLongSet rightValuesLongSet(long left);
 
+  /**
+   * Copies the right values related to the given value into the given
+   * buffer and returns how many there are.  If there are more than the
+   * buffer holds, only as many as fit are copied.
+   */
+  default int rightValues(long left, long[] buffer)
+  {
+    final long[] values = rightValues(left);
+    System.arraycopy(values, 0, buffer, 0, 
+        Math.min(values.length, buffer.length));
+    return values.length;
+  }
+
+  /**
+   * Calls the procedure with each right value related to the given value,
+   * stopping if it returns <tt>false</tt>.  Returns <tt>false</tt> if the
+   * procedure stopped the iteration.
+   */
+  default boolean forEachRightValue(long left, TLongProcedure procedure)
+  {
+    for (long value : rightValues(left))
+    {
+      if (!procedure.execute(value))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Returns the number of pairs in the relation.
    */
@@ -30,6 +30,7 @@ package com.techempower.collection.relation;
 import gnu.trove.iterator.*;
 import gnu.trove.map.*;
 import gnu.trove.map.hash.*;
+import gnu.trove.procedure.*;
 import gnu.trove.set.*;
 import gnu.trove.set.hash.*;
 
@@ -417,6 +418,57 @@ public class ManyToManyLongRelation extends AbstractLongRelation
     }
   }
 
+  @Override
+  public int rightValues(long left, long[] buffer)
+  {
+    final TLongSet rightSet = this.leftMap.get(left);
+    return (rightSet == null) ? 0 : copy(rightSet, buffer);
+  }
+
+  @Override
+  public boolean forEachRightValue(long left, TLongProcedure procedure)
+  {
+    final TLongSet rightSet = this.leftMap.get(left);
+    return rightSet == null || rightSet.forEach(procedure);
+  }
+
+  @Override
+  public int leftValues(long right, long[] buffer)
+  {
+    if (this.rightMap == null)
+    {
+      return super.leftValues(right, buffer);
+    }
+    final TLongSet leftSet = this.rightMap.get(right);
+    return (leftSet == null) ? 0 : copy(leftSet, buffer);
+  }
+
+  @Override
+  public boolean forEachLeftValue(long right, TLongProcedure procedure)
+  {
+    if (this.rightMap == null)
+    {
+      return super.forEachLeftValue(right, procedure);
+    }
+    final TLongSet leftSet = this.rightMap.get(right);
+    return leftSet == null || leftSet.forEach(procedure);
+  }
+
+  /**
+   * Copies as many values from the set as fit into the buffer and returns 
+   * the size of the set.
+   */
+  private static int copy(TLongSet set, long[] buffer)
+  {
+    final int count = Math.min(set.size(), buffer.length);
+    final TLongIterator iter = set.iterator();
+    for (int i = 0; i < count; i++)
+    {
+      buffer[i] = iter.next();
+    }
+    return set.size();
+  }
+
   @Override
   public long[] rightValues(long left)
   {
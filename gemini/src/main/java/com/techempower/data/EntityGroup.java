@@ -26,8 +26,10 @@
  *******************************************************************************/
 package com.techempower.data;
 
+import gnu.trove.list.array.*;
 import gnu.trove.map.*;
 import gnu.trove.map.hash.*;
+import gnu.trove.set.hash.*;
 
 import java.lang.reflect.*;
 import java.sql.*;
@@ -35,6 +37,9 @@ import java.time.*;
 import java.util.*;
 import java.util.Date;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 import com.esotericsoftware.reflectasm.*;
 import com.techempower.cache.*;
@@ -163,6 +168,29 @@ public class EntityGroup<T extends Identifiable>
           }
         };
 
+  /**
+   * The sizes to which lists of ids in an IN clause are padded, so that a
+   * handful of distinct statements serve any number of ids and can be reused
+   * from the driver's statement cache.  Longer lists are split into chunks
+   * no larger than the largest size.
+   */
+  private static final int[] IN_LIST_SIZES = { 1, 4, 16, 64, 256, 1024 };
+
+  /**
+   * The prefix of the names of the temporary tables into which ids are 
+   * written by fetchByTemporaryTable, and the counter that makes each name
+   * unique, so that a fetch nested within another on the same connection
+   * does not collide with it.
+   */
+  private static final String ID_TABLE = "gemini_ids_";
+  private static final AtomicLong ID_TABLE_COUNT = new AtomicLong();
+
+  /**
+   * The most parameters bound to a single multi-row INSERT, safely below 
+   * the limits of the MySQL and PostgreSQL drivers.
+   */
+  private static final int MAX_INSERT_PARAMETERS = 32767;
+
   // 
   // Protected fields.
   // 
@@ -184,11 +212,14 @@ public class EntityGroup<T extends Identifiable>
   private final String deleteSingleQuery;
   private final boolean readOnly;
   private final boolean distribute;
+  private volatile EntityVersions versions = null;
   
   private DataFieldToMethodMap[] setMethods = null;
   private DataFieldToMethodMap[] getMethods = null;
   private DataFieldToMethodMap[] getMethodsWithoutId = null;
   private String fieldPartsForUpdate = null;
+  private final String[] inListQueries = new String[IN_LIST_SIZES.length];
+  private volatile RowMapping<T> rowMapping = null;
   
   /**
    * This maps fields to type adapters.  If a field does not exist as a key in
@@ -343,6 +374,26 @@ public class EntityGroup<T extends Identifiable>
     return this.distribute;
   }
 
+  /**
+   * Sets whether changes to this group's entities carry version stamps when
+   * distributed, letting other instances skip stale and duplicate updates.
+   */
+  public void setVersioned(boolean versioned)
+  {
+    this.versions = versioned 
+        ? new EntityVersions(() -> this.entityStore.getVersionNode()) 
+        : null;
+  }
+
+  /**
+   * Returns the version stamps of this group's entities, or null if the
+   * group is not versioned.
+   */
+  public EntityVersions versions()
+  {
+    return this.versions;
+  }
+
   /**
    * Returns the name of the database column that holds the identities of the
    * entities.
@@ -498,6 +549,39 @@ public class EntityGroup<T extends Identifiable>
     }
   }
 
+  /**
+   * Gets the names of the fields that a put of the given object would write
+   * because they differ from its snapshot of persisted values.  Returns null
+   * if the object is not ChangeTracked, is not yet persisted, or has no
+   * snapshot, in which case any field may have changed.  An empty array
+   * means put would not write anything.
+   */
+  public String[] changedFields(T object)
+  {
+    if (  (!(object instanceof ChangeTracked))
+       || (!isPersisted(object))
+       )
+    {
+      return null;
+    }
+
+    final Object[] snapshot = ((ChangeTracked)object).getPersistedValues();
+    if (snapshot == null)
+    {
+      return null;
+    }
+
+    final DataFieldToMethodMap[] fields = getGetMethodMappingCacheWithoutId();
+    final BitSet columns = changedColumns(snapshot, readValuesForUpdate(object));
+    final String[] names = new String[columns.cardinality()];
+    int index = 0;
+    for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1))
+    {
+      names[index++] = fields[i].getFieldName();
+    }
+    return names;
+  }
+
   /**
    * Put objects into the data store (and cache if applicable).  This will
    * always persist the objects to the data store; caching is only applicable
@@ -817,6 +901,13 @@ public class EntityGroup<T extends Identifiable>
 
   /**
    * For use by subclasses. Not intended for use by client code.
+   *   <p>
+   * Large lists of ids are fetched in chunks, on parallel connections if the
+   * EntityStore provides a bulk-fetch executor.  PostgreSQL receives each
+   * chunk as a single array parameter; other databases receive IN lists
+   * padded to a few fixed sizes.  MySQL and SQL Server can instead be given
+   * lists beyond a configured threshold through a temporary table.  See
+   * {@link EntityStore#getBulkFetchChunkSize()}.
    */
   protected TLongObjectMap<T> rawMap(Collection<Long> ids)
   {
@@ -825,33 +916,26 @@ public class EntityGroup<T extends Identifiable>
       return new TLongObjectHashMap<>(0);
     }
     
-    final TLongObjectMap<T> objects = new TLongObjectHashMap<>(ids.size());
+    // Duplicate ids would only lengthen the queries.
+    final long[] distinct = new TLongHashSet(ids).toArray();
+    final TLongObjectMap<T> objects = new TLongObjectHashMap<>(distinct.length);
+    final DatabaseAffinity affinity = this.cf.getDatabaseAffinity();
+    final int threshold = this.entityStore.getBulkFetchTemporaryTableThreshold();
 
-    try (
-        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
-        PreparedStatement statement = monitor.getConnection().prepareStatement(
-            "SELECT * FROM " + quotedTable
-                + " WHERE " + quotedIdField + " IN ("
-                + StringHelper.join(",", Collections.nCopies(ids.size(), "?"))
-                + ")" + getWhereClause(" AND ") + ";",
-            ResultSet.TYPE_FORWARD_ONLY,
-            ResultSet.CONCUR_READ_ONLY)
-        )
+    try
     {
-      int i = 0;
-      for (long idToSet : ids)
+      if (  (threshold > 0)
+         && (distinct.length >= threshold)
+         && (  (affinity == DatabaseAffinity.MYSQL)
+            || (affinity == DatabaseAffinity.MS_SQL_SERVER)
+            )
+         )
       {
-        statement.setLong(++i, idToSet);
+        addAll(objects, fetchByTemporaryTable(distinct, affinity));
       }
-      attachWhereArguments(ids.size() + 1, statement);
-      //this.log.debug(statement.toString());
-      try (ResultSet resultSet = statement.executeQuery())
+      else
       {
-        while (resultSet.next())
-        {
-          T object = make(resultSet);
-          objects.put(object.getId(), object);
-        }
+        fetchInChunks(distinct, affinity == DatabaseAffinity.POSTGRESQL, objects);
       }
     }
     catch (Exception e)
@@ -860,6 +944,241 @@ public class EntityGroup<T extends Identifiable>
     }
     return objects;
   }
+
+  /**
+   * Fetches the objects with the given ids in chunks, in parallel if there
+   * is more than one chunk and the EntityStore provides an executor.
+   */
+  private void fetchInChunks(long[] ids, boolean useArray, 
+      TLongObjectMap<T> objects)
+    throws Exception
+  {
+    final int chunkSize = useArray
+        ? Math.max(1, this.entityStore.getBulkFetchChunkSize())
+        : Math.max(1, Math.min(this.entityStore.getBulkFetchChunkSize(), 
+            IN_LIST_SIZES[IN_LIST_SIZES.length - 1]));
+    final ExecutorService executor = this.entityStore.getBulkFetchExecutor();
+    
+    if (  (ids.length <= chunkSize)
+       || (executor == null)
+       )
+    {
+      for (int start = 0; start < ids.length; start += chunkSize)
+      {
+        addAll(objects, fetchChunk(ids, start, 
+            Math.min(ids.length, start + chunkSize), useArray));
+      }
+      return;
+    }
+
+    // Each chunk is fetched on its own connection.
+    final List<Future<List<T>>> chunks = new ArrayList<>();
+    try
+    {
+      for (int start = 0; start < ids.length; start += chunkSize)
+      {
+        final int from = start;
+        final int to = Math.min(ids.length, start + chunkSize);
+        chunks.add(executor.submit(() -> fetchChunk(ids, from, to, useArray)));
+      }
+      for (Future<List<T>> chunk : chunks)
+      {
+        addAll(objects, chunk.get());
+      }
+    }
+    catch (ExecutionException e)
+    {
+      throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+    }
+    finally
+    {
+      // Don't leave the remaining chunks running if one has failed.
+      for (Future<List<T>> chunk : chunks)
+      {
+        chunk.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Fetches the objects whose ids are in ids[from, to) with a single query.
+   */
+  private List<T> fetchChunk(long[] ids, int from, int to, boolean useArray)
+    throws SQLException
+  {
+    final int count = to - from;
+    final List<T> objects = new ArrayList<>(count);
+    try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
+    {
+      final Connection connection = monitor.getConnection();
+      final int size = useArray ? 1 : getInListSize(count);
+      try (PreparedStatement statement = connection.prepareStatement(
+          useArray
+              ? "SELECT * FROM " + quotedTable
+                  + " WHERE " + quotedIdField + " = ANY (?)"
+                  + getWhereClause(" AND ") + ";"
+              : getInListQuery(size),
+          ResultSet.TYPE_FORWARD_ONLY,
+          ResultSet.CONCUR_READ_ONLY))
+      {
+        java.sql.Array array = null;
+        if (useArray)
+        {
+          final Long[] values = new Long[count];
+          for (int i = 0; i < count; i++)
+          {
+            values[i] = ids[from + i];
+          }
+          array = connection.createArrayOf("bigint", values);
+          statement.setArray(1, array);
+          attachWhereArguments(2, statement);
+        }
+        else
+        {
+          // Pad the list by repeating its last id, which doesn't change the
+          // result.
+          for (int i = 0; i < size; i++)
+          {
+            statement.setLong(i + 1, ids[Math.min(from + i, to - 1)]);
+          }
+          attachWhereArguments(size + 1, statement);
+        }
+        //this.log.debug(statement.toString());
+        try (ResultSet resultSet = statement.executeQuery())
+        {
+          while (resultSet.next())
+          {
+            objects.add(make(resultSet));
+          }
+        }
+        finally
+        {
+          if (array != null)
+          {
+            array.free();
+          }
+        }
+      }
+    }
+    return objects;
+  }
+
+  /**
+   * Fetches the objects with the given ids by writing the ids to a temporary
+   * table and selecting the rows whose ids are in it, which spares the 
+   * database a long IN list.
+   */
+  private List<T> fetchByTemporaryTable(long[] ids, DatabaseAffinity affinity)
+    throws SQLException
+  {
+    final boolean sqlServer = (affinity == DatabaseAffinity.MS_SQL_SERVER);
+    final String idTable = (sqlServer ? "#" : "") + ID_TABLE 
+        + ID_TABLE_COUNT.incrementAndGet();
+    final int batchSize = Math.max(1, this.entityStore.getBulkFetchChunkSize());
+    final List<T> objects = new ArrayList<>(ids.length);
+    
+    try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
+    {
+      final Connection connection = monitor.getConnection();
+      try (Statement statement = connection.createStatement())
+      {
+        statement.execute((sqlServer ? "CREATE TABLE " : "CREATE TEMPORARY TABLE ")
+            + idTable + " (gemini_id BIGINT PRIMARY KEY);");
+      }
+      try
+      {
+        try (PreparedStatement statement = connection.prepareStatement(
+            "INSERT INTO " + idTable + " (gemini_id) VALUES (?);"))
+        {
+          for (int i = 0; i < ids.length; i++)
+          {
+            statement.setLong(1, ids[i]);
+            statement.addBatch();
+            if (  ((i + 1) % batchSize == 0)
+               || (i == ids.length - 1)
+               )
+            {
+              statement.executeBatch();
+            }
+          }
+        }
+        // A subquery rather than a join keeps the where clause from
+        // seeing the columns of the id table.
+        try (PreparedStatement statement = connection.prepareStatement(
+            "SELECT * FROM " + quotedTable + " WHERE " + quotedIdField
+                + " IN (SELECT gemini_id FROM " + idTable + ")"
+                + getWhereClause(" AND ") + ";",
+            ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY))
+        {
+          attachWhereArguments(1, statement);
+          //this.log.debug(statement.toString());
+          try (ResultSet resultSet = statement.executeQuery())
+          {
+            while (resultSet.next())
+            {
+              objects.add(make(resultSet));
+            }
+          }
+        }
+      }
+      finally
+      {
+        try (Statement statement = connection.createStatement())
+        {
+          statement.execute((sqlServer ? "DROP TABLE " : "DROP TEMPORARY TABLE ")
+              + idTable + ";");
+        }
+      }
+    }
+    return objects;
+  }
+
+  /**
+   * Gets the smallest padded IN list size that can hold the given number of
+   * ids.
+   */
+  private static int getInListSize(int count)
+  {
+    for (int size : IN_LIST_SIZES)
+    {
+      if (size >= count)
+      {
+        return size;
+      }
+    }
+    return IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+  }
+
+  /**
+   * Gets the query that selects the objects with the ids in an IN list of
+   * one of the padded sizes.
+   */
+  private String getInListQuery(int size)
+  {
+    // This method is idempotent so this does not need to be synchronized.
+    final int index = Arrays.binarySearch(IN_LIST_SIZES, size);
+    if (this.inListQueries[index] == null)
+    {
+      this.inListQueries[index] = "SELECT * FROM " + quotedTable
+          + " WHERE " + quotedIdField + " IN ("
+          + StringHelper.join(",", Collections.nCopies(size, "?"))
+          + ")" + getWhereClause(" AND ") + ";";
+    }
+    return this.inListQueries[index];
+  }
+
+  /**
+   * Adds the given objects to a map by id.
+   */
+  private static <T extends Identifiable> void addAll(TLongObjectMap<T> map, 
+      List<T> objects)
+  {
+    for (T object : objects)
+    {
+      map.put(object.getId(), object);
+    }
+  }
   
   /**
    * Returns the lowest identity assigned to an entity.  Returns 0 if no
@@ -934,6 +1253,54 @@ public class EntityGroup<T extends Identifiable>
     return objects;
   }
 
+  /**
+   * Streams all persisted entities, in no particular order, reading them 
+   * from the database as the Stream is consumed rather than collecting them
+   * into a List first.  See {@link #stream(int, String, Object...)}.
+   */
+  public Stream<T> stream()
+  {
+    return stream(this.entityStore.getStreamFetchSize(), 
+        "SELECT * FROM " + quotedTable + getWhereClause(" WHERE ") + ";",
+        (Object[])null);
+  }
+
+  /**
+   * Runs an arbitrary SQL query, as with {@link #query(String, Object...)},
+   * streaming the results using the EntityStore's configured fetch size.
+   * See {@link #stream(int, String, Object...)}.
+   */
+  public Stream<T> stream(String query, Object... arguments)
+  {
+    return stream(this.entityStore.getStreamFetchSize(), query, arguments);
+  }
+
+  /**
+   * Runs an arbitrary SQL query, as with {@link #query(String, Object...)},
+   * but returns a Stream that makes entities from the rows as it is 
+   * consumed.  The rows are read through a forward-only, read-only cursor
+   * with the given fetch size, so that the driver can deliver a large result
+   * in chunks rather than buffering all of it: MySQL is put into row-by-row
+   * streaming mode and PostgreSQL into cursor fetching.
+   *   <p>
+   * The query is not run until the first entity is pulled from the Stream,
+   * so errors in it are thrown by the terminal operation rather than by
+   * this method.  From then on the Stream holds a connection until it is
+   * closed or fully consumed, so it should always be used in a
+   * try-with-resources block.  Other queries cannot be issued on the same
+   * MySQL connection while it is open.
+   * 
+   * @param fetchSize The number of rows to fetch at a time, or 0 to use the
+   *        driver's default.
+   * @param query Any old SQL query.  Can use "?" marks in place of values.
+   * @param arguments The values to substitute for the "?" marks in the query.
+   */
+  public Stream<T> stream(int fetchSize, String query, Object... arguments)
+  {
+    final Cursor cursor = new Cursor(fetchSize, query, arguments);
+    return StreamSupport.stream(cursor, false).onClose(cursor);
+  }
+
   /**
    * Runs an arbitrary SQL query that <b>must</b> return a resultset that is
    * exactly comparable to the standard resultsets used by the list() method,
@@ -1038,6 +1405,7 @@ public class EntityGroup<T extends Identifiable>
       {
         ((PersistenceAware)object).setPersisted(true);
       }
+      notePersistedValues(object);
       
       if (object.getId() <= 0)
       {
@@ -1078,6 +1446,18 @@ public class EntityGroup<T extends Identifiable>
       return 0;
     }
     
+    // MySQL and PostgreSQL return the generated keys of every row of a
+    // multi-row INSERT, so those can write many objects per statement.
+    final DatabaseAffinity affinity = this.cf.getDatabaseAffinity();
+    if (  (this.entityStore.getInsertBatchRows() > 1)
+       && (  (affinity == DatabaseAffinity.MYSQL)
+          || (affinity == DatabaseAffinity.POSTGRESQL)
+          )
+       )
+    {
+      return insertAllMultiRow(objects);
+    }
+    
     // First, subdivide this into objects with id and those without.  Different
     // logic will be used to insert each.
     List<T> objectsWithId = new ArrayList<>(objects.size());
@@ -1200,6 +1580,7 @@ public class EntityGroup<T extends Identifiable>
             {
               ((PersistenceAware)object).setPersisted(true);
             }
+            notePersistedValues(object);
           }
         }
       }
@@ -1212,54 +1593,274 @@ public class EntityGroup<T extends Identifiable>
   }
 
   /**
-   * Called by put(object) to update the object in the database and returns 
-   * its id.
-   * @return The JDBC Statement.executeUpdate() return value.
+   * Called by insertAll(objects) to insert the objects with multi-row INSERT
+   * statements, gathering the generated identities of each statement in a
+   * single round-trip.
+   * @return Sum of the JDBC Statement.executeUpdate() return values.
    */
-  protected int update(T object)
+  private int insertAllMultiRow(Collection<T> objects)
   {
-    // Include every field in the update except the id.
-    final DataFieldToMethodMap[] fields = getGetMethodMappingCacheWithoutId();
-    final String fieldParts = getFieldPartsForUpdate();
-
-    try (
-        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
-        final PreparedStatement statement = monitor.getConnection().prepareStatement(
-            "UPDATE " + quotedTable + " SET " + fieldParts
-                + " WHERE " + quotedIdField + " = ?"
-                + getWhereClause(" AND ") + ";")
-        )
+    // Objects with and without ids are inserted with different columns.
+    final List<T> objectsWithId = new ArrayList<>(objects.size());
+    final List<T> objectsWithoutId = new ArrayList<>(objects.size());
+    for (T object : objects)
     {
-      statement.setLong(fields.length + 1, object.getId());
-      attachWhereArguments(fields.length + 2, statement);
-      int index = 1;
-      for (DataFieldToMethodMap field : fields)
+      if (object.getId() > 0)
       {
-        final Object value = readValueForUpdate(object, field);
-        applyValueToStatement(field, value, statement, index++);
+        objectsWithId.add(object);
       }
-      //this.log.debug(statement.toString());
-      return statement.executeUpdate();
+      else
+      {
+        objectsWithoutId.add(object);
+      }
+    }
+    
+    int rowsUpdated = 0;
+    try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
+    {
+      rowsUpdated += insertRows(monitor.getConnection(), objectsWithId, 
+          getGetMethodMappingCache(), false);
+      rowsUpdated += insertRows(monitor.getConnection(), objectsWithoutId,
+          getGetMethodMappingCacheWithoutId(), true);
     }
     catch (SQLException e)
     {
-      throw new EntityException(this.name() + " Exception during UPDATE.", e);
+      throw new EntityException(this.name() + " Exception during INSERT.", e);
+    }
+    
+    for (T object : objects)
+    {
+      // If the entity is persistence aware, let's inform it that it has been
+      // persisted.
+      if (object instanceof PersistenceAware)
+      {
+        ((PersistenceAware)object).setPersisted(true);
+      }
+      notePersistedValues(object);
     }
+    return rowsUpdated;
   }
 
   /**
-   * Called by put(objects) to update the objects in the database.
-   * @return Sum of the positive JDBC Statement.executeUpdate() return values.
+   * Inserts the given objects' values for the given fields, as many rows 
+   * per statement as the EntityStore's row and size limits and the driver's
+   * parameter limit allow.  If generateKeys is true, the objects are given
+   * the identities generated by the database.
    */
-  protected int updateAll(Collection<T> objects)
+  private int insertRows(Connection connection, List<T> objects, 
+      DataFieldToMethodMap[] fields, boolean generateKeys)
+    throws SQLException
   {
-    if (  (objects == null) 
-       || (objects.isEmpty())
-       )
-    {
-      return 0;
+    final int maxRows = Math.max(1, Math.min(this.entityStore.getInsertBatchRows(),
+        MAX_INSERT_PARAMETERS / Math.max(1, fields.length)));
+    final long maxBytes = this.entityStore.getInsertBatchBytes();
+    final List<Object[]> rows = new ArrayList<>(Math.min(maxRows, objects.size()));
+    int rowsUpdated = 0;
+    int start = 0;
+    while (start < objects.size())
+    {
+      // Gather rows until either limit would be exceeded.
+      rows.clear();
+      long bytes = 0;
+      int end = start;
+      while (  (end < objects.size())
+            && (rows.size() < maxRows)
+            )
+      {
+        final Object[] row = new Object[fields.length];
+        long rowBytes = 0;
+        for (int i = 0; i < fields.length; i++)
+        {
+          row[i] = readValueForUpdate(objects.get(end), fields[i]);
+          rowBytes += estimateSize(row[i]);
+        }
+        if (  (!rows.isEmpty())
+           && (bytes + rowBytes > maxBytes)
+           )
+        {
+          break;
+        }
+        rows.add(row);
+        bytes += rowBytes;
+        end++;
+      }
+      
+      rowsUpdated += insertRows(connection, objects.subList(start, end), 
+          fields, rows, generateKeys);
+      start = end;
     }
-
+    return rowsUpdated;
+  }
+
+  /**
+   * Inserts the given rows of values with a single statement.
+   */
+  private int insertRows(Connection connection, List<T> objects, 
+      DataFieldToMethodMap[] fields, List<Object[]> rows, boolean generateKeys)
+    throws SQLException
+  {
+    final StringList fieldsPart = new StringList(", ");
+    for (DataFieldToMethodMap field : fields)
+    {
+      fieldsPart.add(enquote(field.getFieldName()));
+    }
+    final String valuesPart = "(" 
+        + StringHelper.join(", ", Collections.nCopies(fields.length, "?")) + ")";
+    
+    try (PreparedStatement statement = connection.prepareStatement(
+        "INSERT INTO " + quotedTable + " (" + fieldsPart.toString() 
+            + ") VALUES " 
+            + StringHelper.join(", ", Collections.nCopies(rows.size(), valuesPart))
+            + ";",
+        generateKeys ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS))
+    {
+      int index = 1;
+      for (Object[] row : rows)
+      {
+        for (int i = 0; i < fields.length; i++)
+        {
+          applyValueToStatement(fields[i], row[i], statement, index++);
+        }
+      }
+      //this.log.debug(statement.toString());
+      final int rowsUpdated = statement.executeUpdate();
+      
+      if (generateKeys)
+      {
+        // Gather the new identities from the Statement.
+        try (ResultSet resultSet = statement.getGeneratedKeys())
+        {
+          int i = 0;
+          while (  (i < objects.size())
+                && (resultSet.next())
+                )
+          {
+            objects.get(i++).setId(resultSet.getLong(1));
+          }
+          if (i != objects.size())
+          {
+            throw new EntityException(this.name() + " One or more identities not returned after INSERT.");
+          }
+        }
+      }
+      return rowsUpdated;
+    }
+  }
+
+  /**
+   * Roughly estimates the number of bytes a value adds to a statement sent
+   * to the database.
+   */
+  private static long estimateSize(Object value)
+  {
+    if (value instanceof CharSequence)
+    {
+      return ((CharSequence)value).length() + 8;
+    }
+    else if (value instanceof byte[])
+    {
+      return ((byte[])value).length + 8;
+    }
+    return 16;
+  }
+
+  /**
+   * Called by put(object) to update the object in the database and returns 
+   * its id.  If the object is ChangeTracked, only the columns that differ
+   * from its snapshot are written, and no statement is issued at all if none
+   * do.
+   * @return The JDBC Statement.executeUpdate() return value.
+   */
+  protected int update(T object)
+  {
+    if (object instanceof ChangeTracked)
+    {
+      return updateChanges(object);
+    }
+    
+    // Include every field in the update except the id.
+    final DataFieldToMethodMap[] fields = getGetMethodMappingCacheWithoutId();
+    final String fieldParts = getFieldPartsForUpdate();
+
+    try (
+        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
+        final PreparedStatement statement = monitor.getConnection().prepareStatement(
+            "UPDATE " + quotedTable + " SET " + fieldParts
+                + " WHERE " + quotedIdField + " = ?"
+                + getWhereClause(" AND ") + ";")
+        )
+    {
+      statement.setLong(fields.length + 1, object.getId());
+      attachWhereArguments(fields.length + 2, statement);
+      int index = 1;
+      for (DataFieldToMethodMap field : fields)
+      {
+        final Object value = readValueForUpdate(object, field);
+        applyValueToStatement(field, value, statement, index++);
+      }
+      //this.log.debug(statement.toString());
+      return statement.executeUpdate();
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(this.name() + " Exception during UPDATE.", e);
+    }
+  }
+
+  /**
+   * Called by update(object) to write only the changed columns of a 
+   * ChangeTracked object.
+   */
+  private int updateChanges(T object)
+  {
+    final ChangeTracked tracked = (ChangeTracked)object;
+    final Object[] values = readValuesForUpdate(object);
+    final BitSet columns = changedColumns(tracked.getPersistedValues(), values);
+    if (columns.isEmpty())
+    {
+      return 0;
+    }
+
+    try (
+        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
+        final PreparedStatement statement = monitor.getConnection().prepareStatement(
+            "UPDATE " + quotedTable + " SET " + getFieldPartsForUpdate(columns)
+                + " WHERE " + quotedIdField + " = ?"
+                + getWhereClause(" AND ") + ";")
+        )
+    {
+      applyChangesToStatement(object, columns, values, statement);
+      //this.log.debug(statement.toString());
+      final int rowsUpdated = statement.executeUpdate();
+      tracked.setPersistedValues(snapshot(values));
+      return rowsUpdated;
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(this.name() + " Exception during UPDATE.", e);
+    }
+  }
+
+  /**
+   * Called by put(objects) to update the objects in the database.  
+   * ChangeTracked objects are batched by the set of columns that changed, 
+   * and those with no changes are skipped.
+   * @return Sum of the positive JDBC Statement.executeUpdate() return values.
+   */
+  protected int updateAll(Collection<T> objects)
+  {
+    if (  (objects == null) 
+       || (objects.isEmpty())
+       )
+    {
+      return 0;
+    }
+    
+    if (objects.iterator().next() instanceof ChangeTracked)
+    {
+      return updateAllChanges(objects);
+    }
+
     final DataFieldToMethodMap[] fields = getGetMethodMappingCacheWithoutId();
     final String fieldParts = getFieldPartsForUpdate();
 
@@ -1287,59 +1888,532 @@ public class EntityGroup<T extends Identifiable>
     }
     catch (SQLException e)
     {
-      throw new EntityException(this.name() + " Exception during UPDATE.", e);
+      throw new EntityException(this.name() + " Exception during UPDATE.", e);
+    }
+  }
+
+  /**
+   * Called by updateAll(objects) to write only the changed columns of 
+   * ChangeTracked objects, with one batch per distinct set of columns.
+   */
+  private int updateAllChanges(Collection<T> objects)
+  {
+    final Map<BitSet, List<T>> batches = new HashMap<>();
+    final Map<T, Object[]> valuesByObject = new IdentityHashMap<>(objects.size());
+    for (T object : objects)
+    {
+      final Object[] values = readValuesForUpdate(object);
+      final BitSet columns = changedColumns(
+          ((ChangeTracked)object).getPersistedValues(), values);
+      if (!columns.isEmpty())
+      {
+        batches.computeIfAbsent(columns, key -> new ArrayList<>()).add(object);
+        valuesByObject.put(object, values);
+      }
+    }
+
+    int rowsUpdated = 0;
+    try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
+    {
+      for (Map.Entry<BitSet, List<T>> batch : batches.entrySet())
+      {
+        final BitSet columns = batch.getKey();
+        try (PreparedStatement statement = monitor.getConnection().prepareStatement(
+            "UPDATE " + quotedTable + " SET " + getFieldPartsForUpdate(columns)
+                + " WHERE " + quotedIdField + " = ?"
+                + getWhereClause(" AND ") + ";"))
+        {
+          for (T object : batch.getValue())
+          {
+            applyChangesToStatement(object, columns, valuesByObject.get(object), 
+                statement);
+            statement.addBatch();
+          }
+          rowsUpdated += accumulatePositiveValues(statement.executeBatch());
+        }
+        for (T object : batch.getValue())
+        {
+          ((ChangeTracked)object).setPersistedValues(
+              snapshot(valuesByObject.get(object)));
+        }
+      }
+      return rowsUpdated;
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(this.name() + " Exception during UPDATE.", e);
+    }
+  }
+
+  /**
+   * Binds the changed values of an object, followed by its id and any where
+   * arguments, to an UPDATE statement built by getFieldPartsForUpdate(columns).
+   */
+  private void applyChangesToStatement(T object, BitSet columns, 
+      Object[] values, PreparedStatement statement)
+    throws SQLException
+  {
+    final DataFieldToMethodMap[] fields = getGetMethodMappingCacheWithoutId();
+    int index = 1;
+    for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1))
+    {
+      applyValueToStatement(fields[i], values[i], statement, index++);
+    }
+    statement.setLong(index, object.getId());
+    attachWhereArguments(index + 1, statement);
+  }
+
+  /**
+   * The caller doesn't have the context to make use of the information in the
+   * array, so instead simply count up the total rows updated. Only sum values > 0
+   * because negative values can indicate "no information" and including those in
+   * the sum could misrepresent whether rows were affected.
+   * 
+   * @param rowUpdateCounts
+   * @return
+   */
+  private int accumulatePositiveValues(int[] rowUpdateCounts)
+  {
+    int rowsUpdated = 0;
+    for (int row : rowUpdateCounts) {
+      if (row > 0) {
+        rowsUpdated += row;
+      }
+    }
+    return rowsUpdated;
+  }
+
+  /**
+   * Runs a simple SQL aggregate function on the identity column.  Returns 0 
+   * if no result can be computed.
+   */
+  protected long identityAggregate(String sqlAggregateFunction)
+  {
+    long result = 0;
+    try (
+        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
+        PreparedStatement statement = monitor.getConnection().prepareStatement(
+            "SELECT " + sqlAggregateFunction + "(" + quotedIdField + ") " +
+               "AS Result FROM " + quotedTable + ";",
+            ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY)
+        )
+    {
+      try (ResultSet resultSet = statement.executeQuery())
+      {
+        if (resultSet.next())
+        {
+          result = resultSet.getLong(1);
+        }
+      }
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(this.name() + " Exception during identity aggregate.", e);
+    }
+    return result;  
+  }
+
+  /**
+   * Returns the number of persisted rows along with the lowest and highest
+   * identities, in that order, using a single aggregate query.  Respects the
+   * group's WHERE clause.  Returns zeros if no result can be computed.
+   */
+  protected long[] identityStatistics()
+  {
+    final long[] result = new long[3];
+    try (
+        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
+        PreparedStatement statement = monitor.getConnection().prepareStatement(
+            "SELECT COUNT(*), MIN(" + quotedIdField + "), MAX(" + quotedIdField
+                + ") FROM " + quotedTable + getWhereClause(" WHERE ") + ";",
+            ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY)
+        )
+    {
+      attachWhereArguments(1, statement);
+      try (ResultSet resultSet = statement.executeQuery())
+      {
+        if (resultSet.next())
+        {
+          result[0] = resultSet.getLong(1);
+          result[1] = resultSet.getLong(2);
+          result[2] = resultSet.getLong(3);
+        }
+      }
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(this.name() + " Exception during identity statistics.", e);
+    }
+    return result;
+  }
+
+  /**
+   * Gets the identities of all rows of this group, in no particular order.
+   * Reading only the identity column is far cheaper than fetching the rows
+   * themselves, so this is suitable for reconciling cached contents
+   * against the table.
+   */
+  protected long[] identities()
+  {
+    final TLongArrayList result = new TLongArrayList();
+    try (
+        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
+        PreparedStatement statement = monitor.getConnection().prepareStatement(
+            "SELECT " + quotedIdField + " FROM " + quotedTable 
+                + getWhereClause(" WHERE ") + ";",
+            ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY)
+        )
+    {
+      attachWhereArguments(1, statement);
+      try (ResultSet resultSet = statement.executeQuery())
+      {
+        while (resultSet.next())
+        {
+          result.add(resultSet.getLong(1));
+        }
+      }
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(this.name() + " Exception during identities.", e);
+    }
+    return result.toArray();
+  }
+
+  /**
+   * Gets the greatest value of a column, such as a last-modified timestamp
+   * or a version number, among the rows of this group.  Returns null if
+   * there are no rows.
+   */
+  protected Object columnMaximum(String column)
+  {
+    try (
+        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
+        PreparedStatement statement = monitor.getConnection().prepareStatement(
+            "SELECT MAX(" + enquote(column) + ") FROM " + quotedTable 
+                + getWhereClause(" WHERE ") + ";",
+            ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY)
+        )
+    {
+      attachWhereArguments(1, statement);
+      try (ResultSet resultSet = statement.executeQuery())
+      {
+        return resultSet.next() ? resultSet.getObject(1) : null;
+      }
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(this.name() + " Exception during column maximum.", e);
+    }
+  }
+
+  /**
+   * Passes the column value and identity of each row whose value in the 
+   * given column is at least the provided value to a consumer, in 
+   * ascending order of that column.  If the provided value is null, every
+   * row is visited.
+   */
+  protected void changedSince(String column, Object since, 
+      ObjLongConsumer<Object> consumer)
+  {
+    final String quotedColumn = enquote(column);
+    final StringBuilder sql = new StringBuilder("SELECT ")
+        .append(quotedIdField).append(", ").append(quotedColumn)
+        .append(" FROM ").append(quotedTable)
+        .append(getWhereClause(" WHERE "));
+    if (since != null)
+    {
+      sql.append(this.where != null ? " AND " : " WHERE ")
+         .append(quotedColumn).append(" >= ?");
+    }
+    sql.append(" ORDER BY ").append(quotedColumn).append(';');
+
+    try (
+        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
+        PreparedStatement statement = monitor.getConnection().prepareStatement(
+            sql.toString(),
+            ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY)
+        )
+    {
+      final int index = attachWhereArguments(1, statement);
+      if (since != null)
+      {
+        statement.setObject(index, since);
+      }
+      try (ResultSet resultSet = statement.executeQuery())
+      {
+        while (resultSet.next())
+        {
+          consumer.accept(resultSet.getObject(2), resultSet.getLong(1));
+        }
+      }
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(this.name() + " Exception during SELECT (changed since).", e);
+    }
+  }
+
+  /**
+   * Streams the persisted entities whose identities fall within the given
+   * inclusive range to a consumer, without collecting them into a List or
+   * sorting them.  Rows are read forward-only using the provided fetch size
+   * so that the driver can deliver a large table in chunks rather than
+   * buffering it entirely.  Passing Long.MIN_VALUE and Long.MAX_VALUE as
+   * the bounds streams the entire table.
+   *   <p>
+   * Each call uses its own connection, so several ranges of the same table
+   * may be streamed concurrently.  The consumer must be thread-safe in that
+   * case.
+   *
+   * @return the number of entities delivered to the consumer.
+   */
+  protected long streamRange(long fromId, long toId, int fetchSize,
+      Consumer<? super T> consumer)
+  {
+    final boolean ranged = (fromId != Long.MIN_VALUE) || (toId != Long.MAX_VALUE);
+    final StringBuilder sql = new StringBuilder("SELECT * FROM ")
+        .append(quotedTable)
+        .append(getWhereClause(" WHERE "));
+    if (ranged)
+    {
+      sql.append(this.where != null ? " AND " : " WHERE ")
+         .append(quotedIdField).append(" >= ? AND ")
+         .append(quotedIdField).append(" <= ?");
+    }
+    sql.append(';');
+
+    long count = 0;
+    try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
+    {
+      final Connection connection = monitor.getConnection();
+      final boolean autoCommit = prepareForStreaming(connection, fetchSize);
+      try (PreparedStatement statement = connection.prepareStatement(
+          sql.toString(),
+          ResultSet.TYPE_FORWARD_ONLY,
+          ResultSet.CONCUR_READ_ONLY))
+      {
+        setStreamingFetchSize(statement, fetchSize);
+        int index = attachWhereArguments(1, statement);
+        if (ranged)
+        {
+          statement.setLong(index++, fromId);
+          statement.setLong(index, toId);
+        }
+        try (ResultSet resultSet = statement.executeQuery())
+        {
+          while (resultSet.next())
+          {
+            consumer.accept(make(resultSet));
+            count++;
+          }
+        }
+      }
+      finally
+      {
+        if (autoCommit)
+        {
+          connection.commit();
+          connection.setAutoCommit(true);
+        }
+      }
+    }
+    catch (Exception e)
+    {
+      throw new EntityException(this.name() + " Exception during SELECT (stream).", e);
+    }
+    return count;
+  }
+
+  /**
+   * Prepares a connection for reading a result set incrementally.  The
+   * PostgreSQL driver only honors the fetch size when auto-commit is
+   * disabled, so it is switched off here.  Returns true if auto-commit was
+   * disabled and must be restored by the caller.
+   */
+  private boolean prepareForStreaming(Connection connection, int fetchSize)
+    throws SQLException
+  {
+    if (fetchSize > 0
+        && this.cf.getDatabaseAffinity() == DatabaseAffinity.POSTGRESQL
+        && connection.getAutoCommit())
+    {
+      connection.setAutoCommit(false);
+      return true;
     }
+    return false;
   }
 
   /**
-   * The caller doesn't have the context to make use of the information in the
-   * array, so instead simply count up the total rows updated. Only sum values > 0
-   * because negative values can indicate "no information" and including those in
-   * the sum could misrepresent whether rows were affected.
-   * 
-   * @param rowUpdateCounts
-   * @return
+   * Applies a fetch size to a statement.  MySQL's driver ignores positive
+   * fetch sizes unless cursor fetching is enabled on the connect string and
+   * otherwise streams row-by-row only when given Integer.MIN_VALUE.
    */
-  private int accumulatePositiveValues(int[] rowUpdateCounts)
+  private void setStreamingFetchSize(Statement statement, int fetchSize)
+    throws SQLException
   {
-    int rowsUpdated = 0;
-    for (int row : rowUpdateCounts) {
-      if (row > 0) {
-        rowsUpdated += row;
-      }
+    if (fetchSize > 0)
+    {
+      statement.setFetchSize(
+          this.cf.getDatabaseAffinity() == DatabaseAffinity.MYSQL
+              ? Integer.MIN_VALUE
+              : fetchSize);
     }
-    return rowsUpdated;
   }
 
   /**
-   * Runs a simple SQL aggregate function on the identity column.  Returns 0 
-   * if no result can be computed.
+   * A forward-only cursor over the results of a query, backing the Streams
+   * returned by stream().  The query is run on the first advance, and the
+   * cursor holds its connection from then until it is run as the Stream's
+   * close handler or reaches the end of the results.
    */
-  protected long identityAggregate(String sqlAggregateFunction)
+  private final class Cursor
+    extends Spliterators.AbstractSpliterator<T>
+    implements Runnable
   {
-    long result = 0;
-    try (
-        ConnectionMonitor monitor = this.cf.getConnectionMonitor();
-        PreparedStatement statement = monitor.getConnection().prepareStatement(
-            "SELECT " + sqlAggregateFunction + "(" + quotedIdField + ") " +
-               "AS Result FROM " + quotedTable + ";",
+    private final int fetchSize;
+    private final String query;
+    private final Object[] arguments;
+    private ConnectionMonitor monitor;
+    private boolean autoCommit;
+    private PreparedStatement statement;
+    private ResultSet resultSet;
+    private boolean closed = false;
+
+    /**
+     * Constructor.  A null arguments array binds the group's where
+     * arguments instead.
+     */
+    private Cursor(int fetchSize, String query, Object[] arguments)
+    {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+      this.fetchSize = fetchSize;
+      this.query = query;
+      this.arguments = arguments;
+    }
+
+    /**
+     * Takes a connection and runs the query.
+     */
+    private void open()
+    {
+      try
+      {
+        this.monitor = EntityGroup.this.cf.getConnectionMonitor();
+        final Connection connection = this.monitor.getConnection();
+        this.autoCommit = prepareForStreaming(connection, this.fetchSize);
+        this.statement = connection.prepareStatement(this.query,
             ResultSet.TYPE_FORWARD_ONLY,
-            ResultSet.CONCUR_READ_ONLY)
-        )
+            ResultSet.CONCUR_READ_ONLY);
+        setStreamingFetchSize(this.statement, this.fetchSize);
+        if (this.arguments == null)
+        {
+          attachWhereArguments(1, this.statement);
+        }
+        else
+        {
+          attachArguments(this.statement, this.arguments);
+        }
+        this.resultSet = this.statement.executeQuery();
+      }
+      catch (SQLException e)
+      {
+        try
+        {
+          run();
+        }
+        catch (EntityException closeException)
+        {
+          e.addSuppressed(closeException);
+        }
+        throw new EntityException(EntityGroup.this.name() + " Exception during SELECT (stream).", e);
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action)
     {
-      try (ResultSet resultSet = statement.executeQuery())
+      if (this.closed)
       {
-        if (resultSet.next())
+        return false;
+      }
+      if (this.resultSet == null)
+      {
+        open();
+      }
+      try
+      {
+        if (this.resultSet.next())
         {
-          result = resultSet.getLong(1);
+          action.accept(make(this.resultSet));
+          return true;
         }
       }
+      catch (SQLException e)
+      {
+        run();
+        throw new EntityException(EntityGroup.this.name() + " Exception during SELECT (stream).", e);
+      }
+      
+      // Release the connection as soon as the results are exhausted rather
+      // than waiting for the Stream to be closed.
+      run();
+      return false;
     }
-    catch (SQLException e)
+
+    @Override
+    public void run()
     {
-      throw new EntityException(this.name() + " Exception during identity aggregate.", e);
+      if (!this.closed)
+      {
+        close();
+      }
+    }
+
+    /**
+     * Closes the result set, statement and connection, restoring 
+     * auto-commit if it was disabled.
+     */
+    private void close()
+    {
+      this.closed = true;
+      if (this.monitor == null)
+      {
+        return;
+      }
+      try
+      {
+        try
+        {
+          if (this.resultSet != null)
+          {
+            this.resultSet.close();
+          }
+          if (this.statement != null)
+          {
+            this.statement.close();
+          }
+          if (this.autoCommit)
+          {
+            this.monitor.getConnection().commit();
+            this.monitor.getConnection().setAutoCommit(true);
+          }
+        }
+        finally
+        {
+          this.monitor.close();
+        }
+      }
+      catch (SQLException e)
+      {
+        throw new EntityException(EntityGroup.this.name() + " Exception while closing stream.", e);
+      }
     }
-    return result;  
   }
 
   /**
@@ -1408,11 +2482,27 @@ public class EntityGroup<T extends Identifiable>
    * Updates the entity's field values from a map.  The input to this method is
    * meant to be generated by {@link #writeMap(Identifiable)}.
    */
-  @SuppressWarnings({ "unchecked", "rawtypes" })
   public void readMap(T object, Map<String, Object> properties)
+  {
+    readMap(object, properties, false);
+  }
+
+  /**
+   * Updates the entity's field values from a map.  If partial is true, fields
+   * absent from the map are left as they are; otherwise they are set to null.
+   * A ChangeTracked entity's snapshot is updated to match, since the map is
+   * taken to describe persisted values.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private void readMap(T object, Map<String, Object> properties, 
+      boolean partial)
   {
     for (DataFieldToMethodMap map : getSetMethodMappingCache(null))
     {
+      if (partial && !properties.containsKey(map.getFieldName()))
+      {
+        continue;
+      }
       try
       {
         Object value = properties.get(map.getFieldName());
@@ -1435,6 +2525,7 @@ public class EntityGroup<T extends Identifiable>
       //catch (IllegalAccessException e) {}
       //catch (InvocationTargetException e) {}
     }
+    notePersistedValues(object, properties.keySet());
   }
   
   /**
@@ -1457,15 +2548,61 @@ public class EntityGroup<T extends Identifiable>
     return object;
   }
 
+  /**
+   * Updates an existing object from a map holding only some of its fields,
+   * such as one generated by {@link #writeMap(Identifiable, String...)}.
+   * Fields absent from the map are left unchanged.
+   */
+  public T updateObjectFromPartialMap(T object, Map<String, Object> properties)
+  {
+    readMap(object, properties, true);
+    return object;
+  }
+
+  /**
+   * Gets the mappings from table columns to the entity's getter methods,
+   * binding to the table if necessary.  For use by subclasses.
+   */
+  protected DataFieldToMethodMap[] getFieldGetters()
+  {
+    return getGetMethodMappingCache();
+  }
+
+  /**
+   * Gets the mappings from table columns to the entity's setter methods,
+   * binding to the table if necessary.  For use by subclasses.
+   */
+  protected DataFieldToMethodMap[] getFieldSetters()
+  {
+    return getSetMethodMappingCache(null);
+  }
+
   /**
    * Writes the entity's field values to a map.  The output from this method is
    * meant to be consumed by {@link #readMap(Identifiable, Map)}.
    */
   public Map<String, Object> writeMap(T object)
   {
+    return writeMap(object, (String[])null);
+  }
+
+  /**
+   * Writes the named field values of the entity to a map, or all of them if 
+   * fields is null.  The output from this method is meant to be consumed by 
+   * {@link #updateObjectFromPartialMap(Identifiable, Map)}.
+   */
+  public Map<String, Object> writeMap(T object, String... fields)
+  {
+    final Set<String> names = (fields == null)
+        ? null
+        : new HashSet<>(Arrays.asList(fields));
     Map<String, Object> properties = new HashMap<>();
     for (DataFieldToMethodMap map : getGetMethodMappingCache())
     {
+      if (names != null && !names.contains(map.getFieldName()))
+      {
+        continue;
+      }
       try
       {
         //Object value = map.method.invoke(object);
@@ -1522,6 +2659,135 @@ public class EntityGroup<T extends Identifiable>
     return serialize(field, value);
   }
 
+  /**
+   * Returns the values to be used in a prepared SQL statement for every 
+   * field but the id, in the order of getGetMethodMappingCacheWithoutId.
+   */
+  private Object[] readValuesForUpdate(T object)
+  {
+    final DataFieldToMethodMap[] fields = getGetMethodMappingCacheWithoutId();
+    final Object[] values = new Object[fields.length];
+    for (int i = 0; i < fields.length; i++)
+    {
+      values[i] = readValueForUpdate(object, fields[i]);
+    }
+    return values;
+  }
+
+  /**
+   * Returns the indexes of the values that differ from a snapshot.  Every
+   * index is included if there is no usable snapshot.
+   */
+  private static BitSet changedColumns(Object[] snapshot, Object[] values)
+  {
+    final BitSet columns = new BitSet(values.length);
+    if (  (snapshot == null)
+       || (snapshot.length != values.length)
+       )
+    {
+      columns.set(0, values.length);
+    }
+    else
+    {
+      for (int i = 0; i < values.length; i++)
+      {
+        if (!Objects.deepEquals(snapshot[i], values[i]))
+        {
+          columns.set(i);
+        }
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Snapshots the current values of a ChangeTracked object as its persisted
+   * values.  Does nothing for other objects.
+   */
+  private void notePersistedValues(T object)
+  {
+    if (object instanceof ChangeTracked)
+    {
+      ((ChangeTracked)object).setPersistedValues(
+          snapshot(readValuesForUpdate(object)));
+    }
+  }
+
+  /**
+   * Updates the snapshot of a ChangeTracked object with the current values of
+   * the named fields, which have just been read from a map.  Objects with no
+   * snapshot are given a complete one.
+   */
+  private void notePersistedValues(T object, Set<String> fieldNames)
+  {
+    if (object instanceof ChangeTracked)
+    {
+      final ChangeTracked tracked = (ChangeTracked)object;
+      final DataFieldToMethodMap[] fields = getGetMethodMappingCacheWithoutId();
+      final Object[] snapshot = tracked.getPersistedValues();
+      if (  (snapshot == null)
+         || (snapshot.length != fields.length)
+         )
+      {
+        tracked.setPersistedValues(snapshot(readValuesForUpdate(object)));
+        return;
+      }
+      
+      // Copy rather than modify the snapshot in place so that a concurrent
+      // put never sees a partially updated array.
+      final Object[] values = snapshot.clone();
+      for (int i = 0; i < fields.length; i++)
+      {
+        if (fieldNames.contains(fields[i].getFieldName()))
+        {
+          values[i] = snapshotValue(readValueForUpdate(object, fields[i]));
+        }
+      }
+      tracked.setPersistedValues(values);
+    }
+  }
+
+  /**
+   * Copies values read for an update into a snapshot, so that an entity
+   * changing a Date or array in place does not change its snapshot too.
+   */
+  private static Object[] snapshot(Object[] values)
+  {
+    final Object[] snapshot = new Object[values.length];
+    for (int i = 0; i < values.length; i++)
+    {
+      snapshot[i] = snapshotValue(values[i]);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Copies a mutable value for a snapshot: Dates (including the java.sql
+   * types), Calendars and arrays, which serialize() and type adapters may
+   * return as the same objects the entity holds.  Other values are
+   * returned as they are.
+   */
+  private static Object snapshotValue(Object value)
+  {
+    if (value instanceof Date)
+    {
+      return ((Date)value).clone();
+    }
+    if (value instanceof Calendar)
+    {
+      return ((Calendar)value).clone();
+    }
+    if (value != null && value.getClass().isArray())
+    {
+      final int length = java.lang.reflect.Array.getLength(value);
+      final Object copy = java.lang.reflect.Array.newInstance(
+          value.getClass().getComponentType(), length);
+      System.arraycopy(value, 0, copy, 0, length);
+      return copy;
+    }
+    return value;
+  }
+
   /**
    * Returns the custom type adapter for the given field, or {@code null} if
    * one does not exist.
@@ -1854,6 +3120,22 @@ public class EntityGroup<T extends Identifiable>
     return this.fieldPartsForUpdate;
   }
 
+  /**
+   * Gets the comma-delimited String of "FieldName = ?" field-parts for an
+   * UPDATE statement of only the given columns, indexed as in
+   * getGetMethodMappingCacheWithoutId.
+   */
+  private String getFieldPartsForUpdate(BitSet columns)
+  {
+    final StringList fieldParts = new StringList(", ");
+    final DataFieldToMethodMap[] fields = getGetMethodMappingCacheWithoutId();
+    for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1))
+    {
+      fieldParts.add(enquote(fields[i].getFieldName()) + " = ?");
+    }
+    return fieldParts.toString();
+  }
+
   /**
    * Returns the cache of set methods for this entity type.  The cache is lazy-
    * initialized.
@@ -2107,9 +3389,23 @@ public class EntityGroup<T extends Identifiable>
       throw new IllegalStateException("No set method mappings available for " + name());
     }
     
+    // Let the generated mapper, if any, set the fields it can.
+    final RowMapping<T> mapping = getRowMapping(mappings);
+    if (mapping.mapper != null)
+    {
+      try
+      {
+        mapping.mapper.map(object, resultSet);
+      }
+      catch (Exception e)
+      {
+        throw new EntityException("Exception during " + this.name() + " object initialization (generated mapper).", e);
+      }
+    }
+    
     // Go through the cache and call the methods as specified by the
     // map objects.
-    for (DataFieldToMethodMap map : mappings)
+    for (DataFieldToMethodMap map : mapping.remaining)
     {
       try
       {
@@ -2129,6 +3425,10 @@ public class EntityGroup<T extends Identifiable>
       ((PersistenceAware)object).setPersisted(true);
     }
     
+    // If the entity is ChangeTracked, snapshot the values as read, before
+    // initialize has a chance to change any of them.
+    notePersistedValues(object);
+    
     // Provide a reference to the EntityStore if the object is CacheAware. 
     if (object instanceof CacheAware)
     {
@@ -2146,6 +3446,89 @@ public class EntityGroup<T extends Identifiable>
     return object;
   }
 
+  /**
+   * Gets the generated mapper for the given set methods and the set methods
+   * it does not cover, generating the mapper on first use.  The mapper 
+   * covers only the longest run of supported set methods at the start of
+   * the row, so that together with the remaining set methods, invoked 
+   * after it, every set method is still called in column order.  Fields 
+   * with type adapters are never covered.
+   */
+  private RowMapping<T> getRowMapping(DataFieldToMethodMap[] mappings)
+  {
+    // This method is idempotent so this does not need to be synchronized.
+    RowMapping<T> mapping = this.rowMapping;
+    if (  (mapping == null)
+       || (mapping.setters != mappings)
+       )
+    {
+      final List<DataFieldToMethodMap> generated = new ArrayList<>(mappings.length);
+      final List<DataFieldToMethodMap> remaining = new ArrayList<>(mappings.length);
+      if (this.entityStore.isGeneratingRowMappers())
+      {
+        for (DataFieldToMethodMap map : mappings)
+        {
+          if (  (remaining.isEmpty())
+             && (RowMapperGenerator.supports(map))
+             && (getTypeAdapter(map, false) == null)
+             )
+          {
+            generated.add(map);
+          }
+          else
+          {
+            remaining.add(map);
+          }
+        }
+      }
+      else
+      {
+        remaining.addAll(Arrays.asList(mappings));
+      }
+      
+      RowMapper<T> mapper = null;
+      if (!generated.isEmpty())
+      {
+        try
+        {
+          mapper = RowMapperGenerator.generate(this.type, generated);
+        }
+        catch (IllegalStateException e)
+        {
+          log.warn("{} falling back to reflection for all fields.", name(), e);
+        }
+      }
+      if (mapper == null)
+      {
+        remaining.clear();
+        remaining.addAll(Arrays.asList(mappings));
+      }
+      mapping = new RowMapping<>(mappings, mapper, 
+          remaining.toArray(new DataFieldToMethodMap[remaining.size()]));
+      this.rowMapping = mapping;
+    }
+    return mapping;
+  }
+
+  /**
+   * The generated mapper for a group's set methods, if any, and the set
+   * methods that it leaves to be invoked reflectively.
+   */
+  private static class RowMapping<T>
+  {
+    private final DataFieldToMethodMap[] setters;
+    private final RowMapper<T> mapper;
+    private final DataFieldToMethodMap[] remaining;
+
+    private RowMapping(DataFieldToMethodMap[] setters, RowMapper<T> mapper,
+        DataFieldToMethodMap[] remaining)
+    {
+      this.setters = setters;
+      this.mapper = mapper;
+      this.remaining = remaining;
+    }
+  }
+
   /**
    * Wraps a SQL table name or column name in the identifier quote strings used
    * by the database.  For example, MySQL uses the "`" character.  Table or
@@ -2307,6 +3690,7 @@ public class EntityGroup<T extends Identifiable>
      * honestly won't be very fun.
      */
     protected boolean distribute = false;
+    protected boolean versioned = false;
 
     /**
      * Returns a new builder of {@link EntityGroup} instances.
@@ -2328,7 +3712,7 @@ public class EntityGroup<T extends Identifiable>
      */
     public EntityGroup<T> build(EntityStore entityStore)
     {
-      return new EntityGroup<>(
+      final EntityGroup<T> group = new EntityGroup<>(
           entityStore,
           this.type,
           this.table,
@@ -2339,6 +3723,8 @@ public class EntityGroup<T extends Identifiable>
           this.whereArguments,
           this.readOnly,
           this.distribute);
+      group.setVersioned(this.versioned);
+      return group;
     }
 
     /**
@@ -2414,6 +3800,21 @@ public class EntityGroup<T extends Identifiable>
       return this;
     }
 
+    /**
+     * Specifies that distributed updates to the resulting EntityGroup should
+     * carry version stamps, so that instances skip updates older than, or
+     * the same as, what they already have.  Every instance should agree on
+     * this setting; updates from instances that do not stamp them are
+     * always applied.  Each instance needs a distinct cluster node id, 
+     * assigned by its cache message transport; see 
+     * {@link EntityVersions}.
+     */
+    public Builder<T> versioned(boolean versioned)
+    {
+      this.versioned = versioned;
+      return this;
+    }
+
     /**
      * Sets the WHERE clause and arguments to use in queries for entities of
      * this type.
@@ -26,7 +26,10 @@
  *******************************************************************************/
 package com.techempower.data;
 
+import gnu.trove.*;
+import gnu.trove.procedure.*;
 import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
 
 import java.util.*;
 
@@ -563,6 +566,149 @@ public interface EntityRelation<L extends Identifiable, R extends Identifiable>
    */
   int size();
 
+  /**
+   * Calls the procedure with each left ID associated with the specified 
+   * right ID, stopping if the procedure returns {@code false}.
+   *
+   * @param rightID the ID of the right value whose associated left IDs are
+   *                to be visited
+   * @param procedure called with each left ID
+   * @return {@code false} if the procedure stopped the iteration
+   */
+  default boolean forEachLeftID(long rightID, TLongProcedure procedure)
+  {
+    for (long leftID : leftIDArray(rightID))
+    {
+      if (!procedure.execute(leftID))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Calls the procedure with each right ID associated with the specified 
+   * left ID, stopping if the procedure returns {@code false}.
+   *
+   * @param leftID the ID of the left value whose associated right IDs are
+   *               to be visited
+   * @param procedure called with each right ID
+   * @return {@code false} if the procedure stopped the iteration
+   */
+  default boolean forEachRightID(long leftID, TLongProcedure procedure)
+  {
+    for (long rightID : rightIDArray(leftID))
+    {
+      if (!procedure.execute(rightID))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copies the left IDs associated with the specified right ID into the 
+   * given buffer.  If there are more than the buffer holds, only as many as
+   * fit are copied; compare the return value to the buffer's length.
+   *
+   * @param rightID the ID of the right value whose associated left IDs are
+   *                to be copied
+   * @param buffer the array into which to copy the left IDs
+   * @return the number of left IDs associated with the right ID
+   */
+  default int leftIDs(long rightID, long[] buffer)
+  {
+    final long[] leftIDs = leftIDArray(rightID);
+    System.arraycopy(leftIDs, 0, buffer, 0, 
+        Math.min(leftIDs.length, buffer.length));
+    return leftIDs.length;
+  }
+
+  /**
+   * Copies the right IDs associated with the specified left ID into the 
+   * given buffer.  If there are more than the buffer holds, only as many as
+   * fit are copied; compare the return value to the buffer's length.
+   *
+   * @param leftID the ID of the left value whose associated right IDs are
+   *               to be copied
+   * @param buffer the array into which to copy the right IDs
+   * @return the number of right IDs associated with the left ID
+   */
+  default int rightIDs(long leftID, long[] buffer)
+  {
+    final long[] rightIDs = rightIDArray(leftID);
+    System.arraycopy(rightIDs, 0, buffer, 0, 
+        Math.min(rightIDs.length, buffer.length));
+    return rightIDs.length;
+  }
+
+  /**
+   * Returns a read-only set of the left IDs associated with the specified 
+   * right ID.  Implementations return their own storage where they can 
+   * safely do so, rather than a copy, so the set may or may not reflect 
+   * later changes to the relation.
+   *
+   * @param rightID the ID of the right value whose associated left IDs are
+   *                to be returned
+   * @return a read-only set of the associated left IDs
+   */
+  default TLongSet leftIDsView(long rightID)
+  {
+    return TCollections.unmodifiableSet(new TLongHashSet(leftIDArray(rightID)));
+  }
+
+  /**
+   * Returns a read-only set of the right IDs associated with the specified 
+   * left ID.  Implementations return their own storage where they can 
+   * safely do so, rather than a copy, so the set may or may not reflect 
+   * later changes to the relation.
+   *
+   * @param leftID the ID of the left value whose associated right IDs are
+   *               to be returned
+   * @return a read-only set of the associated right IDs
+   */
+  default TLongSet rightIDsView(long leftID)
+  {
+    return TCollections.unmodifiableSet(rightIDsLongSet(leftID));
+  }
+
+  /**
+   * Returns the left IDs associated with any of the specified right IDs.
+   *
+   * @param rightIDs the IDs of the right values whose associated left IDs 
+   *                 are to be returned
+   * @return a new set of the left IDs associated with any of the right IDs
+   */
+  default TLongSet leftIDsUnion(long[] rightIDs)
+  {
+    final TLongSet union = new TLongHashSet();
+    for (long rightID : rightIDs)
+    {
+      union.addAll(leftIDArray(rightID));
+    }
+    return union;
+  }
+
+  /**
+   * Returns the right IDs associated with any of the specified left IDs,
+   * for example all of the groups to which any of several users belong.
+   *
+   * @param leftIDs the IDs of the left values whose associated right IDs 
+   *                are to be returned
+   * @return a new set of the right IDs associated with any of the left IDs
+   */
+  default TLongSet rightIDsUnion(long[] leftIDs)
+  {
+    final TLongSet union = new TLongHashSet();
+    for (long leftID : leftIDs)
+    {
+      union.addAll(rightIDArray(leftID));
+    }
+    return union;
+  }
+
   /**
    * Returns the identifier for the source of this relation in the data store.
    * In a SQL database, this would be a SQL table name.  This value should
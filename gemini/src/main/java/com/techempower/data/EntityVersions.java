@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data;
+
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+
+import java.util.function.*;
+
+/**
+ * Version stamps for the entities of one versioned EntityGroup, used to
+ * order the changes that instances distribute to each other.  A change
+ * announced by this instance gets a new stamp from {@link #stamp(long)};
+ * a change received from another instance is applied only if
+ * {@link #accept(long, long)} finds its stamp newer than the last one seen
+ * for that entity, so duplicate and out-of-order updates are skipped.
+ *   <p>
+ * Stamps are hybrid logical clocks: the high bits hold a millisecond tick
+ * that never falls behind the group's high-water mark, the newest stamp
+ * issued or accepted, and the low bits hold the cluster node id of the
+ * issuing instance, so that concurrent changes from two instances do not
+ * tie as long as their node ids differ.  The node id is assigned by the
+ * cache message transport from the cluster's configuration; see 
+ * EntityStore.setVersionNode.  A change made after receiving another is 
+ * therefore always stamped newer than it.
+ *   <p>
+ * Stamps order changes as they are announced, not as they are committed.
+ * If two instances write the same entity at nearly the same time, the 
+ * write that commits last may be announced first, and the other 
+ * instances then keep the entity as the earlier write left it until it 
+ * next changes.  Versioning removes the reordering and duplication added 
+ * by delivery, not races between writers.
+ *   <p>
+ * One stamp is kept per entity changed within the last 
+ * {@link #RETENTION_MS}, including removed entities, so that a late 
+ * update cannot bring a removed entity back.  Older stamps are discarded,
+ * and all are discarded when the group is reset.
+ */
+public class EntityVersions
+{
+  /**
+   * The number of low bits of a stamp that hold the node id, and so the
+   * number of distinct node ids.
+   */
+  public static final int   NODE_BITS = 12;
+  public static final int   NODE_COUNT = 1 << NODE_BITS;
+
+  /**
+   * How long stamps are kept, measured back from the high-water mark.
+   */
+  public static final long  RETENTION_MS = 10L * 60L * 1000L;
+
+  /**
+   * The fewest stamps kept before old ones are discarded.
+   */
+  private static final int  MINIMUM_PRUNE_SIZE = 1024;
+
+  private final IntSupplier  node;
+  private final TLongLongMap versions = new TLongLongHashMap();
+  private long               highWaterMark;
+  private int                pruneSize = MINIMUM_PRUNE_SIZE;
+
+  /**
+   * Constructor.
+   *
+   * @param node supplies this instance's cluster node id, between 0 and
+   *        NODE_COUNT - 1, or a negative number if none has been assigned.
+   */
+  public EntityVersions(IntSupplier node)
+  {
+    this.node = node;
+  }
+
+  /**
+   * Gets the node id of the instance that issued a stamp.
+   */
+  public static int node(long version)
+  {
+    return (int)(version & (NODE_COUNT - 1));
+  }
+
+  /**
+   * Issues a stamp newer than any seen so far and records it for the
+   * entity.
+   *
+   * @throws IllegalStateException if no node id has been assigned.
+   */
+  public synchronized long stamp(long id)
+  {
+    final int node = this.node.getAsInt();
+    if (node < 0 || node >= NODE_COUNT)
+    {
+      throw new IllegalStateException("No cluster node id has been assigned.");
+    }
+    final long tick = Math.max((this.highWaterMark >>> NODE_BITS) + 1,
+        System.currentTimeMillis());
+    final long version = (tick << NODE_BITS) | node;
+    this.highWaterMark = version;
+    record(id, version);
+    return version;
+  }
+
+  /**
+   * Records a stamp received from another instance.  Returns false,
+   * recording nothing, if the entity already has this stamp or a newer one,
+   * in which case the change should be skipped.
+   */
+  public synchronized boolean accept(long id, long version)
+  {
+    if (version <= this.versions.get(id))
+    {
+      return false;
+    }
+    if (version > this.highWaterMark)
+    {
+      this.highWaterMark = version;
+    }
+    record(id, version);
+    return true;
+  }
+
+  /**
+   * Gets the last stamp issued or accepted for an entity, or 0 if none.
+   */
+  public synchronized long get(long id)
+  {
+    return this.versions.get(id);
+  }
+
+  /**
+   * Gets the newest stamp issued or accepted for any entity in the group.
+   */
+  public synchronized long getHighWaterMark()
+  {
+    return this.highWaterMark;
+  }
+
+  /**
+   * Gets the number of entities with a stamp.
+   */
+  public synchronized int size()
+  {
+    return this.versions.size();
+  }
+
+  /**
+   * Discards every entity's stamp, keeping the high-water mark so that new
+   * stamps are still newer than any seen.  Called when the group is reset.
+   */
+  public synchronized void clear()
+  {
+    this.versions.clear();
+    this.pruneSize = MINIMUM_PRUNE_SIZE;
+  }
+
+  /**
+   * Records an entity's stamp, discarding stamps older than the retention
+   * period whenever the number kept has doubled since they were last 
+   * discarded.
+   */
+  private void record(long id, long version)
+  {
+    this.versions.put(id, version);
+    if (this.versions.size() >= this.pruneSize)
+    {
+      final long oldest = this.highWaterMark - (RETENTION_MS << NODE_BITS);
+      this.versions.retainEntries((entity, kept) -> kept >= oldest);
+      this.pruneSize = Math.max(MINIMUM_PRUNE_SIZE, this.versions.size() * 2);
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "EntityVersions [" + size() + " stamps; hwm " + getHighWaterMark() + "]";
+  }
+
+}
@@ -27,6 +27,8 @@
 package com.techempower.data;
 
 import gnu.trove.iterator.*;
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
 import gnu.trove.set.*;
 import gnu.trove.set.hash.*;
 
@@ -985,6 +987,117 @@ public class SqlEntityRelation<L extends Identifiable, R extends Identifiable>
     }
   }
 
+  /**
+   * Reads the right IDs related to any of the given left IDs with one query
+   * per 1000 left IDs, rather than one per left ID.
+   */
+  @Override
+  public TLongSet rightIDsUnion(long[] leftIDs)
+  {
+    return union(fetchRightIDs(leftIDs));
+  }
+
+  /**
+   * Reads the left IDs related to any of the given right IDs with one query
+   * per 1000 right IDs, rather than one per right ID.
+   */
+  @Override
+  public TLongSet leftIDsUnion(long[] rightIDs)
+  {
+    return union(fetchLeftIDs(rightIDs));
+  }
+
+  /**
+   * Reads the right IDs related to each of the given left IDs with one
+   * query per 1000 left IDs.  Left IDs that are related to
+   * nothing are absent from the result.
+   */
+  protected TLongObjectMap<TLongSet> fetchRightIDs(long[] leftIDs)
+  {
+    return fetchRelated(leftIDs, quotedLeftColumn, quotedRightColumn);
+  }
+
+  /**
+   * Reads the left IDs related to each of the given right IDs with one
+   * query per 1000 right IDs.  Right IDs that are related to
+   * nothing are absent from the result.
+   */
+  protected TLongObjectMap<TLongSet> fetchLeftIDs(long[] rightIDs)
+  {
+    return fetchRelated(rightIDs, quotedRightColumn, quotedLeftColumn);
+  }
+
+  /**
+   * Reads the values of one column for each of the given values of the
+   * other, using IN lists of up to MAX_SQL_SIZE values.
+   */
+  private TLongObjectMap<TLongSet> fetchRelated(long[] keys, String keyColumn,
+      String valueColumn)
+  {
+    final TLongObjectMap<TLongSet> related = new TLongObjectHashMap<>(keys.length);
+    if (keys.length == 0)
+    {
+      return related;
+    }
+    try (ConnectionMonitor monitor = this.cf.getConnectionMonitor())
+    {
+      for (int from = 0; from < keys.length; from += MAX_SQL_SIZE)
+      {
+        final int count = Math.min(MAX_SQL_SIZE, keys.length - from);
+        final StringBuilder sql = new StringBuilder()
+            .append("SELECT ").append(keyColumn).append(", ").append(valueColumn)
+            .append(" FROM ").append(quotedTable)
+            .append(" WHERE ").append(keyColumn).append(" IN (?");
+        for (int i = 1; i < count; i++)
+        {
+          sql.append(",?");
+        }
+        sql.append(");");
+        try (PreparedStatement selectStatement = monitor.getConnection().prepareStatement(
+            sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+        {
+          for (int i = 0; i < count; i++)
+          {
+            selectStatement.setLong(i + 1, keys[from + i]);
+          }
+          try (ResultSet resultSet = selectStatement.executeQuery())
+          {
+            while (resultSet.next())
+            {
+              final long key = resultSet.getLong(1);
+              TLongSet values = related.get(key);
+              if (values == null)
+              {
+                values = new TLongHashSet();
+                related.put(key, values);
+              }
+              values.add(resultSet.getLong(2));
+            }
+          }
+        }
+      }
+      return related;
+    }
+    catch (SQLException e)
+    {
+      throw new EntityException(e);
+    }
+  }
+
+  /**
+   * Combines the sets of IDs in a map.
+   */
+  private static TLongSet union(TLongObjectMap<TLongSet> related)
+  {
+    final TLongSet union = new TLongHashSet();
+    for (TLongObjectIterator<TLongSet> iter = related.iterator(); iter.hasNext();)
+    {
+      iter.advance();
+      union.addAll(iter.value());
+    }
+    return union;
+  }
+
   @Override
   public Set<Long> rightIDs(long leftID)
   {
@@ -28,6 +28,8 @@ package com.techempower.data.annotation;
 
 import java.lang.annotation.*;
 
+import com.techempower.cache.*;
+
 /**
  * This annotation signals an entity class that will be cached with
  * the EntityStore. Using this annotation is equivalent to calling
@@ -81,4 +83,43 @@ public @interface CachedEntity
    * constrain the number of entities retained in memory by the LRU cache.
    */
   int lruSize() default 0;
+
+  /**
+   * The storage backend used to hold these entities in memory.  Ignored if
+   * an lruSize is specified.
+   *
+   * @return the storage backend used to hold these entities in memory
+   * @see com.techempower.cache.CacheGroup.Builder#storage(CacheStorage.Factory)
+   */
+  CacheStorage.Type storage() default CacheStorage.Type.CONCURRENT_MAP;
+
+  /**
+   * Whether to hold these entities off of the Java heap in an 
+   * OffHeapCacheGroup.  Intended for very large, read-mostly groups.  
+   * Ignored if an lruSize is specified; the storage attribute does not
+   * apply.
+   *
+   * @return whether to hold these entities off of the Java heap
+   * @see com.techempower.cache.OffHeapCacheGroup
+   */
+  boolean offHeap() default false;
+
+  /**
+   * Whether resets rebuild the group in the background while continuing to
+   * serve its current contents.  Ignored if an lruSize is specified.
+   *
+   * @return whether resets rebuild the group in the background
+   * @see com.techempower.cache.CacheGroup.Builder#backgroundReset(boolean)
+   */
+  boolean backgroundReset() default false;
+
+  /**
+   * A column whose value increases whenever a row changes, such as an 
+   * "updated_at" timestamp or a version number, used to refresh only the
+   * changed entities.  Ignored if an lruSize is specified.
+   *
+   * @return the column used to find changed rows
+   * @see com.techempower.cache.CacheGroup.Builder#deltaColumn(String)
+   */
+  String deltaColumn() default "";
 }
@@ -56,4 +56,20 @@ public @interface Relation
      * @see com.techempower.cache.CachedRelation.Builder#table(String)
      */
     String table() default "";
+
+    /**
+     * Whether to store the relation compactly, for large, read-mostly
+     * relations.
+     *
+     * @see com.techempower.cache.CachedRelation.Builder#compact()
+     */
+    boolean compact() default false;
+
+    /**
+     * Whether to write changes to the database in the background rather
+     * than while the relation is locked.
+     *
+     * @see com.techempower.cache.CachedRelation.Builder#writeBehind()
+     */
+    boolean writeBehind() default false;
 }
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data.mapping;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javassist.*;
+
+/**
+ * Generates {@link RowMapper}s that set an entity's fields from a ResultSet
+ * without the per-column type switch, boxing and reflective invocation of
+ * EntityGroup's general-purpose path.  For each supported field, the
+ * generated code calls the typed ResultSet getter by column index and
+ * passes the result straight to the set method.
+ *   <p>
+ * Only fields of primitive types other than char, and Strings, that are
+ * bound to a column index, are supported; see {@link #supports}.  Other
+ * fields are left to the caller.  The entity class must be public.
+ */
+public final class RowMapperGenerator
+{
+
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+
+  /**
+   * Can a generated mapper set the given field?
+   */
+  public static boolean supports(DataFieldToMethodMap setter)
+  {
+    if (setter.getColumnIndex() <= 0)
+    {
+      return false;
+    }
+    switch (setter.getType())
+    {
+      case BooleanPrimitive:
+      case BytePrimitive:
+      case DoublePrimitive:
+      case FloatPrimitive:
+      case IntPrimitive:
+      case LongPrimitive:
+      case ShortPrimitive:
+      case String:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Generates a mapper for the given set methods of an entity type, all of
+   * which must be supported.  Returns null if the type is not accessible to
+   * generated code, in which case the caller should fall back to setting 
+   * the fields reflectively.
+   * 
+   * @throws IllegalStateException if the mapper could not be compiled or
+   *         loaded.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> RowMapper<T> generate(Class<T> type, 
+      List<DataFieldToMethodMap> setters)
+  {
+    if (!isAccessible(type))
+    {
+      return null;
+    }
+    
+    final StringBuilder body = new StringBuilder()
+        .append("public void map(Object object, java.sql.ResultSet resultSet) throws java.sql.SQLException {\n")
+        .append("  ").append(type.getName()).append(" entity = (")
+        .append(type.getName()).append(")object;\n");
+    for (DataFieldToMethodMap setter : setters)
+    {
+      if (!supports(setter))
+      {
+        throw new IllegalArgumentException("Unsupported field: " 
+            + setter.getFieldName());
+      }
+      body.append("  entity.").append(setter.getMethod().getName())
+          .append("(resultSet.").append(getterName(setter.getType()))
+          .append('(').append(setter.getColumnIndex()).append("));\n");
+    }
+    body.append('}');
+
+    final String name = RowMapper.class.getName() + "$" 
+        + type.getSimpleName() + "$" + COUNTER.incrementAndGet();
+    try
+    {
+      final ClassPool pool = new ClassPool(true);
+      pool.appendClassPath(new LoaderClassPath(type.getClassLoader()));
+      pool.appendClassPath(new LoaderClassPath(RowMapper.class.getClassLoader()));
+      final CtClass mapper = pool.makeClass(name);
+      mapper.addInterface(pool.get(RowMapper.class.getName()));
+      mapper.addConstructor(CtNewConstructor.defaultConstructor(mapper));
+      mapper.addMethod(CtNewMethod.make(body.toString(), mapper));
+      final byte[] bytecode = mapper.toBytecode();
+      mapper.detach();
+      
+      final Class<?> mapperClass = new MapperLoader(type.getClassLoader())
+          .define(name, bytecode);
+      return (RowMapper<T>)mapperClass.getConstructor().newInstance();
+    }
+    catch (Exception | LinkageError e)
+    {
+      throw new IllegalStateException("Unable to generate a row mapper for " 
+          + type.getName() + ".", e);
+    }
+  }
+
+  /**
+   * Can generated code in another package call the public methods of the 
+   * given type?
+   */
+  private static boolean isAccessible(Class<?> type)
+  {
+    for (Class<?> c = type; c != null; c = c.getEnclosingClass())
+    {
+      if (!java.lang.reflect.Modifier.isPublic(c.getModifiers()))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the name of the ResultSet method that reads a field of the given
+   * type.
+   */
+  private static String getterName(DataFieldToMethodMap.Type type)
+  {
+    switch (type)
+    {
+      case BooleanPrimitive: return "getBoolean";
+      case BytePrimitive:    return "getByte";
+      case DoublePrimitive:  return "getDouble";
+      case FloatPrimitive:   return "getFloat";
+      case IntPrimitive:     return "getInt";
+      case LongPrimitive:    return "getLong";
+      case ShortPrimitive:   return "getShort";
+      case String:           return "getString";
+      default:
+        throw new IllegalArgumentException("Unsupported type: " + type);
+    }
+  }
+
+  /**
+   * Defines generated mappers as children of the entity's class loader, so
+   * that they can see the entity class and can be unloaded with it.
+   */
+  private static final class MapperLoader
+    extends ClassLoader
+  {
+    private MapperLoader(ClassLoader parent)
+    {
+      super(parent);
+    }
+
+    private Class<?> define(String name, byte[] bytecode)
+    {
+      return defineClass(name, bytecode, 0, bytecode.length);
+    }
+  }
+
+  /**
+   * You may not instantiate this class.
+   */
+  private RowMapperGenerator()
+  {
+  }
+
+}   // End RowMapperGenerator.
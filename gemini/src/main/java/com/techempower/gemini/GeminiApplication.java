@@ -1202,18 +1202,20 @@ public abstract class GeminiApplication
     {
       final InitRegister register = new InitRegister();
       final InitManageAsynchronous asynchronous = new InitManageAsynchronous(); 
+      final InitEntityStore entityStore = new InitEntityStore();
       
       addInitializationTask(new InitDisplayEnvironment());
       addInitializationTask(new InitPrepareForSoftKill());
       addInitializationTask(new InitConfigurationCheck());    
       addInitializationTask(new InitDatabaseConnectionTest(app));
       addInitializationTask(new InitDatabaseMigrations(app));
-      addInitializationTask(new InitEntityStore());
+      addInitializationTask(entityStore);
       addInitializationTask(register);
       addInitializationTask(new InitStartupNotification());
       addInitializationTask(asynchronous);
       
       addShutdownTask(asynchronous);
+      addShutdownTask(entityStore);
       addShutdownTask(register);
     }
     
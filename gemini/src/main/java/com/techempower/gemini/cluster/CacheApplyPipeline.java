@@ -0,0 +1,759 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import org.slf4j.*;
+
+import com.techempower.util.*;
+
+/**
+ * Applies incoming cache messages on a fixed number of worker lanes.  Each
+ * message is submitted with a key, such as "g12" for a group or "r3" for a
+ * relation, and messages with the same key always run on the same lane in
+ * the order submitted.  Messages for unrelated groups and relations run in
+ * parallel.
+ *   <p>
+ * Each lane has a bounded queue.  When a lane is full, submit() blocks the
+ * receiving thread until there is room, which in turn stops the transport
+ * from taking more messages; how often and how long that happens is
+ * exposed as backpressure metrics, along with queue depth and apply lag
+ * (the time from a message being sent to it being applied).  Per-key
+ * transmission, queue and processing timings are logged periodically.
+ * Submitting threads wait only for their own lane, except while a
+ * submitToAll() is enqueuing its barrier on every lane.  Transports that
+ * must not block, such as one whose receiving thread also does all of its
+ * socket I/O, use trySubmit() and trySubmitToAll() instead, which queue
+ * nothing and return false when a lane is full.
+ *   <p>
+ * A lane whose thread is stopped by an Error is restarted with a new
+ * thread; the message being applied is lost, and the rest are applied.
+ *   <p>
+ * Closing stops new messages from being accepted and waits for the lanes
+ * to apply what they already have.  Only lanes still busy when the wait
+ * times out are interrupted, and their remaining messages are dropped.
+ *   <p>
+ * With zero lanes, messages are applied on the submitting thread.
+ */
+public class CacheApplyPipeline
+{
+  public static final int  DEFAULT_LANES = 4;
+  public static final int  DEFAULT_LANE_CAPACITY = 10000;
+  public static final long DEFAULT_CLOSE_TIMEOUT_MS = 30000L;
+
+  /**
+   * How long an idle lane waits before checking whether it has been closed.
+   */
+  private static final long IDLE_CHECK_MS = 100L;
+
+  //
+  // Variables.
+  //
+
+  private final Logger                  log = LoggerFactory.getLogger(getClass());
+  private final Lane[]                  lanes;
+  private final long                    statsPeriodMs;
+  private final long                    statsLogMaxThresholdMs;
+  private final Map<String, KeyStats>   stats = new HashMap<>();
+  private final ReadWriteLock           order = new ReentrantReadWriteLock();
+  private final AtomicLong              backpressureCount = new AtomicLong();
+  private final AtomicLong              backpressureMs = new AtomicLong();
+  private volatile long                 lastApplyLag;
+  private long                          statsCollectionStart = System.currentTimeMillis();
+  private long                          statsCollectionMs;
+  private volatile boolean              closed;
+
+  //
+  // Methods.
+  //
+
+  /**
+   * Constructor.  Starts the lane threads.
+   *
+   * @param laneCount the number of worker lanes, or zero to apply messages
+   *        on the submitting thread.
+   * @param laneCapacity how many messages each lane queues before submit()
+   *        blocks.
+   * @param statsPeriodMinutes how often to log and reset the timings.
+   * @param statsLogMaxThresholdMs new maximum timings above this are logged
+   *        as they happen.
+   */
+  public CacheApplyPipeline(int laneCount, int laneCapacity,
+      long statsPeriodMinutes, long statsLogMaxThresholdMs)
+  {
+    if (laneCount < 0 || laneCapacity <= 0)
+    {
+      throw new IllegalArgumentException(
+          "Lane count must not be negative and lane capacity must be positive.");
+    }
+    this.statsPeriodMs = statsPeriodMinutes * UtilityConstants.MINUTE;
+    this.statsLogMaxThresholdMs = statsLogMaxThresholdMs;
+    this.lanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; i++)
+    {
+      this.lanes[i] = new Lane(i, laneCapacity);
+      this.lanes[i].start();
+    }
+  }
+
+  /**
+   * Queues a message to be applied after every message previously submitted
+   * with the same key.
+   *
+   * @param key identifies the group or relation the message affects.
+   * @param sentTime when the message was sent, for the transmission and lag
+   *        timings; or 0 if unknown.
+   * @param apply applies the message.
+   */
+  public void submit(String key, long sentTime, Runnable apply)
+  {
+    final Work work = new Work(key, sentTime, apply);
+    if (this.lanes.length == 0)
+    {
+      synchronized (this)
+      {
+        run(work);
+      }
+      return;
+    }
+
+    // Submissions only exclude submitToAll(), so that each lands wholly
+    // before or after a barrier; they do not wait on one another.
+    this.order.readLock().lock();
+    try
+    {
+      enqueue(lane(key), work);
+    }
+    finally
+    {
+      this.order.readLock().unlock();
+    }
+  }
+
+  /**
+   * Applies a message that affects everything, such as a full cache reset,
+   * after all previously submitted messages and before any later ones.
+   */
+  public void submitToAll(String key, long sentTime, Runnable apply)
+  {
+    if (this.lanes.length == 0)
+    {
+      synchronized (this)
+      {
+        run(new Work(key, sentTime, apply));
+      }
+      return;
+    }
+
+    this.order.writeLock().lock();
+    try
+    {
+      enqueueBarrier(key, sentTime, apply);
+    }
+    finally
+    {
+      this.order.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Queues messages without blocking.  Either every message is queued, each
+   * after the messages previously submitted with its key, or none is,
+   * because a lane they need is full, another thread is submitting, or the
+   * pipeline is closed.  With zero lanes, the messages are applied at once.
+   *
+   * @param keys identifies the group or relation each message affects.
+   * @param sentTime when the messages were sent, or 0 if unknown.
+   * @param applies applies each message.
+   * @return true if the messages were queued; false to try again later.
+   */
+  public boolean trySubmit(String[] keys, long sentTime, Runnable[] applies)
+  {
+    if (this.lanes.length == 0)
+    {
+      synchronized (this)
+      {
+        for (int i = 0; i < keys.length; i++)
+        {
+          run(new Work(keys[i], sentTime, applies[i]));
+        }
+      }
+      return true;
+    }
+
+    // While the write lock is held nothing else is queued, and the lanes
+    // only make more room, so once checked there is room for every message.
+    if (!this.order.writeLock().tryLock())
+    {
+      return false;
+    }
+    try
+    {
+      if (this.closed)
+      {
+        return false;
+      }
+      final Map<Lane, Integer> needed = new HashMap<>();
+      for (String key : keys)
+      {
+        needed.merge(lane(key), 1, Integer::sum);
+      }
+      for (Map.Entry<Lane, Integer> entry : needed.entrySet())
+      {
+        if (entry.getKey().queue.remainingCapacity() < entry.getValue())
+        {
+          return false;
+        }
+      }
+      for (int i = 0; i < keys.length; i++)
+      {
+        enqueue(lane(keys[i]), new Work(keys[i], sentTime, applies[i]));
+      }
+      return true;
+    }
+    finally
+    {
+      this.order.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Queues a message that affects everything without blocking, as
+   * submitToAll() would, or returns false without queuing it if any lane
+   * is full, another thread is submitting, or the pipeline is closed.
+   */
+  public boolean trySubmitToAll(String key, long sentTime, Runnable apply)
+  {
+    if (this.lanes.length == 0)
+    {
+      submitToAll(key, sentTime, apply);
+      return true;
+    }
+
+    if (!this.order.writeLock().tryLock())
+    {
+      return false;
+    }
+    try
+    {
+      if (this.closed)
+      {
+        return false;
+      }
+      for (Lane lane : this.lanes)
+      {
+        if (lane.queue.remainingCapacity() == 0)
+        {
+          return false;
+        }
+      }
+      enqueueBarrier(key, sentTime, apply);
+      return true;
+    }
+    finally
+    {
+      this.order.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the lane for a key.
+   */
+  private Lane lane(String key)
+  {
+    return this.lanes[Math.floorMod(key.hashCode(), this.lanes.length)];
+  }
+
+  /**
+   * Adds a barrier to every lane.  Must be called while holding the write
+   * lock, so that no other message is enqueued between the barriers.
+   */
+  private void enqueueBarrier(String key, long sentTime, Runnable apply)
+  {
+
+    // Every lane stops at the barrier; the first lane applies the message
+    // once all of them have arrived, and the others resume when it is done.
+    final CountDownLatch arrived = new CountDownLatch(this.lanes.length);
+    final CountDownLatch done = new CountDownLatch(1);
+    for (int i = 0; i < this.lanes.length; i++)
+    {
+      final boolean first = (i == 0);
+      final Runnable barrier = () -> {
+        arrived.countDown();
+        try
+        {
+          if (first)
+          {
+            arrived.await();
+            apply.run();
+          }
+          else
+          {
+            done.await();
+          }
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        finally
+        {
+          if (first)
+          {
+            done.countDown();
+          }
+        }
+      };
+      enqueue(this.lanes[i], new Work(first ? key : null, sentTime, barrier));
+    }
+  }
+
+  /**
+   * Stops accepting messages and waits up to DEFAULT_CLOSE_TIMEOUT_MS for
+   * the messages already queued to be applied.
+   */
+  public void close()
+  {
+    close(DEFAULT_CLOSE_TIMEOUT_MS);
+  }
+
+  /**
+   * Stops accepting messages and waits for the messages already queued to
+   * be applied.  Lanes that have not finished within the timeout are
+   * interrupted, dropping whatever they have left.
+   *
+   * @param timeoutMs how long to wait for the lanes to finish.
+   * @return true if every queued message was applied.
+   */
+  public boolean close(long timeoutMs)
+  {
+    // Exclude submissions in progress, so that a barrier is never left on
+    // only some of the lanes.
+    this.order.writeLock().lock();
+    try
+    {
+      this.closed = true;
+    }
+    finally
+    {
+      this.order.writeLock().unlock();
+    }
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    boolean drained = true;
+    for (Lane lane : this.lanes)
+    {
+      try
+      {
+        // A lane replaced after an Error has a new worker; wait for that.
+        Thread worker;
+        do
+        {
+          worker = lane.worker;
+          worker.join(Math.max(1L, deadline - System.currentTimeMillis()));
+        }
+        while (worker != lane.worker && System.currentTimeMillis() < deadline);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      if (lane.worker.isAlive())
+      {
+        log.warn("Lane {} did not finish within {}ms; dropping {} messages.",
+            lane.index, timeoutMs, lane.queue.size());
+        lane.worker.interrupt();
+        drained = false;
+      }
+    }
+    return drained;
+  }
+
+  /**
+   * Gets the number of worker lanes.
+   */
+  public int getLaneCount()
+  {
+    return this.lanes.length;
+  }
+
+  /**
+   * Gets the number of messages waiting to be applied, across all lanes.
+   */
+  public int getQueueDepth()
+  {
+    int depth = 0;
+    for (Lane lane : this.lanes)
+    {
+      depth += lane.queue.size();
+    }
+    return depth;
+  }
+
+  /**
+   * Gets the number of messages waiting to be applied on each lane.
+   */
+  public int[] getLaneQueueDepths()
+  {
+    final int[] depths = new int[this.lanes.length];
+    for (int i = 0; i < depths.length; i++)
+    {
+      depths[i] = this.lanes[i].queue.size();
+    }
+    return depths;
+  }
+
+  /**
+   * Gets how many times submit() has blocked because a lane was full.
+   */
+  public long getBackpressureCount()
+  {
+    return this.backpressureCount.get();
+  }
+
+  /**
+   * Gets the total time submit() has spent blocked because a lane was full.
+   */
+  public long getBackpressureMillis()
+  {
+    return this.backpressureMs.get();
+  }
+
+  /**
+   * Gets the time from sending to applying of the most recently applied
+   * message, in milliseconds.
+   */
+  public long getApplyLag()
+  {
+    return this.lastApplyLag;
+  }
+
+  /**
+   * Adds work to a lane, blocking while the lane is full.
+   */
+  private void enqueue(Lane lane, Work work)
+  {
+    if (this.closed)
+    {
+      log.info("Pipeline is closed. Ignoring message for {}.", work.key);
+      return;
+    }
+    if (lane.queue.offer(work))
+    {
+      return;
+    }
+    this.backpressureCount.incrementAndGet();
+    final long start = System.currentTimeMillis();
+    try
+    {
+      lane.queue.put(work);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      log.warn("Interrupted while waiting for lane {}. Dropping message for {}.",
+          lane.index, work.key);
+    }
+    finally
+    {
+      this.backpressureMs.addAndGet(System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * Applies a message and records its timings.
+   */
+  private void run(Work work)
+  {
+    final long start = System.currentTimeMillis();
+    try
+    {
+      work.apply.run();
+    }
+    catch (RuntimeException e)
+    {
+      log.error("Unable to apply message for {}", work.key, e);
+    }
+    if (work.key != null)
+    {
+      record(work, start, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Gathers statistics on transmission, queueing and processing timings and
+   * periodically logs a summary.
+   */
+  private void record(Work work, long start, long end)
+  {
+    try
+    {
+      // Transmission time: How long it took to receive the message.
+      final long txTime = work.sentTime > 0 ? work.enqueued - work.sentTime : 0L;
+      // Queue time: How long the message waited for its lane.
+      final long qxTime = start - work.enqueued;
+      // Processing time: How long it took to take action on the message.
+      final long pxTime = end - start;
+      // Apply lag: How long from sending until the message took effect.
+      final long lag = work.sentTime > 0 ? end - work.sentTime : qxTime + pxTime;
+      this.lastApplyLag = lag;
+
+      synchronized (this.stats)
+      {
+        // Track how long it takes to gather the stats.
+        final long startStats = System.currentTimeMillis();
+        final KeyStats keyStats = this.stats.computeIfAbsent(work.key, k -> new KeyStats());
+        if (keyStats.recordTx(txTime) && txTime > statsLogMaxThresholdMs)
+        {
+          // To reduce logging noise, only log new max values that exceed the
+          // configured threshold.
+          log.info("Stats for {}: New transmission max of {}", work.key, txTime);
+        }
+        if (keyStats.recordPx(pxTime) && pxTime > statsLogMaxThresholdMs)
+        {
+          log.info("Stats for {}: New receiver processing max of {}", work.key, pxTime);
+        }
+        keyStats.recordQx(qxTime, lag);
+        this.statsCollectionMs += System.currentTimeMillis() - startStats;
+
+        // Periodically log collected stats and reset accumulators.
+        if ((end - this.statsCollectionStart) > this.statsPeriodMs)
+        {
+          logStats();
+        }
+      }
+    }
+    catch (Exception e)
+    {
+      log.error("Unable to gather statistics", e);
+    }
+  }
+
+  /**
+   * Logs a summary of the timings for each key and overall, then resets
+   * them.  Must be called while synchronized on the stats.
+   */
+  private void logStats()
+  {
+    final KeyStats overall = new KeyStats();
+    for (Map.Entry<String, KeyStats> entry : this.stats.entrySet())
+    {
+      log.info("Stats summary for {}: {}", entry.getKey(), entry.getValue());
+      overall.add(entry.getValue());
+    }
+    log.info("Stats summary overall: {} queue depth {} backpressure (count/ms) {} {}"
+        + " stats collection time: {}", overall, getQueueDepth(),
+        getBackpressureCount(), getBackpressureMillis(), this.statsCollectionMs);
+
+    this.stats.clear();
+    this.statsCollectionMs = 0L;
+    this.statsCollectionStart = System.currentTimeMillis();
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * A message waiting to be applied.  Work with a null key is not recorded
+   * in the stats.
+   */
+  private static final class Work
+  {
+    private final String   key;
+    private final long     sentTime;
+    private final long     enqueued = System.currentTimeMillis();
+    private final Runnable apply;
+
+    private Work(String key, long sentTime, Runnable apply)
+    {
+      this.key = key;
+      this.sentTime = sentTime;
+      this.apply = apply;
+    }
+  }
+
+  /**
+   * A worker thread and its queue.  The thread is replaced if an Error
+   * stops it.
+   */
+  private final class Lane
+      implements Runnable
+  {
+    private final int                 index;
+    private final BlockingQueue<Work> queue;
+    private volatile Thread           worker;
+
+    private Lane(int index, int capacity)
+    {
+      this.index = index;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Starts a new worker thread for this lane.
+     */
+    private void start()
+    {
+      final Thread thread = new Thread(this, "CacheApplyPipeline lane " + this.index);
+      thread.setDaemon(true);
+      this.worker = thread;
+      thread.start();
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        // Once closed, keep going until the queue is empty; close() only
+        // interrupts a lane that has taken too long to get there.
+        while (!closed || !this.queue.isEmpty())
+        {
+          final Work work;
+          try
+          {
+            work = this.queue.poll(IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+          }
+          catch (InterruptedException e)
+          {
+            this.queue.clear();
+            return;
+          }
+          if (work != null)
+          {
+            CacheApplyPipeline.this.run(work);
+          }
+        }
+      }
+      catch (Error e)
+      {
+        log.error("Lane {} stopped; starting a new thread for it.", this.index, e);
+        start();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Timings for one key over the reporting period.
+   */
+  private static final class KeyStats
+  {
+    private long count;
+    private long txSum;
+    private long txMin = -1L;
+    private long txMax = -1L;
+    private long qxSum;
+    private long qxMax = -1L;
+    private long pxSum;
+    private long pxMin = -1L;
+    private long pxMax = -1L;
+    private long lagMax = -1L;
+
+    /**
+     * Records a transmission time, returning true if it is a new maximum.
+     */
+    boolean recordTx(long txTime)
+    {
+      this.count++;
+      this.txSum += txTime;
+      if (this.txMin == -1L || txTime < this.txMin)
+      {
+        this.txMin = txTime;
+      }
+      if (txTime > this.txMax)
+      {
+        this.txMax = txTime;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Records a processing time, returning true if it is a new maximum.
+     */
+    boolean recordPx(long pxTime)
+    {
+      this.pxSum += pxTime;
+      if (this.pxMin == -1L || pxTime < this.pxMin)
+      {
+        this.pxMin = pxTime;
+      }
+      if (pxTime > this.pxMax)
+      {
+        this.pxMax = pxTime;
+        return true;
+      }
+      return false;
+    }
+
+    void recordQx(long qxTime, long lag)
+    {
+      this.qxSum += qxTime;
+      this.qxMax = Math.max(this.qxMax, qxTime);
+      this.lagMax = Math.max(this.lagMax, lag);
+    }
+
+    /**
+     * Accumulates another key's timings into this one.
+     */
+    void add(KeyStats other)
+    {
+      this.count += other.count;
+      this.txSum += other.txSum;
+      this.txMin = (this.txMin == -1L) ? other.txMin : Math.min(this.txMin, other.txMin);
+      this.txMax = Math.max(this.txMax, other.txMax);
+      this.qxSum += other.qxSum;
+      this.qxMax = Math.max(this.qxMax, other.qxMax);
+      this.pxSum += other.pxSum;
+      this.pxMin = (this.pxMin == -1L) ? other.pxMin : Math.min(this.pxMin, other.pxMin);
+      this.pxMax = Math.max(this.pxMax, other.pxMax);
+      this.lagMax = Math.max(this.lagMax, other.lagMax);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "count " + this.count
+          + " transmission (max/min/avg) " + this.txMax
+          + " " + this.txMin
+          + " " + (this.count > 0 ? this.txSum / this.count : 0)
+          + " queue (max/avg) " + this.qxMax
+          + " " + (this.count > 0 ? this.qxSum / this.count : 0)
+          + " receiver processing (max/min/avg) " + this.pxMax
+          + " " + this.pxMin
+          + " " + (this.count > 0 ? this.pxSum / this.count : 0)
+          + " apply lag (max) " + this.lagMax;
+    }
+  }
+
+}   // End CacheApplyPipeline.
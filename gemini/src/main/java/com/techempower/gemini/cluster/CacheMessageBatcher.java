@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+import gnu.trove.set.hash.*;
+import org.slf4j.*;
+import com.techempower.collection.relation.*;
+import com.techempower.gemini.cluster.message.*;
+
+/**
+ * Coalesces cache invalidations into CacheBatchMessages before they are
+ * distributed.  Object ids are collected per group and relation pairs per
+ * relation; repeated invalidations of the same object or pair within a
+ * batch are sent once.  A batch is sent when the window elapses after its
+ * first change, or as soon as it reaches the maximum size.
+ * <p>
+ * Messages that cannot be coalesced (group and relation resets, etc.) are
+ * passed through with send(), which first flushes the pending batch so that
+ * recipients observe changes in the order they were made.
+ */
+public class CacheMessageBatcher
+{
+  public static final long DEFAULT_WINDOW_MS = 10L;
+  public static final int  DEFAULT_MAXIMUM_SIZE = 1000;
+
+  //
+  // Variables.
+  //
+
+  private final Logger                                log = LoggerFactory.getLogger(getClass());
+  private final Consumer<BroadcastMessage>            sink;
+  private final long                                  windowMs;
+  private final int                                   maximumSize;
+  private final ScheduledExecutorService              scheduler;
+  private final TIntObjectMap<TLongHashSet>           objects = new TIntObjectHashMap<>();
+  private final TLongObjectMap<ManyToManyLongRelation> adds   = new TLongObjectHashMap<>();
+  private final TLongObjectMap<ManyToManyLongRelation> removes = new TLongObjectHashMap<>();
+  private int                                         size;
+  private boolean                                     scheduled;
+
+  //
+  // Methods.
+  //
+
+  /**
+   * Constructor.
+   *
+   * @param sink receives each message to be distributed.
+   * @param windowMs how long to collect changes before sending them.
+   * @param maximumSize the number of changes that causes a batch to be sent
+   *        immediately.
+   */
+  public CacheMessageBatcher(Consumer<BroadcastMessage> sink, long windowMs,
+      int maximumSize)
+  {
+    if (windowMs <= 0 || maximumSize <= 0)
+    {
+      throw new IllegalArgumentException(
+          "Batch window and maximum size must be positive.");
+    }
+    this.sink = sink;
+    this.windowMs = windowMs;
+    this.maximumSize = maximumSize;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "CacheMessageBatcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Notes that an object in a group was changed or removed.
+   */
+  public synchronized void expire(int groupId, long objectId)
+  {
+    TLongHashSet ids = this.objects.get(groupId);
+    if (ids == null)
+    {
+      ids = new TLongHashSet();
+      this.objects.put(groupId, ids);
+    }
+    if (ids.add(objectId))
+    {
+      noteChange();
+    }
+  }
+
+  /**
+   * Notes that a pair was added to a relation.
+   */
+  public synchronized void add(long relationId, long leftId, long rightId)
+  {
+    pairs(this.removes, relationId).remove(leftId, rightId);
+    if (pairs(this.adds, relationId).add(leftId, rightId))
+    {
+      noteChange();
+    }
+  }
+
+  /**
+   * Notes that pairs were added to a relation.
+   */
+  public synchronized void addAll(long relationId, LongRelation relation)
+  {
+    final LongRelationIterator iter = relation.iterator();
+    while (iter.hasNext())
+    {
+      iter.next();
+      add(relationId, iter.left(), iter.right());
+    }
+  }
+
+  /**
+   * Notes that a pair was removed from a relation.
+   */
+  public synchronized void remove(long relationId, long leftId, long rightId)
+  {
+    pairs(this.adds, relationId).remove(leftId, rightId);
+    if (pairs(this.removes, relationId).add(leftId, rightId))
+    {
+      noteChange();
+    }
+  }
+
+  /**
+   * Notes that pairs were removed from a relation.
+   */
+  public synchronized void removeAll(long relationId, LongRelation relation)
+  {
+    final LongRelationIterator iter = relation.iterator();
+    while (iter.hasNext())
+    {
+      iter.next();
+      remove(relationId, iter.left(), iter.right());
+    }
+  }
+
+  /**
+   * Sends the pending batch, if any, followed by the given message.
+   */
+  public synchronized void send(BroadcastMessage message)
+  {
+    flush();
+    this.sink.accept(message);
+  }
+
+  /**
+   * Sends the pending batch, if any.
+   */
+  public synchronized void flush()
+  {
+    if (this.size == 0)
+    {
+      return;
+    }
+
+    final int[] groupIds = this.objects.keys();
+    final long[][] objectIds = new long[groupIds.length][];
+    for (int i = 0; i < groupIds.length; i++)
+    {
+      objectIds[i] = this.objects.get(groupIds[i]).toArray();
+      Arrays.sort(objectIds[i]);
+    }
+
+    final TLongHashSet relations = new TLongHashSet(this.adds.keySet());
+    relations.addAll(this.removes.keySet());
+    final long[] relationIds = relations.toArray();
+    final long[][] relationAdds = new long[relationIds.length][];
+    final long[][] relationRemoves = new long[relationIds.length][];
+    for (int i = 0; i < relationIds.length; i++)
+    {
+      relationAdds[i] = flatten(this.adds.get(relationIds[i]));
+      relationRemoves[i] = flatten(this.removes.get(relationIds[i]));
+    }
+
+    this.objects.clear();
+    this.adds.clear();
+    this.removes.clear();
+    this.size = 0;
+
+    final CacheBatchMessage message = new CacheBatchMessage();
+    message.setObjects(groupIds, objectIds);
+    message.setRelations(relationIds, relationAdds, relationRemoves);
+    log.info("Sending 'cache batch': {}", message);
+    this.sink.accept(message);
+  }
+
+  /**
+   * Sends the pending batch and stops the timer.
+   */
+  public void close()
+  {
+    this.scheduler.shutdown();
+    flush();
+  }
+
+  /**
+   * Counts a change toward the pending batch and sends or schedules the
+   * batch as needed.
+   */
+  private void noteChange()
+  {
+    this.size++;
+    if (this.size >= this.maximumSize)
+    {
+      flush();
+    }
+    else if (!this.scheduled && !this.scheduler.isShutdown())
+    {
+      this.scheduled = true;
+      this.scheduler.schedule(this::scheduledFlush, this.windowMs,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Runs on the timer thread when a window elapses.
+   */
+  private synchronized void scheduledFlush()
+  {
+    this.scheduled = false;
+    try
+    {
+      flush();
+    }
+    catch (RuntimeException exc)
+    {
+      log.error("Unable to send cache batch", exc);
+    }
+  }
+
+  /**
+   * Gets the pending pairs for a relation, creating the set if necessary.
+   */
+  private static ManyToManyLongRelation pairs(
+      TLongObjectMap<ManyToManyLongRelation> map, long relationId)
+  {
+    ManyToManyLongRelation pairs = map.get(relationId);
+    if (pairs == null)
+    {
+      pairs = new ManyToManyLongRelation(false);
+      map.put(relationId, pairs);
+    }
+    return pairs;
+  }
+
+  /**
+   * Flattens a relation into {left, right, left, right, ...}.
+   */
+  private static long[] flatten(LongRelation relation)
+  {
+    if (relation == null)
+    {
+      return new long[0];
+    }
+    final long[] pairs = new long[relation.size() * 2];
+    final LongRelationIterator iter = relation.iterator();
+    int index = 0;
+    while (iter.hasNext())
+    {
+      iter.next();
+      pairs[index++] = iter.left();
+      pairs[index++] = iter.right();
+    }
+    return pairs;
+  }
+
+}   // End CacheMessageBatcher.
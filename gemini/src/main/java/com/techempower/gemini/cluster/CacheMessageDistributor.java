@@ -0,0 +1,1101 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.slf4j.*;
+
+import com.techempower.cache.*;
+import com.techempower.collection.relation.*;
+import com.techempower.data.*;
+import com.techempower.gemini.cluster.message.*;
+import com.techempower.util.*;
+
+/**
+ * Base class for transports that distribute cache maintenance messages
+ * between instances.  Listens to the EntityStore and its cached relations,
+ * turning changes into messages (batched by a {@link CacheMessageBatcher}
+ * when enabled), and applies the messages received from other instances
+ * through a {@link CacheApplyPipeline}.  Subclasses move the messages:
+ * they implement publish() and hand each received message to receive().
+ *   <p>
+ * Batching is off by default, because instances that predate
+ * CacheBatchMessage cannot read it and would drop every invalidation sent
+ * in one.  Once all instances in a cluster have been upgraded to a version
+ * that reads batches, set BatchWindowMs (e.g. to
+ * {@link CacheMessageBatcher#DEFAULT_WINDOW_MS}) to coalesce invalidations.
+ * Batches are read regardless of this setting, so instances can be
+ * switched one at a time.
+ *   <p>
+ * Changes to versioned groups are stamped with this instance's cluster
+ * node id (see {@link EntityVersions}), which each transport takes from
+ * its own configuration, such as the TCP peer list, unless NodeId is
+ * set.  Distribution does not start without a node id if any group is
+ * versioned.  Two instances found to share a node id are reported as an
+ * error, and stamps from the later one are then not trusted.
+ */
+public abstract class CacheMessageDistributor
+    implements CacheListener, CachedRelationListener, DistributionListener
+{
+  public static final long        DEFAULT_STATS_PERIOD_MINUTES = 10;
+  public static final long        DEFAULT_STATS_LOG_MAX_THRESHOLD_MS = 10;
+
+  //
+  // Variables.
+  //
+
+  protected final Logger          log = LoggerFactory.getLogger(getClass());
+  protected final EntityStore     store;
+  private int                     maximumRelationSize     = 10000;
+  private long                    statsPeriodMinutes      = DEFAULT_STATS_PERIOD_MINUTES;
+  private long                    statsLogMaxThresholdMs  = DEFAULT_STATS_LOG_MAX_THRESHOLD_MS;
+  private long                    batchWindowMs           = 0L;
+  private int                     batchMaximumSize        = CacheMessageBatcher.DEFAULT_MAXIMUM_SIZE;
+  private volatile CacheMessageBatcher batcher;
+  private int                     applyLanes              = CacheApplyPipeline.DEFAULT_LANES;
+  private int                     applyLaneCapacity       = CacheApplyPipeline.DEFAULT_LANE_CAPACITY;
+  private volatile CacheApplyPipeline pipeline;
+  private final AtomicLong        staleCount              = new AtomicLong();
+  private int                     configuredNode          = -1;
+  private final ConcurrentMap<Integer, String> nodeSenders = new ConcurrentHashMap<>();
+  private final Set<String>       conflictingSenders      = ConcurrentHashMap.newKeySet();
+
+  //
+  // Methods.
+  //
+
+  /**
+   * Constructor.
+   */
+  protected CacheMessageDistributor(EntityStore store)
+  {
+    this.store = store;
+  }
+
+  /**
+   * Reads the settings shared by all transports, each prefixed by the given
+   * prefix, e.g. "CacheMessageManager.".
+   */
+  protected void configure(EnhancedProperties props, String propsPrefix)
+  {
+    this.maximumRelationSize = props.getInt(
+        propsPrefix + "MaximumRelationSize", this.maximumRelationSize);
+    log.info("[" + propsPrefix + "MaximumRelationSize: " + maximumRelationSize + "]");
+    this.statsPeriodMinutes = props.getLong(propsPrefix + "StatsPeriodMinutes",
+        props.getLong("StatsPeriodMinutes", DEFAULT_STATS_PERIOD_MINUTES));
+    log.info("[" + propsPrefix + "StatsPeriodMinutes: " + statsPeriodMinutes + "]");
+    this.statsLogMaxThresholdMs = props.getLong(propsPrefix + "StatsLogMaxThresholdMs",
+        props.getLong("StatsLogMaxThresholdMs", DEFAULT_STATS_LOG_MAX_THRESHOLD_MS));
+    log.info("[" + propsPrefix + "StatsLogMaxThresholdMs: " + statsLogMaxThresholdMs + "]");
+    // A window of zero disables batching; every change is sent as its own
+    // message, which instances that predate batches can read.  Enable it
+    // once none remain.
+    this.batchWindowMs = props.getLong(propsPrefix + "BatchWindowMs", this.batchWindowMs);
+    log.info("[" + propsPrefix + "BatchWindowMs: " + batchWindowMs + "]");
+    this.batchMaximumSize = props.getInt(propsPrefix + "BatchMaximumSize", this.batchMaximumSize);
+    log.info("[" + propsPrefix + "BatchMaximumSize: " + batchMaximumSize + "]");
+    // Zero lanes applies messages on the thread that receives them.
+    this.applyLanes = props.getInt(propsPrefix + "ApplyLanes", this.applyLanes);
+    log.info("[" + propsPrefix + "ApplyLanes: " + applyLanes + "]");
+    this.applyLaneCapacity = props.getInt(propsPrefix + "ApplyLaneCapacity", this.applyLaneCapacity);
+    log.info("[" + propsPrefix + "ApplyLaneCapacity: " + applyLaneCapacity + "]");
+    // Overrides the node id each transport derives from its identity.
+    this.configuredNode = props.getInt(propsPrefix + "NodeId", this.configuredNode);
+    log.info("[" + propsPrefix + "NodeId: " + configuredNode + "]");
+  }
+
+  /**
+   * Assigns this instance's cluster node id, used in the version stamps of
+   * versioned groups: the configured NodeId if any, otherwise the given id
+   * derived from the transport's identity.  Subclasses call this before
+   * startDistribution().
+   *
+   * @param node the derived node id, or a negative number if the transport
+   *        has none.
+   */
+  protected void assignNode(int node)
+  {
+    final int assigned = (this.configuredNode >= 0) ? this.configuredNode : node;
+    if (assigned >= 0)
+    {
+      this.store.setVersionNode(assigned);
+      log.info("Cluster node id: {}", assigned);
+    }
+  }
+
+  /**
+   * Removes the version stamp from a received message, so that it is
+   * applied without checking its version.  Used for the messages of an
+   * instance whose node id is shared; see checkNode().
+   */
+  protected static void unstamp(BroadcastMessage message)
+  {
+    if (message instanceof CacheMessage)
+    {
+      ((CacheMessage)message).setVersion(0L);
+    }
+  }
+
+  /**
+   * Notes the node id that another instance stamps its changes with.
+   * Returns false, and reports an error the first time, if the id is this
+   * instance's own or another instance's, in which case the stamps from
+   * that instance cannot be trusted to order its changes.
+   *
+   * @param sender a name that identifies the other instance.
+   * @param node its node id, or a negative number if it has none.
+   */
+  protected boolean checkNode(String sender, int node)
+  {
+    if (node < 0)
+    {
+      return true;
+    }
+    if (this.conflictingSenders.contains(sender))
+    {
+      return false;
+    }
+    final String previous = this.nodeSenders.putIfAbsent(node, sender);
+    if (  (node == this.store.getVersionNode())
+       || (previous != null && !previous.equals(sender))
+       )
+    {
+      this.conflictingSenders.add(sender);
+      log.error("{} has cluster node id {}, as does {}. Give every instance a "
+          + "distinct id; until then, its changes to versioned groups are "
+          + "applied without checking their versions.", sender, node,
+          (previous != null && !previous.equals(sender)) ? previous : "this instance");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Creates the batcher and the apply pipeline.  Subclasses call this once
+   * they are able to publish, and before they start receiving.
+   */
+  protected void startDistribution()
+  {
+    if (this.store.getVersionNode() < 0)
+    {
+      for (EntityGroup<?> group : this.store.getGroupList())
+      {
+        if (group.versions() != null)
+        {
+          throw new IllegalStateException(group.name() + " is versioned, but "
+              + "this instance has no cluster node id; configure NodeId.");
+        }
+      }
+    }
+    if (this.batcher == null && this.batchWindowMs > 0)
+    {
+      this.batcher = new CacheMessageBatcher(this::publish, batchWindowMs,
+          batchMaximumSize);
+    }
+    if (this.pipeline == null)
+    {
+      this.pipeline = new CacheApplyPipeline(applyLanes, applyLaneCapacity,
+          statsPeriodMinutes, statsLogMaxThresholdMs);
+    }
+  }
+
+  /**
+   * Sends any pending batch and applies the messages already received.
+   * Subclasses call this after they stop receiving, and before they stop
+   * being able to publish.
+   */
+  protected void stopDistribution()
+  {
+    stopBatching();
+    final CacheApplyPipeline pipeline = this.pipeline;
+    this.pipeline = null;
+    if (pipeline != null)
+    {
+      pipeline.close();
+    }
+  }
+
+  /**
+   * Sends any pending batch, leaving the apply pipeline running so that
+   * messages already received are still applied.  Subclasses call this
+   * before they stop being able to publish only briefly, such as to
+   * reconnect, and then call startDistribution() again.
+   */
+  protected void stopBatching()
+  {
+    final CacheMessageBatcher batcher = this.batcher;
+    this.batcher = null;
+    if (batcher != null)
+    {
+      batcher.close();
+    }
+  }
+
+  /**
+   * Gets the pipeline that applies received messages, for its queue depth,
+   * backpressure and apply lag metrics; or null if not started.
+   */
+  public CacheApplyPipeline getApplyPipeline()
+  {
+    return this.pipeline;
+  }
+
+  /**
+   * Gets the number of received updates to versioned groups that were
+   * skipped because this instance already had the same or a newer version.
+   */
+  public long getStaleCount()
+  {
+    return this.staleCount.get();
+  }
+
+  /**
+   * Delivers a message to the other instances.
+   */
+  protected abstract void publish(BroadcastMessage message);
+
+  /**
+   * Sends a message, by way of the batcher when batching is enabled so that
+   * any pending batch goes out first.
+   */
+  protected void send(BroadcastMessage message)
+  {
+    final CacheMessageBatcher batcher = this.batcher;
+    if (batcher != null)
+    {
+      batcher.send(message);
+    }
+    else
+    {
+      publish(message);
+    }
+  }
+
+  /**
+   * Queues a message received from another instance to be applied,
+   * blocking while the lanes it needs are full.
+   *
+   * @param broadcastMessage the message.
+   * @param sentTime when the message was sent, or 0 if unknown.
+   */
+  protected void receive(BroadcastMessage broadcastMessage, long sentTime)
+  {
+    final CacheApplyPipeline pipeline = this.pipeline;
+    if (!store.isInitialized())
+    {
+      log.debug("EntityStore is not yet initialized. Ignoring message.");
+      return;
+    }
+    if (pipeline == null)
+    {
+      log.info("Not started. Ignoring message: {}", broadcastMessage);
+      return;
+    }
+
+    if (isFullReset(broadcastMessage))
+    {
+      pipeline.submitToAll("all", sentTime,
+          () -> applyCacheMessage((CacheMessage)broadcastMessage));
+      return;
+    }
+    if (broadcastMessage instanceof CacheBatchMessage)
+    {
+      log.info("Received 'cache batch': {}", broadcastMessage);
+    }
+    final List<String> keys = new ArrayList<>();
+    final List<Runnable> applies = new ArrayList<>();
+    split(broadcastMessage, keys, applies);
+    for (int i = 0; i < keys.size(); i++)
+    {
+      pipeline.submit(keys.get(i), sentTime, applies.get(i));
+    }
+  }
+
+  /**
+   * Queues a message received from another instance to be applied, without
+   * blocking.  Returns false, having queued nothing, if the message cannot
+   * be queued yet: because the store is not yet initialized, distribution
+   * has not started, or the lanes it needs are full.  The caller should
+   * offer the same message again later, before any later message.
+   *
+   * @param broadcastMessage the message.
+   * @param sentTime when the message was sent, or 0 if unknown.
+   * @return true if the message was queued.
+   */
+  protected boolean offer(BroadcastMessage broadcastMessage, long sentTime)
+  {
+    final CacheApplyPipeline pipeline = this.pipeline;
+    if (!store.isInitialized() || pipeline == null)
+    {
+      return false;
+    }
+
+    if (isFullReset(broadcastMessage))
+    {
+      return pipeline.trySubmitToAll("all", sentTime,
+          () -> applyCacheMessage((CacheMessage)broadcastMessage));
+    }
+    final List<String> keys = new ArrayList<>();
+    final List<Runnable> applies = new ArrayList<>();
+    split(broadcastMessage, keys, applies);
+    final boolean queued = pipeline.trySubmit(keys.toArray(new String[keys.size()]),
+        sentTime, applies.toArray(new Runnable[applies.size()]));
+    if (queued && broadcastMessage instanceof CacheBatchMessage)
+    {
+      log.info("Received 'cache batch': {}", broadcastMessage);
+    }
+    return queued;
+  }
+
+  /**
+   * Returns true if a message resets every cache.
+   */
+  private static boolean isFullReset(BroadcastMessage broadcastMessage)
+  {
+    return broadcastMessage instanceof CacheMessage
+        && ((CacheMessage)broadcastMessage).getAction() == CacheMessage.ACTION_FULL_RESET;
+  }
+
+  /**
+   * Splits a message into the keys of the groups and relations it affects
+   * and the work that applies it to each.  A batch of coalesced changes is
+   * split by group and relation, so that each part is applied in order
+   * with other messages for the same group or relation.
+   */
+  private void split(BroadcastMessage broadcastMessage, List<String> keys,
+      List<Runnable> applies)
+  {
+    if (broadcastMessage instanceof CacheBatchMessage)
+    {
+      final CacheBatchMessage batch = (CacheBatchMessage)broadcastMessage;
+      final int[] groupIds = batch.getGroupIds();
+      for (int i = 0; i < groupIds.length; i++)
+      {
+        final int groupId = groupIds[i];
+        final long[] ids = batch.getObjectIds()[i];
+        keys.add("g" + groupId);
+        applies.add(() -> applyGroupBatch(groupId, ids));
+      }
+      final long[] relationIds = batch.getRelationIds();
+      for (int i = 0; i < relationIds.length; i++)
+      {
+        final long relationId = relationIds[i];
+        final long[] adds = batch.getRelationAdds()[i];
+        final long[] removes = batch.getRelationRemoves()[i];
+        keys.add("r" + relationId);
+        applies.add(() -> applyRelationBatch(relationId, adds, removes));
+      }
+    }
+    else if (broadcastMessage instanceof CacheMessage)
+    {
+      final CacheMessage cacheMessage = (CacheMessage)broadcastMessage;
+      keys.add("g" + cacheMessage.getGroupId());
+      applies.add(() -> applyCacheMessage(cacheMessage));
+    }
+    else if (broadcastMessage instanceof CachedRelationMessage)
+    {
+      final CachedRelationMessage cachedRelationMessage = (CachedRelationMessage)broadcastMessage;
+      keys.add("r" + cachedRelationMessage.getRelationId());
+      applies.add(() -> applyRelationMessage(cachedRelationMessage));
+    }
+  }
+
+  //
+  // CacheListener methods
+  //
+
+  @Override
+  public void cacheFullReset()
+  {
+    // This is not a good idea. All instances will be slamming the DB server.
+    log.info("Distributing a full cache reset is disabled.");
+
+//    final CacheMessage message = new CacheMessage();
+//    message.setAction(CacheMessage.ACTION_FULL_RESET);
+//    send(message);
+  }
+
+  @Override
+  public <T extends Identifiable> void cacheTypeReset(Class<T> type)
+  {
+    final EntityGroup<T> group = this.store.getGroup(type);
+    if (!group.distribute())
+    {
+      return; // Don't distribute notifications.
+    }
+    log.info("Sending 'cache type reset': {}", type.getSimpleName());
+
+    final CacheMessage message = new CacheMessage();
+    message.setAction(CacheMessage.ACTION_GROUP_RESET);
+    message.setGroupId(group.getGroupNumber());
+    send(message);
+  }
+
+  @Override
+  public <T extends Identifiable> void cacheObjectExpired(Class<T> type,
+      long identifier)
+  {
+    final EntityGroup<T> group = this.store.getGroup(type);
+    if (!group.distribute())
+    {
+      return; // Don't distribute notifications.
+    }
+    if (batch(group, identifier))
+    {
+      return;
+    }
+    log.info("Sending 'cache object expired': {}/{}",
+        type.getSimpleName(), identifier);
+
+    final T entity = group.get(identifier);
+
+    // The entity could be null here if it was updated, and before the
+    // listeners were notified of the update, it was removed from the cache.
+    // In that case, don't bother sending an expiration message, because a
+    // removal message will be sent.
+    if (entity != null)
+    {
+      CacheMessage message = new CacheMessage();
+      message.setAction(CacheMessage.ACTION_OBJECT_RESET);
+      message.setGroupId(group.getGroupNumber());
+      message.setObjectId(identifier);
+      stamp(group, message);
+      message.setObjectProperties(group.writeMap(entity));
+      send(message);
+    }
+  }
+
+  @Override
+  public <T extends Identifiable> void cacheObjectExpired(Class<T> type,
+      long identifier, String[] changedFields)
+  {
+    if (changedFields == null)
+    {
+      cacheObjectExpired(type, identifier);
+      return;
+    }
+    
+    // Patches are sent immediately rather than batched, because a batch
+    // only carries identifiers and would lose the changed fields.
+    final EntityGroup<T> group = this.store.getGroup(type);
+    if (!group.distribute())
+    {
+      return; // Don't distribute notifications.
+    }
+    log.info("Sending 'cache object patch': {}/{} {}",
+        type.getSimpleName(), identifier, Arrays.toString(changedFields));
+
+    // As above, a null entity means a removal message is on its way.
+    final T entity = group.get(identifier);
+    if (entity != null)
+    {
+      CacheMessage message = new CacheMessage();
+      message.setAction(CacheMessage.ACTION_OBJECT_PATCH);
+      message.setGroupId(group.getGroupNumber());
+      message.setObjectId(identifier);
+      stamp(group, message);
+      message.setObjectProperties(group.writeMap(entity, changedFields));
+      send(message);
+    }
+  }
+
+  @Override
+  public <T extends Identifiable> void removeFromCache(Class<T> type,
+      long identifier)
+  {
+    final EntityGroup<T> group = this.store.getGroup(type);
+    if (!group.distribute())
+    {
+      return; // Don't distribute notifications.
+    }
+    if (batch(group, identifier))
+    {
+      return;
+    }
+    log.info("Sending 'remove from cache': {}/{}",
+        type.getSimpleName(), identifier);
+
+    final CacheMessage message = new CacheMessage();
+    message.setAction(CacheMessage.ACTION_OBJECT_REMOVE);
+    message.setGroupId(group.getGroupNumber());
+    message.setObjectId(identifier);
+    stamp(group, message);
+    send(message);
+  }
+
+  /**
+   * Gives a message a new version stamp if its group is versioned.  The
+   * stamp is issued as the change is sent rather than when it is written,
+   * so that it orders refreshes as well as writes, and it is issued before
+   * the entity's properties are read, so the properties are never older
+   * than the stamp.
+   *   <p>
+   * Because the stamp is not taken when the write commits, it does not
+   * order racing writers: if two instances write the same entity at nearly
+   * the same time, the one that commits last may send its change first,
+   * and the others then keep the earlier write until the entity next
+   * changes.
+   */
+  private void stamp(EntityGroup<?> group, CacheMessage message)
+  {
+    final EntityVersions versions = group.versions();
+    if (versions != null)
+    {
+      message.setVersion(versions.stamp(message.getObjectId()));
+    }
+  }
+
+  /**
+   * Adds an expired or removed object to the pending batch, if batching is
+   * enabled.  Recipients refresh batched objects from the database, which
+   * covers updates and removals alike.  Changes to versioned groups are not
+   * batched, because a batch carries no version stamps; they are sent
+   * individually, stamped, after any pending batch.
+   *
+   * @return true if the object was batched.
+   */
+  private boolean batch(EntityGroup<?> group, long identifier)
+  {
+    final CacheMessageBatcher batcher = this.batcher;
+    if (batcher == null || group.versions() != null)
+    {
+      return false;
+    }
+    batcher.expire(group.getGroupNumber(), identifier);
+    return true;
+  }
+
+  //
+  // CachedRelationListener methods
+  //
+
+  @Override
+  public void add(long relationID, long leftID, long rightID)
+  {
+    final CacheMessageBatcher batcher = this.batcher;
+    if (batcher != null)
+    {
+      batcher.add(relationID, leftID, rightID);
+      return;
+    }
+    log.info("Sending 'rel add': l{}/r{}", leftID, rightID);
+    final CachedRelationMessage message = new CachedRelationMessage();
+    message.setAction(CachedRelationMessage.ACTION_ADD);
+    message.setRelationId(relationID);
+    message.setLeftId(leftID);
+    message.setRightId(rightID);
+    send(message);
+  }
+
+  @Override
+  public void addAll(long relationID, LongRelation relation)
+  {
+    final CacheMessageBatcher batcher = this.batcher;
+    if (relation.size() > this.maximumRelationSize)
+    {
+      reset(relationID);
+    }
+    else if (batcher != null)
+    {
+      batcher.addAll(relationID, relation);
+    }
+    else
+    {
+      log.info("Sending 'rel add all': rel{}", relationID);
+      final CachedRelationMessage message = new CachedRelationMessage();
+      message.setAction(CachedRelationMessage.ACTION_ADD_ALL);
+      message.setRelationId(relationID);
+      message.setRelation(relation);
+      send(message);
+    }
+  }
+
+  @Override
+  public void clear(long relationID)
+  {
+    log.info("Sending 'rel clear': rel{}", relationID);
+    final CachedRelationMessage message = new CachedRelationMessage();
+    message.setAction(CachedRelationMessage.ACTION_CLEAR);
+    message.setRelationId(relationID);
+    send(message);
+  }
+
+  @Override
+  public void remove(long relationID, long leftID, long rightID)
+  {
+    final CacheMessageBatcher batcher = this.batcher;
+    if (batcher != null)
+    {
+      batcher.remove(relationID, leftID, rightID);
+      return;
+    }
+    log.info("Sending 'rel remove': rel{}/l{}/r{}",
+        relationID, leftID, rightID);
+    CachedRelationMessage message = new CachedRelationMessage();
+    message.setAction(CachedRelationMessage.ACTION_REMOVE);
+    message.setRelationId(relationID);
+    message.setLeftId(leftID);
+    message.setRightId(rightID);
+    send(message);
+  }
+
+  @Override
+  public void removeAll(long relationID, LongRelation relation)
+  {
+    final CacheMessageBatcher batcher = this.batcher;
+    if (relation.size() > this.maximumRelationSize)
+    {
+      reset(relationID);
+    }
+    else if (batcher != null)
+    {
+      batcher.removeAll(relationID, relation);
+    }
+    else
+    {
+      log.info("Sending 'rel remove all': rel{}", relationID);
+      final CachedRelationMessage message = new CachedRelationMessage();
+      message.setAction(CachedRelationMessage.ACTION_REMOVE_ALL);
+      message.setRelationId(relationID);
+      message.setRelation(relation);
+      send(message);
+    }
+  }
+
+  @Override
+  public void removeLeftValue(long relationID, long leftID)
+  {
+    log.info("Sending 'rel remove left': rel{}/l{}", relationID, leftID);
+    final CachedRelationMessage message = new CachedRelationMessage();
+    message.setAction(CachedRelationMessage.ACTION_REMOVE_LEFT_VALUE);
+    message.setRelationId(relationID);
+    message.setLeftId(leftID);
+    send(message);
+  }
+
+  @Override
+  public void removeRightValue(long relationID, long rightID)
+  {
+    log.info("Sending 'rel remove right': rel{}/l{}", relationID, rightID);
+    final CachedRelationMessage message = new CachedRelationMessage();
+    message.setAction(CachedRelationMessage.ACTION_REMOVE_RIGHT_VALUE);
+    message.setRelationId(relationID);
+    message.setRightId(rightID);
+    send(message);
+  }
+
+  @Override
+  public void replaceAll(long relationID, LongRelation relation)
+  {
+    if (relation.size() > this.maximumRelationSize)
+    {
+      reset(relationID);
+    }
+    else
+    {
+      log.info("Sending 'rel replace all': rel{}", relationID);
+      final CachedRelationMessage message = new CachedRelationMessage();
+      message.setAction(CachedRelationMessage.ACTION_REPLACE_ALL);
+      message.setRelationId(relationID);
+      message.setRelation(relation);
+      send(message);
+    }
+  }
+
+  @Override
+  public void reset(long relationID)
+  {
+    log.info("Sending 'rel reset': rel{}", relationID);
+    final CachedRelationMessage message = new CachedRelationMessage();
+    message.setAction(CachedRelationMessage.ACTION_RESET);
+    message.setRelationId(relationID);
+    send(message);
+  }
+
+  //
+  // Methods that apply received messages
+  //
+
+  /**
+   * Returns true if a received change to an entity of a versioned group is
+   * no newer than what this instance already has, in which case applying it
+   * would be wasted work or would undo a newer change.  Changes without a
+   * stamp are never stale.
+   */
+  private boolean isStale(EntityGroup<?> group, CacheMessage cacheMessage)
+  {
+    final EntityVersions versions = (group != null) ? group.versions() : null;
+    if (  (versions == null)
+       || (cacheMessage.getVersion() == 0L)
+       || (versions.accept(cacheMessage.getObjectId(), cacheMessage.getVersion()))
+       )
+    {
+      return false;
+    }
+    this.staleCount.incrementAndGet();
+    log.debug("Skipping stale {}, have v{}", cacheMessage,
+        versions.get(cacheMessage.getObjectId()));
+    return true;
+  }
+
+  /**
+   * Applies a CacheMessage.
+   */
+  private void applyCacheMessage(CacheMessage cacheMessage)
+  {
+    switch (cacheMessage.getAction())
+    {
+      case (CacheMessage.ACTION_FULL_RESET):
+      {
+        log.info("Receiving 'cache full reset': {}", cacheMessage);
+        store.reset(true, false);
+        break;
+      }
+      case (CacheMessage.ACTION_OBJECT_RESET):
+      {
+        @SuppressWarnings("unchecked")
+        final EntityGroup<Identifiable> group = (EntityGroup<Identifiable>)store.getGroup(cacheMessage.getGroupId());
+        if (isStale(group, cacheMessage))
+        {
+          break;
+        }
+        if (group instanceof CacheGroup)
+        {
+          final CacheGroup<Identifiable> cg = (CacheGroup<Identifiable>)group;
+          Identifiable entity = cg.get(cacheMessage.getObjectId());
+
+          if (entity == null)
+          {
+            // This is a new entity, so create it and put it into the cache.
+            entity = cg.newObjectFromMap(cacheMessage.getObjectProperties());
+            cg.addToCache(entity);
+            store.notifyListenersCacheObjectExpired(false, cg.getType(), entity.getId());
+            log.info("Received 'cache object expired':{}", cacheMessage);
+          }
+          else
+          {
+            // This is an existing entity, so update it.
+            cg.updateObjectFromMap(entity, cacheMessage.getObjectProperties());
+            cg.reorder(entity.getId());
+            store.notifyListenersCacheObjectExpired(false, cg.getType(), entity.getId());
+            log.info(
+                "Received 'cache object expired': {}, existing entity: {}",
+                cacheMessage, entity);
+          }
+        }
+        else if (group instanceof LruCacheGroup)
+        {
+          final LruCacheGroup<Identifiable> cg = (LruCacheGroup<Identifiable>)group;
+          Identifiable entity = cg.get(cacheMessage.getObjectId());
+
+          if (entity == null)
+          {
+            // This is a new entity, so ignore this message and the LruCacheGroup will pull it
+            // from the database when needed.
+            log.info(
+                "Received 'cache object expired' for LruCacheGroup:{}, new entity so ignoring.",
+                cacheMessage);
+          }
+          else
+          {
+            // This entity is already in our LRU cache, so update it.
+            cg.updateObjectFromMap(entity, cacheMessage.getObjectProperties());
+            store.notifyListenersCacheObjectExpired(false, cg.getType(), entity.getId());
+            log.info(
+                "Received 'cache object expired' for LruCacheGroup: {}, existing entity: {}",
+                cacheMessage, entity);
+          }
+        }
+        else if (group instanceof EntityGroup)
+        {
+          // No problem! Some instance has this as a CacheGroup, thus it is
+          // sent over the message queue. But *this* instance does not have
+          // it as a CacheGroup, only an EntityGroup, which means we have
+          // nothing to update here.
+        }
+        else            {
+          log.info("Receiving 'cache object expired' but group id is invalid:{}, group: {}",
+              cacheMessage, group);
+        }
+        // Now that the object is updated in the cache, update the method value cache if
+        // needed.
+        store.methodValueCacheUpdate(group.getType(), cacheMessage.getObjectId());
+
+        break;
+      }
+      case (CacheMessage.ACTION_OBJECT_PATCH):
+      {
+        @SuppressWarnings("unchecked")
+        final EntityGroup<Identifiable> group = (EntityGroup<Identifiable>)store.getGroup(cacheMessage.getGroupId());
+        if (isStale(group, cacheMessage))
+        {
+          break;
+        }
+        if (group instanceof CacheGroup)
+        {
+          final CacheGroup<Identifiable> cg = (CacheGroup<Identifiable>)group;
+          final Identifiable entity = cg.get(cacheMessage.getObjectId());
+
+          if (entity == null)
+          {
+            // The message only carries the changed fields, which is not
+            // enough to build the entity, so fetch it instead.
+            cg.refresh(cacheMessage.getObjectId());
+          }
+          else
+          {
+            cg.updateObjectFromPartialMap(entity, cacheMessage.getObjectProperties());
+            cg.reorder(entity.getId());
+          }
+          store.notifyListenersCacheObjectExpired(false, cg.getType(), cacheMessage.getObjectId());
+          log.info("Received 'cache object patch': {}", cacheMessage);
+        }
+        else if (group instanceof LruCacheGroup)
+        {
+          final LruCacheGroup<Identifiable> cg = (LruCacheGroup<Identifiable>)group;
+          final Identifiable entity = cg.get(cacheMessage.getObjectId());
+
+          // As with a full reset, entities that are not in the LRU cache
+          // will be pulled from the database when needed.
+          if (entity != null)
+          {
+            cg.updateObjectFromPartialMap(entity, cacheMessage.getObjectProperties());
+            store.notifyListenersCacheObjectExpired(false, cg.getType(), entity.getId());
+          }
+          log.info("Received 'cache object patch' for LruCacheGroup: {}", cacheMessage);
+        }
+        else if (group == null)
+        {
+          log.info("Receiving 'cache object patch' but group id is invalid:{}",
+              cacheMessage);
+        }
+        if (group != null)
+        {
+          store.methodValueCacheUpdate(group.getType(), cacheMessage.getObjectId());
+        }
+        break;
+      }
+      case (CacheMessage.ACTION_OBJECT_REMOVE):
+      {
+        @SuppressWarnings("unchecked")
+        final EntityGroup<Identifiable> group = (EntityGroup<Identifiable>)store.getGroup(cacheMessage.getGroupId());
+        if (isStale(group, cacheMessage))
+        {
+          break;
+        }
+        if (group instanceof CacheGroup)
+        {
+          ((CacheGroup<Identifiable>)group).removeFromCache(cacheMessage.getObjectId());
+          log.info("Received 'cache object remove' for: {}", cacheMessage);
+        }
+        else if (group instanceof LruCacheGroup)
+        {
+          // LruCacheGroup.refresh() simply invalidates requested IDs from the LRU cache, which
+          // is all we want to do here.
+          ((LruCacheGroup<Identifiable>) group).refresh(cacheMessage.getObjectId());
+          log.info("Received 'cache object remove' for LruCacheGroup: {}", cacheMessage);
+        }
+        else if (group instanceof EntityGroup)
+        {
+          // No problem! Some instance has this as a CacheGroup, thus it is
+          // sent over the message queue. But *this* instance does not have
+          // it as a CacheGroup, only an EntityGroup, which means we have
+          // nothing to update here.
+        }
+        else
+        {
+          log.info("Received 'cache object remove' but group id is " +
+              "invalid: {}, group: {}, cacheMessage: {}",
+              cacheMessage.getGroupId(), group, cacheMessage);
+        }
+        // Now that the object is deleted from the cache, also delete from the method
+        // value cache if needed.
+        store.methodValueCacheDelete(group.getType(), cacheMessage.getObjectId());
+        break;
+      }
+      case (CacheMessage.ACTION_GROUP_RESET):
+      {
+        store.reset(store.getGroup(cacheMessage.getGroupId()).type(), true, false);
+        log.info("Received 'cache group reset' for group id {}, " +
+            "cacheMessage: {}", cacheMessage.getGroupId(), cacheMessage);
+        break;
+      }
+      default:
+      {
+        log.warn("Unknown CacheHandler action: {}, cacheMessage: {}",
+            cacheMessage.getAction(), cacheMessage);
+      }
+    }
+  }
+
+  /**
+   * Applies a CachedRelationMessage.
+   */
+  private void applyRelationMessage(CachedRelationMessage cachedRelationMessage)
+  {
+    final CachingEntityRelation<?, ?> relation = store.getCachedRelation(cachedRelationMessage.getRelationId());
+    switch (cachedRelationMessage.getAction())
+    {
+      case (CachedRelationMessage.ACTION_ADD):
+      {
+        relation.add(cachedRelationMessage.getLeftId(),
+            cachedRelationMessage.getRightId(), false, true, false);
+        log.info("Received 'rel add': {}", cachedRelationMessage);
+        break;
+      }
+      case (CachedRelationMessage.ACTION_ADD_ALL):
+      {
+        relation.addAll(cachedRelationMessage.getRelation(), false, true, false);
+        log.info("Received 'rel add all': {}", cachedRelationMessage);
+        break;
+      }
+      case (CachedRelationMessage.ACTION_CLEAR):
+      {
+        relation.clear(false, true, false);
+        log.info("Received 'rel clear': {}", cachedRelationMessage);
+        break;
+      }
+      case (CachedRelationMessage.ACTION_REMOVE):
+      {
+        relation.remove(cachedRelationMessage.getLeftId(),
+            cachedRelationMessage.getRightId(), false, true, false);
+        log.info("Received 'rel remove': {}", cachedRelationMessage);
+        break;
+      }
+      case (CachedRelationMessage.ACTION_REMOVE_ALL):
+      {
+        relation.removeAll(cachedRelationMessage.getRelation(), false,
+            true, false);
+        log.info("Received 'rel remove all': {}", cachedRelationMessage);
+        break;
+      }
+      case (CachedRelationMessage.ACTION_REMOVE_LEFT_VALUE):
+      {
+        relation.removeLeftValue(cachedRelationMessage.getLeftId(),
+            false, true, false);
+        log.info("Received 'rel remove left': {}", cachedRelationMessage);
+        break;
+      }
+      case (CachedRelationMessage.ACTION_REMOVE_RIGHT_VALUE):
+      {
+        relation.removeRightValue(cachedRelationMessage.getRightId(),
+            false, true, false);
+        log.info("Received 'rel remove right': {}", cachedRelationMessage);
+        break;
+      }
+      case (CachedRelationMessage.ACTION_REPLACE_ALL):
+      {
+        relation.replaceAll(cachedRelationMessage.getRelation(), false,
+            true, false);
+        log.info("Received 'rel replace all': {}", cachedRelationMessage);
+        break;
+      }
+      case (CachedRelationMessage.ACTION_RESET):
+      {
+        relation.reset(true, false);
+        log.info("Received 'rel reset': {}", cachedRelationMessage);
+        break;
+      }
+      default:
+      {
+        log.info("Unknown CachedRelationHandler action: {}, " +
+            "cachedRelationMessage: {}", cachedRelationMessage.getAction(),
+            cachedRelationMessage);
+      }
+    }
+  }
+
+  /**
+   * Applies a group's part of a batch with one refresh.
+   */
+  private void applyGroupBatch(int groupId, long[] ids)
+  {
+    @SuppressWarnings("unchecked")
+    final EntityGroup<Identifiable> group = (EntityGroup<Identifiable>)store.getGroup(groupId);
+    if (group instanceof CacheGroup)
+    {
+      // Refreshing drops objects that no longer exist, so this handles
+      // removals as well as updates.
+      final CacheGroup<Identifiable> cg = (CacheGroup<Identifiable>)group;
+      cg.refresh(ids);
+      for (long id : ids)
+      {
+        if (cg.get(id) != null)
+        {
+          store.notifyListenersCacheObjectExpired(false, cg.getType(), id);
+          store.methodValueCacheUpdate(cg.getType(), id);
+        }
+        else
+        {
+          store.methodValueCacheDelete(cg.getType(), id);
+        }
+      }
+    }
+    else if (group instanceof LruCacheGroup)
+    {
+      // Invalidate; the LruCacheGroup will pull the objects from the
+      // database when needed.
+      final LruCacheGroup<Identifiable> cg = (LruCacheGroup<Identifiable>)group;
+      cg.refresh(ids);
+      for (long id : ids)
+      {
+        store.notifyListenersCacheObjectExpired(false, cg.getType(), id);
+      }
+      store.methodValueCacheUpdate(cg.getType(), ids);
+    }
+    else if (group == null)
+    {
+      log.info("Received 'cache batch' but group id is invalid: {}", groupId);
+    }
+  }
+
+  /**
+   * Applies a relation's part of a batch: removals first, then additions.
+   */
+  private void applyRelationBatch(long relationId, long[] adds, long[] removes)
+  {
+    final CachingEntityRelation<?, ?> relation = store.getCachedRelation(relationId);
+    if (relation == null)
+    {
+      log.info("Received 'cache batch' but relation id is invalid: {}", relationId);
+      return;
+    }
+    for (int j = 0; j < removes.length; j += 2)
+    {
+      relation.remove(removes[j], removes[j + 1], false, true, false);
+    }
+    for (int j = 0; j < adds.length; j += 2)
+    {
+      relation.add(adds[j], adds[j + 1], false, true, false);
+    }
+  }
+
+}   // End CacheMessageDistributor.
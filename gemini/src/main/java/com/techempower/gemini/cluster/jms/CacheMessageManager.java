@@ -27,11 +27,8 @@
 
 package com.techempower.gemini.cluster.jms;
 
-import java.util.*;
+import java.io.*;
 import javax.jms.*;
-import org.slf4j.*;
-import com.techempower.cache.*;
-import com.techempower.collection.relation.*;
 import com.techempower.data.*;
 import com.techempower.gemini.*;
 import com.techempower.gemini.cluster.*;
@@ -39,27 +36,37 @@ import com.techempower.gemini.cluster.message.*;
 import com.techempower.util.*;
 
 /**
- * Handles cache maintenance messages for both sending and handling updates.
- * Does not repeat actions sent from self.
- * <p>
- * Currently only handles one async message at a time. This should be fine.
- * </p>
+ * Distributes cache maintenance messages over a JMS topic, for both sending
+ * and handling updates.  Does not repeat actions sent from self.
+ *   <p>
+ * Messages are sent as Java-serialized ObjectMessages by default, which
+ * every instance can read.  Once all instances in a cluster have been
+ * upgraded to a version that reads the binary format, set
+ * CacheMessageManager.MessageCodec to "Binary" to send the smaller and
+ * faster BytesMessages instead.  Binary messages are read regardless of
+ * this setting, so instances can be switched one at a time.
+ *   <p>
+ * The cluster node id used to stamp changes to versioned groups is taken
+ * from the publish connection's JMS client id unless
+ * CacheMessageManager.NodeId is set.  Client ids are reduced to one of
+ * {@link EntityVersions#NODE_COUNT} node ids, so two can collide; set a
+ * distinct NodeId on each instance to rule that out.  A collision is
+ * reported when the second instance's changes arrive.
+ *
+ * @see CacheMessageDistributor
  */
 public class CacheMessageManager
-    implements CacheListener, CachedRelationListener, DistributionListener, Configurable
+    extends CacheMessageDistributor
+    implements Configurable
 {
   public static final String      CACHE_TOPIC_DESTINATION = "CACHE.TOPIC";
   public static final String      MESSAGE_PROPERTY_UUID   = "Gemini.CacheMgr.ClientUUID";
-  public static final long        DEFAULT_STATS_PERIOD_MINUTES = 10;
-  public static final long        DEFAULT_STATS_LOG_MAX_THRESHOLD_MS = 10;
 
   //
   // Variables.
   //
 
   private final GeminiApplication application;
-  private final Logger            log = LoggerFactory.getLogger(getClass());
-  private final EntityStore       store;
   private ConnectionFactory       publishConnectionFactory;
   private Connection              publishConnection;
   private ConnectionFactory       subscribeConnectionFactory;
@@ -67,10 +74,8 @@ public class CacheMessageManager
   private GeminiPublisher         publisher;
   private AsyncSubscriber         subscriber;
   private String                  instanceID;
-  private int                     maximumRelationSize     = 10000;
   private int                     deliveryMode            = DeliveryMode.PERSISTENT;
-  private long                    statsPeriodMinutes      = DEFAULT_STATS_PERIOD_MINUTES;
-  private long                    statsLogMaxThresholdMs  = DEFAULT_STATS_LOG_MAX_THRESHOLD_MS;
+  private MessageCodec            codec;
 
   //
   // Methods.
@@ -82,8 +87,8 @@ public class CacheMessageManager
   public CacheMessageManager(GeminiApplication application,
       ConnectionFactory publishConnectionFactory, ConnectionFactory subscribeConnectionFactory)
   {
+    super(application.getStore());
     this.application = application;
-    this.store = application.getStore();
     this.publishConnectionFactory = publishConnectionFactory;
     this.subscribeConnectionFactory = subscribeConnectionFactory;
     this.application.getConfigurator().addConfigurable(this);
@@ -93,15 +98,27 @@ public class CacheMessageManager
   public void configure(EnhancedProperties props)
   {
     String propsPrefix = "CacheMessageManager.";
-    this.maximumRelationSize = props.getInt(
-        propsPrefix + "MaximumRelationSize", this.maximumRelationSize);
-    log.info("[CacheMessageManager.MaximumRelationSize: " + maximumRelationSize + "]");
+    configure(props, propsPrefix);
     this.deliveryMode = props.getInt(propsPrefix + "DeliveryMode", this.deliveryMode);
     log.info("[CacheMessageManager.DeliveryMode: " + deliveryMode + "]");
-    this.statsPeriodMinutes = props.getLong("StatsPeriodMinutes", DEFAULT_STATS_PERIOD_MINUTES);
-    log.info("[CacheMessageManager.StatsPeriodMinutes: " + statsPeriodMinutes + "]");
-    this.statsLogMaxThresholdMs = props.getLong("StatsLogMaxThresholdMs", DEFAULT_STATS_LOG_MAX_THRESHOLD_MS);
-    log.info("[CacheMessageManager.StatsLogMaxThresholdMs: " + statsLogMaxThresholdMs + "]");
+    // "Serialization" sends ObjectMessages, which instances that predate the
+    // binary codec can read.  Switch to "Binary" once none remain.
+    final String codecName = props.get(propsPrefix + "MessageCodec", "Serialization");
+    this.codec = "Binary".equalsIgnoreCase(codecName)
+        ? new BinaryMessageCodec()
+        : null;
+    log.info("[CacheMessageManager.MessageCodec: " + codecName + "]");
+  }
+
+  /**
+   * Sets the codec used to send messages as BytesMessages, or null to send
+   * Java-serialized ObjectMessages (the default).  Takes effect on the next
+   * connect.
+   */
+  public CacheMessageManager setCodec(MessageCodec codec)
+  {
+    this.codec = codec;
+    return this;
   }
 
   /**
@@ -120,15 +137,18 @@ public class CacheMessageManager
    */
   public void connect(ConnectionFactory publishConnectionFactory, ConnectionFactory subscribeConnectionFactory) throws JMSException
   {
-    // Close existing publisher or subscriber
-    if (this.publisher != null)
-    {
-      this.publisher.close();
-    }
+    // Close existing publisher or subscriber, sending any pending batch
+    // before the publisher goes away.  The apply pipeline is kept, so that
+    // messages already received are not lost across the reconnect.
     if (this.subscriber != null)
     {
       this.subscriber.close();
     }
+    stopBatching();
+    if (this.publisher != null)
+    {
+      this.publisher.close();
+    }
 
     // Create publish connection
     this.publishConnection = publishConnectionFactory.createConnection();
@@ -136,9 +156,17 @@ public class CacheMessageManager
     instanceID = publishConnection.getClientID();
     this.publisher = new GeminiPublisher(publishConnection,
         CacheMessageManager.CACHE_TOPIC_DESTINATION, deliveryMode);
+    publisher.setCodec(codec);
     publisher.start();
     log.info("JMS publish connection established   @{}", instanceID);
 
+    // Create the batcher, and the pipeline that applies received messages
+    // if this is the first connect.
+    assignNode((instanceID != null)
+        ? Math.floorMod(instanceID.hashCode(), EntityVersions.NODE_COUNT)
+        : -1);
+    startDistribution();
+
     // Create subscribe connection
     this.subscribeConnection = subscribeConnectionFactory.createConnection();
     subscribeConnection.start();
@@ -154,22 +182,24 @@ public class CacheMessageManager
   public void close()
   {
     log.info("CacheMessageManager is closing.");
-    if (publisher != null)
-    {
-      publisher.close();
-    }
     if (subscriber != null)
     {
       subscriber.close();
     }
+    stopDistribution();
+    if (publisher != null)
+    {
+      publisher.close();
+    }
   }
 
   /**
-   * Send helper attaches the necessary properties to prevent this instance
+   * Publish helper attaches the necessary properties to prevent this instance
    * from executing any commands sent from itself (everyone subscribes and can
    * publish to the topic queue).
    */
-  private void send(BroadcastMessage message)
+  @Override
+  protected void publish(BroadcastMessage message)
   {
     try
     {
@@ -182,227 +212,13 @@ public class CacheMessageManager
     }
   }
 
-  //
-  // CacheListener methods
-  //
-
-  @Override
-  public void cacheFullReset()
-  {
-    // This is not a good idea. All instances will be slamming the DB server.
-    log.info("Distributing a full cache reset is disabled.");
-
-//    final CacheMessage message = new CacheMessage();
-//    message.setAction(CacheMessage.ACTION_FULL_RESET);
-//    send(message);
-  }
-
-  @Override
-  public <T extends Identifiable> void cacheTypeReset(Class<T> type)
-  {
-    final EntityGroup<T> group = this.store.getGroup(type);
-    if (!group.distribute())
-    {
-      return; // Don't distribute notifications.
-    }
-    log.info("Sending 'cache type reset': {}", type.getSimpleName());
-
-    final CacheMessage message = new CacheMessage();
-    message.setAction(CacheMessage.ACTION_GROUP_RESET);
-    message.setGroupId(group.getGroupNumber());
-    send(message);
-  }
-
-  @Override
-  public <T extends Identifiable> void cacheObjectExpired(Class<T> type,
-      long identifier)
-  {
-    final EntityGroup<T> group = this.store.getGroup(type);
-    if (!group.distribute())
-    {
-      return; // Don't distribute notifications.
-    }
-    log.info("Sending 'cache object expired': {}/{}",
-        type.getSimpleName(), identifier);
-
-    final T entity = group.get(identifier);
-
-    // The entity could be null here if it was updated, and before the
-    // listeners were notified of the update, it was removed from the cache.
-    // In that case, don't bother sending an expiration message, because a
-    // removal message will be sent.
-    if (entity != null)
-    {
-      CacheMessage message = new CacheMessage();
-      message.setAction(CacheMessage.ACTION_OBJECT_RESET);
-      message.setGroupId(group.getGroupNumber());
-      message.setObjectId(identifier);
-      message.setObjectProperties(group.writeMap(entity));
-      send(message);
-    }
-  }
-
-  @Override
-  public <T extends Identifiable> void removeFromCache(Class<T> type,
-      long identifier)
-  {
-    final EntityGroup<T> group = this.store.getGroup(type);
-    if (!group.distribute())
-    {
-      return; // Don't distribute notifications.
-    }
-    log.info("Sending 'remove from cache': {}/{}",
-        type.getSimpleName(), identifier);
-
-    final CacheMessage message = new CacheMessage();
-    message.setAction(CacheMessage.ACTION_OBJECT_REMOVE);
-    message.setGroupId(group.getGroupNumber());
-    message.setObjectId(identifier);
-    send(message);
-  }
-
-  //
-  // CachedRelationListener methods
-  //
-
-  @Override
-  public void add(long relationID, long leftID, long rightID)
-  {
-    log.info("Sending 'rel add': l{}/r{}", leftID, rightID);
-    final CachedRelationMessage message = new CachedRelationMessage();
-    message.setAction(CachedRelationMessage.ACTION_ADD);
-    message.setRelationId(relationID);
-    message.setLeftId(leftID);
-    message.setRightId(rightID);
-    send(message);
-  }
-
-  @Override
-  public void addAll(long relationID, LongRelation relation)
-  {
-    if (relation.size() > this.maximumRelationSize)
-    {
-      reset(relationID);
-    }
-    else
-    {
-      log.info("Sending 'rel add all': rel{}", relationID);
-      final CachedRelationMessage message = new CachedRelationMessage();
-      message.setAction(CachedRelationMessage.ACTION_ADD_ALL);
-      message.setRelationId(relationID);
-      message.setRelation(relation);
-      send(message);
-    }
-  }
-
-  @Override
-  public void clear(long relationID)
-  {
-    log.info("Sending 'rel clear': rel{}", relationID);
-    final CachedRelationMessage message = new CachedRelationMessage();
-    message.setAction(CachedRelationMessage.ACTION_CLEAR);
-    message.setRelationId(relationID);
-    send(message);
-  }
-
-  @Override
-  public void remove(long relationID, long leftID, long rightID)
-  {
-    log.info("Sending 'rel remove': rel{}/l{}/r{}",
-        relationID, leftID, rightID);
-    CachedRelationMessage message = new CachedRelationMessage();
-    message.setAction(CachedRelationMessage.ACTION_REMOVE);
-    message.setRelationId(relationID);
-    message.setLeftId(leftID);
-    message.setRightId(rightID);
-    send(message);
-  }
-
-  @Override
-  public void removeAll(long relationID, LongRelation relation)
-  {
-    if (relation.size() > this.maximumRelationSize)
-    {
-      reset(relationID);
-    }
-    else
-    {
-      log.info("Sending 'rel remove all': rel{}", relationID);
-      final CachedRelationMessage message = new CachedRelationMessage();
-      message.setAction(CachedRelationMessage.ACTION_REMOVE_ALL);
-      message.setRelationId(relationID);
-      message.setRelation(relation);
-      send(message);
-    }
-  }
-
-  @Override
-  public void removeLeftValue(long relationID, long leftID)
-  {
-    log.info("Sending 'rel remove left': rel{}/l{}", relationID, leftID);
-    final CachedRelationMessage message = new CachedRelationMessage();
-    message.setAction(CachedRelationMessage.ACTION_REMOVE_LEFT_VALUE);
-    message.setRelationId(relationID);
-    message.setLeftId(leftID);
-    send(message);
-  }
-
-  @Override
-  public void removeRightValue(long relationID, long rightID)
-  {
-    log.info("Sending 'rel remove right': rel{}/l{}", relationID, rightID);
-    final CachedRelationMessage message = new CachedRelationMessage();
-    message.setAction(CachedRelationMessage.ACTION_REMOVE_RIGHT_VALUE);
-    message.setRelationId(relationID);
-    message.setRightId(rightID);
-    send(message);
-  }
-
-  @Override
-  public void replaceAll(long relationID, LongRelation relation)
-  {
-    if (relation.size() > this.maximumRelationSize)
-    {
-      reset(relationID);
-    }
-    else
-    {
-      log.info("Sending 'rel replace all': rel{}", relationID);
-      final CachedRelationMessage message = new CachedRelationMessage();
-      message.setAction(CachedRelationMessage.ACTION_REPLACE_ALL);
-      message.setRelationId(relationID);
-      message.setRelation(relation);
-      send(message);
-    }
-  }
-
-  @Override
-  public void reset(long relationID)
-  {
-    log.info("Sending 'rel reset': rel{}", relationID);
-    final CachedRelationMessage message = new CachedRelationMessage();
-    message.setAction(CachedRelationMessage.ACTION_RESET);
-    message.setRelationId(relationID);
-    send(message);
-  }
-
   /**
    * Private inner class for listening to cache notifications
    */
   private class CacheSignalListener
       implements MessageListener
   {
-    private long statsCollectionStart = System.currentTimeMillis();
-    // No need for concurrent data structures since a listener will only get
-    // one message at a time.
-    private Map<String, Long> statsCount = new HashMap<>();
-    private Map<String, Long> statsTxMin = new HashMap<>();
-    private Map<String, Long> statsTxMax = new HashMap<>();
-    private Map<String, Long> statsTxSum = new HashMap<>();
-    private Map<String, Long> statsPxMin = new HashMap<>();
-    private Map<String, Long> statsPxMax = new HashMap<>();
-    private Map<String, Long> statsPxSum = new HashMap<>();
-    private long statsCollectionMs = 0L;
+    private final MessageCodec binaryCodec = new BinaryMessageCodec();
 
     public CacheSignalListener(GeminiApplication application)
     {
@@ -414,30 +230,27 @@ public class CacheMessageManager
     @Override
     public void onMessage(javax.jms.Message message)
     {
-      if (!store.isInitialized())
-      {
-        log.debug("EntityStore is not yet initialized. Ignoring message.");
-        return;
-      }
-      long start = System.currentTimeMillis();
-      String statsKey = null;
       BroadcastMessage broadcastMessage = null;
+      long sentTime = 0L;
+      String senderUuid = null;
       // cast object to BroadcastMessage
-      if (message instanceof ObjectMessage)
+      if (message instanceof ObjectMessage || message instanceof BytesMessage)
       {
-        ObjectMessage obj = (ObjectMessage)message;
         try
         {
-          if (obj.getObject() instanceof BroadcastMessage)
+          final Object object = (message instanceof ObjectMessage)
+              ? ((ObjectMessage)message).getObject()
+              : decode((BytesMessage)message);
+          if (object instanceof BroadcastMessage)
           {
-            broadcastMessage = (BroadcastMessage)obj.getObject();
+            broadcastMessage = (BroadcastMessage)object;
           }
 
           // ActiveMQ doesn't offer the ability to filter out messages sent
           // from self, so we do this check.
           // got the message, so verify it wasn't sent from self (this peer or
           // Supervisor)
-          String senderUuid = message.getStringProperty(MESSAGE_PROPERTY_UUID);
+          senderUuid = message.getStringProperty(MESSAGE_PROPERTY_UUID);
           if (senderUuid == null)
           {
             log.info("Could not find the Unique Client ID sent from a cache update. Ignoring message.");
@@ -447,8 +260,9 @@ public class CacheMessageManager
           {
             return;
           }
+          sentTime = message.getJMSTimestamp();
         }
-        catch (JMSException | ClassCastException e)
+        catch (JMSException | IOException | ClassCastException e)
         {
           log.info("CacheSignalListener::onMessage caught ", e);
           return;
@@ -456,372 +270,33 @@ public class CacheMessageManager
       }
       else
       {
-        log.info("CacheSignalListener::onMessage: Someone sent a jms.Message of non-type ObjectMessage, so it cannot be converted to a CacheMessage.");
+        log.info("CacheSignalListener::onMessage: Someone sent a jms.Message of non-type ObjectMessage or BytesMessage, so it cannot be converted to a CacheMessage.");
         return;
       }
 
-      if (broadcastMessage instanceof CacheMessage)
-      {
-        final CacheMessage cacheMessage = (CacheMessage)broadcastMessage;
-        statsKey = "g" + cacheMessage.getGroupId();
-
-        // handle the message
-        switch (cacheMessage.getAction())
-        {
-          case (CacheMessage.ACTION_FULL_RESET):
-          {
-            log.info("Receiving 'cache full reset': {}", cacheMessage);
-            store.reset(true, false);
-            break;
-          }
-          case (CacheMessage.ACTION_OBJECT_RESET):
-          {
-            @SuppressWarnings("unchecked")
-            final EntityGroup<Identifiable> group = (EntityGroup<Identifiable>)store.getGroup(cacheMessage.getGroupId());
-            if (group instanceof CacheGroup)
-            {
-              final CacheGroup<Identifiable> cg = (CacheGroup<Identifiable>)group;
-              Identifiable entity = cg.get(cacheMessage.getObjectId());
-
-              if (entity == null)
-              {
-                // This is a new entity, so create it and put it into the cache.
-                entity = cg.newObjectFromMap(cacheMessage.getObjectProperties());
-                cg.addToCache(entity);
-                store.notifyListenersCacheObjectExpired(false, cg.getType(), entity.getId());
-                log.info("Received 'cache object expired':{}", cacheMessage);
-              }
-              else
-              {
-                // This is an existing entity, so update it.
-                cg.updateObjectFromMap(entity, cacheMessage.getObjectProperties());
-                cg.reorder(entity.getId());
-                store.notifyListenersCacheObjectExpired(false, cg.getType(), entity.getId());
-                log.info(
-                    "Received 'cache object expired': {}, existing entity: {}",
-                    cacheMessage, entity);
-              }
-            }
-            else if (group instanceof LruCacheGroup)
-            {
-              final LruCacheGroup<Identifiable> cg = (LruCacheGroup<Identifiable>)group;
-              Identifiable entity = cg.get(cacheMessage.getObjectId());
-
-              if (entity == null)
-              {
-                // This is a new entity, so ignore this message and the LruCacheGroup will pull it
-                // from the database when needed.
-                log.info(
-                    "Received 'cache object expired' for LruCacheGroup:{}, new entity so ignoring.",
-                    cacheMessage);
-              }
-              else
-              {
-                // This entity is already in our LRU cache, so update it.
-                cg.updateObjectFromMap(entity, cacheMessage.getObjectProperties());
-                store.notifyListenersCacheObjectExpired(false, cg.getType(), entity.getId());
-                log.info(
-                    "Received 'cache object expired' for LruCacheGroup: {}, existing entity: {}",
-                    cacheMessage, entity);
-              }
-            }
-            else if (group instanceof EntityGroup)
-            {
-              // No problem! Some instance has this as a CacheGroup, thus it is
-              // sent over the message queue. But *this* instance does not have
-              // it as a CacheGroup, only an EntityGroup, which means we have
-              // nothing to update here.
-            }
-            else            {
-              log.info("Receiving 'cache object expired' but group id is invalid:{}, group: {}",
-                  cacheMessage, group);
-            }
-            // Now that the object is updated in the cache, update the method value cache if
-            // needed.
-            store.methodValueCacheUpdate(group.getType(), cacheMessage.getObjectId());
-
-            break;
-          }
-          case (CacheMessage.ACTION_OBJECT_REMOVE):
-          {
-            @SuppressWarnings("unchecked")
-            final EntityGroup<Identifiable> group = (EntityGroup<Identifiable>)store.getGroup(cacheMessage.getGroupId());
-            if (group instanceof CacheGroup)
-            {
-              ((CacheGroup<Identifiable>)group).removeFromCache(cacheMessage.getObjectId());
-              log.info("Received 'cache object remove' for: {}", cacheMessage);
-            }
-            else if (group instanceof LruCacheGroup)
-            {
-              // LruCacheGroup.refresh() simply invalidates requested IDs from the LRU cache, which
-              // is all we want to do here.
-              ((LruCacheGroup<Identifiable>) group).refresh(cacheMessage.getObjectId());
-              log.info("Received 'cache object remove' for LruCacheGroup: {}", cacheMessage);
-            }
-            else if (group instanceof EntityGroup)
-            {
-              // No problem! Some instance has this as a CacheGroup, thus it is
-              // sent over the message queue. But *this* instance does not have
-              // it as a CacheGroup, only an EntityGroup, which means we have
-              // nothing to update here.
-            }
-            else
-            {
-              log.info("Received 'cache object remove' but group id is " +
-                  "invalid: {}, group: {}, cacheMessage: {}",
-                  cacheMessage.getGroupId(), group, cacheMessage);
-            }
-            // Now that the object is deleted from the cache, also delete from the method
-            // value cache if needed.
-            store.methodValueCacheDelete(group.getType(), cacheMessage.getObjectId());
-            break;
-          }
-          case (CacheMessage.ACTION_GROUP_RESET):
-          {
-            store.reset(store.getGroup(cacheMessage.getGroupId()).type(), true, false);
-            log.info("Received 'cache group reset' for group id {}, " +
-                "cacheMessage: {}", cacheMessage.getGroupId(), cacheMessage);
-            break;
-          }
-          default:
-          {
-            log.warn("Unknown CacheHandler action: {}, cacheMessage: {}",
-                cacheMessage.getAction(), cacheMessage);
-          }
-        }
-      }
-      else if (broadcastMessage instanceof CachedRelationMessage)
+      if (broadcastMessage != null)
       {
-        final CachedRelationMessage cachedRelationMessage = (CachedRelationMessage)broadcastMessage;
-        final CachingEntityRelation<?, ?> relation = store.getCachedRelation(cachedRelationMessage.getRelationId());
-        statsKey = "r" + cachedRelationMessage.getRelationId();
-        switch (cachedRelationMessage.getAction())
+        if (  (broadcastMessage instanceof CacheMessage)
+           && (((CacheMessage)broadcastMessage).getVersion() != 0L)
+           && (!checkNode(senderUuid, EntityVersions.node(
+                  ((CacheMessage)broadcastMessage).getVersion())))
+           )
         {
-          case (CachedRelationMessage.ACTION_ADD):
-          {
-            relation.add(cachedRelationMessage.getLeftId(),
-                cachedRelationMessage.getRightId(), false, true, false);
-            log.info("Received 'rel add': {}", cachedRelationMessage);
-            break;
-          }
-          case (CachedRelationMessage.ACTION_ADD_ALL):
-          {
-            relation.addAll(cachedRelationMessage.getRelation(), false, true, false);
-            log.info("Received 'rel add all': {}", cachedRelationMessage);
-            break;
-          }
-          case (CachedRelationMessage.ACTION_CLEAR):
-          {
-            relation.clear(false, true, false);
-            log.info("Received 'rel clear': {}", cachedRelationMessage);
-            break;
-          }
-          case (CachedRelationMessage.ACTION_REMOVE):
-          {
-            relation.remove(cachedRelationMessage.getLeftId(),
-                cachedRelationMessage.getRightId(), false, true, false);
-            log.info("Received 'rel remove': {}", cachedRelationMessage);
-            break;
-          }
-          case (CachedRelationMessage.ACTION_REMOVE_ALL):
-          {
-            relation.removeAll(cachedRelationMessage.getRelation(), false,
-                true, false);
-            log.info("Received 'rel remove all': {}", cachedRelationMessage);
-            break;
-          }
-          case (CachedRelationMessage.ACTION_REMOVE_LEFT_VALUE):
-          {
-            relation.removeLeftValue(cachedRelationMessage.getLeftId(),
-                false, true, false);
-            log.info("Received 'rel remove left': {}", cachedRelationMessage);
-            break;
-          }
-          case (CachedRelationMessage.ACTION_REMOVE_RIGHT_VALUE):
-          {
-            relation.removeRightValue(cachedRelationMessage.getRightId(),
-                false, true, false);
-            log.info("Received 'rel remove right': {}", cachedRelationMessage);
-            break;
-          }
-          case (CachedRelationMessage.ACTION_REPLACE_ALL):
-          {
-            relation.replaceAll(cachedRelationMessage.getRelation(), false,
-                true, false);
-            log.info("Received 'rel replace all': {}", cachedRelationMessage);
-            break;
-          }
-          case (CachedRelationMessage.ACTION_RESET):
-          {
-            relation.reset(true, false);
-            log.info("Received 'rel reset': {}", cachedRelationMessage);
-            break;
-          }
-          default:
-          {
-            log.info("Unknown CachedRelationHandler action: {}, " +
-                "cachedRelationMessage: {}", cachedRelationMessage.getAction(),
-                cachedRelationMessage);
-          }
+          unstamp(broadcastMessage);
         }
+        receive(broadcastMessage, sentTime);
       }
+    }
 
-      if (statsKey != null) {
-        // Gather statistics on transmission and receiver processing timings and periodically log a
-        // summary.
-        try {
-          // Track how long it takes to gather the stats.
-          long startStats = System.currentTimeMillis();
-
-          // Processing time: How long it took to take action on the message.
-          long pxTime = System.currentTimeMillis() - start;
-
-          // Transmission time: How long it took to receive the message.
-          long txTime = start - message.getJMSTimestamp();
-
-          // Count: How many messages have been received during the reporting period.
-          statsCount.merge(statsKey, 1L, Long::sum);
-
-          // Transmission sum: Sum of transmission times during the reporting period.
-          statsTxSum.merge(statsKey, txTime, Long::sum);
-
-          // Transmission max: Longest recorded transmission time during the reporting period.
-          long txMax = statsTxMax.getOrDefault(statsKey, -1L);
-          if (txTime > txMax) {
-            statsTxMax.put(statsKey, txTime);
-            // Log the new max to help with investigating performance problems.
-            if (txTime > statsLogMaxThresholdMs) {
-              // To reduce logging noise, only log new max values that exceed the configured
-              // threshold.
-              log.info("Stats for " + statsKey + ": New transmission max of " + txTime + ": " + message);
-            }
-          }
-
-          // Transmission min: Shortest recorded transmission time during the reporting period.
-          long txMin = statsTxMin.getOrDefault(statsKey, -1L);
-          if (txMin == -1L || txTime < txMin) {
-            statsTxMin.put(statsKey, txTime);
-          }
-
-          // Processing sum: Sum of processing times during the reporting period.
-          statsPxSum.merge(statsKey, pxTime, Long::sum);
-
-          // Processing max: Longest recorded processing time during the reporting period.
-          long pxMax = statsPxMax.getOrDefault(statsKey, -1L);
-          if (pxTime > pxMax) {
-            statsPxMax.put(statsKey, pxTime);
-            // Log the new max to help with investigating performance problems.
-            if (pxTime > statsLogMaxThresholdMs) {
-              // To reduce logging noise, only log new max values that exceed the configured
-              // threshold.
-              log.info("Stats for " + statsKey + ": New receiver processing max of " + pxTime + ": " + message);
-            }
-          }
-
-          // Processing min: Shortest recorded processing time during the reporting period.
-          long pxMin = statsPxMin.getOrDefault(statsKey, -1L);
-          if (pxMin == -1L || pxTime < pxMin) {
-            statsPxMin.put(statsKey, pxTime);
-          }
-
-          // Record time spent gathering stats.
-          statsCollectionMs += System.currentTimeMillis() - startStats;
-
-          // Periodically log collected stats and reset accumulators.
-          if ((System.currentTimeMillis() - statsCollectionStart) >
-                (statsPeriodMinutes * UtilityConstants.MINUTE)) {
-
-            // Log stats for each CacheGroup/CachedRelation that was received during the last period.
-            for (String key : statsCount.keySet()) {
-              // Count: How many messages have been received during the reporting period.
-              long keyCount = statsCount.getOrDefault(key, -1L);
-
-              // Transmission sum: Sum of transmission times during the reporting period.
-              long keyTxSum = statsTxSum.getOrDefault(key, -1L);
-
-              // Transmission avg: Average of transmission times during the reporting period.
-              long keyTxAvg = keyCount > 0 ? keyTxSum / keyCount : 0;
-
-              // Transmission max: Longest recorded transmission time during the reporting period.
-              long keyTxMax = statsTxMax.getOrDefault(key, -1L);
-
-              // Transmission min: Shortest recorded transmission time during the reporting period.
-              long keyTxMin = statsTxMin.getOrDefault(key, -1L);;
-
-              // Processing sum: Sum of processing times during the reporting period.
-              long keyPxSum = statsPxSum.getOrDefault(key, -1L);;
-
-              // Processing avg: Average of processing times during the reporting period.
-              long keyPxAvg = keyCount > 0 ? keyPxSum / keyCount : 0;
-
-              // Processing max: Longest recorded processing time during the reporting period.
-              long keyPxMax = statsPxMax.getOrDefault(key, -1L);;
-
-              // Processing min: Shortest recorded processing time during the reporting period.
-              long keyPxMin = statsPxMin.getOrDefault(key, -1L);
-
-              // Log summary of collected statistics.
-              log.info("Stats summary for " + key + ": count " + keyCount
-                  + " transmission (max/min/avg) " + keyTxMax
-                  + " " + keyTxMin
-                  + " " + keyTxAvg
-                  + " receiver processing (max/min/avg) " + keyPxMax
-                  + " " + keyPxMin
-                  + " " + keyPxAvg);
-            }
-
-            // Count: How many messages have been received since last reset.
-            long overallCount = statsCount.values().stream().mapToLong(Long::longValue).sum();
-
-            // Transmission sum: Sum of transmission times during the reporting period.
-            long overallTxSum = statsTxSum.values().stream().mapToLong(Long::longValue).sum();
-
-            // Transmission avg: Average of transmission times during the reporting period.
-            long overallTxAvg = overallCount > 0 ? overallTxSum / overallCount : 0;
-
-            // Transmission max: Longest recorded transmission time during the reporting period.
-            long overallTxMax = statsTxMax.values().stream().mapToLong(Long::longValue).max().orElse(-1);
-
-            // Transmission min: Shortest recorded transmission time during the reporting period.
-            long overallTxMin = statsTxMin.values().stream().mapToLong(Long::longValue).min().orElse(-1);
-
-            // Processing sum: Sum of processing times during the reporting period.
-            long overallPxSum = statsPxSum.values().stream().mapToLong(Long::longValue).sum();
-
-            // Processing avg: Average of processing times during the reporting period.
-            long overallPxAvg = overallCount > 0 ? overallPxSum / overallCount : 0;
-
-            // Processing max: Longest recorded processing time during the reporting period.
-            long overallPxMax = statsPxMax.values().stream().mapToLong(Long::longValue).max().orElse(-1);
-
-            // Processing min: Shortest recorded processing time during the reporting period.
-            long overallPxMin = statsPxMin.values().stream().mapToLong(Long::longValue).min().orElse(-1);
-
-            // Log summary of collected statistics.
-            log.info("Stats summary overall: count " + overallCount
-                + " transmission (max/min/avg) " + overallTxMax
-                + " " + overallTxMin
-                + " " + overallTxAvg
-                + " receiver processing (max/min/avg) " + overallPxMax
-                + " " + overallPxMin
-                + " " + overallPxAvg
-                + " stats collection time: " + statsCollectionMs);
-
-            // Reset all accumulators.
-            statsCount.clear();
-            statsTxMin.clear();
-            statsTxMax.clear();
-            statsTxSum.clear();
-            statsPxMin.clear();
-            statsPxMax.clear();
-            statsPxSum.clear();
-            statsCollectionMs = 0L;
-            statsCollectionStart = System.currentTimeMillis();
-          }
-        } catch (Exception e) {
-          log.error("Unable to gather statistics", e);
-        }
-      }
+    /**
+     * Decodes a BytesMessage with the configured codec.  Binary payloads are
+     * readable even when this instance sends ObjectMessages.
+     */
+    private com.techempower.gemini.cluster.message.Message decode(BytesMessage message) throws JMSException, IOException
+    {
+      final byte[] bytes = new byte[(int)message.getBodyLength()];
+      message.readBytes(bytes);
+      return (codec != null ? codec : binaryCodec).decode(bytes);
     }
   }
 }
@@ -27,6 +27,7 @@
 
 package com.techempower.gemini.cluster.jms;
 
+import java.io.*;
 import java.util.*;
 import java.util.Map.*;
 
@@ -35,6 +36,7 @@ import javax.jms.*;
 import org.slf4j.*;
 
 import com.techempower.gemini.cluster.message.Message;
+import com.techempower.gemini.cluster.message.MessageCodec;
 
 /**
  * GeminiSender abstract base class for sending Gemini's message type with
@@ -48,6 +50,7 @@ public abstract class GeminiSender
   protected Session            session;
   protected MessageProducer    producer;
   protected final String       destination;
+  protected MessageCodec       codec;
 
   /**
    * Constructor. This is of a type <b>AutoCloseable</b>, so this should be
@@ -71,10 +74,22 @@ public abstract class GeminiSender
    */
   public abstract GeminiSender start() throws JMSException;
 
+  /**
+   * Sets the codec used to write messages as a <code>jms.BytesMessage</code>.
+   * If no codec is set, messages are sent as a <code>jms.ObjectMessage</code>
+   * using Java serialization.
+   */
+  public GeminiSender setCodec(MessageCodec codec)
+  {
+    this.codec = codec;
+    return this;
+  }
+
   /**
    * Send a cluster.Message type to the destination; converts the
    * <code>cluter.Message <i>message</i></code> to a
-   * <code>jms.ObjectMessage</code>
+   * <code>jms.ObjectMessage</code>, or a <code>jms.BytesMessage</code> if a
+   * codec is set
    * 
    * @throws JMSException
    */
@@ -93,7 +108,7 @@ public abstract class GeminiSender
   public GeminiSender send(Message message, String propertyKey,
       String propertyValue) throws JMSException
   {
-    ObjectMessage m = prepMessage(message, null);
+    javax.jms.Message m = prepMessage(message, null);
     m.setStringProperty(propertyKey, propertyValue);
     producer.send(m);
     return this;
@@ -121,16 +136,35 @@ public abstract class GeminiSender
   public GeminiSender sendWithReplyTo(Destination replyTo, Message message,
       Map<String, Object> properties) throws JMSException
   {
-    ObjectMessage m = prepMessage(message, properties);
+    javax.jms.Message m = prepMessage(message, properties);
     m.setJMSReplyTo(replyTo);
     producer.send(m);
     return this;
   }
 
-  private ObjectMessage prepMessage(Message message,
+  private javax.jms.Message prepMessage(Message message,
       Map<String, Object> properties) throws JMSException
   {
-    ObjectMessage m = session.createObjectMessage(message);
+    javax.jms.Message m;
+    if (codec != null)
+    {
+      BytesMessage bytes = session.createBytesMessage();
+      try
+      {
+        bytes.writeBytes(codec.encode(message));
+      }
+      catch (IOException e)
+      {
+        JMSException jmsException = new JMSException("Cannot encode " + message);
+        jmsException.setLinkedException(e);
+        throw jmsException;
+      }
+      m = bytes;
+    }
+    else
+    {
+      m = session.createObjectMessage(message);
+    }
     m.setStringProperty("Gemini-Message-Tag", message.toString());
     if (properties != null)
     {
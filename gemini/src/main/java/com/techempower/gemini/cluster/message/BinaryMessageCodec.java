@@ -0,0 +1,750 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster.message;
+
+import java.io.*;
+import java.math.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import com.techempower.collection.relation.*;
+
+/**
+ * Encodes the cache messages in a compact, versioned binary format.  Each
+ * payload starts with a magic byte, a format version and a message type.
+ * Ids are written as variable-length zigzag integers, lists of ids as
+ * deltas from the previous id, and object properties field by field with a
+ * one-byte type tag.
+ *   <p>
+ * Format 2 adds the version stamp of a CacheMessage.  Messages without a
+ * stamp are still written in format 1, which instances that predate 
+ * stamps can read.
+ *   <p>
+ * Only BroadcastMessage, CacheMessage, CachedRelationMessage and
+ * CacheBatchMessage themselves have a binary form.  Other message classes,
+ * including subclasses of those, are encoded with Java serialization, as 
+ * are property values without a compact form.  decode() accepts both.
+ *   <p>
+ * Deserializing untrusted bytes can run arbitrary code, so a codec that
+ * reads from a network open to others should be constructed with 
+ * serialization disabled.  It then refuses to encode or decode anything
+ * without a binary form.
+ */
+public class BinaryMessageCodec
+    implements MessageCodec
+{
+  public static final byte  MAGIC               = (byte)0xE7;
+  public static final byte  VERSION             = 2;
+  public static final byte  VERSION_UNSTAMPED   = 1;
+
+  private static final byte TYPE_BROADCAST      = 0;
+  private static final byte TYPE_CACHE          = 1;
+  private static final byte TYPE_RELATION       = 2;
+  private static final byte TYPE_BATCH          = 3;
+
+  private static final byte VALUE_NULL          = 0;
+  private static final byte VALUE_STRING        = 1;
+  private static final byte VALUE_INTEGER       = 2;
+  private static final byte VALUE_LONG          = 3;
+  private static final byte VALUE_TRUE          = 4;
+  private static final byte VALUE_FALSE         = 5;
+  private static final byte VALUE_DOUBLE        = 6;
+  private static final byte VALUE_FLOAT         = 7;
+  private static final byte VALUE_SHORT         = 8;
+  private static final byte VALUE_BYTE          = 9;
+  private static final byte VALUE_CHARACTER     = 10;
+  private static final byte VALUE_DATE          = 11;
+  private static final byte VALUE_SQL_DATE      = 12;
+  private static final byte VALUE_TIMESTAMP     = 13;
+  private static final byte VALUE_BIG_DECIMAL   = 14;
+  private static final byte VALUE_BYTES         = 15;
+  private static final byte VALUE_SERIALIZED    = 16;
+
+  private final SerializationMessageCodec fallback = new SerializationMessageCodec();
+  private final boolean                   serialization;
+
+  /**
+   * Constructor.  Java serialization is used for anything without a binary
+   * form.
+   */
+  public BinaryMessageCodec()
+  {
+    this(true);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param serialization whether Java serialization may be used for
+   *        messages and property values without a binary form.
+   */
+  public BinaryMessageCodec(boolean serialization)
+  {
+    this.serialization = serialization;
+  }
+
+  @Override
+  public byte[] encode(Message message) throws IOException
+  {
+    final Class<?> type = message.getClass();
+    final byte typeCode;
+    if (type == CacheMessage.class)
+    {
+      typeCode = TYPE_CACHE;
+    }
+    else if (type == CachedRelationMessage.class)
+    {
+      typeCode = TYPE_RELATION;
+    }
+    else if (type == CacheBatchMessage.class)
+    {
+      typeCode = TYPE_BATCH;
+    }
+    else if (type == BroadcastMessage.class)
+    {
+      typeCode = TYPE_BROADCAST;
+    }
+    else
+    {
+      return fallback().encode(message);
+    }
+
+    final boolean stamped = (typeCode == TYPE_CACHE)
+        && ((CacheMessage)message).getVersion() != 0L;
+    final Output out = new Output();
+    out.write(MAGIC);
+    out.write(stamped ? VERSION : VERSION_UNSTAMPED);
+    out.write(typeCode);
+    out.writeLong(message.getMessageId());
+    switch (typeCode)
+    {
+      case TYPE_CACHE:
+      {
+        final CacheMessage cache = (CacheMessage)message;
+        out.writeInt(cache.getAction());
+        out.writeInt(cache.getGroupId());
+        out.writeLong(cache.getObjectId());
+        if (stamped)
+        {
+          out.writeLong(cache.getVersion());
+        }
+        break;
+      }
+      case TYPE_RELATION:
+      {
+        final CachedRelationMessage relation = (CachedRelationMessage)message;
+        out.writeInt(relation.getAction());
+        out.writeLong(relation.getRelationId());
+        out.writeLong(relation.getLeftId());
+        out.writeLong(relation.getRightId());
+        out.writePairs(flatten(relation.getRelation()));
+        break;
+      }
+      case TYPE_BATCH:
+      {
+        final CacheBatchMessage batch = (CacheBatchMessage)message;
+        final int[] groupIds = batch.getGroupIds();
+        out.writeVarLong(groupIds.length);
+        for (int i = 0; i < groupIds.length; i++)
+        {
+          out.writeInt(groupIds[i]);
+          out.writeIds(batch.getObjectIds()[i]);
+        }
+        final long[] relationIds = batch.getRelationIds();
+        out.writeVarLong(relationIds.length);
+        for (int i = 0; i < relationIds.length; i++)
+        {
+          out.writeLong(relationIds[i]);
+          out.writePairs(batch.getRelationAdds()[i]);
+          out.writePairs(batch.getRelationRemoves()[i]);
+        }
+        break;
+      }
+      default:
+        break;
+    }
+    writeProperties(out, ((BroadcastMessage)message).getObjectProperties());
+    return out.toByteArray();
+  }
+
+  @Override
+  public Message decode(byte[] bytes) throws IOException
+  {
+    if (SerializationMessageCodec.isSerialized(bytes))
+    {
+      return fallback().decode(bytes);
+    }
+    try
+    {
+      final ByteBuffer in = ByteBuffer.wrap(bytes);
+      if (in.get() != MAGIC)
+      {
+        throw new IOException("Not a binary message.");
+      }
+      final byte version = in.get();
+      if (version != VERSION && version != VERSION_UNSTAMPED)
+      {
+        throw new IOException("Unsupported binary message version " + version + ".");
+      }
+      final byte typeCode = in.get();
+      final long messageId = readLong(in);
+      final BroadcastMessage message;
+      switch (typeCode)
+      {
+        case TYPE_BROADCAST:
+        {
+          message = new BroadcastMessage();
+          break;
+        }
+        case TYPE_CACHE:
+        {
+          final CacheMessage cache = new CacheMessage();
+          cache.setAction(readInt(in));
+          cache.setGroupId(readInt(in));
+          cache.setObjectId(readLong(in));
+          if (version >= VERSION)
+          {
+            cache.setVersion(readLong(in));
+          }
+          message = cache;
+          break;
+        }
+        case TYPE_RELATION:
+        {
+          final CachedRelationMessage relation = new CachedRelationMessage();
+          relation.setAction(readInt(in));
+          relation.setRelationId(readLong(in));
+          relation.setLeftId(readLong(in));
+          relation.setRightId(readLong(in));
+          relation.setRelation(unflatten(readPairs(in)));
+          message = relation;
+          break;
+        }
+        case TYPE_BATCH:
+        {
+          final CacheBatchMessage batch = new CacheBatchMessage();
+          final int[] groupIds = new int[(int)readVarLong(in)];
+          final long[][] objectIds = new long[groupIds.length][];
+          for (int i = 0; i < groupIds.length; i++)
+          {
+            groupIds[i] = readInt(in);
+            objectIds[i] = readIds(in);
+          }
+          batch.setObjects(groupIds, objectIds);
+          final long[] relationIds = new long[(int)readVarLong(in)];
+          final long[][] adds = new long[relationIds.length][];
+          final long[][] removes = new long[relationIds.length][];
+          for (int i = 0; i < relationIds.length; i++)
+          {
+            relationIds[i] = readLong(in);
+            adds[i] = readPairs(in);
+            removes[i] = readPairs(in);
+          }
+          batch.setRelations(relationIds, adds, removes);
+          message = batch;
+          break;
+        }
+        default:
+          throw new IOException("Unknown binary message type " + typeCode + ".");
+      }
+      message.setMessageId(messageId);
+      message.setObjectProperties(readProperties(in));
+      return message;
+    }
+    catch (BufferUnderflowException | IndexOutOfBoundsException
+        | NegativeArraySizeException e)
+    {
+      throw new IOException("Truncated or corrupt binary message.", e);
+    }
+  }
+
+  /**
+   * Writes a property map, field by field.
+   */
+  private void writeProperties(Output out, Map<String, Object> properties)
+      throws IOException
+  {
+    if (properties == null)
+    {
+      out.writeVarLong(0);
+      return;
+    }
+    out.writeVarLong(properties.size() + 1L);
+    for (Map.Entry<String, Object> entry : properties.entrySet())
+    {
+      out.writeString(entry.getKey());
+      writeValue(out, entry.getValue());
+    }
+  }
+
+  /**
+   * Reads a property map written by writeProperties.
+   */
+  private Map<String, Object> readProperties(ByteBuffer in) throws IOException
+  {
+    final int size = (int)readVarLong(in) - 1;
+    if (size < 0)
+    {
+      return null;
+    }
+    final Map<String, Object> properties = new HashMap<>(size * 4 / 3 + 1);
+    for (int i = 0; i < size; i++)
+    {
+      properties.put(readString(in), readValue(in));
+    }
+    return properties;
+  }
+
+  /**
+   * Writes a property value behind its type tag.  Values are matched by
+   * exact class so that they are decoded as the same class.
+   */
+  private void writeValue(Output out, Object value) throws IOException
+  {
+    final Class<?> type = value == null ? null : value.getClass();
+    if (type == null)
+    {
+      out.write(VALUE_NULL);
+    }
+    else if (type == String.class)
+    {
+      out.write(VALUE_STRING);
+      out.writeString((String)value);
+    }
+    else if (type == Integer.class)
+    {
+      out.write(VALUE_INTEGER);
+      out.writeInt((Integer)value);
+    }
+    else if (type == Long.class)
+    {
+      out.write(VALUE_LONG);
+      out.writeLong((Long)value);
+    }
+    else if (type == Boolean.class)
+    {
+      out.write((Boolean)value ? VALUE_TRUE : VALUE_FALSE);
+    }
+    else if (type == Double.class)
+    {
+      out.write(VALUE_DOUBLE);
+      out.writeFixedLong(Double.doubleToRawLongBits((Double)value));
+    }
+    else if (type == Float.class)
+    {
+      out.write(VALUE_FLOAT);
+      out.writeInt(Float.floatToRawIntBits((Float)value));
+    }
+    else if (type == Short.class)
+    {
+      out.write(VALUE_SHORT);
+      out.writeInt((Short)value);
+    }
+    else if (type == Byte.class)
+    {
+      out.write(VALUE_BYTE);
+      out.write((Byte)value);
+    }
+    else if (type == Character.class)
+    {
+      out.write(VALUE_CHARACTER);
+      out.writeInt((Character)value);
+    }
+    else if (type == java.util.Date.class)
+    {
+      out.write(VALUE_DATE);
+      out.writeLong(((java.util.Date)value).getTime());
+    }
+    else if (type == java.sql.Date.class)
+    {
+      out.write(VALUE_SQL_DATE);
+      out.writeLong(((java.sql.Date)value).getTime());
+    }
+    else if (type == java.sql.Timestamp.class)
+    {
+      out.write(VALUE_TIMESTAMP);
+      out.writeLong(((java.sql.Timestamp)value).getTime());
+      out.writeInt(((java.sql.Timestamp)value).getNanos());
+    }
+    else if (type == BigDecimal.class)
+    {
+      out.write(VALUE_BIG_DECIMAL);
+      out.writeString(value.toString());
+    }
+    else if (type == byte[].class)
+    {
+      out.write(VALUE_BYTES);
+      out.writeBytes((byte[])value);
+    }
+    else
+    {
+      fallback();
+      out.write(VALUE_SERIALIZED);
+      try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+           ObjectOutputStream objects = new ObjectOutputStream(bytes))
+      {
+        objects.writeObject(value);
+        objects.flush();
+        out.writeBytes(bytes.toByteArray());
+      }
+    }
+  }
+
+  /**
+   * Gets the serialization codec, if serialization is enabled.
+   */
+  private SerializationMessageCodec fallback() throws IOException
+  {
+    if (!this.serialization)
+    {
+      throw new IOException("Java serialization is disabled.");
+    }
+    return this.fallback;
+  }
+
+  /**
+   * Reads a property value written by writeValue.
+   */
+  private Object readValue(ByteBuffer in) throws IOException
+  {
+    final byte tag = in.get();
+    switch (tag)
+    {
+      case VALUE_NULL:
+        return null;
+      case VALUE_STRING:
+        return readString(in);
+      case VALUE_INTEGER:
+        return readInt(in);
+      case VALUE_LONG:
+        return readLong(in);
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_DOUBLE:
+        return Double.longBitsToDouble(in.getLong());
+      case VALUE_FLOAT:
+        return Float.intBitsToFloat(readInt(in));
+      case VALUE_SHORT:
+        return (short)readInt(in);
+      case VALUE_BYTE:
+        return in.get();
+      case VALUE_CHARACTER:
+        return (char)readInt(in);
+      case VALUE_DATE:
+        return new java.util.Date(readLong(in));
+      case VALUE_SQL_DATE:
+        return new java.sql.Date(readLong(in));
+      case VALUE_TIMESTAMP:
+      {
+        final java.sql.Timestamp timestamp = new java.sql.Timestamp(readLong(in));
+        timestamp.setNanos(readInt(in));
+        return timestamp;
+      }
+      case VALUE_BIG_DECIMAL:
+        return new BigDecimal(readString(in));
+      case VALUE_BYTES:
+        return readBytes(in);
+      case VALUE_SERIALIZED:
+      {
+        fallback();
+        try (ObjectInputStream objects = new ObjectInputStream(
+            new ByteArrayInputStream(readBytes(in))))
+        {
+          return objects.readObject();
+        }
+        catch (ClassNotFoundException e)
+        {
+          throw new IOException("Cannot decode property value.", e);
+        }
+      }
+      default:
+        throw new IOException("Unknown property value type " + tag + ".");
+    }
+  }
+
+  /**
+   * Flattens a relation into {left, right, left, right, ...}, or null.
+   */
+  private static long[] flatten(LongRelation relation)
+  {
+    if (relation == null)
+    {
+      return null;
+    }
+    final long[] pairs = new long[relation.size() * 2];
+    final LongRelationIterator iter = relation.iterator();
+    int index = 0;
+    while (iter.hasNext())
+    {
+      iter.next();
+      pairs[index++] = iter.left();
+      pairs[index++] = iter.right();
+    }
+    return pairs;
+  }
+
+  /**
+   * Rebuilds a relation from flattened pairs.
+   */
+  private static LongRelation unflatten(long[] pairs)
+  {
+    if (pairs == null)
+    {
+      return null;
+    }
+    final ManyToManyLongRelation relation = new ManyToManyLongRelation();
+    for (int i = 0; i < pairs.length; i += 2)
+    {
+      relation.add(pairs[i], pairs[i + 1]);
+    }
+    return relation;
+  }
+
+  /**
+   * Reads a zigzag-encoded variable-length int.
+   */
+  private static int readInt(ByteBuffer in)
+  {
+    return (int)readLong(in);
+  }
+
+  /**
+   * Reads a zigzag-encoded variable-length long.
+   */
+  private static long readLong(ByteBuffer in)
+  {
+    final long value = readVarLong(in);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * Reads an unsigned variable-length long.
+   */
+  private static long readVarLong(ByteBuffer in)
+  {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do
+    {
+      b = in.get();
+      value |= (long)(b & 0x7F) << shift;
+      shift += 7;
+    }
+    while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * Reads a length-prefixed byte array.
+   */
+  private static byte[] readBytes(ByteBuffer in)
+  {
+    final byte[] bytes = new byte[(int)readVarLong(in)];
+    in.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Reads a length-prefixed UTF-8 string.
+   */
+  private static String readString(ByteBuffer in)
+  {
+    final int length = (int)readVarLong(in);
+    final String string = new String(in.array(), in.arrayOffset() + in.position(),
+        length, StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return string;
+  }
+
+  /**
+   * Reads an id list written by Output.writeIds.
+   */
+  private static long[] readIds(ByteBuffer in)
+  {
+    final long[] ids = new long[(int)readVarLong(in)];
+    long previous = 0;
+    for (int i = 0; i < ids.length; i++)
+    {
+      previous += readLong(in);
+      ids[i] = previous;
+    }
+    return ids;
+  }
+
+  /**
+   * Reads flattened pairs written by Output.writePairs.
+   */
+  private static long[] readPairs(ByteBuffer in)
+  {
+    final int count = (int)readVarLong(in) - 1;
+    if (count < 0)
+    {
+      return null;
+    }
+    final long[] pairs = new long[count * 2];
+    long left = 0;
+    long right = 0;
+    for (int i = 0; i < pairs.length; i += 2)
+    {
+      left += readLong(in);
+      right += readLong(in);
+      pairs[i] = left;
+      pairs[i + 1] = right;
+    }
+    return pairs;
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * A growable, unsynchronized byte buffer.
+   */
+  private static final class Output
+  {
+    private byte[] buffer = new byte[64];
+    private int    size;
+
+    void write(int value)
+    {
+      ensureCapacity(1);
+      this.buffer[this.size++] = (byte)value;
+    }
+
+    /**
+     * Writes a zigzag-encoded variable-length int.
+     */
+    void writeInt(int value)
+    {
+      writeLong(value);
+    }
+
+    /**
+     * Writes a zigzag-encoded variable-length long, so that small negative
+     * values stay small.
+     */
+    void writeLong(long value)
+    {
+      writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes an unsigned variable-length long.
+     */
+    void writeVarLong(long value)
+    {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0)
+      {
+        this.buffer[this.size++] = (byte)((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      this.buffer[this.size++] = (byte)value;
+    }
+
+    void writeFixedLong(long value)
+    {
+      ensureCapacity(8);
+      for (int shift = 56; shift >= 0; shift -= 8)
+      {
+        this.buffer[this.size++] = (byte)(value >>> shift);
+      }
+    }
+
+    void writeBytes(byte[] bytes)
+    {
+      writeVarLong(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+      this.size += bytes.length;
+    }
+
+    void writeString(String string)
+    {
+      writeBytes(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a list of ids as the count followed by each id's difference
+     * from the one before it.  Sorted lists encode smallest.
+     */
+    void writeIds(long[] ids)
+    {
+      writeVarLong(ids.length);
+      long previous = 0;
+      for (long id : ids)
+      {
+        writeLong(id - previous);
+        previous = id;
+      }
+    }
+
+    /**
+     * Writes flattened pairs, or null, as the count plus one followed by
+     * the difference of each left and right value from the previous pair's.
+     */
+    void writePairs(long[] pairs)
+    {
+      if (pairs == null)
+      {
+        writeVarLong(0);
+        return;
+      }
+      writeVarLong(pairs.length / 2 + 1L);
+      long left = 0;
+      long right = 0;
+      for (int i = 0; i < pairs.length; i += 2)
+      {
+        writeLong(pairs[i] - left);
+        writeLong(pairs[i + 1] - right);
+        left = pairs[i];
+        right = pairs[i + 1];
+      }
+    }
+
+    byte[] toByteArray()
+    {
+      return Arrays.copyOf(this.buffer, this.size);
+    }
+
+    private void ensureCapacity(int additional)
+    {
+      if (this.size + additional > this.buffer.length)
+      {
+        this.buffer = Arrays.copyOf(this.buffer,
+            Math.max(this.buffer.length * 2, this.size + additional));
+      }
+    }
+  }
+
+}   // End BinaryMessageCodec.
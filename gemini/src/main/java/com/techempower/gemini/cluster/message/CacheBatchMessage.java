@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster.message;
+
+import java.util.*;
+
+/**
+ * Carries a batch of coalesced cache invalidations.  For each group, the
+ * recipient refreshes the listed objects from the database in one call;
+ * objects that no longer exist are dropped from the cache.  For each
+ * relation, the listed pairs are removed and added.  Relation pairs are
+ * stored flattened as {left, right, left, right, ...}.
+ */
+public class CacheBatchMessage
+    extends BroadcastMessage
+{
+  private static final long serialVersionUID = 1L;
+
+  private int[]             groupIds         = new int[0];
+  private long[][]          objectIds        = new long[0][];
+  private long[]            relationIds      = new long[0];
+  private long[][]          relationAdds     = new long[0][];
+  private long[][]          relationRemoves  = new long[0][];
+
+  /**
+   * Gets the ids of the groups in this batch.
+   */
+  public int[] getGroupIds()
+  {
+    return this.groupIds;
+  }
+
+  /**
+   * Gets the object ids to refresh, parallel to getGroupIds.
+   */
+  public long[][] getObjectIds()
+  {
+    return this.objectIds;
+  }
+
+  /**
+   * Sets the groups in this batch and the object ids to refresh in each.
+   */
+  public void setObjects(int[] groupIds, long[][] objectIds)
+  {
+    this.groupIds = groupIds;
+    this.objectIds = objectIds;
+  }
+
+  /**
+   * Gets the ids of the relations in this batch.
+   */
+  public long[] getRelationIds()
+  {
+    return this.relationIds;
+  }
+
+  /**
+   * Gets the flattened pairs to add, parallel to getRelationIds.
+   */
+  public long[][] getRelationAdds()
+  {
+    return this.relationAdds;
+  }
+
+  /**
+   * Gets the flattened pairs to remove, parallel to getRelationIds.
+   */
+  public long[][] getRelationRemoves()
+  {
+    return this.relationRemoves;
+  }
+
+  /**
+   * Sets the relations in this batch and the pairs to add to and remove
+   * from each.
+   */
+  public void setRelations(long[] relationIds, long[][] relationAdds,
+      long[][] relationRemoves)
+  {
+    this.relationIds = relationIds;
+    this.relationAdds = relationAdds;
+    this.relationRemoves = relationRemoves;
+  }
+
+  /**
+   * Gets the number of object ids and relation pairs in this batch.
+   */
+  public int size()
+  {
+    int size = 0;
+    for (long[] ids : this.objectIds)
+    {
+      size += ids.length;
+    }
+    for (int i = 0; i < this.relationIds.length; i++)
+    {
+      size += (this.relationAdds[i].length + this.relationRemoves[i].length) / 2;
+    }
+    return size;
+  }
+
+  /**
+   * toString.
+   */
+  @Override
+  public String toString()
+  {
+    return "CacheBatchMessage [" + hashCode()
+        + "; " + getMessageId()
+        + "; g" + Arrays.toString(getGroupIds())
+        + "; rel" + Arrays.toString(getRelationIds())
+        + "; " + size() + " changes"
+        + "]";
+  }
+
+}
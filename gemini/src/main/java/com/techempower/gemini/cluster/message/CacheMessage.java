@@ -39,10 +39,12 @@ public class CacheMessage
   public static final int   ACTION_OBJECT_REMOVE = 1;
   public static final int   ACTION_GROUP_RESET   = 2;
   public static final int   ACTION_FULL_RESET    = 3;
+  public static final int   ACTION_OBJECT_PATCH  = 4;
 
   private int               action;
   private int               groupId;
   private long              objectId;
+  private long              version;
 
   public int getAction()
   {
@@ -74,6 +76,22 @@ public class CacheMessage
     this.objectId = objectId;
   }
 
+  /**
+   * Gets the version stamp of the change, or 0 if the change is not
+   * versioned.
+   *
+   * @see com.techempower.data.EntityVersions
+   */
+  public long getVersion()
+  {
+    return this.version;
+  }
+
+  public void setVersion(long version)
+  {
+    this.version = version;
+  }
+
   /**
    * toString.
    */
@@ -85,6 +103,7 @@ public class CacheMessage
         + "; a" + getAction()
         + "; g" + getGroupId()
         + "; o" + getObjectId()
+        + (getVersion() != 0L ? "; v" + getVersion() : "")
         + "; " + (getObjectProperties() != null ? getObjectProperties().size() : 0) + " properties"
         + "]";
   }
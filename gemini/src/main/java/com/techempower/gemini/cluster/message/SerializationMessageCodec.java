@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster.message;
+
+import java.io.*;
+
+/**
+ * Encodes messages with Java serialization.  This is the format of a JMS
+ * ObjectMessage, and works for any message type, but it is larger and
+ * slower than {@link BinaryMessageCodec}.
+ */
+public class SerializationMessageCodec
+    implements MessageCodec
+{
+  @Override
+  public byte[] encode(Message message) throws IOException
+  {
+    try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         ObjectOutputStream out = new ObjectOutputStream(bytes))
+    {
+      out.writeObject(message);
+      out.flush();
+      return bytes.toByteArray();
+    }
+  }
+
+  @Override
+  public Message decode(byte[] bytes) throws IOException
+  {
+    try (ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(bytes)))
+    {
+      return (Message)in.readObject();
+    }
+    catch (ClassNotFoundException | ClassCastException e)
+    {
+      throw new IOException("Cannot decode message.", e);
+    }
+  }
+
+  /**
+   * Returns true if the bytes begin with the Java serialization stream 
+   * header.
+   */
+  public static boolean isSerialized(byte[] bytes)
+  {
+    return bytes.length >= 2
+        && bytes[0] == (byte)0xAC
+        && bytes[1] == (byte)0xED;
+  }
+}
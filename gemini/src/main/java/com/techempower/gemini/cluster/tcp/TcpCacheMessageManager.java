@@ -0,0 +1,1180 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster.tcp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.techempower.cache.*;
+import com.techempower.gemini.*;
+import com.techempower.gemini.cluster.*;
+import com.techempower.gemini.cluster.message.*;
+import com.techempower.helper.*;
+import com.techempower.util.*;
+
+/**
+ * Distributes cache maintenance messages directly between instances over
+ * TCP, without a message broker.  Each instance listens on a port and 
+ * connects to every other instance in a static peer list; it sends its own
+ * messages over the connections it opens and receives everyone else's over
+ * the connections it accepts.  All sockets are handled by one NIO selector
+ * thread.
+ *   <p>
+ * Messages are written as length-prefixed frames without waiting for any
+ * acknowledgement.  Each instance numbers the messages it sends and keeps
+ * the most recent ones in a replay log.  When a connection is opened, the
+ * sender introduces itself and the receiver answers with the last sequence
+ * number it has applied from that sender, so after a dropped connection
+ * the sender replays only what was missed.  If the missed messages have
+ * already left the replay log, the receiver resets its caches instead.
+ *   <p>
+ * Received messages are handed to the apply pipeline without blocking, so
+ * that one busy group or relation never stalls the selector thread.  When
+ * the lanes a message needs are full, or the store is not yet initialized,
+ * the connection it came on stops being read until the message can be
+ * queued; the sender's messages back up in TCP and, past
+ * MaximumQueuedBytes, in the sender's replay log.  A message counts as
+ * applied, for resuming, only once it has been queued.
+ *   <p>
+ * Configuration, each prefixed by "TcpCacheMessageManager.":
+ * <ul>
+ *   <li>Port - the port to listen on.</li>
+ *   <li>BindAddress - the address to listen on.  The default is this
+ *       instance's own entry in Peers, or the loopback address if there is
+ *       none.  Only connections from the hosts in Peers are accepted.</li>
+ *   <li>Peers - comma-separated host:port of every instance; this
+ *       instance's own address may be included.  Every instance should
+ *       list the same peers in the same order: an instance's position in
+ *       the list is its cluster node id, used to stamp changes to
+ *       versioned groups, so its own address must be listed, once, if any
+ *       group is versioned.</li>
+ *   <li>ReplayLogSize - how many sent messages to keep for replay.</li>
+ *   <li>ReplayLogBytes - how many bytes of sent messages to keep for
+ *       replay; the oldest are discarded first.</li>
+ *   <li>ReconnectDelayMs - how long to wait before reconnecting to a 
+ *       peer.</li>
+ *   <li>MaximumQueuedBytes - how much unsent data a peer may fall behind
+ *       by before its connection is dropped and later resumed.</li>
+ * </ul>
+ * plus the settings read by {@link CacheMessageDistributor}.
+ */
+public class TcpCacheMessageManager
+    extends CacheMessageDistributor
+    implements Configurable
+{
+  public static final int     DEFAULT_REPLAY_LOG_SIZE      = 100000;
+  public static final long    DEFAULT_REPLAY_LOG_BYTES     = 64L * 1024 * 1024;
+  public static final long    DEFAULT_RECONNECT_DELAY_MS   = 1000L;
+  public static final long    DEFAULT_MAXIMUM_QUEUED_BYTES = 64L * 1024 * 1024;
+  public static final int     MAXIMUM_FRAME_LENGTH         = 64 * 1024 * 1024;
+
+  /** Sender to receiver: the sender's name, epoch and node id. */
+  private static final byte   FRAME_HELLO    = 1;
+  /** Receiver to sender: the last sequence number applied. */
+  private static final byte   FRAME_RESUME   = 2;
+  /** Sender to receiver: sequence number, send time and an encoded message. */
+  private static final byte   FRAME_MESSAGE  = 3;
+  /** Sender to receiver: the first sequence number still available. */
+  private static final byte   FRAME_GAP      = 4;
+
+  /** How often to offer a message again while its connection is paused. */
+  private static final long   RETRY_DELAY_MS = 10L;
+
+  //
+  // Variables.
+  //
+
+  private final MessageCodec              codec = new BinaryMessageCodec(false);
+  private final Set<InetAddress>          peerHosts = new HashSet<>();
+  private final Map<String, SenderState>  senders = new HashMap<>();
+  private final List<Outbound>            outbound = new ArrayList<>();
+  private InetSocketAddress               address;
+  private List<InetSocketAddress>         peers;
+  private int                             replayLogSize = DEFAULT_REPLAY_LOG_SIZE;
+  private long                            maximumReplayLogBytes = DEFAULT_REPLAY_LOG_BYTES;
+  private long                            reconnectDelayMs = DEFAULT_RECONNECT_DELAY_MS;
+  private long                            maximumQueuedBytes = DEFAULT_MAXIMUM_QUEUED_BYTES;
+  private String                          nodeId;
+  private long                            epoch;
+  private byte[][]                        replayLog;
+  private long                            replayLogBytes;
+  private long                            firstRetained = 1L;
+  private long                            nextSequence = 1L;
+  private Selector                        selector;
+  private ServerSocketChannel             server;
+  private Thread                          thread;
+  private volatile boolean                running;
+  private volatile boolean                dropRequested;
+
+  //
+  // Methods.
+  //
+
+  /**
+   * Constructor.  The address and peers are read from the application's
+   * configuration.
+   */
+  public TcpCacheMessageManager(GeminiApplication application)
+  {
+    super(application.getStore());
+    application.getConfigurator().addConfigurable(this);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param store the store whose changes are distributed.
+   * @param address the address to listen on.
+   * @param peers the addresses of all instances; this instance's own
+   *        address is ignored.
+   */
+  public TcpCacheMessageManager(EntityStore store, InetSocketAddress address,
+      List<InetSocketAddress> peers)
+  {
+    super(store);
+    this.address = address;
+    this.peers = new ArrayList<>(peers);
+  }
+
+  @Override
+  public void configure(EnhancedProperties props)
+  {
+    final String propsPrefix = "TcpCacheMessageManager.";
+    configure(props, propsPrefix);
+    final int port = props.getInt(propsPrefix + "Port", 0);
+    this.peers = new ArrayList<>();
+    for (String peer : props.getArray(propsPrefix + "Peers"))
+    {
+      final int colon = peer.lastIndexOf(':');
+      if (colon <= 0)
+      {
+        throw new IllegalArgumentException(
+            "TcpCacheMessageManager.Peers must be host:port, not " + peer);
+      }
+      this.peers.add(new InetSocketAddress(peer.substring(0, colon),
+          Integer.parseInt(peer.substring(colon + 1))));
+    }
+    log.info("[TcpCacheMessageManager.Peers: " + peers + "]");
+    final String bindAddress = props.get(propsPrefix + "BindAddress");
+    if (StringHelper.isNonEmpty(bindAddress))
+    {
+      this.address = new InetSocketAddress(bindAddress, port);
+    }
+    else
+    {
+      // Rather than listening on every interface, listen only where the
+      // other instances expect to find this one.
+      this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+      for (InetSocketAddress peer : this.peers)
+      {
+        if (peer.getPort() == port && isLocal(peer.getAddress()))
+        {
+          this.address = peer;
+          break;
+        }
+      }
+    }
+    log.info("[TcpCacheMessageManager.Address: " + address + "]");
+    this.replayLogSize = props.getInt(propsPrefix + "ReplayLogSize", this.replayLogSize);
+    log.info("[TcpCacheMessageManager.ReplayLogSize: " + replayLogSize + "]");
+    this.maximumReplayLogBytes = props.getLong(propsPrefix + "ReplayLogBytes", this.maximumReplayLogBytes);
+    log.info("[TcpCacheMessageManager.ReplayLogBytes: " + maximumReplayLogBytes + "]");
+    this.reconnectDelayMs = props.getLong(propsPrefix + "ReconnectDelayMs", this.reconnectDelayMs);
+    log.info("[TcpCacheMessageManager.ReconnectDelayMs: " + reconnectDelayMs + "]");
+    this.maximumQueuedBytes = props.getLong(propsPrefix + "MaximumQueuedBytes", this.maximumQueuedBytes);
+    log.info("[TcpCacheMessageManager.MaximumQueuedBytes: " + maximumQueuedBytes + "]");
+  }
+
+  /**
+   * Sets how long to wait before reconnecting to a peer.
+   */
+  public TcpCacheMessageManager setReconnectDelayMs(long reconnectDelayMs)
+  {
+    this.reconnectDelayMs = reconnectDelayMs;
+    return this;
+  }
+
+  /**
+   * Sets how many sent messages are kept for replay.  Takes effect on start.
+   */
+  public TcpCacheMessageManager setReplayLogSize(int replayLogSize)
+  {
+    this.replayLogSize = replayLogSize;
+    return this;
+  }
+
+  /**
+   * Sets how many bytes of sent messages are kept for replay.
+   */
+  public TcpCacheMessageManager setReplayLogBytes(long replayLogBytes)
+  {
+    synchronized (this.outbound)
+    {
+      this.maximumReplayLogBytes = replayLogBytes;
+    }
+    return this;
+  }
+
+  /**
+   * Starts listening and connecting to peers.
+   */
+  public synchronized TcpCacheMessageManager start() throws IOException
+  {
+    if (this.running)
+    {
+      return this;
+    }
+    if (this.address == null || this.peers == null)
+    {
+      throw new IllegalStateException("TcpCacheMessageManager is not configured.");
+    }
+    this.selector = Selector.open();
+    this.server = ServerSocketChannel.open();
+    this.server.bind(this.address);
+    this.server.configureBlocking(false);
+    this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+    this.address = (InetSocketAddress)this.server.getLocalAddress();
+
+    // A new epoch tells receivers that sequence numbers start over.
+    this.nodeId = nodeId(this.address);
+    this.epoch = ThreadLocalRandom.current().nextLong();
+    this.replayLog = new byte[this.replayLogSize][];
+    this.replayLogBytes = 0L;
+    this.firstRetained = 1L;
+    this.nextSequence = 1L;
+    this.outbound.clear();
+    this.peerHosts.clear();
+    for (InetSocketAddress peer : this.peers)
+    {
+      if (peer.getAddress() != null)
+      {
+        this.peerHosts.add(peer.getAddress());
+      }
+      if (!isSelf(peer))
+      {
+        this.outbound.add(new Outbound(peer));
+      }
+    }
+
+    try
+    {
+      assignNode(selfIndex());
+      startDistribution();
+    }
+    catch (RuntimeException e)
+    {
+      this.server.close();
+      this.selector.close();
+      throw e;
+    }
+    this.running = true;
+    this.thread = new Thread(this::run, "TcpCacheMessageManager " + this.nodeId);
+    this.thread.setDaemon(true);
+    this.thread.start();
+    log.info("TcpCacheMessageManager listening @{}, peers {}", this.address, this.outbound);
+    return this;
+  }
+
+  /**
+   * Sends any pending messages, waiting briefly for them to be written, then
+   * closes all connections.
+   */
+  public void close()
+  {
+    log.info("TcpCacheMessageManager is closing.");
+    stopDistribution();
+    final long deadline = System.currentTimeMillis() + 1000L;
+    while (this.running && hasQueuedWrites()
+        && System.currentTimeMillis() < deadline)
+    {
+      try
+      {
+        Thread.sleep(10L);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    this.running = false;
+    if (this.selector != null)
+    {
+      this.selector.wakeup();
+    }
+    if (this.thread != null)
+    {
+      try
+      {
+        this.thread.join(5000L);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Gets the address this instance listens on.  Once started, this has the
+   * actual port.
+   */
+  public InetSocketAddress getAddress()
+  {
+    return this.address;
+  }
+
+  /**
+   * Gets the number of peers with an open, resumed connection.
+   */
+  public int getConnectedPeerCount()
+  {
+    int count = 0;
+    for (Outbound peer : this.outbound)
+    {
+      if (peer.ready)
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Numbers the message, keeps it for replay and queues it for every
+   * connected peer.  Peers that are not connected receive it when they
+   * resume.
+   */
+  @Override
+  protected void publish(BroadcastMessage message)
+  {
+    final byte[] payload;
+    try
+    {
+      payload = this.codec.encode(message);
+    }
+    catch (IOException e)
+    {
+      log.error("Unable to encode {}", message, e);
+      return;
+    }
+    synchronized (this.outbound)
+    {
+      if (this.replayLog == null)
+      {
+        log.info("Not started. Not sending {}", message);
+        return;
+      }
+      final long sequence = this.nextSequence++;
+      final ByteBuffer frame = frame(FRAME_MESSAGE, 16 + payload.length);
+      frame.putLong(sequence).putLong(System.currentTimeMillis()).put(payload);
+      final byte[] bytes = frame.array();
+      retain(sequence, bytes);
+      for (Outbound peer : this.outbound)
+      {
+        if (peer.ready)
+        {
+          peer.enqueue(ByteBuffer.wrap(bytes));
+        }
+      }
+    }
+    this.selector.wakeup();
+  }
+
+  /**
+   * Adds a sent message to the replay log, discarding the oldest messages
+   * as needed to stay within its size and byte limits.  The newest message
+   * is always kept.  Must be called while synchronized on outbound.
+   */
+  private void retain(long sequence, byte[] bytes)
+  {
+    final int slot = (int)(sequence % this.replayLog.length);
+    if (this.replayLog[slot] != null)
+    {
+      // Replaces the message a whole log's length older.
+      this.replayLogBytes -= this.replayLog[slot].length;
+      this.firstRetained = Math.max(this.firstRetained,
+          sequence - this.replayLog.length + 1);
+    }
+    this.replayLog[slot] = bytes;
+    this.replayLogBytes += bytes.length;
+    while (this.replayLogBytes > this.maximumReplayLogBytes
+        && this.firstRetained < sequence)
+    {
+      final int oldest = (int)(this.firstRetained++ % this.replayLog.length);
+      this.replayLogBytes -= this.replayLog[oldest].length;
+      this.replayLog[oldest] = null;
+    }
+  }
+
+  /**
+   * Drops all connections, as if the network had failed.  Outbound
+   * connections are reopened after the reconnect delay.
+   */
+  void dropConnections()
+  {
+    this.dropRequested = true;
+    this.selector.wakeup();
+  }
+
+  /**
+   * The selector loop.
+   */
+  private void run()
+  {
+    try
+    {
+      while (this.running)
+      {
+        final long now = System.currentTimeMillis();
+        if (this.dropRequested)
+        {
+          this.dropRequested = false;
+          for (SelectionKey key : this.selector.keys())
+          {
+            if (key.isValid() && key.attachment() instanceof Link)
+            {
+              ((Link)key.attachment()).fail(null);
+            }
+          }
+        }
+        long timeout = 0L;
+        for (SelectionKey key : this.selector.keys())
+        {
+          if (key.isValid() && key.attachment() instanceof Inbound)
+          {
+            final Inbound link = (Inbound)key.attachment();
+            try
+            {
+              link.retry();
+            }
+            catch (IOException | RuntimeException e)
+            {
+              link.fail(e);
+            }
+            if (link.isPaused())
+            {
+              timeout = RETRY_DELAY_MS;
+            }
+          }
+        }
+        for (Outbound peer : this.outbound)
+        {
+          if (peer.channel == null)
+          {
+            if (now >= peer.reconnectAt)
+            {
+              peer.connect();
+            }
+            else
+            {
+              final long wait = peer.reconnectAt - now;
+              timeout = timeout == 0L ? wait : Math.min(timeout, wait);
+            }
+          }
+        }
+        for (SelectionKey key : this.selector.keys())
+        {
+          if (key.isValid() && key.attachment() instanceof Link)
+          {
+            ((Link)key.attachment()).updateInterest();
+          }
+        }
+
+        this.selector.select(timeout);
+        final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid())
+          {
+            continue;
+          }
+          if (key.isAcceptable())
+          {
+            accept();
+            continue;
+          }
+          final Link link = (Link)key.attachment();
+          try
+          {
+            if (key.isConnectable())
+            {
+              ((Outbound)link).finishConnect();
+            }
+            if (key.isValid() && key.isReadable())
+            {
+              link.read();
+            }
+            if (key.isValid() && key.isWritable())
+            {
+              link.write();
+            }
+          }
+          catch (IOException | RuntimeException e)
+          {
+            link.fail(e);
+          }
+        }
+      }
+    }
+    catch (IOException | ClosedSelectorException e)
+    {
+      log.error("TcpCacheMessageManager selector failed", e);
+    }
+    finally
+    {
+      this.running = false;
+      for (SelectionKey key : this.selector.keys())
+      {
+        closeQuietly(key.channel());
+      }
+      closeQuietly(this.selector);
+      synchronized (this.outbound)
+      {
+        for (Outbound peer : this.outbound)
+        {
+          peer.ready = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Accepts a connection from a peer.  Connections from any host not in the
+   * peer list are closed immediately, since the messages they send can
+   * reset this instance's caches.
+   */
+  private void accept() throws IOException
+  {
+    final SocketChannel channel = this.server.accept();
+    if (channel != null)
+    {
+      final InetAddress remote = ((InetSocketAddress)channel.getRemoteAddress()).getAddress();
+      if (!this.peerHosts.contains(remote))
+      {
+        log.warn("Rejecting connection from {}, which is not a peer.", remote);
+        closeQuietly(channel);
+        return;
+      }
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      final Inbound link = new Inbound(channel);
+      link.key = channel.register(this.selector, SelectionKey.OP_READ, link);
+    }
+  }
+
+  /**
+   * Returns true if any peer has data waiting to be written.
+   */
+  private boolean hasQueuedWrites()
+  {
+    synchronized (this.outbound)
+    {
+      for (Outbound peer : this.outbound)
+      {
+        if (peer.ready && peer.queuedBytes > 0)
+        {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the address is this instance's own.
+   */
+  private boolean isSelf(InetSocketAddress peer)
+  {
+    if (peer.getPort() != this.address.getPort())
+    {
+      return false;
+    }
+    final InetAddress host = peer.getAddress();
+    return host != null
+        && (host.equals(this.address.getAddress()) || isLocal(host));
+  }
+
+  /**
+   * Gets the position of this instance's own address in the peer list, or
+   * -1 if it is not listed.
+   *
+   * @throws IllegalStateException if it is listed more than once.
+   */
+  private int selfIndex()
+  {
+    int index = -1;
+    for (int i = 0; i < this.peers.size(); i++)
+    {
+      if (isSelf(this.peers.get(i)))
+      {
+        if (index >= 0)
+        {
+          throw new IllegalStateException("Peers lists this instance twice: "
+              + this.peers.get(index) + " and " + this.peers.get(i));
+        }
+        index = i;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Returns true if the address belongs to this machine.
+   */
+  private static boolean isLocal(InetAddress host)
+  {
+    if (host == null)
+    {
+      return false;
+    }
+    if (host.isLoopbackAddress() || host.isAnyLocalAddress())
+    {
+      return true;
+    }
+    try
+    {
+      return NetworkInterface.getByInetAddress(host) != null;
+    }
+    catch (SocketException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Names an instance by its host name and port.
+   */
+  private static String nodeId(InetSocketAddress address)
+  {
+    String host;
+    try
+    {
+      host = InetAddress.getLocalHost().getHostName();
+    }
+    catch (UnknownHostException e)
+    {
+      host = address.getHostString();
+    }
+    return host + ":" + address.getPort();
+  }
+
+  /**
+   * Allocates a frame with its length and type written.
+   */
+  private static ByteBuffer frame(byte type, int payloadLength)
+  {
+    final ByteBuffer frame = ByteBuffer.allocate(5 + payloadLength);
+    frame.putInt(1 + payloadLength).put(type);
+    return frame;
+  }
+
+  private static void closeQuietly(Closeable closeable)
+  {
+    try
+    {
+      if (closeable != null)
+      {
+        closeable.close();
+      }
+    }
+    catch (IOException e)
+    {
+      // Does nothing.
+    }
+  }
+
+  //
+  // Inner classes.
+  //
+
+  /**
+   * What this instance has received from one sender.
+   */
+  private static final class SenderState
+  {
+    private long epoch;
+    private long lastSequence;
+  }
+
+  /**
+   * A connection to a peer: a channel, its partially read input, and the
+   * frames waiting to be written.
+   */
+  private abstract class Link
+  {
+    protected SocketChannel           channel;
+    protected SelectionKey            key;
+    protected ByteBuffer              input = ByteBuffer.allocate(64 * 1024);
+    protected final Deque<ByteBuffer> writes = new ArrayDeque<>();
+    protected long                    queuedBytes;
+    protected boolean                 overflowed;
+
+    /**
+     * Queues a frame to be written.  May be called from any thread.
+     */
+    synchronized void enqueue(ByteBuffer frame)
+    {
+      if (this.overflowed)
+      {
+        return;
+      }
+      this.queuedBytes += frame.remaining();
+      if (this.queuedBytes > maximumQueuedBytes)
+      {
+        // Too far behind; drop the connection and let it resume.
+        this.overflowed = true;
+        this.writes.clear();
+        this.queuedBytes = 0;
+        return;
+      }
+      this.writes.add(frame);
+    }
+
+    /**
+     * Returns true while the connection is not being read, because a
+     * message received on it is waiting to be queued.
+     */
+    boolean isPaused()
+    {
+      return false;
+    }
+
+    /**
+     * Sets whether the selector watches for readability and writability, or
+     * closes the connection if the peer fell too far behind.
+     */
+    void updateInterest()
+    {
+      final boolean overflowed;
+      synchronized (this)
+      {
+        overflowed = this.overflowed;
+        if (!overflowed && this.key != null && this.key.isValid()
+            && (this.key.interestOps() & SelectionKey.OP_CONNECT) == 0)
+        {
+          this.key.interestOps((isPaused() ? 0 : SelectionKey.OP_READ)
+              | (this.writes.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+      }
+      if (overflowed)
+      {
+        fail(new IOException("Peer fell more than " + maximumQueuedBytes
+            + " bytes behind"));
+      }
+    }
+
+    /**
+     * Writes as many queued frames as the socket accepts.
+     */
+    void write() throws IOException
+    {
+      synchronized (this)
+      {
+        while (!this.writes.isEmpty())
+        {
+          // Gather up to 64 frames into each write.
+          final ByteBuffer[] batch = new ByteBuffer[Math.min(this.writes.size(), 64)];
+          final Iterator<ByteBuffer> frames = this.writes.iterator();
+          for (int i = 0; i < batch.length; i++)
+          {
+            batch[i] = frames.next();
+          }
+          final long written = this.channel.write(batch);
+          this.queuedBytes -= written;
+          while (!this.writes.isEmpty() && !this.writes.peekFirst().hasRemaining())
+          {
+            this.writes.pollFirst();
+          }
+          if (written == 0)
+          {
+            // The socket's send buffer is full.
+            break;
+          }
+        }
+      }
+      updateInterest();
+    }
+
+    /**
+     * Reads from the socket and handles each complete frame.
+     */
+    void read() throws IOException
+    {
+      if (this.channel.read(this.input) < 0)
+      {
+        throw new EOFException("Connection closed by peer");
+      }
+      handleInput();
+    }
+
+    /**
+     * Handles each complete frame that has been read, stopping early if the
+     * connection is paused.
+     */
+    void handleInput() throws IOException
+    {
+      this.input.flip();
+      while (!isPaused() && this.input.remaining() >= 4)
+      {
+        final int length = this.input.getInt(this.input.position());
+        if (length <= 0 || length > MAXIMUM_FRAME_LENGTH)
+        {
+          throw new IOException("Invalid frame length " + length);
+        }
+        if (this.input.remaining() < 4 + length)
+        {
+          if (4 + length > this.input.capacity())
+          {
+            final ByteBuffer larger = ByteBuffer.allocate(4 + length);
+            larger.put(this.input);
+            this.input = larger;
+            return;
+          }
+          break;
+        }
+        this.input.getInt();
+        final byte type = this.input.get();
+        final ByteBuffer payload = this.input.slice();
+        payload.limit(length - 1);
+        this.input.position(this.input.position() + length - 1);
+        handle(type, payload);
+      }
+      this.input.compact();
+    }
+
+    /**
+     * Closes the channel after an error or a drop request.
+     */
+    void fail(Exception e)
+    {
+      if (e != null)
+      {
+        log.info("Connection {} failed: {}", this, e.toString());
+      }
+      closeQuietly(this.channel);
+      if (this.key != null)
+      {
+        this.key.cancel();
+      }
+      synchronized (this)
+      {
+        this.writes.clear();
+        this.queuedBytes = 0;
+        this.overflowed = false;
+      }
+    }
+
+    abstract void handle(byte type, ByteBuffer payload) throws IOException;
+  }
+
+  /**
+   * The connection this instance opens to a peer to send its messages.
+   */
+  private final class Outbound
+      extends Link
+  {
+    private final InetSocketAddress peer;
+    private long                    reconnectAt;
+    private volatile boolean        ready;
+
+    private Outbound(InetSocketAddress peer)
+    {
+      this.peer = peer;
+    }
+
+    void connect()
+    {
+      try
+      {
+        this.input.clear();
+        this.channel = SocketChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (this.channel.connect(this.peer))
+        {
+          this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+          hello();
+        }
+        else
+        {
+          this.key = this.channel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+      }
+      catch (IOException e)
+      {
+        fail(e);
+      }
+    }
+
+    void finishConnect() throws IOException
+    {
+      if (this.channel.finishConnect())
+      {
+        this.key.interestOps(SelectionKey.OP_READ);
+        hello();
+      }
+    }
+
+    /**
+     * Introduces this instance; the peer answers with FRAME_RESUME.
+     */
+    private void hello()
+    {
+      final byte[] name = nodeId.getBytes(StandardCharsets.UTF_8);
+      final ByteBuffer frame = frame(FRAME_HELLO, 4 + name.length + 8 + 4);
+      frame.putInt(name.length).put(name).putLong(epoch)
+          .putInt(store.getVersionNode());
+      frame.flip();
+      enqueue(frame);
+      updateInterest();
+    }
+
+    @Override
+    void handle(byte type, ByteBuffer payload)
+    {
+      if (type != FRAME_RESUME)
+      {
+        log.info("Unexpected frame type {} from {}", type, this.peer);
+        return;
+      }
+      final long lastSequence = payload.getLong();
+      synchronized (outbound)
+      {
+        // Replay everything the peer has not applied, then send new
+        // messages as they are published.
+        final long firstAvailable = firstRetained;
+        long sequence = lastSequence + 1;
+        if (sequence < firstAvailable)
+        {
+          log.info("Peer {} missed messages {} to {}, which are no longer available.",
+              this.peer, sequence, firstAvailable - 1);
+          final ByteBuffer gap = frame(FRAME_GAP, 8);
+          gap.putLong(firstAvailable).flip();
+          enqueue(gap);
+          sequence = firstAvailable;
+        }
+        for (; sequence < nextSequence; sequence++)
+        {
+          enqueue(ByteBuffer.wrap(replayLog[(int)(sequence % replayLog.length)]));
+        }
+        this.ready = true;
+      }
+      log.info("Connected to peer {}, resuming after {}", this.peer, lastSequence);
+    }
+
+    @Override
+    void fail(Exception e)
+    {
+      synchronized (outbound)
+      {
+        this.ready = false;
+      }
+      super.fail(e);
+      this.channel = null;
+      this.key = null;
+      this.reconnectAt = System.currentTimeMillis() + reconnectDelayMs;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Outbound [" + this.peer + "]";
+    }
+  }
+
+  /**
+   * A connection a peer opened to this instance to send its messages.
+   */
+  private final class Inbound
+      extends Link
+  {
+    private SenderState       sender;
+    private String            senderId;
+    private boolean           trusted;
+    private BroadcastMessage  pending;
+    private long              pendingSentTime;
+    private long              pendingSequence;
+
+    private Inbound(SocketChannel channel)
+    {
+      this.channel = channel;
+    }
+
+    @Override
+    boolean isPaused()
+    {
+      return this.pending != null;
+    }
+
+    /**
+     * Offers the pending message again, and if it is queued, handles the
+     * frames that arrived behind it.
+     */
+    void retry() throws IOException
+    {
+      if (this.pending == null)
+      {
+        return;
+      }
+      if (this.pendingSequence <= this.sender.lastSequence)
+      {
+        // Already applied, having been replayed over a newer connection.
+        this.pending = null;
+      }
+      else if (offer(this.pending, this.pendingSentTime))
+      {
+        this.sender.lastSequence = this.pendingSequence;
+        this.pending = null;
+      }
+      else
+      {
+        return;
+      }
+      handleInput();
+    }
+
+    /**
+     * Hands a message to the apply pipeline, recording its sequence number
+     * as applied once it has been queued.  If it cannot be queued yet, the
+     * connection is paused until it can.
+     */
+    private void deliver(BroadcastMessage message, long sentTime, long sequence)
+    {
+      if (offer(message, sentTime))
+      {
+        this.sender.lastSequence = Math.max(this.sender.lastSequence, sequence);
+      }
+      else
+      {
+        log.debug("Pausing {} until message {} can be queued.", this, sequence);
+        this.pending = message;
+        this.pendingSentTime = sentTime;
+        this.pendingSequence = sequence;
+      }
+    }
+
+    @Override
+    void handle(byte type, ByteBuffer payload) throws IOException
+    {
+      if (type != FRAME_HELLO && this.sender == null)
+      {
+        throw new IOException("Frame type " + type + " received before hello");
+      }
+      switch (type)
+      {
+        case FRAME_HELLO:
+        {
+          final byte[] name = new byte[payload.getInt()];
+          payload.get(name);
+          final long senderEpoch = payload.getLong();
+          final int senderNode = (payload.remaining() >= 4) ? payload.getInt() : -1;
+          this.senderId = new String(name, StandardCharsets.UTF_8);
+          this.trusted = checkNode(this.senderId, senderNode);
+          this.sender = senders.computeIfAbsent(this.senderId, id -> new SenderState());
+          if (this.sender.epoch != senderEpoch)
+          {
+            // The sender has restarted, so its numbering starts over.
+            this.sender.epoch = senderEpoch;
+            this.sender.lastSequence = 0L;
+          }
+          final ByteBuffer resume = frame(FRAME_RESUME, 8);
+          resume.putLong(this.sender.lastSequence).flip();
+          enqueue(resume);
+          updateInterest();
+          break;
+        }
+        case FRAME_GAP:
+        {
+          // Messages were lost, so nothing cached can be trusted.
+          log.warn("Missed messages from {}; resetting caches.", this.senderId);
+          final CacheMessage reset = new CacheMessage();
+          reset.setAction(CacheMessage.ACTION_FULL_RESET);
+          deliver(reset, 0L, payload.getLong() - 1);
+          break;
+        }
+        case FRAME_MESSAGE:
+        {
+          final long sequence = payload.getLong();
+          final long sentTime = payload.getLong();
+          if (sequence <= this.sender.lastSequence)
+          {
+            // Already applied, e.g. replayed over a new connection while
+            // the old one was still delivering.
+            return;
+          }
+          final byte[] bytes = new byte[payload.remaining()];
+          payload.get(bytes);
+          final Message message;
+          try
+          {
+            message = codec.decode(bytes);
+          }
+          catch (IOException e)
+          {
+            // Replaying it would not help, so move past it.
+            log.error("Unable to decode message {} from {}", sequence, this.senderId, e);
+            this.sender.lastSequence = sequence;
+            break;
+          }
+          if (message instanceof BroadcastMessage)
+          {
+            if (!this.trusted)
+            {
+              unstamp((BroadcastMessage)message);
+            }
+            deliver((BroadcastMessage)message, sentTime, sequence);
+          }
+          else
+          {
+            this.sender.lastSequence = sequence;
+          }
+          break;
+        }
+        default:
+        {
+          log.info("Unexpected frame type {} from {}", type, this.senderId);
+        }
+      }
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Inbound [" + this.senderId + "; " + this.channel + "]";
+    }
+  }
+
+}   // End TcpCacheMessageManager.
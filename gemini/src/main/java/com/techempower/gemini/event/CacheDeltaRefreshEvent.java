@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.gemini.event;
+
+import com.techempower.gemini.*;
+import com.techempower.scheduler.*;
+import com.techempower.util.*;
+
+/**
+ * Periodically refreshes the entities in CacheGroups configured with a 
+ * delta column, querying only the rows changed since the previous run.  See
+ * {@link com.techempower.cache.CacheGroup.Builder#deltaColumn(String)}.
+ * This can replace periodic full resets (such as {@link CacheResetEvent})
+ * for tables that are modified outside of the application.
+ *   <p>
+ * To add this event to your application, construct it once the
+ * application's EntityStore is available:
+ *
+ *   this.deltaRefreshEvent = new CacheDeltaRefreshEvent(application);
+ *
+ * The event is enabled by default and schedules itself when configured.
+ * Set CacheDeltaRefresh.Enabled = no to disable it.
+ */
+public class CacheDeltaRefreshEvent
+     extends PeriodicEvent 
+  implements Configurable
+{
+
+  public static final String PROPS_PREFIX = "CacheDeltaRefresh.";
+  public static final String PROPS_ENABLED = "Enabled";
+
+  public static final int DEFAULT_INTERVAL_SECONDS = 60;
+
+  private final GeminiApplication application;
+
+  /**
+   * Constructor.  Runs every minute.
+   */
+  public CacheDeltaRefreshEvent(GeminiApplication application)
+  {
+    this(application, DEFAULT_INTERVAL_SECONDS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param intervalSeconds the number of seconds between the completion of
+   *        one run and the start of the next.
+   */
+  public CacheDeltaRefreshEvent(GeminiApplication application, 
+      int intervalSeconds)
+  {
+    super("Cache Delta Refresh Event", 
+        "Refreshes cached entities whose rows have changed.", intervalSeconds);
+    this.application = application;
+
+    application.getConfigurator().addConfigurable(this);
+  }
+
+  /**
+   * Configures this event and schedules it using the application's 
+   * scheduler.
+   */
+  @Override
+  public void configure(EnhancedProperties props)
+  {
+    setEnabled(props.getBoolean(PROPS_PREFIX + PROPS_ENABLED, isEnabled()));
+
+    this.application.getScheduler().removeEvent(this);
+    this.application.getScheduler().scheduleEvent(this);
+  }
+
+  @Override
+  protected void doIt()
+  {
+    if (isEnabled())
+    {
+      this.application.getStore().refreshChanged();
+    }
+  }
+}
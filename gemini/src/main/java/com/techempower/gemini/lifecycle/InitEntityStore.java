@@ -32,10 +32,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Initialize the EntityStore, if one is enabled within the application.
+ * Initialize the EntityStore, if one is enabled within the application, and
+ * let it know when the application shuts down.
  */
 public class   InitEntityStore
-    implements InitializationTask 
+    implements InitializationTask,
+               ShutdownTask
 {
   private Logger log = LoggerFactory.getLogger(getClass());
 
@@ -50,4 +52,14 @@ public class   InitEntityStore
     }
   }
 
+  @Override
+  public void taskShutdown(GeminiApplication application)
+  {
+    final EntityStore store = application.getStore();
+    if (store != null)
+    {
+      store.shutdown();
+    }
+  }
+
 }
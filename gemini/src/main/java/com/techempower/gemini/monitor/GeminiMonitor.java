@@ -29,9 +29,11 @@ package com.techempower.gemini.monitor;
 
 import java.lang.management.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
 import com.techempower.asynchronous.*;
+import com.techempower.cache.*;
 import com.techempower.gemini.*;
 import com.techempower.gemini.feature.*;
 import com.techempower.gemini.monitor.cpupercentage.*;
@@ -127,6 +129,8 @@ public abstract class GeminiMonitor
   private final AtomicInteger     concurrentDispatches = new AtomicInteger(0);
   private final AtomicInteger     concurrentPages = new AtomicInteger(0);
   private final AtomicInteger     concurrentQueries = new AtomicInteger(0);
+  private final Map<String, CacheLoadStatistics> cacheLoads = new ConcurrentHashMap<>();
+  private final Map<String, CacheLoadStatistics> cacheRebuilds = new ConcurrentHashMap<>();
   
   private final GeminiMonitorThread thread;
   private GeminiMonitorListener[] monitorListeners;  // Components listening to the GeminiMonitor.
@@ -777,6 +781,68 @@ public abstract class GeminiMonitor
     return commands.get(command);
   }
   
+  /**
+   * Records the completion of a cache group load, such as those performed
+   * by the EntityStore when warming caches at startup or rebuilding a group
+   * in the background.  Only the most recent load and rebuild of each group
+   * are retained.
+   */
+  public void cacheLoaded(CacheLoadStatistics statistics)
+  {
+    if (statistics.isRebuild())
+    {
+      cacheRebuilds.put(statistics.getName(), statistics);
+    }
+    else
+    {
+      cacheLoads.put(statistics.getName(), statistics);
+    }
+  }
+  
+  /**
+   * Gets the most recent load statistics for each cache group, sorted by
+   * group name.
+   */
+  public List<CacheLoadStatistics> getCacheLoads()
+  {
+    final ArrayList<CacheLoadStatistics> toReturn = new ArrayList<>(cacheLoads.values());
+    toReturn.sort(Comparator.comparing(CacheLoadStatistics::getName));
+    return toReturn;
+  }
+  
+  /**
+   * Gets the most recent background rebuild statistics for each cache group,
+   * sorted by group name.
+   */
+  public List<CacheLoadStatistics> getCacheRebuilds()
+  {
+    final ArrayList<CacheLoadStatistics> toReturn = new ArrayList<>(cacheRebuilds.values());
+    toReturn.sort(Comparator.comparing(CacheLoadStatistics::getName));
+    return toReturn;
+  }
+  
+  /**
+   * Gets the current statistics of each LRU-cached relation in the
+   * application's EntityStore, sorted by relation name.
+   */
+  public List<RelationCacheStatistics> getRelationCacheStatistics()
+  {
+    final ArrayList<RelationCacheStatistics> toReturn = new ArrayList<>();
+    final EntityStore store = app.getStore();
+    if (store != null)
+    {
+      for (CachingEntityRelation<?, ?> relation : store.getCachedRelations())
+      {
+        if (relation instanceof LruSqlEntityRelation)
+        {
+          toReturn.add(((LruSqlEntityRelation<?, ?>)relation).statistics());
+        }
+      }
+    }
+    toReturn.sort(Comparator.comparing(RelationCacheStatistics::getName));
+    return toReturn;
+  }
+  
   /**
    * Gets the load on a monitored command.  If the command has not yet been
    * observed by the monitor, zero will be returned.
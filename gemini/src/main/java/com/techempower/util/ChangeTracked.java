@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.util;
+
+/**
+ * Entities that are "change tracked" carry a snapshot of the values most
+ * recently read from or written to the database.  Implementing this
+ * interface allows an EntityGroup to compare an entity against its snapshot
+ * when it is put, writing (and distributing to other cluster members) only
+ * the columns that actually changed, and skipping the UPDATE entirely when
+ * nothing did.
+ *   <p>
+ * The snapshot is maintained by the EntityGroup; implementations need only
+ * hold on to the array they are given.  Its contents are opaque to the
+ * entity and should not be modified.  A null snapshot means every column
+ * will be written by the next put.
+ */
+public interface ChangeTracked
+{
+
+  /**
+   * Gets the snapshot of persisted values most recently provided by
+   * setPersistedValues, or null if none has been provided.
+   */
+  Object[] getPersistedValues();
+  
+  /**
+   * Sets the snapshot of persisted values.  Called by the EntityGroup after
+   * the entity has been read from or written to the database.
+   * 
+   * @param values the persisted values, or null to discard the snapshot.
+   */
+  void setPersistedValues(Object[] values);
+  
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.techempower.data.*;
+import com.techempower.util.*;
+
+/**
+ * Tests for background rebuilds of a CacheGroup.
+ */
+public class CacheGroupRebuildTest {
+
+  public static class Item extends BasicIdentifiable {
+    public Item() {
+    }
+
+    Item(long id) {
+      setId(id);
+    }
+  }
+
+  private final List<Item> persisted = new CopyOnWriteArrayList<>();
+  private volatile CountDownLatch fetching = new CountDownLatch(0);
+  private volatile CountDownLatch release = new CountDownLatch(0);
+  private CacheGroup<Item> group;
+
+  @Before
+  public void setup() {
+    ConnectorFactory connectorFactory = new FakeDatabase().connectorFactory();
+    EntityStore store = new EntityStore(null, connectorFactory);
+    group = PureMemoryGroup.of(Item.class)
+        .initializer(() -> {
+          fetching.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return new ArrayList<>(persisted);
+        })
+        .build(store);
+    for (long id = 1; id <= 3; id++) {
+      persisted.add(new Item(id));
+    }
+    group.initialize();
+  }
+
+  @Test
+  public void servesCurrentContentsUntilSwap() throws Exception {
+    fetching = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+    persisted.add(new Item(4));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      CompletableFuture<CacheLoadStatistics> rebuild = group.rebuild(executor);
+      assertTrue(fetching.await(5, TimeUnit.SECONDS));
+
+      // The previous contents remain readable during the rebuild, and
+      // changes made meanwhile are carried into the replacement.
+      assertTrue(group.isInitialized());
+      assertEquals(3, group.size());
+      assertNull(group.get(4));
+      group.addToCache(new Item(5));
+      group.removeFromCache(1);
+
+      release.countDown();
+      CacheLoadStatistics statistics = rebuild.get(5, TimeUnit.SECONDS);
+      assertTrue(statistics.isRebuild());
+      assertEquals(4, statistics.getRows());
+      assertNotNull(group.get(4));
+      assertNotNull(group.get(5));
+      assertNull(group.get(1));
+      assertEquals(4, group.list().size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void uninitializedGroupResetsImmediately() throws Exception {
+    group.reset();
+    assertNull(group.rebuild(Runnable::run).get());
+    assertFalse(group.isInitialized());
+  }
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import com.techempower.cache.OffHeapCacheStorageTest.*;
+import com.techempower.data.*;
+
+/**
+ * Tests for writing CacheGroups to a CacheSnapshot and restoring them.
+ */
+public class CacheSnapshotTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Stands in for a table with a version column.
+   */
+  private final Map<Long, Place> rows = new ConcurrentHashMap<>();
+  private final Map<Long, Long> versions = new ConcurrentHashMap<>();
+  private final AtomicLong version = new AtomicLong();
+  private final AtomicInteger fullLoads = new AtomicInteger();
+  private EntityStore store;
+
+  /**
+   * A CacheGroup that reads from the stand-in table rather than a database.
+   */
+  class TableGroup extends CacheGroup<Place> {
+    TableGroup() {
+      super(store, Place.class, "places", "id", null, null, null, null, false, false);
+      setDeltaColumn("version");
+    }
+
+    @Override
+    protected List<Place> fetchAllPersistedObjects() {
+      fullLoads.incrementAndGet();
+      return new ArrayList<>(rows.values());
+    }
+
+    @Override
+    protected TLongObjectMap<Place> rawMap(Collection<Long> ids) {
+      TLongObjectMap<Place> result = new TLongObjectHashMap<>();
+      for (long id : ids) {
+        if (rows.containsKey(id)) {
+          result.put(id, rows.get(id));
+        }
+      }
+      return result;
+    }
+
+    @Override
+    protected long[] identities() {
+      return rows.keySet().stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @Override
+    protected Object columnMaximum(String column) {
+      return version.get();
+    }
+
+    @Override
+    protected void changedSince(String column, Object since, ObjLongConsumer<Object> consumer) {
+      versions.entrySet().stream()
+          .filter(entry -> since == null || entry.getValue() >= (Long)since)
+          .sorted(Map.Entry.comparingByValue())
+          .forEach(entry -> consumer.accept(entry.getValue(), entry.getKey()));
+    }
+
+    @Override
+    protected EntityRecordCodec<Place> newRecordCodec() {
+      try {
+        return OffHeapCacheStorageTest.codec();
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private void write(Place place) {
+    rows.put(place.getId(), place);
+    versions.put(place.getId(), version.incrementAndGet());
+  }
+
+  @Before
+  public void setup() {
+    ConnectorFactory connectorFactory = new FakeDatabase().connectorFactory();
+    store = new EntityStore(null, connectorFactory);
+  }
+
+  @Test
+  public void restoresAndReconciles() throws Exception {
+    write(new Place(1, "Lyon", 513275, 173, Kind.LARGE, LocalDate.of(-43, 10, 9)));
+    write(new Place(2, "Annecy", 130721, null, Kind.SMALL, null));
+    write(new Place(3, "Vienne", 29306, 160, Kind.SMALL, null));
+    TableGroup group = new TableGroup();
+    group.initialize();
+    write(new Place(5, "Valence", 64726, 126, Kind.SMALL, null));
+    group.refreshChanged();
+
+    Path file = folder.getRoot().toPath().resolve("cache.snapshot");
+    assertEquals(1, CacheSnapshot.write(file, Collections.singletonList(group)));
+
+    // Change the table while the application is "down."
+    rows.remove(1L);
+    versions.remove(1L);
+    write(new Place(2, "Annecy", 131000, 448, Kind.SMALL, null));
+    write(new Place(4, "Grenoble", 158198, 212, Kind.LARGE, null));
+    rows.put(3L, new Place(3, "Stale", 0, null, null, null));
+    rows.put(5L, new Place(5, "Stale", 0, null, null, null));
+
+    TableGroup restored = new TableGroup();
+    CacheSnapshot snapshot = CacheSnapshot.open(file);
+    assertNotNull(restored.restoreSnapshot(snapshot.group(restored)));
+    assertEquals(1, fullLoads.get());
+    assertTrue(restored.isInitialized());
+    assertEquals(4, restored.size());
+    assertNull(restored.get(1));
+    assertEquals(448, (int)restored.get(2).getElevation());
+    assertEquals("Grenoble", restored.get(4).getName());
+    // Unchanged according to their versions, so served from the snapshot.
+    assertEquals("Vienne", restored.get(3).getName());
+    assertEquals("Valence", restored.get(5).getName());
+
+    // An initialized group is left alone.
+    assertNull(restored.restoreSnapshot(snapshot.group(restored)));
+  }
+
+  @Test
+  public void rejectsTruncatedSections() throws Exception {
+    write(new Place(1, "Lyon", 513275, 173, Kind.LARGE, null));
+    TableGroup group = new TableGroup();
+    group.initialize();
+    Path file = folder.getRoot().toPath().resolve("cache.snapshot");
+    CacheSnapshot.write(file, Collections.singletonList(group));
+
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+    try {
+      CacheSnapshot.open(file);
+      fail("A section running past the end of the file was accepted.");
+    } catch (java.io.IOException expected) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import java.lang.management.*;
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+
+import com.techempower.cache.OffHeapCacheStorageTest.*;
+
+/**
+ * Compares the heap footprint and garbage collection cost of the cache
+ * storage backends when holding many small entities.  This is not a unit
+ * test; run it directly, preferably with a fixed heap so that results are
+ * comparable:
+ *
+ * <pre>
+ * java -Xms4g -Xmx4g -cp ... com.techempower.cache.CacheStorageFootprint 2000000
+ * </pre>
+ *
+ * For each backend it loads the given number of entities and then reports
+ * the retained heap, the direct memory used, the time taken by a full 
+ * collection with the entities live, and the collections triggered by a
+ * burst of random reads.
+ */
+public class CacheStorageFootprint {
+
+  public static void main(String[] args) throws Exception {
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    final int reads = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+    final EntityRecordCodec<Place> codec = OffHeapCacheStorageTest.codec();
+
+    final Map<String, IntFunction<CacheStorage<Place>>> backends = new LinkedHashMap<>();
+    backends.put("CONCURRENT_MAP", CacheStorage.Type.CONCURRENT_MAP::create);
+    backends.put("LONG_OBJECT", CacheStorage.Type.LONG_OBJECT::create);
+    backends.put("OFF_HEAP", size -> new OffHeapCacheStorage<>(() -> codec, size));
+
+    System.out.printf("%-15s %12s %12s %12s %12s %10s%n",
+        "storage", "heap MB", "direct MB", "full GC ms", "read GCs", "read GC ms");
+    for (Map.Entry<String, IntFunction<CacheStorage<Place>>> backend : backends.entrySet()) {
+      final long heapBefore = settledHeap();
+      final long directBefore = directMemory();
+
+      CacheStorage<Place> storage = backend.getValue().apply(count);
+      for (int i = 1; i <= count; i++) {
+        storage.put(new Place(i, "Place " + i, i, i % 7 == 0 ? null : i % 3000,
+            OffHeapCacheStorageTest.Kind.values()[i % 2], LocalDate.ofEpochDay(i % 40000)));
+      }
+
+      final long heap = settledHeap() - heapBefore;
+      final long direct = directMemory() - directBefore;
+      final long fullGcStart = System.nanoTime();
+      System.gc();
+      final long fullGc = System.nanoTime() - fullGcStart;
+
+      final long[] gcBefore = gcTotals();
+      final Random random = new Random(42);
+      long checksum = 0;
+      for (int i = 0; i < reads; i++) {
+        checksum += storage.get(1 + random.nextInt(count)).getPopulation();
+      }
+      final long[] gcAfter = gcTotals();
+
+      System.out.printf("%-15s %12.1f %12.1f %12.1f %12d %10d%s%n",
+          backend.getKey(), heap / 1048576.0, direct / 1048576.0, fullGc / 1e6,
+          gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1],
+          checksum == 0 ? " (empty)" : "");
+
+      // Release the storage before measuring the next backend.
+      storage = null;
+    }
+  }
+
+  /**
+   * Gets the heap in use after repeated collections.
+   */
+  private static long settledHeap() throws InterruptedException {
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * Gets the direct buffer memory in use.
+   */
+  private static long directMemory() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        return pool.getMemoryUsed();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Gets the total collection count and time across all collectors.
+   */
+  private static long[] gcTotals() {
+    long count = 0;
+    long time = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(collector.getCollectionCount(), 0);
+      time += Math.max(collector.getCollectionTime(), 0);
+    }
+    return new long[] { count, time };
+  }
+}
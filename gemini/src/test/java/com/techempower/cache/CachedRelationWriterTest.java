@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import com.techempower.data.*;
+
+/**
+ * Tests the coalescing and ordering of CachedRelationWriter.
+ */
+public class CachedRelationWriterTest {
+
+  private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+  private volatile boolean failing;
+  private volatile boolean throwing;
+  private EntityStore store;
+
+  @Before
+  public void setUp() {
+    ConnectorFactory connectorFactory = new FakeDatabase()
+        .statements(this::statement)
+        .connectorFactory();
+    // Writes happen only when flushed, so that tests are deterministic.
+    store = new EntityStore(null, connectorFactory) {
+      @Override
+      protected long getRelationWriteDelay() {
+        return 600_000L;
+      }
+    };
+  }
+
+  @Test
+  public void coalescesInOrder() {
+    CachedRelationWriter writer = writer(null);
+    writer.add(1, 2);
+    writer.add(3, 4);
+    writer.remove(1, 2);
+    writer.removeLeftValue(5);
+    writer.remove(6, 7);
+    writer.add(6, 7);
+    writer.add(8, 9);
+    writer.addAll(new long[] { 10, 12 }, new long[] { 11, 13 }, 2);
+    assertEquals(5, writer.pendingCount());
+    writer.flush();
+    assertEquals(0, writer.pendingCount());
+    assertEquals(Arrays.asList("insert 3 4", "deleteLeft 5", "insert 8 9", "insert 10 11",
+        "insert 12 13"),
+        executed);
+  }
+
+  @Test
+  public void replaceAllDiscardsQueuedChanges() {
+    CachedRelationWriter writer = writer(null);
+    writer.add(1, 2);
+    writer.removeRightValue(3);
+    writer.replaceAll(new long[] { 4, 5 }, new long[] { 6, 7 }, 2);
+    writer.remove(4, 6);
+    writer.flush();
+    assertEquals(Arrays.asList("deleteAll", "insert 5 7"), executed);
+  }
+
+  @Test
+  public void reportsFailures() {
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    CachedRelationWriter writer = writer((relation, cause) -> failure.set(cause));
+    failing = true;
+    writer.add(1, 2);
+    writer.flush();
+    assertNotNull(failure.get());
+    assertEquals(0, writer.pendingCount());
+
+    failing = false;
+    failure.set(null);
+    writer.add(3, 4);
+    writer.flush();
+    assertNull(failure.get());
+    assertEquals(Arrays.asList("insert 3 4"), executed);
+  }
+
+  @Test
+  public void reportsRuntimeFailures() {
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    CachedRelationWriter writer = writer((relation, cause) -> failure.set(cause));
+    throwing = true;
+    writer.add(1, 2);
+    writer.flush();
+    assertTrue(failure.get() instanceof IllegalStateException);
+    assertEquals(0, writer.pendingCount());
+  }
+
+  @Test
+  public void schedulesOneImmediateWriteAtATime() {
+    AtomicInteger immediate = new AtomicInteger();
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1) {
+      @Override
+      public void execute(Runnable command) {
+        immediate.incrementAndGet();
+      }
+    };
+    store = new EntityStore(null, store.getConnectorFactory()) {
+      @Override
+      protected ScheduledExecutorService getRelationWriteExecutor() {
+        return executor;
+      }
+
+      @Override
+      protected long getRelationWriteDelay() {
+        return 600_000L;
+      }
+
+      @Override
+      protected int getRelationWriteBatchSize() {
+        return 2;
+      }
+    };
+    try {
+      CachedRelationWriter writer = writer(null);
+      for (int i = 0; i < 10; i++) {
+        writer.add(i, i);
+      }
+      assertEquals(1, immediate.get());
+
+      // Once a write takes the queue, another may be scheduled.
+      writer.flush();
+      writer.addAll(new long[] { 20, 21 }, new long[] { 20, 21 }, 2);
+      writer.add(22, 22);
+      assertEquals(2, immediate.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shutdownStopsTheWriterThreads() {
+    ScheduledExecutorService executor = store.getRelationWriteExecutor();
+    store.shutdown();
+    assertTrue(executor.isShutdown());
+  }
+
+  private CachedRelationWriter writer(CachedRelationWriter.FailureHandler handler) {
+    return new CachedRelationWriter(null, store, "`t`", "`l`", "`r`", handler);
+  }
+
+  /**
+   * A statement that records what it executes in terms of the kind of
+   * statement and its arguments.
+   */
+  private PreparedStatement statement(String sql) {
+    String kind = sql.startsWith("INSERT") ? "insert"
+        : sql.contains("`l` = ? AND") ? "delete"
+        : sql.contains("`l` = ?") ? "deleteLeft"
+        : sql.contains("`r` = ?") ? "deleteRight"
+        : "deleteAll";
+    List<Long> parameters = new ArrayList<>();
+    List<String> batch = new ArrayList<>();
+    return FakeDatabase.proxy(PreparedStatement.class, (method, args) -> {
+      switch (method.getName()) {
+        case "setLong":
+          parameters.add((Long)args[1]);
+          return null;
+        case "addBatch":
+          batch.add(describe(kind, parameters));
+          return null;
+        case "executeBatch":
+          if (throwing) {
+            throw new IllegalStateException("Throwing.");
+          }
+          if (failing) {
+            throw new SQLException("Failing.");
+          }
+          executed.addAll(batch);
+          batch.clear();
+          return new int[0];
+        case "executeUpdate":
+          if (failing) {
+            throw new SQLException("Failing.");
+          }
+          executed.add(describe(kind, parameters));
+          return 0;
+        default:
+          return null;
+      }
+    });
+  }
+
+  private static String describe(String kind, List<Long> parameters) {
+    StringBuilder description = new StringBuilder(kind);
+    for (long parameter : parameters) {
+      description.append(' ').append(parameter);
+    }
+    parameters.clear();
+    return description.toString();
+  }
+
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.set.hash.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.cache.OffHeapCacheStorageTest.*;
+import com.techempower.data.*;
+
+/**
+ * Tests for composing relations on an EntityStore and materializing the
+ * compositions.
+ */
+public class ComposedRelationTest {
+
+  private EntityStore store;
+  private CachedRelation<Place, Place> first;
+  private CachedRelation<Place, Place> second;
+
+  /**
+   * A relation held only in memory.
+   */
+  private CachedRelation<Place, Place> relation(long id) {
+    CachedRelation<Place, Place> relation = new CachedRelation<Place, Place>(
+        store, Place.class, Place.class, "relation" + id, null, null, null) {
+      @Override
+      protected void load() {
+        // Nothing to load.
+      }
+    };
+    relation.setId(id);
+    return relation;
+  }
+
+  private static void add(CachedRelation<Place, Place> relation, long left, long right) {
+    relation.add(left, right, false, true, true);
+  }
+
+  @Before
+  public void setUp() {
+    ConnectorFactory connectorFactory = new FakeDatabase().connectorFactory();
+    store = new EntityStore(null, connectorFactory);
+    first = relation(1);
+    second = relation(2);
+    add(first, 1, 10);
+    add(first, 1, 11);
+    add(first, 2, 11);
+    add(second, 10, 100);
+    add(second, 11, 100);
+    add(second, 11, 101);
+  }
+
+  @Test
+  public void composes() {
+    ComposedRelation<Place, Place, Place> composed = store.compose(first, second);
+    assertEquals(new TLongHashSet(new long[] { 100, 101 }), composed.rightIDs(1));
+    assertEquals(2, composed.rightSize(2));
+    assertEquals(new TLongHashSet(new long[] { 1, 2 }), composed.leftIDs(101));
+    assertTrue(composed.contains(2, 100));
+    assertFalse(composed.contains(3, 100));
+    assertEquals(new TLongHashSet(new long[] { 100, 101 }),
+        composed.rightIDsUnion(new long[] { 1, 2, 3 }));
+  }
+
+  @Test
+  public void intersects() {
+    assertEquals(new TLongHashSet(new long[] { 11 }),
+        store.rightIDsIntersection(first, new long[] { 1, 2 }));
+    assertEquals(new TLongHashSet(new long[] { 11 }),
+        store.leftIDsIntersection(second, new long[] { 100, 101 }));
+    assertTrue(store.rightIDsIntersection(first, new long[] { 1, 3 }).isEmpty());
+    assertEquals(new TLongHashSet(new long[] { 10, 11 }),
+        store.rightIDsUnion(first, new long[] { 1, 2 }));
+  }
+
+  @Test
+  public void materializedFollowsChanges() {
+    ComposedRelation<Place, Place, Place> composed = store.compose(first, second);
+    MaterializedRelation<Place, Place> materialized = composed.materialize();
+    assertSame(composed, materialized.composition());
+    assertEquals(4, materialized.size());
+
+    add(first, 3, 10);
+    add(second, 10, 102);
+    assertMatches(composed, materialized);
+    assertEquals(new TLongHashSet(new long[] { 100, 102 }), materialized.rightIDs(3));
+
+    second.removeRightValue(100, false, true, true);
+    assertMatches(composed, materialized);
+    assertEquals(0, materialized.leftSize(100));
+
+    first.removeLeftValue(1, false, true, true);
+    second.remove(11, 101, false, true, true);
+    assertMatches(composed, materialized);
+
+    first.removeRightValue(10, false, true, true);
+    assertMatches(composed, materialized);
+    assertEquals(0, materialized.size());
+  }
+
+  @Test
+  public void closeStopsListening() {
+    MaterializedRelation<Place, Place> materialized = store.compose(first, second).materialize();
+    assertTrue(first.listeners().contains(materialized));
+    assertTrue(second.listeners().contains(materialized));
+
+    materialized.close();
+    assertFalse(first.listeners().contains(materialized));
+    assertFalse(second.listeners().contains(materialized));
+  }
+
+  @Test
+  public void materializesWhileRelationsChange() throws Exception {
+    ComposedRelation<Place, Place, Place> composed = store.compose(first, second);
+    // Enough listeners that notifying them takes a while.
+    List<MaterializedRelation<Place, Place>> kept = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      kept.add(composed.materialize());
+    }
+    Thread writer = new Thread(() -> {
+      for (long i = 0; i < 20000; i++) {
+        add(first, 1000 + i, 10);
+      }
+    });
+    writer.start();
+    while (writer.isAlive()) {
+      composed.materialize().close();
+    }
+    writer.join();
+
+    // The writer would have stopped early had notifying the listeners
+    // failed.
+    assertEquals(100, first.listeners().size());
+    assertEquals(20002, kept.get(0).leftSize(100));
+  }
+
+  private static void assertMatches(ComposedRelation<Place, Place, Place> composed,
+      MaterializedRelation<Place, Place> materialized) {
+    for (long left = 1; left <= 3; left++) {
+      assertEquals(composed.rightIDs(left), materialized.rightIDs(left));
+    }
+    for (long right = 100; right <= 102; right++) {
+      assertEquals(composed.leftIDs(right), materialized.leftIDs(right));
+    }
+  }
+
+}
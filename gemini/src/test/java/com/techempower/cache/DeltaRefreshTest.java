@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.map.*;
+import gnu.trove.map.hash.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import com.techempower.cache.OffHeapCacheStorageTest.*;
+import com.techempower.data.*;
+
+/**
+ * Tests CacheGroup.refreshChanged and the change-detection query of
+ * EntityGroup.changedSince against a stand-in table with a version column.
+ */
+public class DeltaRefreshTest {
+
+  private final Map<Long, Place> rows = new ConcurrentHashMap<>();
+  private final Map<Long, Long> versions = new ConcurrentHashMap<>();
+  private final AtomicLong version = new AtomicLong();
+  private final List<String> queries = new CopyOnWriteArrayList<>();
+  private final List<Object> bounds = new CopyOnWriteArrayList<>();
+  private final List<Boolean> lockedDuringQuery = new CopyOnWriteArrayList<>();
+  private EntityStore store;
+  private TableGroup group;
+
+  /**
+   * A CacheGroup whose loads read the stand-in table directly, leaving the
+   * change-detection query to EntityGroup.
+   */
+  class TableGroup extends CacheGroup<Place> {
+    TableGroup() {
+      super(store, Place.class, "places", "id", null, null, null, null, false, false);
+      setDeltaColumn("version");
+    }
+
+    @Override
+    protected List<Place> fetchAllPersistedObjects() {
+      return new ArrayList<>(rows.values());
+    }
+
+    @Override
+    protected TLongObjectMap<Place> rawMap(Collection<Long> ids) {
+      TLongObjectMap<Place> result = new TLongObjectHashMap<>();
+      for (long id : ids) {
+        if (rows.containsKey(id)) {
+          result.put(id, rows.get(id));
+        }
+      }
+      return result;
+    }
+
+    @Override
+    protected Object columnMaximum(String column) {
+      return version.get();
+    }
+  }
+
+  private void write(Place place) {
+    rows.put(place.getId(), place);
+    versions.put(place.getId(), version.incrementAndGet());
+  }
+
+  @Before
+  public void setup() {
+    FakeDatabase database = new FakeDatabase().statements(this::statement);
+    store = new EntityStore(null, database.connectorFactory());
+    write(new Place(1, "Lyon", 513275, 173, Kind.LARGE, null));
+    write(new Place(2, "Annecy", 130721, null, Kind.SMALL, null));
+    write(new Place(3, "Vienne", 29306, 160, Kind.SMALL, null));
+    group = new TableGroup();
+    group.initialize();
+  }
+
+  @Test
+  public void refreshesOnlyChangedRows() {
+    write(new Place(2, "Annecy", 131000, 448, Kind.SMALL, null));
+    write(new Place(4, "Grenoble", 158198, 212, Kind.LARGE, null));
+
+    // The load could not tell which rows at its mark it had read, so
+    // those are refreshed too.
+    assertArrayEquals(new long[] { 3, 2, 4 }, group.refreshChanged());
+    assertEquals("SELECT `id`, `version` FROM `places` WHERE `version` >= ? ORDER BY `version`;",
+        queries.get(0));
+    assertEquals(3L, bounds.get(0));
+    assertEquals(448, (int)group.get(2).getElevation());
+    assertEquals("Grenoble", group.get(4).getName());
+
+    // Rows already applied at the new high-water mark are not refreshed
+    // again, though the query includes them.
+    assertArrayEquals(new long[0], group.refreshChanged());
+    assertEquals(5L, bounds.get(1));
+
+    write(new Place(1, "Lyon", 516092, 173, Kind.LARGE, null));
+    assertArrayEquals(new long[] { 1 }, group.refreshChanged());
+    assertEquals(516092, group.get(1).getPopulation());
+  }
+
+  @Test
+  public void queriesWithoutHoldingTheGroupLock() {
+    write(new Place(3, "Vienne", 29400, 160, Kind.SMALL, null));
+    assertArrayEquals(new long[] { 3 }, group.refreshChanged());
+    assertEquals(Arrays.asList(false), lockedDuringQuery);
+  }
+
+  @Test
+  public void keepsTheMarkOfAReloadDuringTheQuery() {
+    write(new Place(2, "Annecy", 131000, 448, Kind.SMALL, null));
+    // Reload the group, after another change, while the query is running.
+    duringQuery = () -> {
+      group.reset();
+      write(new Place(3, "Vienne", 29400, 160, Kind.SMALL, null));
+      group.initialize();
+    };
+    group.refreshChanged();
+
+    // The refresh does not replace the reload's newer mark with its own.
+    group.refreshChanged();
+    assertEquals(5L, bounds.get(bounds.size() - 1));
+  }
+
+  private volatile Runnable duringQuery;
+
+  /**
+   * A statement that answers the change-detection query from the stand-in
+   * table.
+   */
+  private PreparedStatement statement(String sql) {
+    Object[] bound = { null };
+    return FakeDatabase.proxy(PreparedStatement.class, (method, args) -> {
+      switch (method.getName()) {
+        case "setObject":
+          bound[0] = args[1];
+          return null;
+        case "executeQuery":
+          queries.add(sql);
+          bounds.add(bound[0]);
+          lockedDuringQuery.add(Thread.holdsLock(group));
+          ResultSet results = results(bound[0] == null ? Long.MIN_VALUE : (Long)bound[0]);
+          Runnable action = duringQuery;
+          duringQuery = null;
+          if (action != null) {
+            action.run();
+          }
+          return results;
+        default:
+          return null;
+      }
+    });
+  }
+
+  /**
+   * The identities and versions of the rows at or above a version, in
+   * order of version.
+   */
+  private ResultSet results(long since) {
+    List<Map.Entry<Long, Long>> matches = new ArrayList<>();
+    for (Map.Entry<Long, Long> entry : versions.entrySet()) {
+      if (entry.getValue() >= since) {
+        matches.add(entry);
+      }
+    }
+    matches.sort(Map.Entry.comparingByValue());
+    int[] position = { -1 };
+    return FakeDatabase.proxy(ResultSet.class, (method, args) -> {
+      switch (method.getName()) {
+        case "next": return ++position[0] < matches.size();
+        case "getLong": return matches.get(position[0]).getKey();
+        case "getObject": return matches.get(position[0]).getValue();
+        default: return null;
+      }
+    });
+  }
+
+}
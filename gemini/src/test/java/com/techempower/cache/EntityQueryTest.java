@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+import org.junit.*;
+
+import com.techempower.cache.annotation.*;
+import com.techempower.data.*;
+import com.techempower.util.*;
+
+/**
+ * Tests for EntityQuery and the ordered queries of EntityStore, using a
+ * PureMemoryGroup so that no database is required.
+ */
+public class EntityQueryTest {
+
+  public static class Player extends BasicIdentifiable {
+    private int teamId;
+    private boolean active;
+    private Integer score;
+    private String name;
+
+    public Player() {
+    }
+
+    Player(long id, int teamId, boolean active, Integer score, String name) {
+      setId(id);
+      this.teamId = teamId;
+      this.active = active;
+      this.score = score;
+      this.name = name;
+    }
+
+    @Indexed
+    public int getTeamId() {
+      return teamId;
+    }
+
+    @Indexed
+    public boolean isActive() {
+      return active;
+    }
+
+    @Indexed(ordered = true)
+    public Integer getScore() {
+      return score;
+    }
+
+    @Indexed(ordered = true)
+    public String getName() {
+      return name;
+    }
+
+    public String getNickname() {
+      return name.toLowerCase();
+    }
+  }
+
+  private EntityStore store;
+
+  @Before
+  public void setup() {
+    // Groups resolve identifier quoting at construction; nothing else is
+    // used by a PureMemoryGroup.
+    ConnectorFactory connectorFactory = new FakeDatabase().connectorFactory();
+    store = new EntityStore(null, connectorFactory);
+    final List<Player> players = new ArrayList<>();
+    for (int i = 1; i <= 100; i++) {
+      players.add(new Player(i, i % 4, i % 3 != 0, i % 10 == 0 ? null : (i * 37) % 101, "Player" + i));
+    }
+    store.register(PureMemoryGroup.of(Player.class).initializer(() -> players));
+  }
+
+  private static List<Long> ids(List<Player> players) {
+    return players.stream().map(Player::getId).collect(Collectors.toList());
+  }
+
+  private List<Player> scan(java.util.function.Predicate<Player> predicate) {
+    return store.list(Player.class).stream().filter(predicate).collect(Collectors.toList());
+  }
+
+  @Test
+  public void range() {
+    List<Player> expected = scan(p -> p.getScore() != null && p.getScore() >= 10 && p.getScore() <= 30);
+    expected.sort(Comparator.comparing(Player::getScore).thenComparing(Player::getId));
+    assertEquals(ids(expected), ids(store.listRange(Player.class, "getScore", 10, 30)));
+
+    List<Player> top = store.listTop(Player.class, "getScore", 5);
+    assertEquals(5, top.size());
+    for (int i = 1; i < top.size(); i++) {
+      assertTrue(top.get(i - 1).getScore() >= top.get(i).getScore());
+    }
+
+    List<Player> prefixed = store.listPrefix(Player.class, "getName", "Player1", 100);
+    assertEquals(12, prefixed.size());
+    assertEquals("Player1", prefixed.get(0).getName());
+
+    // The ordered index follows updates.
+    Player player = store.get(Player.class, 1);
+    player.score = 1000;
+    store.put(player);
+    assertEquals(1, store.listTop(Player.class, "getScore", 1).get(0).getId());
+  }
+
+  @Test
+  public void query() {
+    List<Player> expected = scan(p -> p.getTeamId() == 1 && p.isActive());
+    expected.sort(Comparator.comparing(Player::getName).thenComparing(Player::getId));
+
+    EntityQuery<Player> query = store.query(Player.class)
+        .where("getTeamId", 1)
+        .and("isActive", true)
+        .orderBy("getName");
+    assertEquals(ids(expected), ids(query.list()));
+    assertEquals(expected.size(), query.count());
+    assertEquals(ids(expected.subList(2, 7)), ids(query.offset(2).limit(5).list()));
+    assertEquals(ids(expected.subList(5, 10)), ids(query.page(2, 5).list()));
+
+    // Unindexed criteria are evaluated against the entities.
+    List<Player> byNickname = store.query(Player.class)
+        .where("getTeamId", 2)
+        .and("getNickname", "player42")
+        .list();
+    assertEquals(Collections.singletonList(42L), ids(byNickname));
+
+    // Ordering by an ordered index places nulls first.
+    List<Player> byScore = store.query(Player.class).orderBy("getScore").limit(3).list();
+    assertNull(byScore.get(0).getScore());
+
+    List<Player> descending = store.query(Player.class).where("isActive", false)
+        .orderBy("getScore", true).list();
+    List<Player> inactive = scan(p -> !p.isActive());
+    assertEquals(inactive.size(), descending.size());
+    assertNull(descending.get(descending.size() - 1).getScore());
+
+    assertNull(store.query(Player.class).where("getTeamId", 7).first());
+  }
+
+  @Test
+  public void unindexedCriteriaConvertNumbers() {
+    // getId is not indexed and returns a long; Integers match as they would
+    // in an index.
+    assertEquals(Collections.singletonList(42L),
+        ids(store.query(Player.class).where("getId", 42).list()));
+    assertEquals(42L, store.get(Player.class, "getId", 42).getId());
+    assertEquals(Arrays.asList(10L, 11L, 12L),
+        ids(store.listRange(Player.class, "getId", 10, 12)));
+    assertTrue(store.query(Player.class).where("getId", 42.5).list().isEmpty());
+  }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.map.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.util.*;
+
+/**
+ * Tests for LongObjectCacheStorage.
+ */
+public class LongObjectCacheStorageTest {
+
+  private static BasicIdentifiable entity(long id) {
+    BasicIdentifiable entity = new BasicIdentifiable();
+    entity.setId(id);
+    return entity;
+  }
+
+  @Test
+  public void putGetRemove() {
+    CacheStorage<BasicIdentifiable> storage = new LongObjectCacheStorage<>(0);
+    assertEquals(0, storage.size());
+    assertNull(storage.get(1));
+
+    BasicIdentifiable one = entity(1);
+    assertNull(storage.put(one));
+    assertSame(one, storage.get(1));
+    assertTrue(storage.containsKey(1));
+    assertTrue(storage.containsValue(one));
+    assertEquals(1, storage.size());
+
+    BasicIdentifiable replacement = entity(1);
+    assertSame(one, storage.put(replacement));
+    assertSame(replacement, storage.get(1));
+    assertEquals(1, storage.size());
+
+    assertSame(replacement, storage.remove(1));
+    assertNull(storage.get(1));
+    assertNull(storage.remove(1));
+    assertFalse(storage.containsKey(1));
+    assertEquals(0, storage.size());
+
+    // Re-adding after a removal reuses the tombstoned slot.
+    assertNull(storage.put(one));
+    assertSame(one, storage.get(1));
+    assertEquals(1, storage.size());
+  }
+
+  @Test
+  public void zeroIdentity() {
+    CacheStorage<BasicIdentifiable> storage = new LongObjectCacheStorage<>(0);
+    BasicIdentifiable zero = entity(0);
+    storage.put(zero);
+    assertSame(zero, storage.get(0));
+    assertEquals(1, storage.size());
+    assertTrue(storage.values().contains(zero));
+    assertSame(zero, storage.remove(0));
+    assertEquals(0, storage.size());
+  }
+
+  @Test
+  public void growthAndChurn() {
+    CacheStorage<BasicIdentifiable> storage = new LongObjectCacheStorage<>(0);
+    for (long id = 1; id <= 10000; id++) {
+      storage.put(entity(id));
+    }
+    assertEquals(10000, storage.size());
+    for (long id = 1; id <= 10000; id += 2) {
+      storage.remove(id);
+    }
+    assertEquals(5000, storage.size());
+    for (long id = 1; id <= 10000; id++) {
+      assertEquals(id % 2 == 0, storage.containsKey(id));
+    }
+
+    // Churn through many short-lived identities to force tombstone cleanup.
+    for (long id = 20000; id < 120000; id++) {
+      storage.put(entity(id));
+      storage.remove(id);
+    }
+    assertEquals(5000, storage.size());
+
+    long sum = 0;
+    for (BasicIdentifiable entity : storage.values()) {
+      sum += entity.getId();
+    }
+    assertEquals(5000L * 5001L, sum);
+  }
+
+  @Test
+  public void readOnlyView() {
+    CacheStorage<BasicIdentifiable> storage = new LongObjectCacheStorage<>(16);
+    for (long id = 1; id <= 100; id++) {
+      storage.put(entity(id));
+    }
+    TLongObjectMap<BasicIdentifiable> map = storage.map();
+    assertEquals(100, map.size());
+    assertEquals(100, map.keys().length);
+    assertTrue(map.keySet().contains(50));
+    assertSame(storage.get(50), map.get(50));
+
+    // The view reflects later changes.
+    storage.remove(50);
+    assertFalse(map.containsKey(50));
+    assertEquals(99, map.size());
+
+    int count = 0;
+    for (gnu.trove.iterator.TLongObjectIterator<BasicIdentifiable> iter = map.iterator(); iter.hasNext(); ) {
+      iter.advance();
+      assertEquals(iter.key(), iter.value().getId());
+      count++;
+    }
+    assertEquals(99, count);
+
+    try {
+      map.put(101, entity(101));
+      fail("The view should be read-only.");
+    }
+    catch (UnsupportedOperationException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void concurrentReaders() throws Exception {
+    final CacheStorage<BasicIdentifiable> storage = new LongObjectCacheStorage<>(0);
+    for (long id = 1; id <= 1000; id++) {
+      storage.put(entity(id));
+    }
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+    final Thread writer = new Thread(() -> {
+      for (long id = 1001; id <= 50000; id++) {
+        storage.put(entity(id));
+        if (id % 3 == 0) {
+          storage.remove(id);
+        }
+      }
+    });
+    final Thread reader = new Thread(() -> {
+      try {
+        for (int pass = 0; pass < 50; pass++) {
+          // Entities that are never removed must always be visible.
+          for (long id = 1; id <= 1000; id++) {
+            BasicIdentifiable entity = storage.get(id);
+            assertNotNull(entity);
+            assertEquals(id, entity.getId());
+          }
+        }
+      }
+      catch (Throwable t) {
+        failures.add(t);
+      }
+    });
+    writer.start();
+    reader.start();
+    writer.join();
+    reader.join();
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(1000 + (50000 - 1000) - (50000 / 3 - 1000 / 3), storage.size());
+  }
+}
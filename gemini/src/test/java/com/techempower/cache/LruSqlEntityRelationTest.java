@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.map.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
+
+import java.sql.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.cache.OffHeapCacheStorageTest.*;
+import com.techempower.data.*;
+
+/**
+ * Tests the batched lookups, weighting and statistics of LruSqlEntityRelation
+ * against a stand-in table.
+ */
+public class LruSqlEntityRelationTest {
+
+  private final long[][] rows = { { 1, 10 }, { 1, 11 }, { 2, 11 }, { 3, 12 }, { 3, 13 }, { 3, 14 } };
+  private final List<String> queries = new ArrayList<>();
+  private EntityStore store;
+
+  @Before
+  public void setUp() {
+    store = new EntityStore(null, new FakeDatabase()
+        .statements(this::statement)
+        .connectorFactory());
+  }
+
+  private LruSqlEntityRelation<Place, Place> relation(long weight) {
+    LruSqlEntityRelation.Builder<Place, Place> builder =
+        LruSqlEntityRelation.of(Place.class, Place.class).lruCacheWeight(weight);
+    builder.table("t").leftColumn("l").rightColumn("r");
+    return builder.build(store);
+  }
+
+  @Test
+  public void fetchesMissesTogether() {
+    LruSqlEntityRelation<Place, Place> relation = relation(0);
+    assertEquals(new TLongHashSet(new long[] { 10, 11 }), relation.rightIDsLongSet(1));
+    assertEquals(1, queries.size());
+
+    TLongObjectMap<TLongSet> map = relation.rightIDsMap(new long[] { 1, 2, 3, 4, 2 });
+    assertEquals(2, queries.size());
+    assertTrue(queries.get(1).contains(" IN (?,?,?)"));
+    assertEquals(4, map.size());
+    assertEquals(new TLongHashSet(new long[] { 11 }), map.get(2));
+    assertEquals(3, map.get(3).size());
+    assertTrue(map.get(4).isEmpty());
+
+    assertEquals(new TLongHashSet(new long[] { 10, 11, 12, 13, 14 }),
+        relation.rightIDsUnion(new long[] { 1, 2, 3 }));
+    assertEquals(2, queries.size());
+
+    RelationCacheStatistics statistics = relation.statistics();
+    assertEquals(2, statistics.getLoads());
+    assertEquals(3, statistics.getEntries());
+    assertTrue(statistics.getHits() >= 4);
+  }
+
+  @Test
+  public void evictsByWeight() {
+    LruSqlEntityRelation<Place, Place> relation = relation(6);
+    relation.rightIDsMap(new long[] { 1, 2, 3 });
+    // Sets of 2, 1 and 3 IDs weigh 3, 2 and 4; together they exceed 6.
+    assertTrue(relation.statistics().getEvictions() > 0);
+    assertEquals(new TLongHashSet(new long[] { 12, 13, 14 }), relation.rightIDsLongSet(3));
+  }
+
+  /**
+   * A statement that answers queries of the form SELECT columns FROM t
+   * WHERE column = ? or column IN (?, ...) from the stand-in rows.
+   */
+  private PreparedStatement statement(String sql) {
+    queries.add(sql);
+    String[] selected = sql.substring("SELECT ".length(), sql.indexOf(" FROM"))
+        .replace("`", "").split(", ");
+    String where = sql.substring(sql.indexOf(" WHERE ") + 7).replace("`", "");
+    int keyColumn = where.startsWith("l ") ? 0 : 1;
+    List<Long> parameters = new ArrayList<>();
+    return FakeDatabase.proxy(PreparedStatement.class, (method, args) -> {
+      switch (method.getName()) {
+        case "setLong":
+          parameters.add((Long)args[1]);
+          return null;
+        case "executeQuery":
+          List<long[]> result = new ArrayList<>();
+          for (long[] row : rows) {
+            if (parameters.contains(row[keyColumn])) {
+              long[] values = new long[selected.length];
+              for (int i = 0; i < selected.length; i++) {
+                values[i] = row[selected[i].equals("l") ? 0 : 1];
+              }
+              result.add(values);
+            }
+          }
+          return resultSet(selected, result);
+        default:
+          return null;
+      }
+    });
+  }
+
+  private ResultSet resultSet(String[] columns, List<long[]> result) {
+    int[] position = { -1 };
+    return FakeDatabase.proxy(ResultSet.class, (method, args) -> {
+      switch (method.getName()) {
+        case "next":
+          return ++position[0] < result.size();
+        case "getLong":
+          int column = args[0] instanceof Integer
+              ? (Integer)args[0] - 1
+              : Arrays.asList(columns).indexOf(args[0]);
+          return result.get(position[0])[column];
+        default:
+          return null;
+      }
+    });
+  }
+
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.set.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.cache.annotation.*;
+import com.techempower.data.*;
+import com.techempower.util.*;
+
+/**
+ * Tests MethodIndex and the composite-key lookups of EntityStore, using a
+ * PureMemoryGroup so that no database is required.
+ */
+public class MethodIndexTest {
+
+  public static class Account extends BasicIdentifiable {
+    private int companyId;
+    private boolean enabled;
+    private String name;
+    private long balance;
+
+    public Account() {
+    }
+
+    Account(long id, int companyId, boolean enabled, String name) {
+      setId(id);
+      this.companyId = companyId;
+      this.enabled = enabled;
+      this.name = name;
+      this.balance = id * 10;
+    }
+
+    @Indexed
+    public int getCompanyId() {
+      return companyId;
+    }
+
+    @Indexed
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    @Indexed(ordered = true)
+    public String getName() {
+      return name;
+    }
+
+    @Indexed(ordered = true)
+    public long getBalance() {
+      return balance;
+    }
+  }
+
+  private final List<Account> accounts = new ArrayList<>();
+  private EntityStore store;
+
+  @Before
+  public void setup() {
+    ConnectorFactory connectorFactory = new FakeDatabase().connectorFactory();
+    store = new EntityStore(null, connectorFactory);
+    for (int i = 1; i <= 20; i++) {
+      accounts.add(new Account(i, i % 3, i % 2 == 0, i % 5 == 0 ? null : "Account" + i));
+    }
+    store.register(PureMemoryGroup.of(Account.class).initializer(() -> accounts));
+  }
+
+  private static Set<Long> set(TLongSet ids) {
+    Set<Long> set = new TreeSet<>();
+    ids.forEach(set::add);
+    return set;
+  }
+
+  private static Set<Long> set(long... ids) {
+    Set<Long> set = new TreeSet<>();
+    for (long id : ids) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  @Test
+  public void findsIdsByValue() {
+    MethodIndex<Account> index = new MethodIndex<>(store, Account.class, "getCompanyId");
+    assertEquals(set(3, 6, 9, 12, 15, 18), set(index.ids(0)));
+    assertTrue(index.ids(7).isEmpty());
+
+    MethodIndex<Account> names = new MethodIndex<>(store, Account.class, "getName");
+    assertEquals(set(5, 10, 15, 20), set(names.ids(null)));
+    assertEquals(set(7), set(names.ids("Account7")));
+  }
+
+  @Test
+  public void updatesLeaveEarlierSnapshotsUnchanged() {
+    MethodIndex<Account> index = new MethodIndex<>(store, Account.class, "getCompanyId");
+    TLongSet before = index.ids(0);
+
+    Account moved = store.get(Account.class, 3);
+    moved.companyId = 1;
+    index.update(3, moved);
+    index.delete(6);
+
+    assertEquals(set(3, 6, 9, 12, 15, 18), set(before));
+    assertEquals(set(9, 12, 15, 18), set(index.ids(0)));
+    assertEquals(set(1, 3, 4, 7, 10, 13, 16, 19), set(index.ids(1)));
+    try {
+      index.ids(0).add(100);
+      fail("Snapshot was modifiable.");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  @Test
+  public void manyUpdatesToOneValue() {
+    MethodIndex<Account> index = new MethodIndex<>(store, Account.class, "isEnabled");
+    index.load();
+    for (long id = 1000; id < 51000; id++) {
+      index.update(id, new Account(id, 0, true, null));
+    }
+    assertEquals(50010, index.ids(true).size());
+    for (long id = 1000; id < 51000; id++) {
+      index.delete(id);
+    }
+    assertEquals(10, index.ids(true).size());
+  }
+
+  @Test
+  public void compositeKeys() {
+    MethodIndex<Account> index = new MethodIndex<>(store, Account.class, "getCompanyId", "isEnabled");
+    Account account = store.get(Account.class, 4);
+    assertEquals(index.key(1, true), index.keyOf(account));
+    assertEquals(set(4, 10, 16), set(index.ids(index.key(1, true))));
+    assertEquals(set(1, 7, 13, 19), set(index.ids(index.key(1, false))));
+    try {
+      index.key(1);
+      fail("Accepted too few values.");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    String[] methods = { "getCompanyId", "isEnabled" };
+    List<Account> found = store.list(Account.class, methods, new Object[] { 2, false });
+    Set<Long> ids = new TreeSet<>();
+    found.forEach(a -> ids.add(a.getId()));
+    assertEquals(set(5, 11, 17), ids);
+    assertNull(store.get(Account.class, methods, new Object[] { 7, true }));
+
+    // Not every method is indexed, so the group is scanned instead.
+    assertEquals(7L, store.get(Account.class, 
+        new String[] { "getCompanyId", "getName" }, new Object[] { 1, "Account7" }).getId());
+  }
+
+  @Test
+  public void orderedRangeLookups() {
+    // Integer bounds on a long method.
+    assertEquals(Arrays.asList(5L, 6L, 7L, 8L),
+        ids(store.listRange(Account.class, "getBalance", 50, 80)));
+    assertEquals(Arrays.asList(3L, 2L),
+        ids(store.listRange(Account.class, "getBalance", null, true, 35L, false, true, 2)));
+    assertEquals(Arrays.asList(20L), ids(store.listTop(Account.class, "getBalance", 1)));
+    // Null names are left out.
+    assertEquals(Arrays.asList(1L, 11L, 12L, 13L, 14L, 16L, 17L, 18L, 19L),
+        ids(store.listPrefix(Account.class, "getName", "Account1", 100)));
+  }
+
+  @Test
+  public void prefixLookupsRequireStringValues() {
+    // An ordered index and a scan refuse a non-String method alike.
+    for (String methodName : new String[] { "getBalance", "getCompanyId" }) {
+      try {
+        store.listPrefix(Account.class, methodName, "1", 100);
+        fail("Expected UnsupportedOperationException for " + methodName);
+      } catch (UnsupportedOperationException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void orderedEqualityLookupsConvertNumbers() {
+    MethodIndex<Account> index = new MethodIndex<>(store, Account.class, true, "getBalance");
+    assertEquals(set(7), set(index.ids(70L)));
+    assertEquals(set(7), set(index.ids(70)));
+    assertEquals(set(7), set(index.ids(70.0)));
+    assertTrue(index.ids(70.5).isEmpty());
+    assertTrue(index.ids("70").isEmpty());
+    assertEquals(Arrays.asList(7L), ids(store.list(Account.class, "getBalance", 70)));
+    try {
+      index.forEachInRange("a", true, null, true, false, id -> true);
+      fail("Accepted a bound of the wrong type.");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    MethodIndex<Account> composite = new MethodIndex<>(store, Account.class, "getCompanyId", "isEnabled");
+    assertEquals(set(4, 10, 16), set(composite.ids(Arrays.asList(1L, true))));
+    assertTrue(composite.ids(Arrays.asList(1.5, true)).isEmpty());
+  }
+
+  private static List<Long> ids(List<Account> accounts) {
+    List<Long> ids = new ArrayList<>();
+    accounts.forEach(a -> ids.add(a.getId()));
+    return ids;
+  }
+}
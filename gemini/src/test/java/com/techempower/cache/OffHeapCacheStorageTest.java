@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import java.sql.*;
+import java.time.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.data.mapping.*;
+import com.techempower.util.*;
+
+/**
+ * Tests for OffHeapCacheStorage and EntityRecordCodec.
+ */
+public class OffHeapCacheStorageTest {
+
+  public enum Kind { SMALL, LARGE }
+
+  public static class Place extends BasicIdentifiable {
+    private String name;
+    private int population;
+    private Integer elevation;
+    private Kind kind;
+    private LocalDate founded;
+
+    public Place() {
+    }
+
+    Place(long id, String name, int population, Integer elevation, Kind kind, LocalDate founded) {
+      setId(id);
+      this.name = name;
+      this.population = population;
+      this.elevation = elevation;
+      this.kind = kind;
+      this.founded = founded;
+    }
+
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+    public int getPopulation() { return population; }
+    public void setPopulation(int population) { this.population = population; }
+    public Integer getElevation() { return elevation; }
+    public void setElevation(Integer elevation) { this.elevation = elevation; }
+    public Kind getKind() { return kind; }
+    public void setKind(Kind kind) { this.kind = kind; }
+    public LocalDate getFounded() { return founded; }
+    public void setFounded(LocalDate founded) { this.founded = founded; }
+  }
+
+  /**
+   * Builds a codec from mappings equivalent to those an EntityGroup binds.
+   */
+  static EntityRecordCodec<Place> codec() throws Exception {
+    String[] columns = { "name", "population", "elevation", "kind", "founded" };
+    int[] sqlTypes = { Types.VARCHAR, Types.INTEGER, Types.INTEGER, Types.VARCHAR, Types.DATE };
+    Class<?>[] javaTypes = { String.class, int.class, Integer.class, Kind.class, LocalDate.class };
+    DataFieldToMethodMap[] getters = new DataFieldToMethodMap[columns.length];
+    DataFieldToMethodMap[] setters = new DataFieldToMethodMap[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      String property = Character.toUpperCase(columns[i].charAt(0)) + columns[i].substring(1);
+      getters[i] = new DataFieldToMethodMap(Place.class.getMethod("get" + property),
+          columns[i], i + 2, sqlTypes[i], 0);
+      setters[i] = new DataFieldToMethodMap(Place.class.getMethod("set" + property, javaTypes[i]),
+          columns[i], i + 2, sqlTypes[i], 0);
+    }
+    return new EntityRecordCodec<>(Place::new, getters, setters);
+  }
+
+  private static void assertSamePlace(Place expected, Place actual) {
+    assertNotNull(actual);
+    assertNotSame(expected, actual);
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.getPopulation(), actual.getPopulation());
+    assertEquals(expected.getElevation(), actual.getElevation());
+    assertEquals(expected.getKind(), actual.getKind());
+    assertEquals(expected.getFounded(), actual.getFounded());
+  }
+
+  @Test
+  public void putGetRemove() throws Exception {
+    EntityRecordCodec<Place> codec = codec();
+    OffHeapCacheStorage<Place> storage = new OffHeapCacheStorage<>(() -> codec, 0);
+    Place lyon = new Place(1, "Lyon", 513275, 173, Kind.LARGE, LocalDate.of(-43, 10, 9));
+    Place nowhere = new Place(0, null, 0, null, null, null);
+
+    assertNull(storage.put(lyon));
+    assertNull(storage.put(nowhere));
+    assertSamePlace(lyon, storage.get(1));
+    assertSamePlace(nowhere, storage.get(0));
+    assertTrue(storage.containsValue(lyon));
+    assertEquals(2, storage.size());
+
+    Place renamed = new Place(1, "Lugdunum é", 513276, null, Kind.SMALL, null);
+    assertSamePlace(lyon, storage.put(renamed));
+    assertSamePlace(renamed, storage.get(1));
+    assertEquals(2, storage.size());
+
+    assertSamePlace(renamed, storage.remove(1));
+    assertNull(storage.get(1));
+    assertNull(storage.remove(1));
+    assertEquals(1, storage.size());
+    assertArrayEquals(new long[] { 0L }, storage.map().keys());
+  }
+
+  @Test
+  public void growsRemovesAndCompacts() throws Exception {
+    EntityRecordCodec<Place> codec = codec();
+    OffHeapCacheStorage<Place> storage = new OffHeapCacheStorage<>(() -> codec, 0);
+    int count = 50_000;
+    for (int i = 1; i <= count; i++) {
+      storage.put(new Place(i, "Place " + i, i, i % 7 == 0 ? null : i % 1000, Kind.values()[i % 2],
+          LocalDate.ofEpochDay(i)));
+    }
+    assertEquals(count, storage.size());
+
+    // Replace every entity several times so that most of the written 
+    // records are garbage and the segments are compacted.
+    for (int round = 0; round < 3; round++) {
+      for (int i = 1; i <= count; i++) {
+        storage.put(new Place(i, "Place " + i + "/" + round, i, null, Kind.SMALL, null));
+      }
+    }
+    // Remove every other entity.
+    for (int i = 2; i <= count; i += 2) {
+      assertNotNull(storage.remove(i));
+    }
+    assertEquals(count / 2, storage.size());
+    for (int i = 1; i <= count; i++) {
+      Place place = storage.get(i);
+      if (i % 2 == 0) {
+        assertNull(place);
+      } else {
+        assertEquals("Place " + i + "/2", place.getName());
+      }
+    }
+    assertEquals(count / 2, storage.values().size());
+    int iterated = 0;
+    for (Place place : storage.values()) {
+      assertEquals(1, place.getId() % 2);
+      iterated++;
+    }
+    assertEquals(count / 2, iterated);
+    assertTrue(storage.allocatedBytes() < 16L * 1024 * 1024);
+  }
+}
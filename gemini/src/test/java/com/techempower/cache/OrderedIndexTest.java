@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.util.*;
+
+/**
+ * Tests for OrderedIndex.
+ */
+public class OrderedIndexTest {
+
+  /**
+   * An entity with a mutable sort key.
+   */
+  static class Ranked extends BasicIdentifiable {
+    int rank;
+
+    Ranked(long id, int rank) {
+      setId(id);
+      this.rank = rank;
+    }
+  }
+
+  private static final Comparator<Ranked> BY_RANK = Comparator.comparingInt(r -> r.rank);
+
+  private static void assertSorted(List<Ranked> list) {
+    for (int i = 1; i < list.size(); i++) {
+      Ranked previous = list.get(i - 1);
+      Ranked current = list.get(i);
+      assertTrue(previous.rank < current.rank
+          || (previous.rank == current.rank && previous.getId() < current.getId()));
+    }
+  }
+
+  @Test
+  public void buildAndAdd() {
+    List<Ranked> initial = new ArrayList<>();
+    for (int i = 1; i <= 100; i++) {
+      initial.add(new Ranked(i, (i * 37) % 101));
+    }
+    OrderedIndex<Ranked> index = new OrderedIndex<>(BY_RANK, initial);
+    assertEquals(100, index.size());
+    assertSorted(index.list());
+
+    index.add(new Ranked(101, 50));
+    index.add(new Ranked(102, -1));
+    index.add(new Ranked(103, 1000));
+    assertEquals(103, index.size());
+    assertSorted(index.list());
+    assertEquals(102, index.list().get(0).getId());
+    assertEquals(103, index.list().get(102).getId());
+
+    // Adding an entity with an existing identity replaces it.
+    index.add(new Ranked(101, 2000));
+    assertEquals(103, index.size());
+    assertEquals(101, index.list().get(102).getId());
+  }
+
+  @Test
+  public void snapshotsAreImmutable() {
+    OrderedIndex<Ranked> index = new OrderedIndex<>(BY_RANK);
+    index.add(new Ranked(1, 1));
+    index.add(new Ranked(2, 2));
+    List<Ranked> snapshot = index.list();
+    index.remove(1);
+    index.add(new Ranked(3, 0));
+    assertEquals(2, snapshot.size());
+    assertEquals(1, snapshot.get(0).getId());
+    assertEquals(2, index.list().size());
+    assertEquals(3, index.list().get(0).getId());
+    try {
+      snapshot.add(new Ranked(4, 4));
+      fail("Snapshots should be immutable.");
+    }
+    catch (UnsupportedOperationException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void reorderAfterMutation() {
+    List<Ranked> initial = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      initial.add(new Ranked(i, i * 10));
+    }
+    OrderedIndex<Ranked> index = new OrderedIndex<>(BY_RANK, initial);
+    Ranked first = index.list().get(0);
+
+    // Still in order; nothing moves.
+    first.rank = 5;
+    assertFalse(index.reorder(first.getId()));
+
+    // Mutated in place to sort last.
+    first.rank = 500;
+    assertTrue(index.reorder(first.getId()));
+    assertSame(first, index.list().get(9));
+    assertSorted(index.list());
+
+    // Removal locates the entity even though its sort key has changed.
+    first.rank = -500;
+    assertSame(first, index.remove(first.getId()));
+    assertEquals(9, index.size());
+    assertSorted(index.list());
+  }
+
+  @Test
+  public void relabelsWhenLabelsAreExhausted() {
+    OrderedIndex<Ranked> index = new OrderedIndex<>(BY_RANK);
+    index.add(new Ranked(1, 0));
+    index.add(new Ranked(2, 1000000));
+    // Repeatedly insert just before the last entity to exhaust the labels
+    // between neighbors.
+    for (int i = 3; i < 1000; i++) {
+      index.add(new Ranked(i, 1000000 - i));
+    }
+    assertEquals(999, index.size());
+    assertSorted(index.list());
+    for (int i = 3; i < 1000; i += 2) {
+      assertNotNull(index.remove(i));
+    }
+    assertSorted(index.list());
+    assertEquals(500, index.size());
+  }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.junit.*;
+
+import com.techempower.data.*;
+import com.techempower.util.*;
+
+/**
+ * Tests that EntityStore.warmUp loads CacheGroups in parallel, reports
+ * their CacheLoadStatistics, and leaves a group that fails to load for
+ * lazy initialization.
+ */
+public class WarmUpTest {
+
+  public static class Town extends BasicIdentifiable {
+    public Town() {
+    }
+  }
+
+  public static class Road extends BasicIdentifiable {
+    public Road() {
+    }
+  }
+
+  private EntityStore store;
+
+  /**
+   * A CacheGroup that reads a stand-in table of consecutive identities
+   * rather than a database.
+   */
+  static class TableGroup<T extends Identifiable> extends CacheGroup<T> {
+    private final long rows;
+    private final Supplier<T> maker;
+    private final List<long[]> ranges = new CopyOnWriteArrayList<>();
+    private volatile CountDownLatch together;
+    private volatile boolean fail;
+
+    TableGroup(EntityStore store, Class<T> type, long rows, Supplier<T> maker) {
+      super(store, type, type.getSimpleName(), "id", null, null, null, null, false, false);
+      this.rows = rows;
+      this.maker = maker;
+    }
+
+    private T make(long id) {
+      T object = maker.get();
+      object.setId(id);
+      return object;
+    }
+
+    @Override
+    protected long[] identityStatistics() {
+      return new long[] { rows, 1, rows };
+    }
+
+    @Override
+    protected long streamRange(long fromId, long toId, int fetchSize,
+        Consumer<? super T> consumer) {
+      ranges.add(new long[] { fromId, toId });
+      if (fail) {
+        throw new EntityException("Table unavailable.");
+      }
+      CountDownLatch latch = together;
+      if (latch != null) {
+        // Wait until every range is being read at once.
+        latch.countDown();
+        try {
+          latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      long count = 0;
+      for (long id = Math.max(fromId, 1); id <= Math.min(toId, rows); id++) {
+        consumer.accept(make(id));
+        count++;
+      }
+      return count;
+    }
+
+    @Override
+    protected List<T> fetchAllPersistedObjects() {
+      List<T> objects = new ArrayList<>();
+      for (long id = 1; id <= rows; id++) {
+        objects.add(make(id));
+      }
+      return objects;
+    }
+  }
+
+  @Before
+  public void setup() {
+    ConnectorFactory connectorFactory = new FakeDatabase().connectorFactory();
+    store = new EntityStore(null, connectorFactory);
+    EnhancedProperties props = new EnhancedProperties();
+    props.put("EntityStore.WarmUpThreads", "4");
+    props.put("EntityStore.WarmUpSplitRows", "100");
+    store.configure(props);
+  }
+
+  @Test
+  public void loadsGroupsInParallelRanges() {
+    TableGroup<Town> towns = new TableGroup<>(store, Town.class, 1000, Town::new);
+    TableGroup<Road> roads = new TableGroup<>(store, Road.class, 50, Road::new);
+    towns.together = new CountDownLatch(4);
+    store.register(towns);
+    store.register(roads);
+
+    List<CacheLoadStatistics> statistics = store.warmUp();
+    assertEquals(0, towns.together.getCount());
+    assertEquals(2, statistics.size());
+    Map<String, CacheLoadStatistics> byName = new HashMap<>();
+    statistics.forEach(s -> byName.put(s.getName(), s));
+
+    CacheLoadStatistics townLoad = byName.get("Town");
+    assertEquals(1000, townLoad.getRows());
+    assertEquals(4, townLoad.getRanges());
+    assertFalse(townLoad.isRebuild());
+    assertEquals(4, towns.ranges.size());
+    assertTrue(towns.isInitialized());
+    assertEquals(1000, towns.size());
+    assertNotNull(towns.get(1000));
+
+    CacheLoadStatistics roadLoad = byName.get("Road");
+    assertEquals(50, roadLoad.getRows());
+    assertEquals(1, roadLoad.getRanges());
+    assertEquals(50, roads.size());
+
+    // Initialized groups are not loaded again.
+    assertTrue(store.warmUp().isEmpty());
+  }
+
+  @Test
+  public void leavesFailedGroupsToLoadLazily() {
+    TableGroup<Town> towns = new TableGroup<>(store, Town.class, 1000, Town::new);
+    TableGroup<Road> roads = new TableGroup<>(store, Road.class, 50, Road::new);
+    roads.fail = true;
+    store.register(towns);
+    store.register(roads);
+
+    List<CacheLoadStatistics> statistics = store.warmUp();
+    assertEquals(1, statistics.size());
+    assertEquals("Town", statistics.get(0).getName());
+    assertTrue(towns.isInitialized());
+    assertFalse(roads.isInitialized());
+
+    // The failed group loads on first use.
+    assertNotNull(roads.get(50));
+    assertEquals(50, roads.size());
+  }
+}
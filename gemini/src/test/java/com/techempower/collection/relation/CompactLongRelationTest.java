@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.techempower.collection.relation;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.list.array.*;
+import gnu.trove.set.*;
+import gnu.trove.set.hash.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests for CompactLongRelation, checked against ManyToManyLongRelation.
+ */
+public class CompactLongRelationTest {
+
+  private static void assertSameRelation(ManyToManyLongRelation expected, CompactLongRelation actual) {
+    assertEquals(expected.size(), actual.size());
+    assertTrue(actual.containsAll(expected));
+    assertTrue(expected.containsAll(actual));
+    int iterated = 0;
+    for (LongRelationIterator iter = actual.iterator(); iter.hasNext(); ) {
+      iter.next();
+      iterated++;
+    }
+    assertEquals(expected.size(), iterated);
+  }
+
+  @Test
+  public void matchesManyToManyThroughGrowthAndRemoval() {
+    Random random = new Random(11);
+    ManyToManyLongRelation expected = new ManyToManyLongRelation(true);
+    CompactLongRelation actual = new CompactLongRelation();
+
+    // Enough pairs in one batch to divide the blocks several times over.
+    int count = 200_000;
+    long[] lefts = new long[count];
+    long[] rights = new long[count];
+    for (int i = 0; i < count; i++) {
+      lefts[i] = random.nextInt(20_000);
+      rights[i] = random.nextInt(500);
+      expected.add(lefts[i], rights[i]);
+    }
+    assertTrue(actual.addAll(lefts, rights, count));
+    assertSameRelation(expected, actual);
+
+    CompactLongRelation before = (CompactLongRelation)actual.clone();
+    for (int i = 0; i < 2_000; i++) {
+      long left = random.nextInt(20_000);
+      long right = random.nextInt(500);
+      if (random.nextBoolean()) {
+        assertEquals(expected.add(left, right), actual.add(left, right));
+      } else {
+        assertEquals(expected.remove(left, right), actual.remove(left, right));
+      }
+    }
+    assertEquals(expected.removeLeftValue(7), actual.removeLeftValue(7));
+    assertEquals(expected.removeRightValue(3), actual.removeRightValue(3));
+    assertSameRelation(expected, actual);
+    assertFalse(actual.containsLeftValue(7));
+    assertFalse(actual.containsRightValue(3));
+
+    // The clone still holds the earlier snapshot.
+    assertEquals(count - duplicates(lefts, rights), before.size());
+    assertTrue(before.containsRightValue(3));
+
+    long[] values = actual.rightValues(42);
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    assertArrayEquals(sorted, values);
+    assertEquals(new TLongHashSet(expected.rightValues(42)), actual.rightValuesLongSet(42));
+    assertEquals(new TLongHashSet(expected.leftValues(42)), new TLongHashSet(actual.leftValues(42)));
+    TLongHashSet filter = new TLongHashSet(new long[] { 1, 2, 42, 99, 499 });
+    assertEquals(expected.rightSize(42, filter), actual.rightSize(42, filter));
+  }
+
+  @Test
+  public void primitiveQueries() {
+    CompactLongRelation relation = new CompactLongRelation();
+    ManyToManyLongRelation expected = new ManyToManyLongRelation(true);
+    for (long right = 10; right > 0; right--) {
+      relation.add(1, right);
+      expected.add(1, right);
+    }
+    relation.add(2, 3);
+    expected.add(2, 3);
+
+    TLongArrayList visited = new TLongArrayList();
+    assertTrue(relation.forEachRightValue(1, visited::add));
+    assertArrayEquals(relation.rightValues(1), visited.toArray());
+    visited.clear();
+    assertFalse(relation.forEachRightValue(1, right -> visited.add(right) && right < 4));
+    assertEquals(4, visited.size());
+
+    long[] buffer = new long[4];
+    assertEquals(10, relation.rightValues(1, buffer));
+    assertArrayEquals(new long[] { 1, 2, 3, 4 }, buffer);
+    assertEquals(10, expected.rightValues(1, buffer));
+    assertEquals(2, relation.leftValues(3, buffer));
+    assertEquals(0, relation.leftValues(11, buffer));
+
+    TLongSet view = relation.rightValuesView(1);
+    assertEquals(expected.rightValuesLongSet(1), view);
+    assertEquals(expected.rightValuesLongSet(1).hashCode(), view.hashCode());
+    assertTrue(view.contains(7));
+    assertFalse(view.contains(11));
+    relation.remove(1, 7);
+    assertTrue(view.contains(7));
+    assertTrue(relation.leftValuesView(99).isEmpty());
+    try {
+      view.add(11);
+      fail();
+    } catch (UnsupportedOperationException expectedFailure) {
+      // Views are read-only.
+    }
+  }
+
+  @Test
+  public void replaceWithAndClear() {
+    CompactLongRelation relation = new CompactLongRelation();
+    relation.add(1, 2);
+    relation.replaceWith(new long[] { 5, 5, 6 }, new long[] { 1, 1, 1 }, 3);
+    assertEquals(2, relation.size());
+    assertFalse(relation.contains(1, 2));
+    assertArrayEquals(new long[] { 5, 6 }, relation.leftValues(1));
+    assertFalse(relation.addAll(new long[] { 5 }, new long[] { 1 }, 1));
+    relation.clear();
+    assertEquals(0, relation.size());
+    assertFalse(relation.iterator().hasNext());
+  }
+
+  private static int duplicates(long[] lefts, long[] rights) {
+    Set<String> seen = new HashSet<>();
+    int duplicates = 0;
+    for (int i = 0; i < lefts.length; i++) {
+      if (!seen.add(lefts[i] + ":" + rights[i])) {
+        duplicates++;
+      }
+    }
+    return duplicates;
+  }
+}
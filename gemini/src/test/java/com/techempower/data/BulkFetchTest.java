@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.map.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.techempower.cache.*;
+import com.techempower.data.ChangeTrackedTest.*;
+
+/**
+ * Tests that EntityGroup fetches long lists of ids in padded chunks.
+ */
+public class BulkFetchTest {
+
+  private final Object[][] columns = {
+      { "id", Types.BIGINT }, { "name", Types.VARCHAR }, { "size", Types.INTEGER } };
+  private final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+  private final List<List<Long>> parameters = Collections.synchronizedList(new ArrayList<>());
+  private ExecutorService executor;
+  private FakeDatabase database;
+  private EntityStore store;
+
+  @Before
+  public void setUp() {
+    database = new FakeDatabase().columns(columns).statements(this::statement);
+    store = new EntityStore(null, database.connectorFactory()) {
+      @Override
+      public int getBulkFetchChunkSize() {
+        return 4;
+      }
+
+      @Override
+      public synchronized ExecutorService getBulkFetchExecutor() {
+        return executor;
+      }
+    };
+  }
+
+  @After
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void padsAndChunks() {
+    EntityGroup<Widget> group = EntityGroup.of(Widget.class).table("widgets").build(store);
+    TLongObjectMap<Widget> widgets = group.map(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 2L, 100L));
+    assertEquals(6, widgets.size());
+    assertEquals("w5", widgets.get(5).getName());
+    assertNull(widgets.get(100));
+
+    // Seven distinct ids make a chunk of four and a chunk of three padded 
+    // to four by repeating its last id.
+    assertEquals(2, queries.size());
+    assertEquals(queries.get(0), queries.get(1));
+    assertTrue(queries.get(0).contains("`id` IN (?,?,?,?)"));
+    List<Long> padded = parameters.get(1);
+    assertEquals(padded.get(2), padded.get(3));
+
+    // A single id uses the smallest statement.
+    group.map(Collections.singletonList(3L));
+    assertTrue(queries.get(2).contains("`id` IN (?)"));
+  }
+
+  @Test
+  public void fetchesChunksInParallel() {
+    executor = Executors.newFixedThreadPool(2);
+    EntityGroup<Widget> group = EntityGroup.of(Widget.class).table("widgets").build(store);
+    List<Long> ids = new ArrayList<>();
+    for (long id = 1; id <= 10; id++) {
+      ids.add(id);
+    }
+    assertEquals(ids, listIds(group.list(ids)));
+    assertEquals(3, queries.size());
+  }
+
+  @Test
+  public void fetchesThroughUniquelyNamedTemporaryTables() {
+    database.affinity(DatabaseAffinity.MYSQL);
+    store = new EntityStore(null, database.connectorFactory()) {
+      @Override
+      public int getBulkFetchTemporaryTableThreshold() {
+        return 2;
+      }
+    };
+    EntityGroup<Widget> group = EntityGroup.of(Widget.class).table("widgets").build(store);
+    group.list(Arrays.asList(1L, 2L, 3L));
+    group.list(Arrays.asList(4L, 5L));
+
+    // Each fetch has its own table, so that a nested fetch on the same
+    // connection cannot collide with it.
+    List<String> executed = database.getExecuted();
+    assertEquals(4, executed.size());
+    String first = executed.get(0).split(" ")[3];
+    String second = executed.get(2).split(" ")[3];
+    assertTrue(executed.get(0).startsWith("CREATE TEMPORARY TABLE gemini_ids_"));
+    assertNotEquals(first, second);
+    assertTrue(executed.get(1).contains(first));
+
+    // The ids are matched by a subquery, leaving the table unaliased.
+    assertTrue(queries.get(0).contains("`id` IN (SELECT gemini_id FROM " + first + ")"));
+  }
+
+  private static List<Long> listIds(List<Widget> widgets) {
+    List<Long> ids = new ArrayList<>();
+    for (Widget widget : widgets) {
+      ids.add(widget.getId());
+    }
+    return ids;
+  }
+
+  /**
+   * A statement that finds widgets numbered 1 to 50 by id.
+   */
+  private PreparedStatement statement(String sql) {
+    List<Long> bound = new ArrayList<>();
+    return FakeDatabase.proxy(PreparedStatement.class, (method, args) -> {
+      switch (method.getName()) {
+        case "setLong":
+        case "setObject":
+          bound.add((Long)args[1]);
+          return null;
+        case "executeQuery":
+          queries.add(sql);
+          parameters.add(bound);
+          List<Long> found = new ArrayList<>(new TreeSet<>(bound));
+          found.removeIf(id -> id > 50);
+          return widgets(found);
+        default:
+          return null;
+      }
+    });
+  }
+
+  private ResultSet widgets(List<Long> ids) {
+    int[] position = { -1 };
+    return FakeDatabase.proxy(ResultSet.class, (method, args) -> {
+      long id = position[0] >= 0 && position[0] < ids.size() ? ids.get(position[0]) : 0;
+      switch (method.getName()) {
+        case "next":
+          return ++position[0] < ids.size();
+        case "getLong":
+          return id;
+        case "getInt":
+          return (int)id;
+        case "getString":
+        case "getObject":
+          return "w" + id;
+        default:
+          return null;
+      }
+    });
+  }
+
+}
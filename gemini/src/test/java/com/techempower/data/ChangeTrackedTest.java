@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data;
+
+import static org.junit.Assert.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.Date;
+
+import org.junit.*;
+
+import com.techempower.cache.*;
+import com.techempower.util.*;
+
+/**
+ * Tests that EntityGroup writes only the changed columns of ChangeTracked
+ * entities.
+ */
+public class ChangeTrackedTest {
+
+  public static class Widget extends BasicIdentifiable implements ChangeTracked {
+    private String name;
+    private int size;
+    private Object[] persistedValues;
+
+    public String getName() {
+      return name;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public void setSize(int size) {
+      this.size = size;
+    }
+
+    @Override
+    public Object[] getPersistedValues() {
+      return persistedValues;
+    }
+
+    @Override
+    public void setPersistedValues(Object[] values) {
+      this.persistedValues = values;
+    }
+  }
+
+  private final Object[][] columns = {
+      { "id", Types.BIGINT }, { "name", Types.VARCHAR }, { "size", Types.INTEGER } };
+  public static class Event extends BasicIdentifiable implements ChangeTracked {
+    private Date time = new Date(1000L);
+    private Object[] persistedValues;
+
+    public Date getTime() {
+      return time;
+    }
+
+    public void setTime(Date time) {
+      this.time = time;
+    }
+
+    @Override
+    public Object[] getPersistedValues() {
+      return persistedValues;
+    }
+
+    @Override
+    public void setPersistedValues(Object[] values) {
+      this.persistedValues = values;
+    }
+  }
+
+  private final List<String> updates = new ArrayList<>();
+  private final List<Map<Integer, Object>> parameters = new ArrayList<>();
+  private FakeDatabase database;
+  private EntityStore store;
+  private EntityGroup<Widget> group;
+
+  @Before
+  public void setUp() {
+    database = new FakeDatabase().columns(columns).statements(this::statement);
+    store = new EntityStore(null, database.connectorFactory());
+    group = EntityGroup.of(Widget.class).table("widgets").build(store);
+  }
+
+  @Test
+  public void writesOnlyChangedColumns() {
+    Widget widget = new Widget();
+    widget.setId(5);
+    widget.setName("a");
+    widget.setSize(1);
+
+    // Without a snapshot, every column is written.
+    assertNull(group.changedFields(widget));
+    assertEquals(1, group.put(widget));
+    assertEquals("UPDATE `widgets` SET `name` = ?, `size` = ? WHERE `id` = ?;", updates.get(0));
+
+    // Unchanged, nothing is written at all.
+    assertEquals(0, group.changedFields(widget).length);
+    assertEquals(0, group.put(widget));
+    assertEquals(1, updates.size());
+
+    widget.setSize(2);
+    assertArrayEquals(new String[] { "size" }, group.changedFields(widget));
+    assertEquals(1, group.put(widget));
+    assertEquals("UPDATE `widgets` SET `size` = ? WHERE `id` = ?;", updates.get(1));
+    assertEquals(2, parameters.get(1).get(1));
+    assertEquals(5L, parameters.get(1).get(2));
+    assertEquals(0, group.changedFields(widget).length);
+  }
+
+  @Test
+  public void detectsValuesChangedInPlace() {
+    database.columns(new Object[][] { { "id", Types.BIGINT }, { "time", Types.TIMESTAMP } });
+    EntityGroup<Event> events = EntityGroup.of(Event.class).table("events")
+        .build(store);
+    Event event = new Event();
+    event.setId(7);
+    assertEquals(1, events.put(event));
+
+    // The snapshot holds its own copy of the Date.
+    event.getTime().setTime(2000L);
+    assertArrayEquals(new String[] { "time" }, events.changedFields(event));
+    assertEquals(1, events.put(event));
+    assertEquals(2, updates.size());
+    assertEquals(0, events.changedFields(event).length);
+  }
+
+  @Test
+  public void appliesPartialMaps() {
+    Widget widget = new Widget();
+    widget.setId(5);
+    widget.setName("a");
+    widget.setSize(2);
+    Map<String, Object> changes = group.writeMap(widget, "size");
+    assertEquals(Collections.singletonMap("size", 2), changes);
+
+    Widget copy = new Widget();
+    copy.setId(5);
+    copy.setName("a");
+    copy.setSize(1);
+    group.updateObjectFromPartialMap(copy, changes);
+    assertEquals("a", copy.getName());
+    assertEquals(2, copy.getSize());
+  }
+
+  /**
+   * A statement that records UPDATEs and their parameters.
+   */
+  private PreparedStatement statement(String sql) {
+    Map<Integer, Object> bound = new HashMap<>();
+    return FakeDatabase.proxy(PreparedStatement.class, (method, args) -> {
+      if (method.getName().startsWith("set")) {
+        bound.put((Integer)args[0], args[1]);
+      } else if (method.getName().equals("executeUpdate")) {
+        updates.add(sql);
+        parameters.add(bound);
+        return 1;
+      }
+      return null;
+    });
+  }
+
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data;
+
+import static org.junit.Assert.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.stream.*;
+
+import org.junit.*;
+
+import com.techempower.cache.*;
+import com.techempower.data.ChangeTrackedTest.*;
+
+/**
+ * Tests that EntityGroup streams query results, holding a connection only
+ * while the results are being read.
+ */
+public class EntityGroupStreamTest {
+
+  private final Object[][] columns = {
+      { "id", Types.BIGINT }, { "name", Types.VARCHAR }, { "size", Types.INTEGER } };
+  private final List<String> queries = new ArrayList<>();
+  private FakeDatabase database;
+  private EntityGroup<Widget> group;
+
+  @Before
+  public void setUp() {
+    database = new FakeDatabase().columns(columns).statements(this::statement);
+    EntityStore store = new EntityStore(null, database.connectorFactory());
+    group = EntityGroup.of(Widget.class).table("widgets").build(store);
+    // Bind to the table's metadata up front.
+    group.list(Collections.singletonList(1L));
+    queries.clear();
+  }
+
+  @Test
+  public void streamsUntilClosed() {
+    try (Stream<Widget> widgets = group.stream("SELECT * FROM widgets WHERE id IN (?, ?, ?)", 4L, 2L, 99L)) {
+      assertEquals("w2", widgets.findFirst().get().getName());
+      assertEquals(1, database.getOpenConnections());
+    }
+    assertEquals(0, database.getOpenConnections());
+
+    // Consuming every row releases the connection without waiting for close.
+    Stream<Widget> widgets = group.stream("SELECT * FROM widgets WHERE id IN (?, ?)", 4L, 2L);
+    assertEquals(Arrays.asList(2L, 4L), widgets.map(Widget::getId).collect(Collectors.toList()));
+    assertEquals(0, database.getOpenConnections());
+  }
+
+  @Test
+  public void queriesOnFirstPull() {
+    Stream<Widget> widgets = group.stream("SELECT * FROM widgets WHERE id IN (?)", 3L);
+    assertEquals(0, database.getOpenConnections());
+    assertTrue(queries.isEmpty());
+    assertEquals(1, widgets.count());
+    assertEquals(1, queries.size());
+
+    // A Stream closed without being read never takes a connection.
+    group.stream("SELECT * FROM widgets WHERE id IN (?)", 3L).close();
+    assertEquals(0, database.getOpenConnections());
+    assertEquals(1, queries.size());
+  }
+
+  /**
+   * A statement that finds widgets numbered 1 to 50 by id.
+   */
+  private PreparedStatement statement(String sql) {
+    List<Long> bound = new ArrayList<>();
+    return FakeDatabase.proxy(PreparedStatement.class, (method, args) -> {
+      switch (method.getName()) {
+        case "setLong":
+        case "setObject":
+          bound.add((Long)args[1]);
+          return null;
+        case "executeQuery":
+          queries.add(sql);
+          List<Long> found = new ArrayList<>(new TreeSet<>(bound));
+          found.removeIf(id -> id > 50);
+          return widgets(found);
+        default:
+          return null;
+      }
+    });
+  }
+
+  private ResultSet widgets(List<Long> ids) {
+    int[] position = { -1 };
+    return FakeDatabase.proxy(ResultSet.class, (method, args) -> {
+      long id = position[0] >= 0 && position[0] < ids.size() ? ids.get(position[0]) : 0;
+      switch (method.getName()) {
+        case "next":
+          return ++position[0] < ids.size();
+        case "getLong":
+          return id;
+        case "getInt":
+          return (int)id;
+        case "getString":
+        case "getObject":
+          return "w" + id;
+        default:
+          return null;
+      }
+    });
+  }
+
+}
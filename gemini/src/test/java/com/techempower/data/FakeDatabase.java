@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * A stand-in database for tests, made of dynamic proxies, so that 
+ * EntityStore, EntityGroup and the relations can be exercised without a 
+ * JDBC driver.  Connections prepare statements with a function supplied by
+ * the test and describe a single table with the configured columns.  For
+ * example:
+ * <pre>
+ * FakeDatabase database = new FakeDatabase()
+ *     .columns(new Object[][] { { "id", Types.BIGINT }, { "name", Types.VARCHAR } })
+ *     .statements(this::statement);
+ * EntityStore store = new EntityStore(null, database.connectorFactory());
+ * </pre>
+ * Unconfigured methods of every proxy return null, or false for booleans.
+ */
+public class FakeDatabase {
+
+  /**
+   * Answers a call to a proxy.
+   */
+  public interface Handler {
+    Object invoke(Method method, Object[] args) throws Throwable;
+  }
+
+  private final AtomicInteger openConnections = new AtomicInteger();
+  private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+  private volatile Object[][] columns = new Object[0][];
+  private volatile Function<String, PreparedStatement> statements = sql -> null;
+  private volatile DatabaseAffinity affinity;
+
+  /**
+   * Sets the name and java.sql.Types of each column of the table, in order.
+   * Read whenever a group asks for the table's metadata.
+   */
+  public FakeDatabase columns(Object[][] columns) {
+    this.columns = columns;
+    return this;
+  }
+
+  /**
+   * Sets the function that prepares a statement for each SQL string.
+   */
+  public FakeDatabase statements(Function<String, PreparedStatement> statements) {
+    this.statements = statements;
+    return this;
+  }
+
+  /**
+   * Sets the affinity the ConnectorFactory reports; null by default.
+   */
+  public FakeDatabase affinity(DatabaseAffinity affinity) {
+    this.affinity = affinity;
+    return this;
+  }
+
+  /**
+   * Gets the number of connection monitors taken and not yet closed.
+   */
+  public int getOpenConnections() {
+    return this.openConnections.get();
+  }
+
+  /**
+   * Gets the SQL run through plain Statements, in order.
+   */
+  public List<String> getExecuted() {
+    return this.executed;
+  }
+
+  /**
+   * Creates a ConnectorFactory that quotes identifiers with backticks and
+   * hands out connections to this database.
+   */
+  public ConnectorFactory connectorFactory() {
+    DatabaseMetaData metaData = proxy(DatabaseMetaData.class, (method, args) ->
+        method.getName().equals("getColumns") ? columnMetadata(this.columns) : null);
+    Connection connection = proxy(Connection.class, (method, args) -> {
+      switch (method.getName()) {
+        case "getMetaData": return metaData;
+        case "prepareStatement": return this.statements.apply((String)args[0]);
+        case "createStatement":
+          return proxy(Statement.class, (statementMethod, statementArgs) -> {
+            if (statementMethod.getName().equals("execute")) {
+              this.executed.add((String)statementArgs[0]);
+            }
+            return null;
+          });
+        default: return null;
+      }
+    });
+    ConnectionMonitor monitor = proxy(ConnectionMonitor.class, (method, args) -> {
+      switch (method.getName()) {
+        case "getConnection": return connection;
+        case "close":
+          this.openConnections.decrementAndGet();
+          return null;
+        default: return null;
+      }
+    });
+    return proxy(ConnectorFactory.class, (method, args) -> {
+      switch (method.getName()) {
+        case "getIdentifierQuoteString": return "`";
+        case "getConnectionMonitor":
+          this.openConnections.incrementAndGet();
+          return monitor;
+        case "getDatabaseAffinity": return this.affinity;
+        default: return null;
+      }
+    });
+  }
+
+  /**
+   * Creates a result set of generated keys: count consecutive longs
+   * starting with first.
+   */
+  public static ResultSet keys(long first, int count) {
+    int[] position = { -1 };
+    return proxy(ResultSet.class, (method, args) -> {
+      switch (method.getName()) {
+        case "next": return ++position[0] < count;
+        case "getLong": return first + position[0];
+        default: return null;
+      }
+    });
+  }
+
+  /**
+   * Creates the column metadata result set of DatabaseMetaData.getColumns
+   * for columns of the given names and java.sql.Types.
+   */
+  public static ResultSet columnMetadata(Object[][] columns) {
+    int[] position = { -1 };
+    return proxy(ResultSet.class, (method, args) -> {
+      switch (method.getName()) {
+        case "next":
+          return ++position[0] < columns.length;
+        case "getString":
+          return args[0].equals("COLUMN_NAME") ? columns[position[0]][0] : null;
+        case "getInt":
+          switch ((String)args[0]) {
+            case "DATA_TYPE": return columns[position[0]][1];
+            case "ORDINAL_POSITION": return position[0] + 1;
+            default: return 0;
+          }
+        default:
+          return null;
+      }
+    });
+  }
+
+  /**
+   * Creates a proxy for an interface whose calls are answered by the
+   * handler.  A null answer from a boolean method is returned as false.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T proxy(Class<T> type, Handler handler) {
+    return (T)Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[] { type },
+        (proxy, method, args) -> {
+          Object result = handler.invoke(method, args);
+          if (result == null && method.getReturnType() == boolean.class) {
+            return false;
+          }
+          return result;
+        });
+  }
+
+}
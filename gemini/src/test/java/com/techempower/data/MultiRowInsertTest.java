@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data;
+
+import static org.junit.Assert.*;
+
+import java.sql.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.cache.*;
+import com.techempower.data.ChangeTrackedTest.*;
+
+/**
+ * Tests that EntityGroup inserts many new entities with multi-row INSERTs.
+ */
+public class MultiRowInsertTest {
+
+  private final Object[][] columns = {
+      { "id", Types.BIGINT }, { "name", Types.VARCHAR }, { "size", Types.INTEGER } };
+  private final List<String> inserts = new ArrayList<>();
+  private long nextId = 1000;
+  private EntityGroup<Widget> group;
+
+  @Before
+  public void setUp() {
+    FakeDatabase database = new FakeDatabase()
+        .columns(columns)
+        .statements(this::statement)
+        .affinity(DatabaseAffinity.MYSQL);
+    EntityStore store = new EntityStore(null, database.connectorFactory()) {
+      @Override
+      public int getInsertBatchRows() {
+        return 64;
+      }
+    };
+    group = EntityGroup.of(Widget.class).table("widgets").build(store);
+  }
+
+  @Test
+  public void insertsManyRowsPerStatement() {
+    List<Widget> widgets = new ArrayList<>();
+    for (int i = 0; i < 150; i++) {
+      Widget widget = new Widget();
+      widget.setName("w" + i);
+      widgets.add(widget);
+    }
+
+    // Chunks of 64, 64 and 22 rows, each returning all of its keys.
+    assertEquals(150, group.putAll(widgets));
+    assertEquals(3, inserts.size());
+    assertTrue(inserts.get(0).startsWith("INSERT INTO `widgets` (`name`, `size`) VALUES (?, ?), (?, ?), "));
+    assertEquals(22, inserts.get(2).split("\\), \\(").length);
+    assertEquals(1000, widgets.get(0).getId());
+    assertEquals(1149, widgets.get(149).getId());
+    assertNotNull(widgets.get(149).getPersistedValues());
+  }
+
+  /**
+   * A statement that counts the rows of a multi-row INSERT and generates 
+   * consecutive keys for them.
+   */
+  private PreparedStatement statement(String sql) {
+    int rows = sql.split("\\), \\(", -1).length;
+    return FakeDatabase.proxy(PreparedStatement.class, (method, args) -> {
+      switch (method.getName()) {
+        case "executeUpdate":
+          inserts.add(sql);
+          return rows;
+        case "getGeneratedKeys":
+          long first = nextId;
+          nextId += rows;
+          return FakeDatabase.keys(first, rows);
+        default:
+          return null;
+      }
+    });
+  }
+
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import com.techempower.cache.*;
+import com.techempower.data.ChangeTrackedTest.*;
+
+/**
+ * Compares EntityGroup.putAll of new entities using multi-row INSERTs with
+ * the JDBC batch of single-row INSERTs used for other databases.  This is 
+ * not a unit test; run it directly:
+ *
+ * <pre>
+ * java -cp ... com.techempower.data.PutAllBenchmark 100000 200
+ * </pre>
+ *
+ * No database is involved.  Each statement sent to the stand-in driver 
+ * costs the given round-trip latency in microseconds, and a JDBC batch 
+ * costs one round-trip per row, as it does with MySQL unless batches are
+ * rewritten by the driver.
+ */
+public class PutAllBenchmark {
+
+  private static final Object[][] COLUMNS = {
+      { "id", Types.BIGINT }, { "name", Types.VARCHAR }, { "size", Types.INTEGER } };
+
+  public static void main(String[] args) throws Exception {
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    final long latencyNanos = (args.length > 1 ? Long.parseLong(args[1]) : 200) * 1000L;
+
+    System.out.printf("%-12s %12s %12s%n", "path", "ms", "round-trips");
+    for (int round = 0; round < 2; round++) {
+      report("multi-row", DatabaseAffinity.MYSQL, count, latencyNanos);
+      report("batch", null, count, latencyNanos);
+    }
+
+    // The EntityStores leave non-daemon threads behind.
+    System.exit(0);
+  }
+
+  private static void report(String path, DatabaseAffinity affinity, int count,
+      long latencyNanos) {
+    final long[] roundTrips = { 0 };
+    final EntityGroup<Widget> group = group(affinity, latencyNanos, roundTrips);
+    final List<Widget> widgets = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final Widget widget = new Widget();
+      widget.setName("Widget " + i);
+      widget.setSize(i);
+      widgets.add(widget);
+    }
+    final long start = System.nanoTime();
+    group.putAll(widgets);
+    System.out.printf("%-12s %12d %12d%n", path, 
+        (System.nanoTime() - start) / 1_000_000, roundTrips[0]);
+  }
+
+  private static EntityGroup<Widget> group(DatabaseAffinity affinity, long latencyNanos,
+      long[] roundTrips) {
+    final long[] nextId = { 1 };
+    final FakeDatabase database = new FakeDatabase()
+        .columns(COLUMNS)
+        .affinity(affinity)
+        .statements(sql -> {
+          final int rows = sql.split("\\), \\(", -1).length;
+          final int[] batched = { 0 };
+          return FakeDatabase.proxy(PreparedStatement.class, (method, args) -> {
+            switch (method.getName()) {
+              case "addBatch":
+                batched[0]++;
+                return null;
+              case "executeUpdate":
+                roundTrips[0]++;
+                LockSupport.parkNanos(latencyNanos);
+                return rows;
+              case "executeBatch":
+                roundTrips[0] += batched[0];
+                LockSupport.parkNanos(latencyNanos * batched[0]);
+                return new int[batched[0]];
+              case "getGeneratedKeys":
+                final int generated = batched[0] > 0 ? batched[0] : rows;
+                final long first = nextId[0];
+                nextId[0] += generated;
+                return FakeDatabase.keys(first, generated);
+              default:
+                return null;
+            }
+          });
+        });
+    final EntityStore store = new EntityStore(null, database.connectorFactory());
+    return EntityGroup.of(Widget.class).table("widgets").build(store);
+  }
+
+}
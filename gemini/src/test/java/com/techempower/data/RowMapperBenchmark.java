@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data;
+
+import java.sql.*;
+
+import com.techempower.cache.*;
+import com.techempower.data.ChangeTrackedTest.*;
+
+/**
+ * Compares the time EntityGroup.make takes to build entities with generated
+ * row mappers and with the reflective path.  This is not a unit test; run
+ * it directly:
+ *
+ * <pre>
+ * java -cp ... com.techempower.data.RowMapperBenchmark 5000000
+ * </pre>
+ *
+ * The result set is a dynamic proxy, whose own cost is included in both
+ * timings, so the reported difference understates the saving against a
+ * real driver.
+ */
+public class RowMapperBenchmark {
+
+  private static final Object[][] COLUMNS = {
+      { "id", Types.BIGINT }, { "name", Types.VARCHAR }, { "size", Types.INTEGER } };
+
+  public static void main(String[] args) throws Exception {
+    final int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+    final EntityGroup<Widget> reflective = group(false);
+    final EntityGroup<Widget> generated = group(true);
+    final ResultSet row = FakeDatabase.proxy(ResultSet.class, (method, arguments) -> {
+      switch (method.getName()) {
+        case "getLong": return 7L;
+        case "getInt": return 12;
+        case "getString": return "gear";
+        default: return null;
+      }
+    });
+
+    System.out.printf("%-12s %12s %12s%n", "path", "ms", "ns/row");
+    for (int round = 0; round < 3; round++) {
+      report("reflective", reflective, row, rows);
+      report("generated", generated, row, rows);
+    }
+
+    // The EntityStores leave non-daemon threads behind.
+    System.exit(0);
+  }
+
+  private static void report(String path, EntityGroup<Widget> group, ResultSet row, int rows) {
+    long sizes = 0;
+    final long start = System.nanoTime();
+    for (int i = 0; i < rows; i++) {
+      sizes += group.make(row).getSize();
+    }
+    final long elapsed = System.nanoTime() - start;
+    System.out.printf("%-12s %12d %12.1f%s%n", path, elapsed / 1_000_000,
+        (double)elapsed / rows, sizes == 0 ? " ?" : "");
+  }
+
+  private static EntityGroup<Widget> group(boolean generate) {
+    final FakeDatabase database = new FakeDatabase().columns(COLUMNS);
+    final EntityStore store = new EntityStore(null, database.connectorFactory()) {
+      @Override
+      public boolean isGeneratingRowMappers() {
+        return generate;
+      }
+    };
+    return EntityGroup.of(Widget.class).table("widgets").build(store);
+  }
+
+}
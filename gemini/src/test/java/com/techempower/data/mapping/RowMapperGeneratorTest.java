@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.data.mapping;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.cache.*;
+import com.techempower.data.*;
+import com.techempower.data.ChangeTrackedTest.*;
+import com.techempower.util.*;
+
+/**
+ * Tests the row mappers generated by RowMapperGenerator.
+ */
+public class RowMapperGeneratorTest {
+
+  @Test
+  public void setsFieldsByColumnIndex() throws Exception {
+    List<DataFieldToMethodMap> setters = Arrays.asList(
+        setter("setName", String.class, "name", 2, Types.VARCHAR),
+        setter("setSize", int.class, "size", 3, Types.INTEGER));
+    assertTrue(RowMapperGenerator.supports(setters.get(0)));
+    RowMapper<Widget> mapper = RowMapperGenerator.generate(Widget.class, setters);
+    assertNotNull(mapper);
+
+    ResultSet row = FakeDatabase.proxy(ResultSet.class, (method, args) -> {
+      switch (method.getName() + args[0]) {
+        case "getString2": return "gear";
+        case "getInt3": return 12;
+        default: throw new AssertionError(method.getName() + args[0]);
+      }
+    });
+    Widget widget = new Widget();
+    mapper.map(widget, row);
+    assertEquals("gear", widget.getName());
+    assertEquals(12, widget.getSize());
+  }
+
+  @Test
+  public void declinesWhatItCannotMap() throws Exception {
+    assertFalse(RowMapperGenerator.supports(setter("setName", String.class, "name", 0, Types.VARCHAR)));
+    assertFalse(RowMapperGenerator.supports(setter("setValue", Integer.class, "value", 1, Types.INTEGER)));
+    assertNull(RowMapperGenerator.generate(Hidden.class, Collections.emptyList()));
+  }
+
+  @Test
+  public void entityGroupCallsSettersInColumnOrder() {
+    Object[][] columns = { { "id", Types.BIGINT }, { "first", Types.INTEGER },
+        { "middle", Types.INTEGER }, { "last", Types.VARCHAR } };
+    ResultSet row = FakeDatabase.proxy(ResultSet.class, new FakeDatabase.Handler() {
+      private int position = -1;
+
+      @Override
+      public Object invoke(Method method, Object[] args) {
+        switch (method.getName()) {
+          case "next": return ++position < 1;
+          case "getLong": return 1L;
+          case "getInt": return 2;
+          case "getObject": return 3;
+          case "getString": return "x";
+          default: return null;
+        }
+      }
+    });
+    PreparedStatement statement = FakeDatabase.proxy(PreparedStatement.class,
+        (method, args) -> method.getName().equals("executeQuery") ? row : null);
+    EntityStore store = new EntityStore(null,
+        new FakeDatabase().columns(columns).statements(sql -> statement).connectorFactory());
+    EntityGroup<Ordered> group = EntityGroup.of(Ordered.class).table("ordered").build(store);
+
+    // The boxed middle field cannot be generated, so the last field must
+    // not be set by generated code ahead of it.
+    assertEquals(Arrays.asList("first", "middle", "last"), group.get(1L).calls);
+  }
+
+  private static DataFieldToMethodMap setter(String name, Class<?> type, String column,
+      int columnIndex, int sqlType) throws NoSuchMethodException {
+    Class<?> owner = type == Integer.class ? Hidden.class : Widget.class;
+    return new DataFieldToMethodMap(owner.getMethod(name, type), column, columnIndex, sqlType, 0);
+  }
+
+  public static class Ordered extends BasicIdentifiable {
+    private final List<String> calls = new ArrayList<>();
+
+    public int getFirst() {
+      return 0;
+    }
+
+    public void setFirst(int first) {
+      calls.add("first");
+    }
+
+    public Integer getMiddle() {
+      return null;
+    }
+
+    public void setMiddle(Integer middle) {
+      calls.add("middle");
+    }
+
+    public String getLast() {
+      return null;
+    }
+
+    public void setLast(String last) {
+      calls.add("last");
+    }
+  }
+
+  static class Hidden {
+    public void setValue(Integer value) {
+    }
+  }
+
+}
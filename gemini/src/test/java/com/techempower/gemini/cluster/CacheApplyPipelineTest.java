@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+/**
+ * Tests that CacheApplyPipeline keeps per-key order while applying
+ * unrelated keys in parallel.
+ */
+public class CacheApplyPipelineTest {
+
+  @Test
+  public void keepsOrderPerKey() throws Exception {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(4, 100, 10, 10);
+    Map<String, List<Integer>> applied = new ConcurrentHashMap<>();
+    CountDownLatch done = new CountDownLatch(8 * 200);
+    for (int i = 0; i < 200; i++) {
+      for (int key = 0; key < 8; key++) {
+        final String name = "g" + key;
+        final int sequence = i;
+        pipeline.submit(name, 0L, () -> {
+          applied.computeIfAbsent(name, k -> Collections.synchronizedList(new ArrayList<>())).add(sequence);
+          done.countDown();
+        });
+      }
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (List<Integer> sequence : applied.values()) {
+      for (int i = 0; i < 200; i++) {
+        assertEquals(i, (int)sequence.get(i));
+      }
+    }
+    pipeline.close();
+  }
+
+  @Test
+  public void appliesUnrelatedKeysInParallelAndReportsBackpressure() throws Exception {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(2, 1, 10, 10);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch other = new CountDownLatch(1);
+    String blocked = "g1";
+    String free = "g2";
+    if (Math.floorMod(blocked.hashCode(), 2) == Math.floorMod(free.hashCode(), 2)) {
+      free = "g4";
+    }
+    pipeline.submit(blocked, 0L, () -> await(release));
+    pipeline.submit(free, 0L, other::countDown);
+    assertTrue("An unrelated key should not wait", other.await(5, TimeUnit.SECONDS));
+
+    // Fill the blocked lane, then submit once more from another thread,
+    // which must wait for room.
+    pipeline.submit(blocked, 0L, () -> { });
+    Thread submitter = new Thread(() -> pipeline.submit(blocked, 0L, () -> { }));
+    submitter.start();
+    while (pipeline.getBackpressureCount() == 0) {
+      Thread.sleep(5);
+    }
+    assertTrue(pipeline.getQueueDepth() >= 1);
+    release.countDown();
+    submitter.join(5000);
+    assertFalse(submitter.isAlive());
+    pipeline.close();
+  }
+
+  @Test
+  public void blockedSubmitterDoesNotHoldUpOtherLanes() throws Exception {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(2, 1, 10, 10);
+    CountDownLatch release = new CountDownLatch(1);
+    String blocked = "g1";
+    String free = "g2";
+    if (Math.floorMod(blocked.hashCode(), 2) == Math.floorMod(free.hashCode(), 2)) {
+      free = "g4";
+    }
+    pipeline.submit(blocked, 0L, () -> await(release));
+    pipeline.submit(blocked, 0L, () -> { });
+    Thread submitter = new Thread(() -> pipeline.submit(blocked, 0L, () -> { }));
+    submitter.start();
+    while (pipeline.getBackpressureCount() == 0) {
+      Thread.sleep(5);
+    }
+
+    // The submitter is waiting for room in its lane; another key's lane
+    // still accepts and applies messages.
+    CountDownLatch other = new CountDownLatch(1);
+    pipeline.submit(free, 0L, other::countDown);
+    assertTrue(other.await(5, TimeUnit.SECONDS));
+    release.countDown();
+    submitter.join(5000);
+    assertFalse(submitter.isAlive());
+    pipeline.close();
+  }
+
+  @Test
+  public void trySubmitRefusesWhenALaneIsFull() throws Exception {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(1, 1, 10, 10);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    pipeline.submit("g1", 0L, () -> { started.countDown(); await(release); });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    List<String> applied = Collections.synchronizedList(new ArrayList<>());
+    assertTrue(pipeline.trySubmit(new String[] { "g1" }, 0L,
+        new Runnable[] { () -> applied.add("a") }));
+
+    // Neither message of a batch is queued unless both fit.
+    assertFalse(pipeline.trySubmit(new String[] { "g1", "g1" }, 0L,
+        new Runnable[] { () -> applied.add("b"), () -> applied.add("c") }));
+    assertFalse(pipeline.trySubmitToAll("reset", 0L, () -> applied.add("d")));
+    release.countDown();
+    pipeline.close();
+    assertEquals(Arrays.asList("a"), applied);
+  }
+
+  @Test
+  public void restartsLanesStoppedByErrors() throws Exception {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(1, 100, 10, 10);
+    CountDownLatch done = new CountDownLatch(1);
+    pipeline.submit("g1", 0L, () -> {
+      throw new Error("Stops the lane's thread.");
+    });
+    pipeline.submit("g1", 0L, done::countDown);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    pipeline.close();
+  }
+
+  @Test
+  public void appliesBarriersAfterEarlierMessages() throws Exception {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(3, 100, 10, 10);
+    List<String> applied = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(1);
+    for (int key = 0; key < 6; key++) {
+      final String name = "r" + key;
+      pipeline.submit(name, 0L, () -> {
+        await(50);
+        applied.add(name);
+      });
+    }
+    pipeline.submitToAll("all", 0L, () -> applied.add("all"));
+    pipeline.submit("r0", 0L, () -> {
+      applied.add("after");
+      done.countDown();
+    });
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(8, applied.size());
+    assertEquals("all", applied.get(6));
+    assertEquals("after", applied.get(7));
+    pipeline.close();
+  }
+
+  @Test
+  public void closeAppliesQueuedMessagesWithoutInterrupting() {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(2, 100, 10, 10);
+    List<Boolean> interrupted = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < 40; i++) {
+      pipeline.submit("g" + i, 0L, () -> {
+        await(5);
+        interrupted.add(Thread.currentThread().isInterrupted());
+      });
+    }
+    assertTrue(pipeline.close(10000));
+    assertEquals(40, interrupted.size());
+    assertFalse(interrupted.contains(true));
+
+    // Nothing is accepted once closed.
+    pipeline.submit("g1", 0L, () -> interrupted.add(true));
+    assertEquals(40, interrupted.size());
+  }
+
+  @Test
+  public void closeInterruptsLanesThatDoNotFinish() {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(1, 100, 10, 10);
+    CountDownLatch never = new CountDownLatch(1);
+    List<String> applied = Collections.synchronizedList(new ArrayList<>());
+    pipeline.submit("g1", 0L, () -> await(never));
+    pipeline.submit("g1", 0L, () -> applied.add("g1"));
+    assertFalse(pipeline.close(100));
+    assertTrue(applied.isEmpty());
+  }
+
+  @Test
+  public void appliesInlineWithoutLanes() {
+    CacheApplyPipeline pipeline = new CacheApplyPipeline(0, 1, 10, 10);
+    List<String> applied = new ArrayList<>();
+    pipeline.submit("g1", System.currentTimeMillis(), () -> applied.add("g1"));
+    pipeline.submitToAll("all", 0L, () -> applied.add("all"));
+    assertEquals(Arrays.asList("g1", "all"), applied);
+    assertEquals(0, pipeline.getQueueDepth());
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(long millis) {
+    try {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.techempower.gemini.cluster.message.*;
+
+/**
+ * Tests that CacheMessageBatcher coalesces invalidations into batches.
+ */
+public class CacheMessageBatcherTest {
+
+  private final BlockingQueue<BroadcastMessage> sent = new LinkedBlockingQueue<>();
+
+  @Test
+  public void coalescesDuplicatesWithinWindow() throws Exception {
+    CacheMessageBatcher batcher = new CacheMessageBatcher(sent::add, 50, 1000);
+    batcher.expire(1, 5);
+    batcher.expire(1, 3);
+    batcher.expire(1, 5);
+    batcher.expire(2, 9);
+    batcher.add(7, 1, 2);
+    batcher.remove(7, 1, 2);
+    batcher.add(7, 3, 4);
+    batcher.add(7, 3, 4);
+    assertTrue(sent.isEmpty());
+
+    CacheBatchMessage batch = (CacheBatchMessage)sent.poll(5, TimeUnit.SECONDS);
+    assertNotNull(batch);
+    Map<Integer, long[]> objects = new HashMap<>();
+    for (int i = 0; i < batch.getGroupIds().length; i++) {
+      objects.put(batch.getGroupIds()[i], batch.getObjectIds()[i]);
+    }
+    assertArrayEquals(new long[] { 3, 5 }, objects.get(1));
+    assertArrayEquals(new long[] { 9 }, objects.get(2));
+    assertArrayEquals(new long[] { 7 }, batch.getRelationIds());
+    assertArrayEquals(new long[] { 3, 4 }, batch.getRelationAdds()[0]);
+    assertArrayEquals(new long[] { 1, 2 }, batch.getRelationRemoves()[0]);
+    batcher.close();
+    assertTrue(sent.isEmpty());
+  }
+
+  @Test
+  public void sendsFullBatchesAndPassThroughMessagesInOrder() {
+    CacheMessageBatcher batcher = new CacheMessageBatcher(sent::add, 60000, 3);
+    batcher.expire(1, 1);
+    batcher.expire(1, 2);
+    batcher.expire(1, 3);
+    assertEquals(1, sent.size());
+    assertEquals(3, ((CacheBatchMessage)sent.poll()).size());
+
+    batcher.expire(1, 4);
+    CacheMessage reset = new CacheMessage();
+    batcher.send(reset);
+    assertEquals(1, ((CacheBatchMessage)sent.poll()).size());
+    assertSame(reset, sent.poll());
+    batcher.close();
+    assertTrue(sent.isEmpty());
+  }
+
+}
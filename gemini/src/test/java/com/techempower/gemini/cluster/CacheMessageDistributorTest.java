@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster;
+
+import static org.junit.Assert.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.techempower.cache.*;
+import com.techempower.data.*;
+import com.techempower.gemini.cluster.message.*;
+import com.techempower.util.*;
+
+/**
+ * Tests the messages a CacheMessageDistributor sends for local changes.
+ */
+public class CacheMessageDistributorTest {
+
+  public static class Item extends BasicIdentifiable {
+    private String name;
+
+    public Item() {
+    }
+
+    Item(long id, String name) {
+      setId(id);
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+  }
+
+  private final BlockingQueue<BroadcastMessage> sent = new LinkedBlockingQueue<>();
+  private EntityStore store;
+  private CacheMessageDistributor distributor;
+
+  @Before
+  public void setup() {
+    // Just enough metadata for the group to map its columns.
+    ConnectorFactory connectorFactory = new FakeDatabase()
+        .columns(new Object[][] { { "id", Types.BIGINT }, { "name", Types.VARCHAR } })
+        .connectorFactory();
+    store = new EntityStore(null, connectorFactory) {
+      @Override
+      public boolean isInitialized() {
+        return true;
+      }
+    };
+    store.register(PureMemoryGroup.of(Item.class)
+        .initializer(() -> Arrays.asList(new Item(1, "a"), new Item(2, "b"))));
+
+    distributor = new CacheMessageDistributor(store) {
+      @Override
+      protected void publish(BroadcastMessage message) {
+        sent.add(message);
+      }
+    };
+    EnhancedProperties props = new EnhancedProperties();
+    props.put("Test.BatchWindowMs", "10");
+    props.put("Test.ApplyLanes", "0");
+    distributor.configure(props, "Test.");
+    distributor.startDistribution();
+  }
+
+  @After
+  public void tearDown() {
+    distributor.stopDistribution();
+  }
+
+  @Test
+  public void sendsPatchesWhenBatching() throws InterruptedException {
+    distributor.cacheObjectExpired(Item.class, 2);
+    store.get(Item.class, 1).setName("c");
+    distributor.cacheObjectExpired(Item.class, 1, new String[] { "name" });
+
+    // The pending batch goes first, so that the patch is not overtaken.
+    BroadcastMessage first = sent.poll(5, TimeUnit.SECONDS);
+    assertTrue(first instanceof CacheBatchMessage);
+    CacheMessage patch = (CacheMessage)sent.poll(5, TimeUnit.SECONDS);
+    assertNotNull(patch);
+    assertEquals(CacheMessage.ACTION_OBJECT_PATCH, patch.getAction());
+    assertEquals(1L, patch.getObjectId());
+    assertEquals(Collections.singletonMap("name", "c"), patch.getObjectProperties());
+  }
+
+}
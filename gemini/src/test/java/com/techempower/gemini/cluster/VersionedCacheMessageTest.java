@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.cache.*;
+import com.techempower.data.*;
+import com.techempower.gemini.cluster.message.*;
+import com.techempower.util.*;
+
+/**
+ * Tests that distributed changes to versioned groups carry version stamps
+ * and that stale and duplicate changes are skipped when received.
+ */
+public class VersionedCacheMessageTest {
+
+  public static class Item extends BasicIdentifiable {
+    public Item() {
+    }
+
+    Item(long id) {
+      setId(id);
+    }
+  }
+
+  public static class Other extends BasicIdentifiable {
+    public Other() {
+    }
+
+    Other(long id) {
+      setId(id);
+    }
+  }
+
+  private final List<BroadcastMessage> sent =
+      Collections.synchronizedList(new ArrayList<>());
+  private EntityStore store;
+  private CacheMessageDistributor distributor;
+
+  @Before
+  public void setup() {
+    ConnectorFactory connectorFactory = new FakeDatabase().connectorFactory();
+    store = new EntityStore(null, connectorFactory) {
+      @Override
+      public boolean isInitialized() {
+        return true;
+      }
+    };
+    store.register(PureMemoryGroup.of(Item.class)
+        .initializer(() -> Arrays.asList(new Item(1), new Item(2)))
+        .versioned(true));
+    store.register(PureMemoryGroup.of(Other.class)
+        .initializer(() -> Arrays.asList(new Other(1))));
+
+    distributor = start(false);
+  }
+
+  private CacheMessageDistributor start(boolean batching) {
+    CacheMessageDistributor started = new CacheMessageDistributor(store) {
+      @Override
+      protected void publish(BroadcastMessage message) {
+        sent.add(message);
+      }
+    };
+    EnhancedProperties props = new EnhancedProperties();
+    if (batching) {
+      props.put("Test.BatchWindowMs", "10");
+    }
+    props.put("Test.ApplyLanes", "0");
+    started.configure(props, "Test.");
+    started.assignNode(1);
+    started.startDistribution();
+    return started;
+  }
+
+  @After
+  public void tearDown() {
+    distributor.stopDistribution();
+  }
+
+  @Test
+  public void stampsChangesToVersionedGroups() {
+    distributor.removeFromCache(Item.class, 1);
+    distributor.removeFromCache(Item.class, 2);
+    distributor.removeFromCache(Other.class, 1);
+
+    long first = ((CacheMessage)sent.get(0)).getVersion();
+    long second = ((CacheMessage)sent.get(1)).getVersion();
+    assertTrue(first > 0);
+    assertTrue(second > first);
+    assertEquals(0L, ((CacheMessage)sent.get(2)).getVersion());
+    assertEquals(second, store.getGroup(Item.class).versions().getHighWaterMark());
+  }
+
+  @Test
+  public void stampsChangesToVersionedGroupsWhenBatching() {
+    distributor.stopDistribution();
+    distributor = start(true);
+    distributor.removeFromCache(Item.class, 1);
+    distributor.removeFromCache(Other.class, 1);
+    distributor.removeFromCache(Item.class, 2);
+
+    // The unversioned change is batched; the versioned ones are sent
+    // individually, stamped, after the batch pending at the time.
+    CacheMessage first = (CacheMessage)sent.get(0);
+    assertTrue(sent.get(1) instanceof CacheBatchMessage);
+    CacheMessage second = (CacheMessage)sent.get(2);
+    assertEquals(1L, first.getObjectId());
+    assertEquals(2L, second.getObjectId());
+    assertTrue(first.getVersion() > 0);
+    assertTrue(second.getVersion() > first.getVersion());
+  }
+
+  @Test
+  public void skipsStaleAndDuplicateChanges() throws InterruptedException {
+    EntityVersions peer = new EntityVersions(() -> 2);
+    long older = peer.stamp(2);
+
+    // A local change made a tick after the peer's makes the peer's stale.
+    // Within the same tick, which wins depends on the instances' ids.
+    Thread.sleep(2L);
+    distributor.removeFromCache(Item.class, 2);
+    distributor.receive(removal(Item.class, 2, older), 0L);
+    assertNotNull(store.get(Item.class, 2));
+    assertEquals(1L, distributor.getStaleCount());
+
+    // Once the peer has seen the local change, its next one is newer.
+    assertTrue(peer.accept(2, ((CacheMessage)sent.get(0)).getVersion()));
+    long newer = peer.stamp(2);
+    CacheMessage removal = removal(Item.class, 2, newer);
+    distributor.receive(removal, 0L);
+    assertNull(store.get(Item.class, 2));
+    distributor.receive(removal, 0L);
+    assertEquals(2L, distributor.getStaleCount());
+
+    // Unstamped changes are always applied.
+    assertNotNull(store.get(Other.class, 1));
+    distributor.receive(removal(Other.class, 1, 0L), 0L);
+    assertNull(store.get(Other.class, 1));
+    assertEquals(2L, distributor.getStaleCount());
+  }
+
+  @Test
+  public void refusesToStartWithoutANodeId() {
+    ConnectorFactory connectorFactory = new FakeDatabase().connectorFactory();
+    EntityStore unassigned = new EntityStore(null, connectorFactory);
+    unassigned.register(PureMemoryGroup.of(Item.class).versioned(true));
+    CacheMessageDistributor unstarted = new CacheMessageDistributor(unassigned) {
+      @Override
+      protected void publish(BroadcastMessage message) {
+      }
+    };
+    try {
+      unstarted.startDistribution();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void distrustsInstancesSharingANodeId() {
+    assertTrue(distributor.checkNode("a", 5));
+    assertTrue(distributor.checkNode("a", 5));
+    assertFalse(distributor.checkNode("b", 5));
+    assertFalse(distributor.checkNode("c", 1));
+    assertTrue(distributor.checkNode("d", -1));
+
+    // An unstamped change is applied even if it is older.
+    EntityVersions peer = new EntityVersions(() -> 5);
+    long older = peer.stamp(2);
+    assertNotNull(store.get(Item.class, 2));
+    distributor.removeFromCache(Item.class, 2);
+    CacheMessage removal = removal(Item.class, 2, older);
+    CacheMessageDistributor.unstamp(removal);
+    distributor.receive(removal, 0L);
+    assertNull(store.get(Item.class, 2));
+  }
+
+  @Test
+  public void discardsOldStamps() {
+    EntityVersions versions = new EntityVersions(() -> 1);
+    long old = (1_000_000L << EntityVersions.NODE_BITS) | 2;
+    for (int id = 0; id < 1023; id++) {
+      assertTrue(versions.accept(id, old));
+    }
+    versions.stamp(5000);
+    assertEquals(1, versions.size());
+
+    // A reset of the group discards its stamps.
+    distributor.removeFromCache(Item.class, 1);
+    assertEquals(1, store.getGroup(Item.class).versions().size());
+    store.getGroup(Item.class).reset();
+    assertEquals(0, store.getGroup(Item.class).versions().size());
+  }
+
+  private CacheMessage removal(Class<? extends Identifiable> type, long id, long version) {
+    CacheMessage message = new CacheMessage();
+    message.setAction(CacheMessage.ACTION_OBJECT_REMOVE);
+    message.setGroupId(store.getGroup(type).getGroupNumber());
+    message.setObjectId(id);
+    message.setVersion(version);
+    return message;
+  }
+}
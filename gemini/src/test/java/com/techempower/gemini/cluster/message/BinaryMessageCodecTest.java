@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster.message;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.math.*;
+import java.sql.*;
+import java.time.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.techempower.collection.relation.*;
+
+/**
+ * Tests that BinaryMessageCodec round-trips the cache messages.
+ */
+public class BinaryMessageCodecTest {
+
+  private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+  @Test
+  public void roundTripsCacheMessageProperties() throws Exception {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("name", "Widget é");
+    properties.put("size", -42);
+    properties.put("count", 1L << 40);
+    properties.put("active", true);
+    properties.put("price", new BigDecimal("19.99"));
+    properties.put("ratio", 0.25d);
+    properties.put("created", new Timestamp(1_500_000_000_123L));
+    properties.put("day", LocalDate.of(2020, 2, 29));
+    properties.put("missing", null);
+    CacheMessage message = new CacheMessage();
+    message.setMessageId(99);
+    message.setAction(CacheMessage.ACTION_OBJECT_RESET);
+    message.setGroupId(3);
+    message.setObjectId(123456789L);
+    message.setObjectProperties(properties);
+
+    byte[] bytes = codec.encode(message);
+    CacheMessage decoded = (CacheMessage)codec.decode(bytes);
+    assertEquals(99, decoded.getMessageId());
+    assertEquals(CacheMessage.ACTION_OBJECT_RESET, decoded.getAction());
+    assertEquals(3, decoded.getGroupId());
+    assertEquals(123456789L, decoded.getObjectId());
+    assertEquals(properties, decoded.getObjectProperties());
+    assertEquals(Timestamp.class, decoded.getObjectProperties().get("created").getClass());
+    assertTrue(bytes.length < new SerializationMessageCodec().encode(message).length);
+  }
+
+  @Test
+  public void roundTripsRelationsAndBatches() throws Exception {
+    CachedRelationMessage relation = new CachedRelationMessage();
+    relation.setAction(CachedRelationMessage.ACTION_ADD_ALL);
+    relation.setRelationId(4);
+    LongRelation pairs = new ManyToManyLongRelation();
+    pairs.add(10, 20);
+    pairs.add(10, 21);
+    pairs.add(5, 1);
+    relation.setRelation(pairs);
+    CachedRelationMessage decodedRelation = (CachedRelationMessage)codec.decode(codec.encode(relation));
+    assertEquals(4, decodedRelation.getRelationId());
+    assertEquals(3, decodedRelation.getRelation().size());
+    assertTrue(decodedRelation.getRelation().containsAll(pairs));
+    assertNull(decodedRelation.getObjectProperties());
+
+    relation.setRelation(null);
+    assertNull(((CachedRelationMessage)codec.decode(codec.encode(relation))).getRelation());
+
+    CacheBatchMessage batch = new CacheBatchMessage();
+    batch.setObjects(new int[] { 1, 2 }, new long[][] { { 3, 5, 1000 }, { -1 } });
+    batch.setRelations(new long[] { 7 }, new long[][] { { 1, 2, 1, 3 } }, new long[][] { {} });
+    CacheBatchMessage decodedBatch = (CacheBatchMessage)codec.decode(codec.encode(batch));
+    assertArrayEquals(batch.getGroupIds(), decodedBatch.getGroupIds());
+    assertArrayEquals(batch.getObjectIds(), decodedBatch.getObjectIds());
+    assertArrayEquals(batch.getRelationIds(), decodedBatch.getRelationIds());
+    assertArrayEquals(batch.getRelationAdds(), decodedBatch.getRelationAdds());
+    assertArrayEquals(batch.getRelationRemoves(), decodedBatch.getRelationRemoves());
+  }
+
+  @Test
+  public void writesVersionStampsOnlyWhenPresent() throws Exception {
+    CacheMessage message = new CacheMessage();
+    message.setAction(CacheMessage.ACTION_OBJECT_REMOVE);
+    message.setObjectId(7);
+    byte[] unstamped = codec.encode(message);
+    assertEquals(BinaryMessageCodec.VERSION_UNSTAMPED, unstamped[1]);
+    assertEquals(0L, ((CacheMessage)codec.decode(unstamped)).getVersion());
+
+    message.setVersion(1_700_000_000_000L << 12 | 5);
+    byte[] stamped = codec.encode(message);
+    assertEquals(BinaryMessageCodec.VERSION, stamped[1]);
+    CacheMessage decoded = (CacheMessage)codec.decode(stamped);
+    assertEquals(message.getVersion(), decoded.getVersion());
+    assertEquals(7L, decoded.getObjectId());
+  }
+
+  @Test
+  public void fallsBackToSerialization() throws Exception {
+    RequestMessage request = new RequestMessage();
+    request.setMessageId(5);
+    byte[] bytes = codec.encode(request);
+    assertTrue(SerializationMessageCodec.isSerialized(bytes));
+    assertEquals(5, codec.decode(bytes).getMessageId());
+  }
+
+  @Test
+  public void refusesSerializationWhenDisabled() throws Exception {
+    BinaryMessageCodec strict = new BinaryMessageCodec(false);
+    try {
+      strict.decode(new SerializationMessageCodec().encode(new RequestMessage()));
+      fail("Decoded a serialized message.");
+    } catch (IOException expected) {
+    }
+
+    CacheMessage message = new CacheMessage();
+    message.setObjectProperties(Collections.singletonMap("when", LocalDate.of(2020, 1, 1)));
+    byte[] bytes = codec.encode(message);
+    try {
+      strict.decode(bytes);
+      fail("Decoded a serialized property.");
+    } catch (IOException expected) {
+    }
+    try {
+      strict.encode(message);
+      fail("Serialized a property.");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsUnknownVersions() throws Exception {
+    byte[] bytes = codec.encode(new CacheMessage());
+    bytes[1] = BinaryMessageCodec.VERSION + 1;
+    codec.decode(bytes);
+  }
+
+}
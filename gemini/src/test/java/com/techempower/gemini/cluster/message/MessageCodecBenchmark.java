@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster.message;
+
+import java.sql.*;
+import java.util.*;
+
+import com.techempower.collection.relation.*;
+
+/**
+ * Compares BinaryMessageCodec with Java serialization for each cache 
+ * message type: encode and decode time per message, and payload size.
+ * This is not a unit test; run it directly:
+ *
+ * <pre>
+ * java -cp ... com.techempower.gemini.cluster.message.MessageCodecBenchmark 200000
+ * </pre>
+ */
+public class MessageCodecBenchmark {
+
+  private static volatile Object sink;
+
+  public static void main(String[] args) throws Exception {
+    final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    final Map<String, Message> messages = new LinkedHashMap<>();
+    messages.put("CacheMessage remove", cacheMessage(false));
+    messages.put("CacheMessage reset", cacheMessage(true));
+    messages.put("CachedRelationMessage add", relationMessage(0));
+    messages.put("CachedRelationMessage 1000", relationMessage(1000));
+    messages.put("CacheBatchMessage 1000", batchMessage(1000));
+
+    final Map<String, MessageCodec> codecs = new LinkedHashMap<>();
+    codecs.put("serialization", new SerializationMessageCodec());
+    codecs.put("binary", new BinaryMessageCodec());
+
+    System.out.printf("%-28s %-14s %10s %12s %12s%n",
+        "message", "codec", "bytes", "encode ns", "decode ns");
+    for (Map.Entry<String, Message> message : messages.entrySet()) {
+      // Scale down the work for large messages.
+      final int count = Math.max(1000, iterations / (message.getKey().endsWith("1000") ? 100 : 1));
+      for (Map.Entry<String, MessageCodec> codec : codecs.entrySet()) {
+        final MessageCodec c = codec.getValue();
+        final byte[] bytes = c.encode(message.getValue());
+        final double encode = time(count, () -> c.encode(message.getValue()));
+        final double decode = time(count, () -> c.decode(bytes));
+        System.out.printf("%-28s %-14s %10d %12.0f %12.0f%n",
+            message.getKey(), codec.getKey(), bytes.length, encode, decode);
+      }
+    }
+  }
+
+  private static double time(int count, Task task) throws Exception {
+    // Warm up, then measure.
+    for (int i = 0; i < count; i++) {
+      sink = task.run();
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      sink = task.run();
+    }
+    return (System.nanoTime() - start) / (double)count;
+  }
+
+  private static CacheMessage cacheMessage(boolean properties) {
+    final CacheMessage message = new CacheMessage();
+    message.setAction(properties ? CacheMessage.ACTION_OBJECT_RESET : CacheMessage.ACTION_OBJECT_REMOVE);
+    message.setGroupId(12);
+    message.setObjectId(1_234_567);
+    if (properties) {
+      final Map<String, Object> map = new HashMap<>();
+      map.put("id", 1_234_567L);
+      map.put("name", "Widget 1234567");
+      map.put("size", 42);
+      map.put("active", true);
+      map.put("price", 19.99d);
+      map.put("created", new Timestamp(1_500_000_000_000L));
+      map.put("description", null);
+      message.setObjectProperties(map);
+    }
+    return message;
+  }
+
+  private static CachedRelationMessage relationMessage(int size) {
+    final CachedRelationMessage message = new CachedRelationMessage();
+    message.setRelationId(3);
+    if (size == 0) {
+      message.setAction(CachedRelationMessage.ACTION_ADD);
+      message.setLeftId(1_000);
+      message.setRightId(2_000);
+    }
+    else {
+      message.setAction(CachedRelationMessage.ACTION_ADD_ALL);
+      final LongRelation relation = new ManyToManyLongRelation();
+      for (int i = 0; i < size; i++) {
+        relation.add(1_000 + i / 10, 50_000 + i);
+      }
+      message.setRelation(relation);
+    }
+    return message;
+  }
+
+  private static CacheBatchMessage batchMessage(int size) {
+    final long[] ids = new long[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = 1_000_000 + i * 3;
+    }
+    final CacheBatchMessage message = new CacheBatchMessage();
+    message.setObjects(new int[] { 12 }, new long[][] { ids });
+    return message;
+  }
+
+  private interface Task {
+    Object run() throws Exception;
+  }
+
+}
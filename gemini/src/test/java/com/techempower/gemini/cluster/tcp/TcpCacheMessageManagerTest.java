@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2018, TechEmpower, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name TechEmpower, Inc. nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL TECHEMPOWER, INC. BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+package com.techempower.gemini.cluster.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import com.techempower.cache.*;
+import com.techempower.gemini.cluster.message.*;
+
+/**
+ * Tests TcpCacheMessageManager with several instances on loopback in one
+ * JVM.
+ */
+public class TcpCacheMessageManagerTest {
+
+  private final List<Node> nodes = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    for (Node node : nodes) {
+      node.close();
+    }
+  }
+
+  @Test
+  public void deliversToEveryPeerInOrder() throws Exception {
+    List<InetSocketAddress> addresses = addresses(3);
+    Node a = start(addresses, 0);
+    Node b = start(addresses, 1);
+    Node c = start(addresses, 2);
+    awaitConnected(a, 2);
+    awaitConnected(b, 2);
+
+    for (int i = 1; i <= 100; i++) {
+      a.send(message(i));
+    }
+    b.send(message(1000));
+
+    assertEquals(sequence(1, 100), b.awaitIds(100));
+    List<Long> atC = c.awaitIds(101);
+    atC.remove(Long.valueOf(1000L));
+    assertEquals(sequence(1, 100), atC);
+    assertEquals(Arrays.asList(1000L), a.awaitIds(1));
+  }
+
+  @Test
+  public void replaysToLateStartingPeer() throws Exception {
+    List<InetSocketAddress> addresses = addresses(2);
+    Node a = start(addresses, 0);
+    for (int i = 1; i <= 50; i++) {
+      a.send(message(i));
+    }
+
+    Node b = start(addresses, 1);
+    assertEquals(sequence(1, 50), b.awaitIds(50));
+  }
+
+  @Test
+  public void resumesAfterDroppedConnections() throws Exception {
+    List<InetSocketAddress> addresses = addresses(2);
+    Node a = start(addresses, 0);
+    Node b = start(addresses, 1);
+    awaitConnected(a, 1);
+
+    for (int i = 1; i <= 20; i++) {
+      a.send(message(i));
+    }
+    assertEquals(sequence(1, 20), b.awaitIds(20));
+
+    a.dropConnections();
+    b.dropConnections();
+    for (int i = 21; i <= 40; i++) {
+      a.send(message(i));
+    }
+    assertEquals(sequence(1, 40), b.awaitIds(40));
+    Thread.sleep(200L);
+    assertEquals(40, b.ids().size());
+  }
+
+  @Test
+  public void resetsWhenMissedMessagesAreGone() throws Exception {
+    List<InetSocketAddress> addresses = addresses(2);
+    Node a = new Node(addresses, 0);
+    a.setReplayLogSize(10);
+    nodes.add(a);
+    a.start();
+    for (int i = 1; i <= 30; i++) {
+      a.send(message(i));
+    }
+
+    Node b = start(addresses, 1);
+    assertEquals(sequence(21, 30), b.awaitIds(10));
+    assertEquals(1, b.resets.get());
+  }
+
+  @Test
+  public void resetsWhenMissedMessagesExceedTheByteLimit() throws Exception {
+    List<InetSocketAddress> addresses = addresses(2);
+    Node a = new Node(addresses, 0);
+    a.setReplayLogBytes(1L);
+    nodes.add(a);
+    a.start();
+    for (int i = 1; i <= 30; i++) {
+      a.send(message(i));
+    }
+
+    // Only the newest message is kept.
+    Node b = start(addresses, 1);
+    assertEquals(sequence(30, 30), b.awaitIds(1));
+    assertEquals(1, b.resets.get());
+  }
+
+  @Test
+  public void pausesWhileMessagesCannotBeQueued() throws Exception {
+    List<InetSocketAddress> addresses = addresses(2);
+    Node a = start(addresses, 0);
+    Node b = start(addresses, 1);
+    awaitConnected(a, 1);
+
+    b.accepting = false;
+    for (int i = 1; i <= 20; i++) {
+      a.send(message(i));
+    }
+    Thread.sleep(200L);
+    assertTrue(b.ids().isEmpty());
+
+    // Nothing refused was counted as applied, so a new connection replays
+    // it rather than skipping it.
+    a.dropConnections();
+    b.dropConnections();
+    awaitConnected(a, 1);
+    b.accepting = true;
+    assertEquals(sequence(1, 20), b.awaitIds(20));
+    Thread.sleep(200L);
+    assertEquals(20, b.ids().size());
+  }
+
+  @Test
+  public void takesNodeIdsFromThePeerList() throws Exception {
+    List<InetSocketAddress> addresses = addresses(3);
+    assertEquals(1, start(addresses, 1).node());
+    assertEquals(2, start(addresses, 2).node());
+
+    // An instance listed twice would not know which id is its own.
+    List<InetSocketAddress> twice = new ArrayList<>(addresses);
+    twice.add(addresses.get(0));
+    Node duplicate = new Node(twice, 0);
+    try {
+      duplicate.start();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void rejectsConnectionsFromOtherHosts() throws Exception {
+    // The only peer is on 127.0.0.2, so a connection from 127.0.0.1 is
+    // from a stranger.
+    InetAddress peerHost = InetAddress.getByName("127.0.0.2");
+    int port = addresses(1).get(0).getPort();
+    Node a = new Node(Arrays.asList(new InetSocketAddress(peerHost, port)), 0);
+    nodes.add(a);
+    a.start();
+
+    try (Socket stranger = new Socket()) {
+      stranger.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      stranger.connect(a.getAddress(), 1000);
+      stranger.setSoTimeout(5000);
+      assertEquals(-1, stranger.getInputStream().read());
+    }
+  }
+
+  private Node start(List<InetSocketAddress> addresses, int index)
+      throws IOException {
+    Node node = new Node(addresses, index);
+    nodes.add(node);
+    node.start();
+    return node;
+  }
+
+  private static void awaitConnected(Node node, int peers)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (node.getConnectedPeerCount() < peers
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertEquals(peers, node.getConnectedPeerCount());
+  }
+
+  private static List<InetSocketAddress> addresses(int count)
+      throws IOException {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    List<ServerSocket> sockets = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ServerSocket socket = new ServerSocket(0, 50,
+          InetAddress.getLoopbackAddress());
+      sockets.add(socket);
+      addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+          socket.getLocalPort()));
+    }
+    for (ServerSocket socket : sockets) {
+      socket.close();
+    }
+    return addresses;
+  }
+
+  private static CacheMessage message(long id) {
+    CacheMessage message = new CacheMessage();
+    message.setAction(CacheMessage.ACTION_OBJECT_RESET);
+    message.setGroupId(1);
+    message.setObjectId(id);
+    return message;
+  }
+
+  private static List<Long> sequence(long first, long last) {
+    List<Long> ids = new ArrayList<>();
+    for (long id = first; id <= last; id++) {
+      ids.add(id);
+    }
+    return ids;
+  }
+
+  /**
+   * An instance that records what it receives instead of applying it.
+   */
+  private static class Node extends TcpCacheMessageManager {
+
+    private final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+    private final List<Long> ids = new ArrayList<>();
+    private final AtomicInteger resets = new AtomicInteger();
+    private volatile boolean accepting = true;
+
+    Node(List<InetSocketAddress> addresses, int index) {
+      super(new EntityStore(null, null), addresses.get(index), addresses);
+      setReconnectDelayMs(50L);
+    }
+
+    @Override
+    protected boolean offer(BroadcastMessage message, long sentTime) {
+      if (!accepting) {
+        return false;
+      }
+      CacheMessage cacheMessage = (CacheMessage) message;
+      if (cacheMessage.getAction() == CacheMessage.ACTION_FULL_RESET) {
+        resets.incrementAndGet();
+      } else {
+        received.add(cacheMessage.getObjectId());
+      }
+      return true;
+    }
+
+    @Override
+    public void send(BroadcastMessage message) {
+      super.send(message);
+    }
+
+    List<Long> awaitIds(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000L;
+      while (ids.size() < count) {
+        Long id = received.poll(deadline - System.currentTimeMillis(),
+            TimeUnit.MILLISECONDS);
+        if (id == null) {
+          break;
+        }
+        ids.add(id);
+      }
+      return new ArrayList<>(ids);
+    }
+
+    int node() {
+      return store.getVersionNode();
+    }
+
+    List<Long> ids() {
+      received.drainTo(ids);
+      return new ArrayList<>(ids);
+    }
+  }
+}